@@ -130,8 +130,11 @@ public class HttpServer implements EventHandler, HttpConst {
             }
 
             HttpConnection hc = connTable.get(pkt.getConnection());
-            if (hc == null)
-                return; // Connection may have been closed
+            if (hc == null) {
+                // Connection may have been closed
+                pkt.release();
+                return;
+            }
 
             try {
                 hc.parsePacket(pkt);
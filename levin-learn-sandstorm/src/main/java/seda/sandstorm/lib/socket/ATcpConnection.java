@@ -25,6 +25,7 @@
 package seda.sandstorm.lib.socket;
 
 import java.net.InetAddress;
+import java.nio.channels.FileChannel;
 
 import seda.sandstorm.api.BadEventElementException;
 import seda.sandstorm.api.EventElement;
@@ -185,19 +186,42 @@ public class ATcpConnection extends SimpleSink implements EventElement {
     }
 
     /**
-     * Enqueue a set of outgoing packets to be written to this socket.
+     * Enqueue a set of outgoing packets to be written to this socket. The
+     * packets are written together, with a single gathering write if they
+     * fit in the socket buffer. Each of them is still drained separately
+     * to its completion queue.
      */
     public void enqueueMany(EventElement bufarr[]) throws SinkException {
         if (closed)
             throw new SinkClosedException("ATcpConnection closed");
+        if (bufarr.length == 0)
+            return;
+        BufferEvent bufs[] = new BufferEvent[bufarr.length];
         for (int i = 0; i < bufarr.length; i++) {
             if (bufarr[i] == null)
                 throw new BadEventElementException(
                         "ATcpConnection.enqueue_many got null element",
                         bufarr[i]);
-            SocketMgr.enqueueRequest(
-                    new ATcpWriteRequest(this, (BufferEvent) bufarr[i]));
+            bufs[i] = (BufferEvent) bufarr[i];
         }
+        SocketMgr.enqueueRequest(new ATcpWriteRequest(this, bufs));
+    }
+
+    /**
+     * Send length bytes of the given file, starting at the given offset,
+     * after the packets enqueued so far. The bytes are not copied through
+     * the Java heap. A SinkDrainedEvent holding the ATcpSendFileRequest
+     * will be posted on the given compQ once they are written; the file is
+     * not closed. If the file cannot be sent, the connection is closed and
+     * an ATcpSendFileFailedEvent, then a SinkClosedEvent, are posted on
+     * compQ instead.
+     */
+    public void sendFile(FileChannel file, long offset, long length,
+            EventSink compQ) throws SinkClosedException {
+        if (closed)
+            throw new SinkClosedException("ATcpConnection closed");
+        SocketMgr.enqueueRequest(
+                new ATcpSendFileRequest(this, file, offset, length, compQ));
     }
 
     /**
@@ -27,14 +27,25 @@ package seda.sandstorm.lib.socket;
 import seda.sandstorm.api.*;
 import seda.sandstorm.core.*;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /** 
  * An ATcpInPacket represents a packet which was received from an
  * asynchronous socket. When a packet is received on a connection,
  * an ATcpInPacket is pushed to the SinkIF associated with an
  * ATcpConnection.
+ * <p>
+ * When the aSocket layer reads into a ReadBufferPool, the packet holds
+ * the pooled buffer the data was read into. The application may then
+ * read the data in place with getByteBuffer(), and must call release()
+ * once done with it, or retain() first to share the packet. Calling
+ * getBytes() or getBufferElement() instead copies the data out and
+ * releases the buffer on behalf of the application.
  *
  * @author Matt Welsh
  * @see ATcpConnection
+ * @see ReadBufferPool
  */
 public class ATcpInPacket implements EventElement {
 
@@ -43,6 +54,12 @@ public class ATcpInPacket implements EventElement {
   // package access
   long seqNum;
 
+  // Pooled data, until copied into buf or released
+  private ReadBufferPool pool;
+  private ByteBuffer data;
+  private int len;
+  private AtomicInteger refs;
+
   public ATcpInPacket(ATcpConnection conn, BufferEvent buf) {
     this.conn = conn;
     this.buf = buf;
@@ -95,6 +112,20 @@ public class ATcpInPacket implements EventElement {
     this.seqNum = seqNum;
   }
 
+  /**
+   * Create a packet holding the data read into the given buffer of the
+   * given pool, between 0 and its position.
+   */
+  public ATcpInPacket(ATcpConnection conn, ReadBufferPool pool, ByteBuffer data, long seqNum) {
+    this.conn = conn;
+    this.pool = pool;
+    this.data = data;
+    this.len = data.position();
+    this.refs = new AtomicInteger(1);
+    this.seqNum = seqNum;
+    data.flip();
+  }
+
   /**
    * Return the connection from which this packet was received.
    */
@@ -106,20 +137,87 @@ public class ATcpInPacket implements EventElement {
    * Return the data from an incoming TCP packet.
    */
   public byte[] getBytes() {
-    return buf.data;
+    return copy().data;
   }
 
   /**
    * Return the size of the packet data.
    */
   public int size() {
-    return buf.size;
+    return (buf != null) ? buf.size : len;
   }
 
   /**
    * Return the BufferElement associated with the packet data.
    */
   public BufferEvent getBufferElement() {
+    return copy();
+  }
+
+  /**
+   * Return a read-only view of the packet data, from position 0 to its
+   * limit, without copying it. If the data is pooled, the view is valid
+   * until the packet is released.
+   */
+  public ByteBuffer getByteBuffer() {
+    synchronized (this) {
+      if (buf == null) {
+        if (data == null) throw new IllegalStateException("ATcpInPacket already released");
+        return data.asReadOnlyBuffer();
+      }
+    }
+    return ByteBuffer.wrap(buf.data, buf.offset, buf.size).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Take one more reference on the pooled data of this packet, which
+   * must then be released once more.
+   */
+  public void retain() {
+    if (refs == null) return;
+    int r;
+    do {
+      r = refs.get();
+      if (r == 0) throw new IllegalStateException("ATcpInPacket already released");
+    } while (!refs.compareAndSet(r, r + 1));
+  }
+
+  /**
+   * Drop a reference on the pooled data of this packet. The data goes
+   * back to the pool once all the references are dropped. Does nothing
+   * if the data is not pooled, or was already copied out and released by
+   * getBytes() or getBufferElement(), so that a packet may always be
+   * released when it is dropped.
+   */
+  public void release() {
+    if (refs == null) return;
+    int r = refs.decrementAndGet();
+    if (r < 0) {
+      refs.incrementAndGet();
+      synchronized (this) {
+        if (buf != null) return;
+      }
+      throw new IllegalStateException("ATcpInPacket released too many times");
+    }
+    if (r == 0) {
+      ByteBuffer b;
+      synchronized (this) {
+        b = data;
+        data = null;
+      }
+      if (b != null) pool.release(b);
+    }
+  }
+
+  // Copy the pooled data, if any, into buf and release it
+  private synchronized BufferEvent copy() {
+    if (buf == null) {
+      if (data == null) throw new IllegalStateException("ATcpInPacket already released");
+      byte newdata[] = new byte[len];
+      data.duplicate().get(newdata);
+      buf = new BufferEvent(newdata);
+      release();
+    }
     return buf;
   }
 
@@ -135,7 +233,7 @@ public class ATcpInPacket implements EventElement {
   }
 
   public String toString() {
-    return "ATcpInPacket [conn="+conn+", size="+buf.size+"]";
+    return "ATcpInPacket [conn="+conn+", size="+size()+"]";
   }
 
 
@@ -0,0 +1,50 @@
+package seda.sandstorm.lib.socket;
+
+/**
+ * An ATcpSendFileFailedEvent is posted on the compQ of an
+ * ATcpSendFileRequest when the file cannot be sent. The connection is
+ * closed, since the peer cannot get the rest of the data, and a
+ * SinkClosedEvent follows on the same queue.
+ * <p>
+ * {@link #isTruncated} tells a file which ended before the requested
+ * range, for instance because it was truncated while being sent, from an
+ * I/O error on the file or the socket.
+ *
+ * @see ATcpConnection#sendFile
+ */
+public class ATcpSendFileFailedEvent extends aSocketErrorEvent {
+
+    private ATcpConnection conn;
+    private ATcpSendFileRequest request;
+    private boolean truncated;
+
+    public ATcpSendFileFailedEvent(ATcpConnection conn, ATcpSendFileRequest request,
+            boolean truncated, String message) {
+        super(message);
+        this.conn = conn;
+        this.request = request;
+        this.truncated = truncated;
+    }
+
+    public ATcpConnection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Return the request whose file could not be sent.
+     */
+    public ATcpSendFileRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Return true if the file ended before the range to send.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public String toString() {
+        return "ATcpSendFileFailedEvent [" + conn + "]: " + getMessage();
+    }
+}
@@ -0,0 +1,35 @@
+package seda.sandstorm.lib.socket;
+
+import java.nio.channels.FileChannel;
+
+import seda.sandstorm.api.*;
+
+/**
+ * Request to send part of a file to a connection. The bytes go from the
+ * file to the socket with FileChannel.transferTo(), without being copied
+ * through the Java heap.
+ * <p>
+ * Once all the bytes are written, a SinkDrainedEvent holding this request
+ * is posted on compQ; if the connection is clogged, a SinkCloggedEvent.
+ * The file channel is left open, and its position is not changed, so it
+ * can be shared by several requests.
+ *
+ * @see ATcpConnection#sendFile
+ */
+public class ATcpSendFileRequest extends aSocketRequest implements EventElement {
+
+  public ATcpConnection conn;
+  public FileChannel file;
+  public long offset;
+  public long length;
+  public EventSink compQ;
+
+  public ATcpSendFileRequest(ATcpConnection conn, FileChannel file, long offset, long length, EventSink compQ) {
+    this.conn = conn;
+    this.file = file;
+    this.offset = offset;
+    this.length = length;
+    this.compQ = compQ;
+  }
+
+}
@@ -28,16 +28,28 @@ import seda.sandstorm.api.*;
 import seda.sandstorm.core.*;
 
 /**
- * Request to write data to a connection.
+ * Request to write data to a connection. A request may carry several
+ * buffers, such as the header and the body of a response, which are
+ * written to the socket in a single gathering write.
  */
 public class ATcpWriteRequest extends aSocketRequest implements EventElement {
 
   public ATcpConnection conn;
+  /** The first buffer of the request */
   public BufferEvent buf;
+  /** All the buffers of the request, in order */
+  public BufferEvent bufs[];
 
   public ATcpWriteRequest(ATcpConnection conn, BufferEvent buf) {
     this.conn = conn;
     this.buf = buf;
+    this.bufs = new BufferEvent[] { buf };
+  }
+
+  public ATcpWriteRequest(ATcpConnection conn, BufferEvent bufs[]) {
+    this.conn = conn;
+    this.buf = bufs[0];
+    this.bufs = bufs;
   }
 
 }
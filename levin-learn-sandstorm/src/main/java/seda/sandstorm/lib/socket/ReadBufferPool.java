@@ -0,0 +1,130 @@
+package seda.sandstorm.lib.socket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import seda.sandstorm.api.Profilable;
+import seda.sandstorm.api.Profiler;
+
+/**
+ * A ReadBufferPool hands out the direct buffers into which the aSocket
+ * layer reads incoming data. The buffers are carved out of large direct
+ * slabs, allocated as needed. A connection only borrows a buffer for the
+ * duration of a read; the buffer then goes up to the application with the
+ * ATcpInPacket holding the data, and comes back to the pool once the packet
+ * is released. Idle connections thus hold no read buffer at all.
+ * <p>
+ * The pool is enabled with <tt>global.aSocket.readPool.enable</tt>, and
+ * allocates slabs of <tt>global.aSocket.readPool.slabBuffers</tt> buffers
+ * of READ_BUFFER_SIZE bytes. It is off by default: a packet dropped without
+ * being released never comes back to the pool, which then grows a new slab,
+ * so the pool should only be enabled when every application stage reading
+ * from the sockets releases its packets.
+ *
+ * @see ATcpInPacket
+ */
+public class ReadBufferPool {
+    private static final boolean DEBUG = false;
+
+    private final int bufferSize;
+    private final int slabBuffers;
+    // Most recently returned first, as it is more likely to be in the cache
+    private final ConcurrentLinkedDeque<ByteBuffer> free;
+    private final AtomicInteger allocated, inUse;
+
+    public ReadBufferPool(int bufferSize, int slabBuffers) {
+        this.bufferSize = bufferSize;
+        this.slabBuffers = Math.max(1, slabBuffers);
+        this.free = new ConcurrentLinkedDeque<ByteBuffer>();
+        this.allocated = new AtomicInteger();
+        this.inUse = new AtomicInteger();
+    }
+
+    /**
+     * Return the size of each buffer.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Borrow an empty buffer, which must be given back with release().
+     */
+    public ByteBuffer borrow() {
+        ByteBuffer buf = free.pollFirst();
+        if (buf == null) {
+            buf = grow();
+        }
+        inUse.incrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Give back a buffer obtained from borrow().
+     */
+    public void release(ByteBuffer buf) {
+        inUse.decrementAndGet();
+        free.offerFirst(buf);
+    }
+
+    // Allocate a new slab, keep all its buffers but one
+    private synchronized ByteBuffer grow() {
+        // Another thread may have grown the pool in the meantime
+        ByteBuffer buf = free.pollFirst();
+        if (buf != null) {
+            return buf;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * slabBuffers);
+        for (int i = 0; i < slabBuffers; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            ByteBuffer b = slab.slice();
+            if (i == 0) {
+                buf = b;
+            } else {
+                free.offerLast(b);
+            }
+        }
+        allocated.addAndGet(slabBuffers);
+        if (DEBUG)
+            System.err.println("ReadBufferPool: allocated " + allocated.get() + " buffers");
+        return buf;
+    }
+
+    /**
+     * Return the number of buffers allocated by the pool.
+     */
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Return the number of buffers borrowed and not released yet.
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Add the number of buffers allocated and in use to the given profiler.
+     */
+    void profile(Profiler profiler) {
+        profiler.add("aSocket readPool allocated", new Profilable() {
+            public int profileSize() {
+                return getAllocated();
+            }
+        });
+        profiler.add("aSocket readPool inUse", new Profilable() {
+            public int profileSize() {
+                return getInUse();
+            }
+        });
+    }
+
+    public String toString() {
+        return "ReadBufferPool [" + inUse.get() + "/" + allocated.get() + " buffers of " + bufferSize + " bytes]";
+    }
+
+}
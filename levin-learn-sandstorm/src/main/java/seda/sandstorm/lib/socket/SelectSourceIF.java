@@ -104,6 +104,19 @@ public interface SelectSourceIF extends EventSource {
    */
   public int size();
 
+  /**
+   * Cause a blocking dequeue in progress on another thread to return
+   * at once, or else the next one. Used to hand over a request to
+   * the thread polling this SelectSource without waiting for the
+   * select timeout.
+   */
+  public void wakeup();
+
+  /**
+   * Return the number of times a poll was woken up by wakeup().
+   */
+  public int numWakeups();
+
   /* 
 
   // Actually performs the poll and sets ready[], ready_off, ready_size
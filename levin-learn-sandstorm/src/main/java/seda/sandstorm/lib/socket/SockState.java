@@ -48,12 +48,36 @@ public abstract class SockState implements aSocketConst {
     protected int outstanding_writes, numEmptyWrites;
     protected Deque writeReqList;
     protected ATcpWriteRequest cur_write_req;
+    // The write reqs being written together, starting with cur_write_req
+    protected ATcpWriteRequest cur_write_reqs[];
+    protected int cur_num_reqs;
     protected int cur_offset, cur_length_target;
     protected byte writeBuf[];
+    // The file being sent, from cur_sendfile_pos up to cur_sendfile_end
+    protected ATcpSendFileRequest cur_sendfile_req;
+    protected long cur_sendfile_pos, cur_sendfile_end;
     protected ATcpInPacket pkt;
 
     protected static int numActiveWriteSockets = 0;
 
+    // Pool of read buffers shared by all connections, null if disabled
+    protected static ReadBufferPool readPool;
+
+    // The reactor whose read and write loops serve this connection
+    int reactor;
+
+    // Called by the constructor of the implementation once nothing else
+    // can fail, so that a connection which is never built leaves no load
+    // on its reactor
+    protected void assignReactor() {
+        this.reactor = SocketMgr.assignReactor();
+    }
+
+    // Called once by close(), so the reactor can take new connections
+    protected void releaseReactor() {
+        SocketMgr.releaseReactor(reactor);
+    }
+
     // This is synchronized with close()
     protected abstract void readInit(SelectSourceIF read_selsource,
             EventSink compQ, int readClogTries);
@@ -70,11 +94,26 @@ public abstract class SockState implements aSocketConst {
 
     protected abstract boolean tryWrite() throws SinkClosedException;
 
+    protected abstract void initSendFile(ATcpSendFileRequest req);
+
+    protected abstract boolean trySendFile() throws SinkClosedException;
+
     void writeReset() {
         this.cur_write_req = null;
+        this.cur_sendfile_req = null;
         this.outstanding_writes--;
     }
 
+    // Called once the cur_num_reqs write reqs have all been written
+    void writeResetAll() {
+        for (int i = 0; i < cur_num_reqs; i++) {
+            cur_write_reqs[i] = null;
+        }
+        this.outstanding_writes -= cur_num_reqs;
+        this.cur_num_reqs = 0;
+        this.cur_write_req = null;
+    }
+
     protected abstract void writeMaskEnable();
 
     protected abstract void writeMaskDisable();
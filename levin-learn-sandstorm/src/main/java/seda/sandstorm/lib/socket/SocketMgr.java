@@ -24,8 +24,12 @@
 
 package seda.sandstorm.lib.socket;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import seda.sandstorm.api.EventSink;
 import seda.sandstorm.api.Manager;
+import seda.sandstorm.api.Profilable;
 import seda.sandstorm.api.SinkException;
 import seda.sandstorm.api.Stage;
 import seda.sandstorm.api.internal.SystemManager;
@@ -38,14 +42,31 @@ import seda.sandstorm.main.SandstormConfig;
  * The aSocketMgr is an internal class used to provide an interface between the
  * Sandstorm runtime and the aSocket library. Applications should not make use
  * of this class.
+ * <p>
+ * The connections are spread over <tt>global.aSocket.reactors</tt>
+ * reactors, each made of a read stage and a write stage with their own
+ * selector and thread. A connection is assigned to a reactor once it is
+ * accepted or connected, <tt>roundrobin</tt> or to the reactor with the
+ * fewest open connections (<tt>leastload</tt>), as set by
+ * <tt>global.aSocket.reactor.assign</tt>, and all its read and write
+ * requests then go to that reactor. Listen, connect and UDP requests go
+ * to the first reactor.
  *
  * @author Matt Welsh
  */
 public class SocketMgr {
     private static ThreadManager aSocketTM, aSocketRCTM;
-    private static EventSink read_sink;
+    private static EventSink read_sinks[];
     private static EventSink listenSink;
-    private static EventSink write_sink;
+    private static EventSink write_sinks[];
+    private static SelectSourceIF read_selsources[], write_selsources[];
+    private static SelectSourceIF listen_selsource;
+
+    private static int numReactors = 1;
+    private static boolean leastLoad = false;
+    private static AtomicInteger nextReactor = new AtomicInteger();
+    // Number of open connections on each reactor
+    private static AtomicIntegerArray reactorLoad = new AtomicIntegerArray(1);
 
     private static Object init_lock = new Object();
     private static boolean initialized = false;
@@ -69,23 +90,51 @@ public class SocketMgr {
                 throw new RuntimeException("aSocketMgr: Cannot create aSocketImplFactory: " + e);
             }
 
+            if (cfg.getBoolean("global.aSocket.readPool.enable")) {
+                SockState.readPool = new ReadBufferPool(
+                        aSocketConst.READ_BUFFER_SIZE,
+                        cfg.getInt("global.aSocket.readPool.slabBuffers"));
+                if (mgr.getProfiler() != null)
+                    SockState.readPool.profile(mgr.getProfiler());
+            }
+
             aSocketTM = new SocketThreadManager(mgr);
             sysmgr.addThreadManager("aSocket", aSocketTM);
 
-            ReadEventHandler revh = new ReadEventHandler();
-            SocketStageWrapper rsw;
+            numReactors = cfg.getInt("global.aSocket.reactors", 1);
+            if (numReactors <= 0) {
+                numReactors = Runtime.getRuntime().availableProcessors();
+            }
+            String assign = cfg.getString("global.aSocket.reactor.assign", "roundrobin");
+            if (assign.equals("leastload")) {
+                leastLoad = true;
+            } else if (!assign.equals("roundrobin")) {
+                throw new IllegalArgumentException(
+                        "aSocketMgr: Bad global.aSocket.reactor.assign " + assign);
+            }
+            reactorLoad = new AtomicIntegerArray(numReactors);
+            read_sinks = new EventSink[numReactors];
+            write_sinks = new EventSink[numReactors];
+            read_selsources = new SelectSourceIF[numReactors];
+            write_selsources = new SelectSourceIF[numReactors];
+            if (numReactors > 1)
+                System.err.println("aSocket layer using " + numReactors + " reactors");
+
             if (cfg.getBoolean("global.aSocket.governor.enable")) {
                 aSocketRCTM = new aSocketRCTMSleep(mgr);
                 sysmgr.addThreadManager("aSocketRCTM", aSocketRCTM);
-                rsw = new SocketStageWrapper("aSocket ReadStage", revh,
-                        new ConfigDataImpl(mgr), aSocketRCTM);
-            } else {
-                rsw = new SocketStageWrapper("aSocket ReadStage", revh,
-                        new ConfigDataImpl(mgr), aSocketTM);
             }
 
-            Stage readStage = sysmgr.createStage(rsw, true);
-            read_sink = readStage.getSink();
+            for (int i = 0; i < numReactors; i++) {
+                ReadEventHandler revh = new ReadEventHandler();
+                SocketStageWrapper rsw = new SocketStageWrapper(
+                        reactorStageName("aSocket ReadStage", i), revh,
+                        new ConfigDataImpl(mgr),
+                        (aSocketRCTM != null) ? aSocketRCTM : aSocketTM);
+                Stage readStage = sysmgr.createStage(rsw, true);
+                read_sinks[i] = readStage.getSink();
+                read_selsources[i] = revh.getSelectSource();
+            }
 
             ListenEventHandler levh = new ListenEventHandler();
             SocketStageWrapper lsw = new SocketStageWrapper(
@@ -93,12 +142,29 @@ public class SocketMgr {
                     aSocketTM);
             Stage listenStage = sysmgr.createStage(lsw, true);
             listenSink = listenStage.getSink();
+            listen_selsource = levh.getSelectSource();
 
-            WriteEventHandler wevh = new WriteEventHandler();
-            SocketStageWrapper wsw = new SocketStageWrapper(
-                    "aSocket WriteStage", wevh, new ConfigDataImpl(mgr), aSocketTM);
-            Stage writeStage = sysmgr.createStage(wsw, true);
-            write_sink = writeStage.getSink();
+            for (int i = 0; i < numReactors; i++) {
+                WriteEventHandler wevh = new WriteEventHandler();
+                SocketStageWrapper wsw = new SocketStageWrapper(
+                        reactorStageName("aSocket WriteStage", i), wevh,
+                        new ConfigDataImpl(mgr), aSocketTM);
+                Stage writeStage = sysmgr.createStage(wsw, true);
+                write_sinks[i] = writeStage.getSink();
+                write_selsources[i] = wevh.getSelectSource();
+            }
+
+            if (numReactors > 1 && mgr.getProfiler() != null) {
+                for (int i = 0; i < numReactors; i++) {
+                    final int r = i;
+                    mgr.getProfiler().add("aSocket reactor " + i + " connections",
+                            new Profilable() {
+                                public int profileSize() {
+                                    return reactorLoad.get(r);
+                                }
+                            });
+                }
+            }
 
             initialized = true;
         }
@@ -134,56 +200,105 @@ public class SocketMgr {
         return factory;
     }
 
+    // Keep the names of the stages of a single reactor as they always were
+    private static String reactorStageName(String name, int reactor) {
+        return (numReactors == 1) ? name : name + " " + reactor;
+    }
+
+    /**
+     * Pick the reactor of a new connection.
+     */
+    static int assignReactor() {
+        int r = 0;
+        if (numReactors > 1) {
+            if (leastLoad) {
+                // Racing assignments may both pick the same reactor, which
+                // only makes the balance slightly off
+                for (int i = 1; i < numReactors; i++) {
+                    if (reactorLoad.get(i) < reactorLoad.get(r))
+                        r = i;
+                }
+            } else {
+                r = (nextReactor.getAndIncrement() & Integer.MAX_VALUE) % numReactors;
+            }
+        }
+        reactorLoad.incrementAndGet(r);
+        return r;
+    }
+
+    /**
+     * Called when a connection of the given reactor is closed.
+     */
+    static void releaseReactor(int reactor) {
+        reactorLoad.decrementAndGet(reactor);
+    }
+
+    private static int reactorOf(ATcpConnection conn) {
+        SockState ss = conn.sockState;
+        return (ss == null) ? 0 : ss.reactor;
+    }
+
+    /**
+     * Enqueue the request onto the given sink and wake up the thread
+     * polling the given select source, which would otherwise only get the
+     * request after its select times out.
+     */
+    private static void enqueue(EventSink sink, SelectSourceIF selsource,
+            aSocketRequest req) {
+        try {
+            sink.enqueue(req);
+        } catch (SinkException se) {
+            System.err.println(
+                    "aSocketMgr.enqueueRequest: Warning: Got SinkException "
+                            + se);
+            System.err.println(
+                    "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
+            return;
+        }
+        selsource.wakeup();
+    }
+
     static public void enqueueRequest(aSocketRequest req) {
         init();
 
-        if ((req instanceof ATcpWriteRequest)
-                || (req instanceof ATcpConnectRequest)
-                || (req instanceof ATcpFlushRequest)
-                || (req instanceof ATcpCloseRequest)
-                || (req instanceof AUdpWriteRequest)
+        if (req instanceof ATcpWriteRequest) {
+            int r = reactorOf(((ATcpWriteRequest) req).conn);
+            enqueue(write_sinks[r], write_selsources[r], req);
+
+        } else if (req instanceof ATcpSendFileRequest) {
+            int r = reactorOf(((ATcpSendFileRequest) req).conn);
+            enqueue(write_sinks[r], write_selsources[r], req);
+
+        } else if (req instanceof ATcpFlushRequest) {
+            int r = reactorOf(((ATcpFlushRequest) req).conn);
+            enqueue(write_sinks[r], write_selsources[r], req);
+
+        } else if (req instanceof ATcpCloseRequest) {
+            int r = reactorOf(((ATcpCloseRequest) req).conn);
+            enqueue(write_sinks[r], write_selsources[r], req);
+
+        } else if (req instanceof ATcpConnectRequest) {
+            enqueue(write_sinks[0], write_selsources[0], req);
+
+        } else if ((req instanceof AUdpWriteRequest)
                 || (req instanceof AUdpCloseRequest)
                 || (req instanceof AUdpFlushRequest)
                 || (req instanceof AUdpConnectRequest)
                 || (req instanceof AUdpDisconnectRequest)) {
+            enqueue(write_sinks[0], write_selsources[0], req);
 
-            try {
-                write_sink.enqueue(req);
-            } catch (SinkException se) {
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: Warning: Got SinkException "
-                                + se);
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
-            }
-
-        } else if ((req instanceof ATcpStartReadRequest)
-                || (req instanceof AUdpStartReadRequest)) {
+        } else if (req instanceof ATcpStartReadRequest) {
+            int r = reactorOf(((ATcpStartReadRequest) req).conn);
+            enqueue(read_sinks[r], read_selsources[r], req);
 
-            try {
-                read_sink.enqueue(req);
-            } catch (SinkException se) {
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: Warning: Got SinkException "
-                                + se);
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
-            }
+        } else if (req instanceof AUdpStartReadRequest) {
+            enqueue(read_sinks[0], read_selsources[0], req);
 
         } else if ((req instanceof ATcpListenRequest)
                 || (req instanceof ATcpSuspendAcceptRequest)
                 || (req instanceof ATcpResumeAcceptRequest)
                 || (req instanceof ATcpCloseServerRequest)) {
-
-            try {
-                listenSink.enqueue(req);
-            } catch (SinkException se) {
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: Warning: Got SinkException "
-                                + se);
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
-            }
+            enqueue(listenSink, listen_selsource, req);
 
         } else {
             throw new IllegalArgumentException("Bad request type " + req);
@@ -26,8 +26,11 @@ package seda.sandstorm.lib.socket;
 
 import seda.sandstorm.api.EventElement;
 import seda.sandstorm.api.EventHandler;
+import seda.sandstorm.api.EventHandlerException;
 import seda.sandstorm.api.EventSource;
 import seda.sandstorm.api.Manager;
+import seda.sandstorm.api.Profilable;
+import seda.sandstorm.api.Profiler;
 import seda.sandstorm.api.internal.StageWrapper;
 import seda.sandstorm.api.internal.ThreadManager;
 import seda.sandstorm.internal.ThreadPool;
@@ -35,6 +38,12 @@ import seda.sandstorm.internal.ThreadPool;
 /**
  * aSocketThreadManager provides a thread manager for the aSocket layer: one
  * thread for each of the read, write, and listen stages.
+ * <p>
+ * Each thread runs a reactor loop which handles the requests in the event
+ * queue of its stage, then blocks in the select source of the stage until
+ * a socket is ready, a request is enqueued, or SELECT_TIMEOUT expires.
+ * An idle aSocket layer thus does not use any CPU, and a request does not
+ * wait for the select timeout.
  * 
  * @author Matt Welsh
  */
@@ -60,6 +69,8 @@ class SocketThreadManager implements ThreadManager, aSocketConst {
         aSocketThread at = makeThread(stage);
         ThreadPool tp = new ThreadPool(stage, mgr, at, 1);
         at.registerTP(tp);
+        if (mgr.getProfiler() != null)
+            at.profile(mgr.getProfiler());
         tp.start();
     }
 
@@ -90,6 +101,8 @@ class SocketThreadManager implements ThreadManager, aSocketConst {
         protected EventSource eventQ;
         protected String name;
         protected EventHandler handler;
+        // Written by the thread only; the time counters are in nanoseconds
+        private volatile long iterations, selectTime, handleTime;
 
         protected aSocketThread(SocketStageWrapper wrapper) {
             if (DEBUG)
@@ -105,95 +118,135 @@ class SocketThreadManager implements ThreadManager, aSocketConst {
             this.tp = tp;
         }
 
+        /**
+         * Run one iteration of the loop: handle the requests in the event
+         * queue, then wait for and handle the select events. Returns the
+         * number of events handled.
+         */
+        protected int runOnce(int aggTarget) throws EventHandlerException {
+            int num = 0;
+            long t0 = System.nanoTime();
+
+            // Requests first, as they may register with the select source
+            EventElement qelarr[];
+            if (aggTarget == -1) {
+                qelarr = eventQ.dequeueAll();
+            } else {
+                qelarr = eventQ.dequeue(aggTarget);
+            }
+            if (qelarr != null) {
+                if (DEBUG)
+                    System.err.println(name + ": got " + qelarr.length
+                            + " new requests");
+                handler.handleEvents(qelarr);
+                num += qelarr.length;
+            }
+            long t1 = System.nanoTime();
+
+            // The only place where the loop blocks: SocketMgr wakes up the
+            // select source when it enqueues a request. Don't block if
+            // requests were left over by the aggregation target.
+            int timeout = (eventQ.size() > 0) ? 0 : SELECT_TIMEOUT;
+            if (DEBUG)
+                System.err.println(name + ": doing select, timeout "
+                        + timeout + ", numActive " + selsource.numActive());
+            EventElement ret[];
+            if (aggTarget == -1) {
+                ret = selsource.blockingDequeueAll(timeout);
+            } else {
+                ret = selsource.blockingDequeue(timeout, aggTarget);
+            }
+            long t2 = System.nanoTime();
+
+            if (ret != null) {
+                if (DEBUG)
+                    System.err.println(name + ": select got " + ret.length
+                            + " elements");
+                handler.handleEvents(ret);
+                num += ret.length;
+            } else if (DEBUG)
+                System.err.println(name + ": select got null");
+            long t3 = System.nanoTime();
+            if (ret != null)
+                wrapper.getStats().recordServiceRate(ret.length,
+                        (t3 - t2) / 1000000);
+
+            iterations++;
+            selectTime += t2 - t1;
+            handleTime += (t1 - t0) + (t3 - t2);
+            return num;
+        }
+
         public void run() {
-            int aggTarget;
             if (DEBUG)
                 System.err.println(name + ": starting, selsource=" + selsource
                         + ", eventQ=" + eventQ + ", handler=" + handler);
 
             while (true) {
-
-                if (DEBUG)
-                    System.err.println(name + ": Looping in run()");
                 try {
-
-                    aggTarget = tp.getAggregationTarget();
-
-                    while (selsource != null && selsource.numActive() == 0) {
-                        if (DEBUG)
-                            System.err.println(name
-                                    + ": numActive is zero, waiting on event queue");
-                        EventElement qelarr[];
-                        if (aggTarget == -1) {
-                            qelarr = eventQ.blockingDequeueAll(EVENT_QUEUE_TIMEOUT);
-                        } else {
-                            qelarr = eventQ.blockingDequeue(
-                                    EVENT_QUEUE_TIMEOUT, aggTarget);
-                        }
-
-                        if (qelarr != null) {
-                            if (DEBUG)
-                                System.err.println(name + ": got "
-                                        + qelarr.length + " new requests");
-                            handler.handleEvents(qelarr);
-                        }
-                    }
-
-                    for (int s = 0; s < SELECT_SPIN; s++) {
-                        if (DEBUG)
-                            System.err
-                                    .println(name + ": doing select, numActive "
-                                            + selsource.numActive());
-                        SelectQueueElement ret[];
-
-                        if (aggTarget == -1) {
-                            ret = (SelectQueueElement[]) selsource
-                                    .blockingDequeueAll(SELECT_TIMEOUT);
-                        } else {
-                            ret = (SelectQueueElement[]) selsource
-                                    .blockingDequeue(SELECT_TIMEOUT,
-                                            aggTarget);
-                        }
-
-                        if (ret != null) {
-                            if (DEBUG)
-                                System.err.println(name + ": select got "
-                                        + ret.length + " elements");
-                            long tstart = System.currentTimeMillis();
-                            handler.handleEvents(ret);
-                            long tend = System.currentTimeMillis();
-                            wrapper.getStats().recordServiceRate(ret.length,
-                                    tend - tstart);
-
-                        } else if (DEBUG)
-                            System.err.println(name + ": select got null");
-                    }
-
-                    if (DEBUG)
-                        System.err.println(name + ": Checking request queue");
-                    for (int s = 0; s < EVENT_QUEUE_SPIN; s++) {
-                        EventElement qelarr[];
-                        if (aggTarget == -1) {
-                            qelarr = eventQ.dequeueAll();
-                        } else {
-                            qelarr = eventQ.dequeue(aggTarget);
-                        }
-                        if (qelarr != null) {
-                            if (DEBUG)
-                                System.err.println(name + ": got "
-                                        + qelarr.length + " new requests");
-                            handler.handleEvents(qelarr);
-                            break;
-                        }
-                    }
-
-                    Thread.yield();
+                    runOnce(tp.getAggregationTarget());
                 } catch (Exception e) {
                     System.err.println(name + ": got exception " + e);
                     e.printStackTrace();
                 }
             }
         }
+
+        /**
+         * Return the number of iterations of the loop.
+         */
+        public long getIterations() {
+            return iterations;
+        }
+
+        /**
+         * Return the number of times the loop was woken up by a request.
+         */
+        public int getWakeups() {
+            return selsource.numWakeups();
+        }
+
+        /**
+         * Return the time spent waiting for select events, in milliseconds.
+         */
+        public long getSelectTime() {
+            return selectTime / 1000000;
+        }
+
+        /**
+         * Return the time spent handling requests and select events, in
+         * milliseconds.
+         */
+        public long getHandleTime() {
+            return handleTime / 1000000;
+        }
+
+        /**
+         * Add the loop counters to the given profiler.
+         */
+        void profile(Profiler profiler) {
+            String prefix = "aSocketThread <" + wrapper.getStage().getName() + "> ";
+            profiler.add(prefix + "iterations", new Profilable() {
+                public int profileSize() {
+                    return (int) getIterations();
+                }
+            });
+            profiler.add(prefix + "wakeups", new Profilable() {
+                public int profileSize() {
+                    return getWakeups();
+                }
+            });
+            profiler.add(prefix + "selectMillis", new Profilable() {
+                public int profileSize() {
+                    return (int) getSelectTime();
+                }
+            });
+            profiler.add(prefix + "handleMillis", new Profilable() {
+                public int profileSize() {
+                    return (int) getHandleTime();
+                }
+            });
+        }
     }
 
 }
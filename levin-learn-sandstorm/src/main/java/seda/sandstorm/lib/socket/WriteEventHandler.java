@@ -75,7 +75,7 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
     // Avoid doing too many things on each socket
     int num_reqs_processed = 0;
     while (ss.writeReqList != null  &&   // JRVB: this can happen if someone closes the socket while we are processing writes.
-           ((req = (aSocketRequest)ss.writeReqList.getLast()) != null) &&
+           ((req = (aSocketRequest)ss.writeReqList.peekFirst()) != null) &&
 	(++num_reqs_processed < MAX_WRITE_REQS_PER_SOCKET)) {
 
       if (DEBUG) System.err.println("Processing "+req+" ("+num_reqs_processed+")");
@@ -112,15 +112,70 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
 	}
 
 	if (done) {
-	  if (DEBUG) System.err.println("WriteEventHandler: Finished write");
-	  // Finished this write
+	  // Finished all the writes gathered with this one
+	  int num = ss.cur_num_reqs;
+	  if (DEBUG) System.err.println("WriteEventHandler: Finished "+num+" writes");
+	  for (int i = 0; i < num; i++) {
+	    wreq = ss.cur_write_reqs[i];
+
+	    // Send completion upcalls
+	    for (int j = 0; j < wreq.bufs.length; j++) {
+	      EventSink cq = wreq.bufs[j].getCompletionQueue();
+	      if (cq != null) {
+		SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, wreq.bufs[j]);
+		cq.enqueueLossy(sde);
+	      }
+	    }
+	  }
+	  ss.writeResetAll();
+	  num_reqs_processed += num - 1;
+
+	  // Clear the requests
+	  if (!ss.isClosed()) {
+	    for (int i = 0; i < num; i++) ss.writeReqList.pollFirst();
+	  } else {
+	    return; // Nothing more to do
+	  }
+
+	} else {
+	  if (DEBUG) System.err.println("WriteEventHandler: Write not completed");
+	  break; // Don't want to process anything else here
+	}
+
+      } else if (req instanceof ATcpSendFileRequest) {
+	// Handle send file request
+	if (DEBUG) System.err.println("WriteEventHandler: Processing ATcpSendFileRequest");
+	ATcpSendFileRequest sreq = (ATcpSendFileRequest)req;
+
+	// Skip if locked
+	if (ss.cur_write_req != null) break;
+	if ((ss.cur_sendfile_req != null) && (ss.cur_sendfile_req != req)) break;
+
+	if (ss.cur_sendfile_req == null) {
+	  if (DEBUG) System.err.println("WriteEventHandler: Doing initSendFile");
+	  ss.initSendFile(sreq);
+	}
+
+	boolean done = false;
+	int c = 0;
+
+	// Send as much as the socket takes, then wait for it to be writable
+	try {
+	  while ((!(done = ss.trySendFile())) && (c++ < TRYWRITE_SPIN)) ;
+	} catch (SinkClosedException sde) {
+	  // trySendFile closed the socket, after posting an
+	  // ATcpSendFileFailedEvent and a SinkClosedEvent on sreq.compQ
+	  // (or on the read queue if the request has none)
+	}
+
+	if (done) {
+	  if (DEBUG) System.err.println("WriteEventHandler: Finished sending file");
 	  ss.writeReset();
 
 	  // Send completion upcall
-	  EventSink cq = wreq.buf.getCompletionQueue();
-	  if (cq != null) {
-	    SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, wreq.buf);
-	    cq.enqueueLossy(sde);
+	  if (sreq.compQ != null) {
+	    SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, sreq);
+	    sreq.compQ.enqueueLossy(sde);
 	  }
 
 	  // Clear the request
@@ -131,7 +186,7 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
 	  }
 
 	} else {
-	  if (DEBUG) System.err.println("WriteEventHandler: Write not completed");
+	  if (DEBUG) System.err.println("WriteEventHandler: Send file not completed");
 	  break; // Don't want to process anything else here
 	}
 
@@ -331,16 +386,35 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
 	if (!ss.addWriteRequest(req, selsource)) {
 	  // Couldn't enqueue: this connection is clogged
 	  ATcpWriteRequest wreq = (ATcpWriteRequest)req;
-	  EventSink cq = wreq.buf.getCompletionQueue();
-	  if (cq != null) {
-	    SinkCloggedEvent sce = new SinkCloggedEvent(wreq.conn, wreq.buf);
-	    cq.enqueueLossy(sce);
+	  for (int i = 0; i < wreq.bufs.length; i++) {
+	    EventSink cq = wreq.bufs[i].getCompletionQueue();
+	    if (cq != null) {
+	      SinkCloggedEvent sce = new SinkCloggedEvent(wreq.conn, wreq.bufs[i]);
+	      cq.enqueueLossy(sce);
+	    }
 	  }
 	} else {
             if (DEBUG) System.err.println("WriteEventHandler: " + ss.outstanding_writes + " outstanding writes" );
         }
       }
 
+    } else if (req instanceof ATcpSendFileRequest) {
+
+      if (DEBUG) System.err.println("WriteEventHandler: got send file request: " + req);
+      ATcpSendFileRequest sreq = (ATcpSendFileRequest)req;
+      SockState ss = sreq.conn.sockState;
+
+      // If already closed, just drop it
+      if (!ss.closed) {
+	if (!ss.addWriteRequest(req, selsource)) {
+	  // Couldn't enqueue: this connection is clogged
+	  if (sreq.compQ != null) {
+	    SinkCloggedEvent sce = new SinkCloggedEvent(sreq.conn, sreq);
+	    sreq.compQ.enqueueLossy(sce);
+	  }
+	}
+      }
+
     } else if (req instanceof AUdpWriteRequest) {
 
       DatagramSockState ss = ((AUdpWriteRequest)req).sock.sockState;
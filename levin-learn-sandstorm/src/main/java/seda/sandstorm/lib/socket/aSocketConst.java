@@ -37,6 +37,15 @@ public interface aSocketConst {
   public static final int TRYWRITE_SPIN = 10;
   /** Maximum number of bytes to try writing at once; -1 if no limit */
   public static final int MAX_WRITE_LEN = -1; 
+  /**
+   * Maximum number of queued write reqs on a socket to coalesce into a
+   * single gathering write. If set to 1, each write req is written alone.
+   */
+  public static final int MAX_GATHER_WRITE_REQS = 64;
+  /** Maximum number of buffers to coalesce into a single gathering write */
+  public static final int MAX_GATHER_WRITE_BUFS = 128;
+  /** Maximum number of bytes to send from a file at once */
+  public static final int MAX_SENDFILE_LEN = 1024*1024;
   /** Maximum number of write reqs on a socket to process at once */
   public static final int MAX_WRITE_REQS_PER_SOCKET = 1000;
   /** Maximum number of writes to process at once */
@@ -51,12 +60,6 @@ public interface aSocketConst {
 
   /** Time in ms to sleep waiting for select */
   public static final int SELECT_TIMEOUT = 1000;
-  /** Number of times to spin on select */
-  public static final int SELECT_SPIN = 1;
-  /** Time in ms to sleep waiting on event queue */
-  public static final int EVENT_QUEUE_TIMEOUT = 1000;
-  /** Number of times to spin on event queue */
-  public static final int EVENT_QUEUE_SPIN = 10;
 
   /** Maximum aggregation constant for aSocketRCTM. */
   public static final int LARGE_AGGREGATION = 4096;
@@ -24,7 +24,6 @@
 
 package seda.sandstorm.lib.socket;
 
-import seda.sandstorm.api.EventElement;
 import seda.sandstorm.api.Manager;
 import seda.sandstorm.api.internal.ThreadManager;
 
@@ -71,62 +70,13 @@ class aSocketRCTMSleep extends SocketThreadManager implements ThreadManager, aSo
       int num_measurements = 0, num_events = 0;
       long sleeptime = INITIAL_SLEEPTIME;
       int sleepfreq = INITIAL_SLEEPFREQ;
-      int aggTarget;
 
       t1 = System.currentTimeMillis();
 
       while (true) {
 
 	try {
-
-	  aggTarget = tp.getAggregationTarget();
-
-	  while (selsource.numActive() == 0) {
-	    if (DEBUG) System.err.println(name+": numActive is zero, waiting on event queue");
-	    EventElement qelarr[];
-	    if (aggTarget == -1) {
-	      qelarr = eventQ.blockingDequeueAll(EVENT_QUEUE_TIMEOUT);
-	    } else {
-	      qelarr = eventQ.blockingDequeue(EVENT_QUEUE_TIMEOUT, aggTarget);
-	    }
-	    if (qelarr != null) {
-	      if (DEBUG) System.err.println(name+": got "+qelarr.length+" new requests");
-	      num_events += qelarr.length;
-	      handler.handleEvents(qelarr);
-	    }
-	  }
-
-	  for (int s = 0; s < SELECT_SPIN; s++) {
-	    if (DEBUG) System.err.println(name+": doing select, numActive "+selsource.numActive());
-	    SelectQueueElement ret[];
-	    if (aggTarget == -1) {
-	      ret = (SelectQueueElement[])selsource.blockingDequeueAll(SELECT_TIMEOUT);
-	    } else {
-	      ret = (SelectQueueElement[])selsource.blockingDequeue(SELECT_TIMEOUT, aggTarget);
-	    }
-	    if (ret != null) {
-	      if (DEBUG) System.err.println(name+": select got "+ret.length+" elements");
-	      num_events += ret.length;
-	      handler.handleEvents(ret);
-	    } else if (DEBUG) System.err.println(name+": select got null");
-	  }
-
-	  if (DEBUG) System.err.println(name+": Checking request queue");
-	  for (int s = 0; s < EVENT_QUEUE_SPIN; s++) {
-	    EventElement qelarr[];
-	    if (aggTarget == -1) {
-	      qelarr = eventQ.dequeueAll();
-	    } else {
-	      qelarr = eventQ.dequeue(aggTarget);
-	    }
-	    if (qelarr != null) {
-	      if (DEBUG) System.err.println(name+": got "+qelarr.length+" new requests");
-	      num_events += qelarr.length;
-	      handler.handleEvents(qelarr);
-	      break;
-	    }
-	  }
-
+	  num_events += runOnce(tp.getAggregationTarget());
 	} catch (Exception e) {
 	  System.err.println(name+": got exception "+e);
 	  e.printStackTrace();
@@ -31,6 +31,7 @@ import java.nio.channels.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A NIOSelectSource is an implementation of SourceIF which pulls events from
@@ -62,6 +63,11 @@ public class NIOSelectSource implements SelectSourceIF {
   private int balancer_seq_off;
   private Object blocker;
   private String name = "(unknown)";
+  // The thread polling the selector, null until the first poll
+  private volatile Thread owner;
+  // Set by wakeup() until the next poll, so that wakeups are coalesced
+  private AtomicBoolean woken = new AtomicBoolean();
+  private volatile int num_wakeups;
 
   // XXX MDW HACKING
   public Selector getSelector() {
@@ -167,11 +173,18 @@ public class NIOSelectSource implements SelectSourceIF {
     synchronized (blocker) {
       SelectionKey selkey = (SelectionKey)selkey_obj;
       selkey.cancel();
-      /* This must be done so that calls to close() actually close. */
-      try {
-	selector.selectNow();
-      } catch (IOException ioe) {
-	// Ignore
+      /* This must be done so that calls to close() actually close. 
+       * Another thread would block until the owner's select returns,
+       * so let the owner flush the cancelled key instead. */
+      Thread t = owner;
+      if (t == null || t == Thread.currentThread()) {
+	try {
+	  selector.selectNow();
+	} catch (IOException ioe) {
+	  // Ignore
+	}
+      } else {
+        selector.wakeup();
       }
       blocker.notify();
     }
@@ -235,6 +248,27 @@ public class NIOSelectSource implements SelectSourceIF {
     }
   }
 
+  /**
+   * Wake up the thread blocked polling the selector, if any, or else
+   * make its next poll return at once.
+   */
+  public void wakeup() {
+    if (!woken.getAndSet(true)) {
+      selector.wakeup();
+      // In case the poller waits for something to be registered
+      synchronized (blocker) {
+	blocker.notify();
+      }
+    }
+  }
+
+  /**
+   * Return the number of times a poll was woken up by wakeup().
+   */
+  public int numWakeups() {
+    return num_wakeups;
+  }
+
   /** 
    * Dequeues the next element from the SelectSource without blocking.
    * Returns null if no entries available.
@@ -297,7 +331,7 @@ public class NIOSelectSource implements SelectSourceIF {
 
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue called");
     synchronized (blocker) {
-      if (selector.keys().size() == 0) {
+      if (selector.keys().size() == 0 && !woken.get()) {
 	if (DEBUG) System.err.println("No keys in selector");
 
 	if (timeout_millis == 0) return null;
@@ -339,7 +373,7 @@ public class NIOSelectSource implements SelectSourceIF {
        don't block at all, so hopefully 1ms isn't noticable to people */
 
     synchronized (blocker) {
-      if (selector.keys().size() == 0) {
+      if (selector.keys().size() == 0 && !woken.get()) {
 	if (DEBUG) System.err.println("!!!!no keys");
 	if (timeout_millis == 0) return null;
 	// Wait for something to be registered
@@ -381,7 +415,7 @@ public class NIOSelectSource implements SelectSourceIF {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue called");
 
     synchronized (blocker) {
-      if (selector.keys().size() == 0) {
+      if (selector.keys().size() == 0 && !woken.get()) {
       	if (timeout_millis == 0) return null;
        	// Wait for something to be registered
 	if (timeout_millis == -1) {
@@ -425,6 +459,7 @@ public class NIOSelectSource implements SelectSourceIF {
   private void doPoll(int timeout) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): Doing poll, timeout "+timeout);
 
+    owner = Thread.currentThread();
     int c = 0;
     try {
         // to correct for changed semantics in nio from nbio.
@@ -441,6 +476,8 @@ public class NIOSelectSource implements SelectSourceIF {
       if (DEBUG) System.err.println("NIOSelectSource: Error doing select: " + e);
     }
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): poll returned "+c);
+    // Requests enqueued from now on need another wakeup
+    if (woken.getAndSet(false)) num_wakeups++;
 
     Set skeys = selector.selectedKeys();
     if (skeys.size() > 0) {
@@ -42,7 +42,10 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
   private static final boolean DEBUG = false;
 
   private SelectionKey rselkey, wselkey;
-  private ByteBuffer byte_buffer, read_byte_buffer; 
+  private ByteBuffer read_byte_buffer;
+  // Buffers of the write reqs being written, from cur_write_buf on
+  private ByteBuffer write_bufs[] = new ByteBuffer[MAX_GATHER_WRITE_BUFS];
+  private int cur_write_buf, num_write_bufs;
 
   private NIOSelectSource read_selsource, write_selsource;
 
@@ -53,9 +56,11 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     this.writeClogThreshold = writeClogThreshold;
     this.write_selsource = null;
 
-    if (DEBUG) System.err.println("SockState "+nbsock+": Const creating readBuf of size "+aSocketConst.READ_BUFFER_SIZE);
-    readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
-    read_byte_buffer = ByteBuffer.wrap(readBuf);
+    if (readPool == null) {
+      if (DEBUG) System.err.println("SockState "+nbsock+": Const creating readBuf of size "+aSocketConst.READ_BUFFER_SIZE);
+      readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
+      read_byte_buffer = ByteBuffer.wrap(readBuf);
+    }
 
     if (DEBUG) System.err.println("SockState "+nbsock+": Setting flags");
     outstanding_writes = 0;
@@ -64,6 +69,7 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
 
     clogged_qel = null;
     clogged_numtries = 0;
+    assignReactor();
     if (DEBUG) System.err.println("SockState "+nbsock+": Const done");
   }
 
@@ -109,6 +115,7 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
 	if ((readClogTries != -1) &&
 	    (++clogged_numtries >= readClogTries)) {
 	  if (DEBUG) System.err.println("SockState: warning: readClogTries exceeded, dropping "+clogged_qel);
+	  ((ATcpInPacket)clogged_qel).release();
 	  clogged_qel = null;
 	  clogged_numtries = 0;
 	} else {
@@ -117,10 +124,17 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
 	}
       } catch (SinkException sce) {
 	// Whoops - user went away - just drop
+	((ATcpInPacket)clogged_qel).release();
+	clogged_qel = null;
 	this.close(null);
       }
     }
 
+    if (readPool != null) {
+      doPooledRead();
+      return;
+    }
+
     int len;
 
     try {
@@ -173,6 +187,46 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
       read_byte_buffer.rewind();
   }
 
+  // Read into a buffer borrowed from the pool, which goes up with the
+  // packet, so that idle connections hold no buffer
+  private void doPooledRead() {
+    ByteBuffer bb = readPool.borrow();
+    int len;
+
+    try {
+      len = nbsock.getChannel().read(bb);
+      if (DEBUG) System.err.println("SockState: pooled read returned "+len);
+    } catch (Exception e) {
+      // Read failed - assume socket is dead
+      if (DEBUG) System.err.println("ss.doRead: read got IOException: "+e.getMessage());
+      readPool.release(bb);
+      this.close(readCompQ);
+      return;
+    }
+    if (len <= 0) {
+      readPool.release(bb);
+      // See doRead() about empty reads
+      if (len < 0) this.close(readCompQ);
+      return;
+    }
+
+    pkt = new ATcpInPacket(conn, readPool, bb, seqNum);
+    // 0 is special (indicates no sequence number)
+    seqNum++; if (seqNum == 0) seqNum = 1;
+
+    try {
+      readCompQ.enqueue(pkt);
+    } catch (SinkFullException qfe) {
+      clogged_qel = pkt;
+      clogged_numtries = 0;
+    } catch (SinkException sce) {
+      // User has gone away
+      pkt.release();
+      this.close(null);
+    }
+    pkt = null;
+  }
+
   // XXX This is synchronized with close() to avoid a race with close()
   // removing the writeReqList while this method is being called.
   // Probably a better way to do this...
@@ -206,6 +260,7 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
 	(this.outstanding_writes > writeClogThreshold)) {
       if (DEBUG) System.err.println("SockState: warning: writeClogThreshold exceeded, dropping "+req);
       if (req instanceof ATcpWriteRequest) return false;
+      if (req instanceof ATcpSendFileRequest) return false;
       if (req instanceof ATcpCloseRequest) {
 	// Do immediate close: Assume socket is clogged
 	ATcpCloseRequest creq = (ATcpCloseRequest)req;
@@ -221,27 +276,83 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     return true;
   }
 
-  protected void initWrite(ATcpWriteRequest req) {
+  // Gathers the buffers of the write reqs at the head of writeReqList,
+  // starting with req, which are then written by tryWrite(). This is
+  // synchronized with close(), which removes the writeReqList.
+  protected synchronized void initWrite(ATcpWriteRequest req) {
     this.cur_write_req = req;
-    this.writeBuf = req.buf.data;
-    this.cur_offset = req.buf.offset;
-    this.cur_length_target = req.buf.size + cur_offset;
-    this.byte_buffer = ByteBuffer.wrap(writeBuf, cur_offset, req.buf.size);
+    this.cur_num_reqs = 0;
+    this.num_write_bufs = 0;
+    this.cur_write_buf = 0;
+    this.cur_offset = 0;
+    this.cur_length_target = 0;
+    addWrite(req);
+
+    if (writeReqList != null && MAX_GATHER_WRITE_REQS > 1) {
+      Iterator it = writeReqList.iterator();
+      // req is the head of the list
+      if (it.hasNext()) it.next();
+      while (it.hasNext() && cur_num_reqs < MAX_GATHER_WRITE_REQS) {
+	Object next = it.next();
+	// Flush and close requests must wait for the writes before them
+	if (!(next instanceof ATcpWriteRequest)) break;
+	ATcpWriteRequest wreq = (ATcpWriteRequest)next;
+	if (num_write_bufs + wreq.bufs.length > MAX_GATHER_WRITE_BUFS) break;
+	addWrite(wreq);
+      }
+    }
+    if (DEBUG) System.err.println("SockState: initWrite gathered "+cur_num_reqs+" reqs, "+num_write_bufs+" buffers, "+cur_length_target+" bytes");
+  }
+
+  private void addWrite(ATcpWriteRequest req) {
+    if (cur_write_reqs == null || cur_num_reqs == cur_write_reqs.length) {
+      ATcpWriteRequest reqs[] = new ATcpWriteRequest[cur_num_reqs + MAX_GATHER_WRITE_REQS];
+      if (cur_write_reqs != null) System.arraycopy(cur_write_reqs, 0, reqs, 0, cur_num_reqs);
+      cur_write_reqs = reqs;
+    }
+    cur_write_reqs[cur_num_reqs++] = req;
+
+    for (int i = 0; i < req.bufs.length; i++) {
+      BufferEvent buf = req.bufs[i];
+      if (num_write_bufs == write_bufs.length) {
+	ByteBuffer bufs[] = new ByteBuffer[num_write_bufs * 2];
+	System.arraycopy(write_bufs, 0, bufs, 0, num_write_bufs);
+	write_bufs = bufs;
+      }
+      write_bufs[num_write_bufs++] = ByteBuffer.wrap(buf.data, buf.offset, buf.size);
+      cur_length_target += buf.size;
+    }
   }
 
   protected boolean tryWrite() throws SinkClosedException {
     try {
-      int tryLen;
       if (DEBUG) System.err.println("SockState: tryWrite()");
-      if (MAX_WRITE_LEN == -1) {
-	tryLen = cur_length_target - cur_offset;
+      GatheringByteChannel channel = nbsock.getChannel();
+      long len;
+      if (MAX_WRITE_LEN == -1 || cur_length_target - cur_offset <= MAX_WRITE_LEN) {
+	len = channel.write(write_bufs, cur_write_buf, num_write_bufs - cur_write_buf);
       } else {
-	tryLen = Math.min(cur_length_target - cur_offset, MAX_WRITE_LEN);
+	// Only take the buffers which fit in MAX_WRITE_LEN, or part of the first one
+	int end = cur_write_buf, tryLen = 0;
+	while (end < num_write_bufs && tryLen + write_bufs[end].remaining() <= MAX_WRITE_LEN) {
+	  tryLen += write_bufs[end++].remaining();
+	}
+	if (end > cur_write_buf) {
+	  len = channel.write(write_bufs, cur_write_buf, end - cur_write_buf);
+	} else {
+	  ByteBuffer bb = write_bufs[cur_write_buf];
+	  int limit = bb.limit();
+	  bb.limit(bb.position() + MAX_WRITE_LEN);
+	  len = channel.write(bb);
+	  bb.limit(limit);
+	}
       }
-      if (DEBUG) System.err.println("writing " + tryLen + " bytes");
-      byte_buffer.limit(byte_buffer.position() + tryLen);
-      cur_offset += nbsock.getChannel().write(byte_buffer);
-      if (DEBUG) System.err.println("SockState: tryWrite() of "+tryLen+" bytes (len="+cur_length_target+", off="+cur_offset);
+      cur_offset += len;
+      // Skip the buffers written entirely
+      while (cur_write_buf < num_write_bufs && !write_bufs[cur_write_buf].hasRemaining()) {
+	write_bufs[cur_write_buf++] = null;
+      }
+      if (DEBUG) System.err.println("SockState: tryWrite() of "+len+" bytes (len="+cur_length_target+", off="+cur_offset);
 
     } catch (IOException ioe) {
       // Assume this is because socket was already closed
@@ -255,6 +366,43 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     else return false;
   }
 
+  protected void initSendFile(ATcpSendFileRequest req) {
+    this.cur_sendfile_req = req;
+    this.cur_sendfile_pos = req.offset;
+    this.cur_sendfile_end = req.offset + req.length;
+  }
+
+  // Sends the next chunk of the file straight from the file to the
+  // socket. Returns false once the socket buffer is full; the rest is
+  // sent when the socket becomes writable again.
+  protected boolean trySendFile() throws SinkClosedException {
+    if (cur_sendfile_pos == cur_sendfile_end) return true;
+    boolean truncated = false;
+    String msg;
+    try {
+      long count = Math.min(cur_sendfile_end - cur_sendfile_pos, MAX_SENDFILE_LEN);
+      long len = cur_sendfile_req.file.transferTo(cur_sendfile_pos, count, nbsock.getChannel());
+      if (DEBUG) System.err.println("SockState: trySendFile() of "+len+" bytes (pos="+cur_sendfile_pos+", end="+cur_sendfile_end+")");
+      if (len == 0 && cur_sendfile_pos >= cur_sendfile_req.file.size()) {
+	truncated = true;
+	msg = "file ends at "+cur_sendfile_pos+" before "+cur_sendfile_end;
+      } else {
+	cur_sendfile_pos += len;
+	return (cur_sendfile_pos == cur_sendfile_end);
+      }
+    } catch (IOException ioe) {
+      msg = "transferTo got exception: "+ioe.getMessage();
+    }
+
+    // The peer cannot get the rest of the data, so give up on the socket,
+    // telling the sender why before the SinkClosedEvent
+    ATcpSendFileRequest req = cur_sendfile_req;
+    EventSink compQ = (req.compQ != null) ? req.compQ : readCompQ;
+    if (compQ != null) compQ.enqueueLossy(new ATcpSendFileFailedEvent(conn, req, truncated, msg));
+    this.close(compQ);
+    throw new SinkClosedException("trySendFile: "+msg);
+  }
+
   protected void writeMaskEnable() {
     numActiveWriteSockets++;
     wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
@@ -274,8 +422,9 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
 
     if (DEBUG) System.err.println("SockState.close(): Deregistering with selsources");
     if (read_selsource != null) read_selsource.deregister(rselkey);
-    if (write_selsource != null) write_selsource.deregister(rselkey);
+    if (write_selsource != null) write_selsource.deregister(wselkey);
     if (DEBUG) System.err.println("SockState.close(): done deregistering with selsources");
+    releaseReactor();
     // Eliminate write queue
 
     // XXX XXX XXX MDW: This introduces a race condition with 
@@ -283,6 +432,12 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     // queue operations on the socket.
     writeReqList = null;
 
+    // Give back the buffer of a clogged packet which will never go up
+    if (clogged_qel != null) {
+      if (clogged_qel instanceof ATcpInPacket) ((ATcpInPacket)clogged_qel).release();
+      clogged_qel = null;
+    }
+
     try {
       if (DEBUG) System.err.println("SockState.close(): doing close ["+nbsock+"]");
       nbsock.close();
@@ -0,0 +1,117 @@
+package levin.learn.seda.sandstorm.socket;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import seda.sandstorm.lib.socket.ATcpInPacket;
+import seda.sandstorm.lib.socket.ReadBufferPool;
+
+public class ReadBufferPoolTest {
+    private static final int BUFFER_SIZE = 64;
+
+    private final ReadBufferPool pool = new ReadBufferPool(BUFFER_SIZE, 4);
+
+    // Read the given bytes into a pooled buffer, as SockState does
+    private ATcpInPacket read(byte[] bytes) {
+        ByteBuffer buf = pool.borrow();
+        buf.put(bytes);
+        return new ATcpInPacket(null, pool, buf, 1);
+    }
+
+    @Test
+    public void testBorrowAndRelease() {
+        ByteBuffer a = pool.borrow();
+        assertEquals(BUFFER_SIZE, a.capacity());
+        assertTrue(a.isDirect());
+        assertEquals(4, pool.getAllocated());
+        assertEquals(1, pool.getInUse());
+
+        pool.release(a);
+        assertEquals(0, pool.getInUse());
+        // most recently returned first
+        ByteBuffer b = pool.borrow();
+        assertSame(a, b);
+        assertEquals(0, b.position());
+        assertEquals(BUFFER_SIZE, b.limit());
+    }
+
+    @Test
+    public void testGrowsBySlab() {
+        ByteBuffer[] bufs = new ByteBuffer[5];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = pool.borrow();
+        }
+        assertEquals(8, pool.getAllocated());
+        assertEquals(5, pool.getInUse());
+        for (int i = 0; i < bufs.length; i++) {
+            pool.release(bufs[i]);
+        }
+        assertEquals(0, pool.getInUse());
+        assertEquals(8, pool.getAllocated());
+    }
+
+    @Test
+    public void testPacketReleaseReturnsBuffer() {
+        ATcpInPacket packet = read(new byte[] { 1, 2, 3 });
+        assertEquals(1, pool.getInUse());
+        assertEquals(3, packet.size());
+        ByteBuffer view = packet.getByteBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(3, view.remaining());
+        assertEquals(2, view.get(1));
+
+        packet.release();
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void testRetainDelaysRelease() {
+        ATcpInPacket packet = read(new byte[] { 1, 2, 3 });
+        packet.retain();
+        packet.release();
+        assertEquals(1, pool.getInUse());
+        assertEquals(3, packet.getByteBuffer().remaining());
+        packet.release();
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void testGetBytesCopiesAndReleases() {
+        ATcpInPacket packet = read(new byte[] { 1, 2, 3 });
+        byte[] data = packet.getBytes();
+        assertArrayEquals(new byte[] { 1, 2, 3 }, data);
+        assertEquals(0, pool.getInUse());
+        // the copy stays readable, and a drop path may still release it
+        assertSame(data, packet.getBufferElement().data);
+        assertEquals(3, packet.getByteBuffer().remaining());
+        packet.release();
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleasedTooManyTimes() {
+        ATcpInPacket packet = read(new byte[] { 1 });
+        packet.release();
+        packet.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadAfterRelease() {
+        ATcpInPacket packet = read(new byte[] { 1 });
+        packet.release();
+        packet.getByteBuffer();
+    }
+
+    @Test
+    public void testUnpooledPacket() {
+        ATcpInPacket packet = new ATcpInPacket(null, new byte[] { 1, 2 }, 2);
+        packet.retain();
+        packet.release();
+        packet.release();
+        assertEquals(2, packet.getByteBuffer().remaining());
+        assertEquals(0, pool.getInUse());
+    }
+}
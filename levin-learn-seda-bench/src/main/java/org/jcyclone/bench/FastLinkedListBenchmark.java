@@ -0,0 +1,77 @@
+package org.jcyclone.bench;
+
+import org.jcyclone.util.FastLinkedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FastLinkedList operations on a list holding <tt>length</tt> elements:
+ * FIFO and LIFO use of the list, removal of an element found by a linear
+ * search (the element is kept at the tail), and a full traversal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FastLinkedListBenchmark {
+
+	@Param({"16", "1024"})
+	public int length;
+
+	private FastLinkedList list;
+	private Object last;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		list = new FastLinkedList();
+		for (int i = 0; i < length; i++) {
+			last = new Object();
+			list.add_to_tail(last);
+		}
+	}
+
+	@Benchmark
+	public Object addTailRemoveHead() {
+		list.add_to_tail(list.get_head());
+		return list.remove_head();
+	}
+
+	@Benchmark
+	public Object addHeadRemoveHead() {
+		list.add_to_head(last);
+		return list.remove_head();
+	}
+
+	@Benchmark
+	public Object removeItem() {
+		Object o = list.remove_item(last);
+		list.add_to_tail(last);
+		return o;
+	}
+
+	@Benchmark
+	public int enumerate() {
+		int n = 0;
+		Enumeration e = list.elements();
+		while (e.hasMoreElements()) {
+			if (e.nextElement() != null) n++;
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,159 @@
+package org.jcyclone.bench;
+
+import org.jcyclone.core.boot.JCyclone;
+import org.jcyclone.core.cfg.IConfigData;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.BufferElement;
+import org.jcyclone.core.event.IRecyclable;
+import org.jcyclone.core.handler.EventHandlerException;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes events through a two-stage pipeline run by TPSScheduler: the
+ * first stage forwards every event to the second, which counts them.
+ * Each invocation sends a burst of <tt>burst</tt> preallocated events
+ * and waits until the second stage has seen all of them.
+ * <p/>
+ * Run with <tt>-prof gc</tt>: since the events are reused, the
+ * <tt>gc.alloc.rate.norm</tt> column is the number of bytes the runtime
+ * allocates per event on the dispatch path, and should be close to 0.
+ * <p/>
+ * <tt>pooledBurst</tt> sends a new BufferElement of <tt>EVENT_SIZE</tt>
+ * bytes, taken from its RecyclingPool, for each event instead: the first
+ * stage retains the events it forwards, and both stages release theirs
+ * once their handler returns, so that the buffers go back to the pool
+ * and the allocation rate stays close to that of <tt>burst</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(PipelineBenchmark.BURST)
+public class PipelineBenchmark {
+
+	static final int BURST = 256;
+	static final int EVENT_SIZE = 64;
+
+	static final AtomicLong processed = new AtomicLong();
+	static volatile long target;
+	static volatile Thread waiter;
+
+	@Param({"false", "true"})
+	public String instrument;
+
+	private ISink sink;
+	private IElement[] events;
+
+	public static class event implements IElement {
+	}
+
+	public static class forwardHandler implements IEventHandler {
+		private ISink next;
+
+		public void init(IConfigData config) throws Exception {
+			next = config.getManager().getStage("sink").getSink();
+		}
+
+		public void handleEvent(IElement elem) throws EventHandlerException {
+		}
+
+		public void handleEvents(List events) throws EventHandlerException {
+			for (int i = 0; i < events.size(); i++) {
+				IElement event = (IElement) events.get(i);
+				// the next stage takes over a reference of its own
+				if (event instanceof IRecyclable) ((IRecyclable) event).retain();
+				while (!next.enqueueLossy(event))
+					Thread.yield();
+			}
+		}
+
+		public void destroy() throws Exception {
+		}
+	}
+
+	public static class countHandler implements IEventHandler {
+
+		public void init(IConfigData config) throws Exception {
+		}
+
+		public void handleEvent(IElement elem) throws EventHandlerException {
+		}
+
+		public void handleEvents(List events) throws EventHandlerException {
+			if (processed.addAndGet(events.size()) >= target)
+				LockSupport.unpark(waiter);
+		}
+
+		public void destroy() throws Exception {
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		JCycloneConfig cfg = new JCycloneConfig();
+		cfg.putString("global.defaultThreadManager", JCycloneConfig.THREADMGR_TPSTM);
+		cfg.putString("global.instrument.enable", instrument);
+		cfg.putString("global.pool.enable", "true");
+		cfg.addStage("forward", forwardHandler.class.getName(), new String[0]);
+		cfg.addStage("sink", countHandler.class.getName(), new String[0]);
+		JCyclone jc = new JCyclone(cfg);
+		sink = jc.getManager().getStage("forward").getSink();
+
+		events = new IElement[BURST];
+		for (int i = 0; i < BURST; i++) {
+			events[i] = new event();
+		}
+	}
+
+	@Benchmark
+	public long burst() {
+		waiter = Thread.currentThread();
+		long t = processed.get() + BURST;
+		target = t;
+		for (int i = 0; i < BURST; i++) {
+			while (!sink.enqueueLossy(events[i]))
+				Thread.yield();
+		}
+		while (processed.get() < t)
+			LockSupport.park(this);
+		return t;
+	}
+
+	@Benchmark
+	public long pooledBurst() {
+		waiter = Thread.currentThread();
+		long t = processed.get() + BURST;
+		target = t;
+		for (int i = 0; i < BURST; i++) {
+			BufferElement buf = BufferElement.allocate(EVENT_SIZE);
+			while (!sink.enqueueLossy(buf))
+				Thread.yield();
+		}
+		while (processed.get() < t)
+			LockSupport.park(this);
+		return t;
+	}
+
+}
@@ -0,0 +1,176 @@
+package org.jcyclone.bench;
+
+import org.jcyclone.core.queue.DynamicArrayBlockingQueue;
+import org.jcyclone.core.queue.IBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.queue.LockFreeArrayBlockingQueue;
+import org.jcyclone.core.queue.SimpleSink;
+import org.jcyclone.core.queue.SinkException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enqueue/dequeue throughput and latency of the event queues.
+ * <p/>
+ * The <tt>p1</tt> and <tt>p4</tt> groups run 1 or 4 producers against a
+ * single consumer which dequeues batches of up to <tt>batch</tt>
+ * elements, as a stage thread does. Producers use enqueueLossy, so that
+ * no thread blocks when the iteration ends; the <tt>enqueued</tt>,
+ * <tt>rejected</tt> and <tt>dequeued</tt> counters report how many
+ * operations succeeded. Other producer counts can be run with
+ * <tt>-tg N,1</tt>.
+ * <p/>
+ * <tt>roundTrip</tt> measures the uncontended latency of enqueueing and
+ * dequeueing one element. With <tt>simple</tt>, producers enqueue
+ * through a SimpleSink in front of a DynamicArrayBlockingQueue.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+
+	@Param({"linked", "dynamic", "lockfree", "simple"})
+	public String queue;
+
+	@Param({"1024"})
+	public int capacity;
+
+	@Param({"64"})
+	public int batch;
+
+	private IBlockingQueue q;
+	private ISink sink;
+	private IElement element;
+
+	static IBlockingQueue createQueue(String queue, int capacity) {
+		if (queue.equals("linked"))
+			return new LinkedBlockingQueue(capacity);
+		else if (queue.equals("dynamic") || queue.equals("simple"))
+			return new DynamicArrayBlockingQueue(Math.min(capacity, 16), capacity);
+		else if (queue.equals("lockfree"))
+			return new LockFreeArrayBlockingQueue(capacity);
+		throw new IllegalArgumentException("Unknown queue " + queue);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		q = createQueue(queue, capacity);
+		sink = queue.equals("simple") ? new forwardingSink(q) : (ISink) q;
+		element = new IElement() {
+		};
+	}
+
+	/**
+	 * A SimpleSink in front of a queue, as the sockets and files of the
+	 * sandStorm libraries use.
+	 */
+	static class forwardingSink extends SimpleSink {
+		private ISink sink;
+
+		forwardingSink(ISink sink) {
+			this.sink = sink;
+		}
+
+		public void enqueue(IElement element) throws SinkException {
+			sink.enqueue(element);
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class producerCounters {
+		public long enqueued;
+		public long rejected;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			enqueued = rejected = 0;
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class consumerCounters {
+		public long dequeued;
+		List buffer = new ArrayList();
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			dequeued = 0;
+		}
+	}
+
+	private void produce(producerCounters c) {
+		if (sink.enqueueLossy(element))
+			c.enqueued++;
+		else
+			c.rejected++;
+	}
+
+	private int consume(consumerCounters c) {
+		int n = q.dequeue(c.buffer, batch);
+		c.dequeued += n;
+		c.buffer.clear();
+		return n;
+	}
+
+	@Benchmark
+	@Group("p1")
+	@GroupThreads(1)
+	public void p1Producer(producerCounters c) {
+		produce(c);
+	}
+
+	@Benchmark
+	@Group("p1")
+	@GroupThreads(1)
+	public int p1Consumer(consumerCounters c) {
+		return consume(c);
+	}
+
+	@Benchmark
+	@Group("p4")
+	@GroupThreads(4)
+	public void p4Producer(producerCounters c) {
+		produce(c);
+	}
+
+	@Benchmark
+	@Group("p4")
+	@GroupThreads(1)
+	public int p4Consumer(consumerCounters c) {
+		return consume(c);
+	}
+
+	@Benchmark
+	@Group("roundTrip")
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public IElement roundTrip() {
+		sink.enqueueLossy(element);
+		return q.dequeue();
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.jcyclone.bench;
+
+import org.jcyclone.core.boot.JCyclone;
+import org.jcyclone.core.cfg.IConfigData;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.handler.EventHandlerException;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end latency of one event through a chain of <tt>stages</tt>
+ * stages: the benchmark thread enqueues an event onto the first stage,
+ * every stage forwards it to the next one, and the last stage wakes the
+ * benchmark thread up.
+ * <p/>
+ * TPPScheduler is no longer supported by JCycloneMgr, so the chain is run
+ * under TPSScheduler and WorkStealingScheduler. With <tt>fuse</tt>,
+ * TPSScheduler runs the stages after the first one on the thread of the
+ * first stage (see FusedSink); WorkStealingScheduler ignores it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StagePingPongBenchmark {
+
+	static int numStages;
+	static final AtomicLong received = new AtomicLong();
+	static volatile Thread waiter;
+
+	@Param({"1", "4", "16"})
+	public int stages;
+
+	@Param({JCycloneConfig.THREADMGR_TPSTM, JCycloneConfig.THREADMGR_WSTM})
+	public String scheduler;
+
+	@Param({"false", "true"})
+	public boolean fuse;
+
+	private ISink first;
+	private IElement ping;
+
+	public static class relayHandler implements IEventHandler {
+		private ISink next;
+
+		public void init(IConfigData config) throws Exception {
+			int idx = Integer.parseInt(config.getStage().getName().substring(5));
+			if (idx + 1 < numStages)
+				next = config.getManager().getStage("stage" + (idx + 1)).getSink();
+		}
+
+		public void handleEvent(IElement elem) throws EventHandlerException {
+		}
+
+		public void handleEvents(List events) throws EventHandlerException {
+			if (next == null) {
+				received.addAndGet(events.size());
+				LockSupport.unpark(waiter);
+				return;
+			}
+			for (int i = 0; i < events.size(); i++) {
+				while (!next.enqueueLossy((IElement) events.get(i)))
+					Thread.yield();
+			}
+		}
+
+		public void destroy() throws Exception {
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		numStages = stages;
+		JCycloneConfig cfg = new JCycloneConfig();
+		cfg.putString("global.defaultThreadManager", scheduler);
+		cfg.putString("global.fuse.enable", String.valueOf(fuse));
+		for (int i = 0; i < stages; i++) {
+			cfg.addStage("stage" + i, relayHandler.class.getName(), new String[0]);
+		}
+		JCyclone jc = new JCyclone(cfg);
+		first = jc.getManager().getStage("stage0").getSink();
+		ping = new IElement() {
+		};
+	}
+
+	@Benchmark
+	public long pingPong() {
+		waiter = Thread.currentThread();
+		long t = received.get() + 1;
+		while (!first.enqueueLossy(ping))
+			Thread.yield();
+		while (received.get() < t)
+			LockSupport.park(this);
+		return t;
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.jcyclone.bench;
+
+import org.jcyclone.core.queue.DynamicArrayBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.timer.ITimer;
+import org.jcyclone.core.timer.ITimerEvent;
+import org.jcyclone.core.timer.JCycloneTimer;
+import org.jcyclone.core.timer.TimingWheelTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares JCycloneTimer and TimingWheelTimer when registering and
+ * cancelling a timeout while many other timeouts are pending, which is
+ * what a server with many idle connections does on every request.
+ * <p/>
+ * The pending events are an hour away, so none of them fire during the
+ * run; the measured event gets a random deadline among them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerBenchmark {
+
+	private static final long BASE_DELAY = 3600 * 1000;
+
+	@Param({"list", "wheel"})
+	public String timer;
+
+	@Param({"10000", "100000", "1000000"})
+	public int pending;
+
+	private ITimer t;
+	private ISink sink;
+	private IElement element;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if (timer.equals("list"))
+			t = new JCycloneTimer();
+		else
+			t = new TimingWheelTimer();
+		sink = new DynamicArrayBlockingQueue();
+		element = new IElement() {
+		};
+		random = new Random(42);
+		// increasing deadlines: appended at the tail of the list timer
+		for (int i = 0; i < pending; i++) {
+			t.registerEvent(BASE_DELAY + i, element, sink).release();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		t.cancelAll();
+		if (t instanceof JCycloneTimer)
+			((JCycloneTimer) t).doneWithTimer();
+		else
+			((TimingWheelTimer) t).doneWithTimer();
+	}
+
+	@Benchmark
+	public ITimerEvent registerCancel() {
+		ITimerEvent evt = t.registerEvent(BASE_DELAY + random.nextInt(pending), element, sink);
+		t.cancelEvent(evt);
+		evt.release();
+		return evt;
+	}
+
+}
@@ -0,0 +1,75 @@
+package org.jcyclone.bench;
+
+import org.jcyclone.core.queue.IBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ITransaction;
+import org.jcyclone.core.queue.SinkException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the two-phase enqueue: enqueuePrepare followed by commit (and
+ * draining the committed elements), or by abort, for batches of
+ * <tt>size</tt> elements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+
+	@Param({"linked", "dynamic", "lockfree"})
+	public String queue;
+
+	@Param({"1", "16", "256"})
+	public int size;
+
+	private IBlockingQueue q;
+	private List elements;
+	private List drained;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		q = QueueBenchmark.createQueue(queue, 4 * size);
+		IElement element = new IElement() {
+		};
+		elements = new ArrayList();
+		for (int i = 0; i < size; i++) {
+			elements.add(element);
+		}
+		drained = new ArrayList();
+	}
+
+	@Benchmark
+	public int prepareCommit() throws SinkException {
+		ITransaction txn = q.enqueuePrepare(elements);
+		txn.commit();
+		int n = q.dequeueAll(drained);
+		drained.clear();
+		return n;
+	}
+
+	@Benchmark
+	public ITransaction prepareAbort() throws SinkException {
+		ITransaction txn = q.enqueuePrepare(elements);
+		txn.abort();
+		return txn;
+	}
+
+}
@@ -66,6 +66,19 @@ public class JCycloneConfig implements Cloneable, IMutableSystemConfig {
 	 * Value for defaultThreadMgr to use the aggregating TPSTM.
 	 */
 	public static final String THREADMGR_AggTPSTM = "AggTPSTM";
+	/**
+	 * Value for defaultThreadMgr to use the work-stealing thread manager.
+	 */
+	public static final String THREADMGR_WSTM = "WSTM";
+
+	/**
+	 * Value for timer.type to use the sorted list timer.
+	 */
+	public static final String TIMER_LIST = "list";
+	/**
+	 * Value for timer.type to use the hierarchical timing wheel timer.
+	 */
+	public static final String TIMER_WHEEL = "wheel";
 
 	/**
 	 * String value for setting boolean configuration entries to true.
@@ -92,23 +105,77 @@ public class JCycloneConfig implements Cloneable, IMutableSystemConfig {
 		"global.threadPool.sizeController.delay", "2000",
 		"global.threadPool.sizeController.threshold", "1000",
 		"global.threadPool.sizeController.idleTimeThreshold", "1000",
+		"global.threadPool.sizeController.type", "threshold",
+		"global.threadPool.sizeController.minThreads", "1",
+		"global.threadPool.sizeController.maxThreads", "-1",
+		"global.threadPool.sizeController.noise", "0.05",
+		"global.threadPool.virtual.enable", CONFIG_FALSE,
+		"global.threadPool.virtual.maxThreads", "10000",
+
+		"global.queue.class", "org.jcyclone.core.queue.DynamicArrayBlockingQueue",
+		"global.queue.spill.memoryCapacity", "1024",
+		"global.queue.spill.segmentSize", "67108864",
+		"global.queue.spill.maxSegments", "-1",
+
+		"global.timer.type", TIMER_LIST,
+		"global.timer.wheel.tickMillis", "10",
+		"global.timer.wheel.bits", "8",
+		"global.timer.wheel.levels", "4",
+		"global.timer.wheel.monotonic", CONFIG_TRUE,
 
 		"global.batchController.enable", CONFIG_FALSE,
 		"global.batchController.minBatch", "1",
 		"global.batchController.maxBatch", "-1",
+		"global.batchController.type", "aggthrottle",
+		"global.batchController.latencyTarget", "10.0",
+
+		"global.deadline.shed", CONFIG_TRUE,
+
+		"global.instrument.enable", CONFIG_TRUE,
+		"global.instrument.sampleInterval", "16",
+		"global.instrument.jmx", CONFIG_FALSE,
+
+		"global.placement.enable", CONFIG_FALSE,
+		"global.placement.pin", CONFIG_TRUE,
+
+		"global.fuse.enable", CONFIG_FALSE,
+		"global.fuse.maxDepth", "8",
+		"global.fuse.maxBatch", "4",
+
+		"global.credits.enable", CONFIG_FALSE,
+		"global.credits.limit", "1024",
+		"global.credits.resume", "0.5",
+
+		"global.pool.enable", CONFIG_FALSE,
+		"global.pool.debug", CONFIG_FALSE,
+
+		"global.trace.enable", CONFIG_FALSE,
+		"global.trace.sampleRate", "100",
+		"global.trace.bufferSize", "65536",
+		"global.trace.flushInterval", "1000",
+		"global.trace.filename", "jcyclone-trace.json",
 
 		"global.profile.enable", CONFIG_FALSE,
 		"global.profile.delay", "1000",
 		"global.profile.filename", "jcyclone-profile.txt",
+		"global.profile.binary.filename", "jcyclone-profile.bin",
+		"global.profile.binary.segmentSize", "4194304",
+		"global.profile.binary.segments", "8",
 		"global.profile.sockets", CONFIG_FALSE,
 		"global.profile.graph", CONFIG_FALSE,
 		"global.profile.graphfilename", "jcyclone-graph.txt",
 
+		"global.signal.numThreads", "0",
+
 		/* Deprecated */
 		"global.AggTPSTM.governor.enable", CONFIG_FALSE,
 		"global.AggTPSTM.governor.delay", "2000",
 		"global.AggTPSTM.governor.threshold", "1000",
 
+		"global.WSTM.numThreads", "0",
+		"global.WSTM.batchesPerRun", "4",
+		"global.WSTM.idleTime", "100",
+
 		/* Deprecated */
 		"global.TPPTM.numCpus", "1",
 		"global.TPPTM.maxThreads", "1",
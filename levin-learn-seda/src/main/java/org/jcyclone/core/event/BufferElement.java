@@ -29,10 +29,43 @@ import org.jcyclone.core.queue.ISink;
 
 /**
  * A BufferElement is a IEvent which represents a memory buffer.
+ * <p/>
+ * Buffers created with the <tt>allocate</tt> methods come from a
+ * RecyclingPool, and go back to it once released, as described by
+ * IRecyclable; those created with a constructor are never recycled.
  *
  * @author Matt Welsh
  */
-public class BufferElement implements IElement {
+public class BufferElement implements IElement, IRecyclable {
+
+	// pooled data arrays: one pool per power of two from 2^MIN_SHIFT
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 16;
+	private static final int MAX_PER_THREAD = 256;
+	private static final RecyclingPool[] pools = new RecyclingPool[MAX_SHIFT - MIN_SHIFT + 1];
+	// element objects only, for buffers wrapping an application array
+	private static final RecyclingPool wrappers;
+
+	static {
+		for (int i = 0; i < pools.length; i++) {
+			final int length = 1 << (MIN_SHIFT + i);
+			pools[i] = new RecyclingPool("BufferElement" + length, MAX_PER_THREAD, new factory() {
+				BufferElement create() {
+					return new BufferElement(length);
+				}
+			});
+		}
+		wrappers = new RecyclingPool("BufferElement", MAX_PER_THREAD, new factory() {
+			BufferElement create() {
+				return new BufferElement();
+			}
+
+			public void reset(Object obj) {
+				super.reset(obj);
+				((BufferElement) obj).data = null;
+			}
+		});
+	}
 
 	/**
 	 * The data associated with this BufferElement.
@@ -63,6 +96,11 @@ public class BufferElement implements IElement {
 	 */
 	public int offset;
 
+	private RecyclingPool.Handle handle;
+
+	private BufferElement() {
+	}
+
 	/**
 	 * Create a BufferElement with the given data, an offset of 0, and a
 	 * size of data.length.
@@ -107,6 +145,44 @@ public class BufferElement implements IElement {
 		this(new byte[size], 0, size, null);
 	}
 
+	/**
+	 * Return a buffer of the given size, with an offset of 0, taken from
+	 * a pool if size is at most 64 KB. The data array may be larger than
+	 * size, and holds the data of a previous use of the buffer.
+	 */
+	public static BufferElement allocate(int size) {
+		if (size < 0) throw new IllegalArgumentException("BufferElement allocated with negative size " + size);
+		int shift = MIN_SHIFT;
+		while ((1 << shift) < size) shift++;
+		if (shift > MAX_SHIFT) return new BufferElement(size);
+		BufferElement buf = (BufferElement) pools[shift - MIN_SHIFT].get();
+		buf.size = size;
+		return buf;
+	}
+
+	/**
+	 * Return a buffer with the given data, offset, and size, taken from a
+	 * pool. Only the BufferElement is recycled, not the data array.
+	 */
+	public static BufferElement allocate(byte data[], int offset, int size) {
+		if ((offset >= data.length) || (size > (data.length - offset))) {
+			throw new IllegalArgumentException("BufferElement created with invalid offset and/or size (off=" + offset + ", size=" + size + ", data.length=" + data.length + ")");
+		}
+		BufferElement buf = (BufferElement) wrappers.get();
+		buf.data = data;
+		buf.offset = offset;
+		buf.size = size;
+		return buf;
+	}
+
+	public void retain() {
+		if (handle != null) handle.retain();
+	}
+
+	public void release() {
+		if (handle != null) handle.release();
+	}
+
 	/**
 	 * Return the data.
 	 */
@@ -135,5 +211,25 @@ public class BufferElement implements IElement {
 		return compQ;
 	}
 
-}
+	/**
+	 * Creates the buffers of a pool, and clears them on their way back.
+	 */
+	private static abstract class factory implements RecyclingPool.IFactory {
+		abstract BufferElement create();
+
+		public Object create(RecyclingPool.Handle handle) {
+			BufferElement buf = create();
+			buf.handle = handle;
+			return buf;
+		}
 
+		public void reset(Object obj) {
+			BufferElement buf = (BufferElement) obj;
+			buf.compQ = null;
+			buf.userTag = null;
+			buf.offset = 0;
+			buf.size = 0;
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.jcyclone.core.event;
+
+/**
+ * A IRecyclable is an object which may come from a RecyclingPool, and
+ * goes back to it once every reference taken on it has been released.
+ * An object not allocated from a pool ignores both calls.
+ * <p/>
+ * An object taken from a pool holds one reference. A recyclable event
+ * enqueued onto a sink hands its reference over to the stage handling
+ * it: the thread manager releases every event of a batch once the event
+ * handler returns. A handler which keeps an event, or forwards it to
+ * another stage, must call {@link #retain} first. An object must not be
+ * used once its last reference is released.
+ *
+ * @see RecyclingPool
+ */
+public interface IRecyclable {
+
+	/**
+	 * Take one more reference on this object.
+	 */
+	void retain();
+
+	/**
+	 * Give back one reference on this object; the last one returns the
+	 * object to its pool.
+	 */
+	void release();
+
+}
@@ -0,0 +1,357 @@
+package org.jcyclone.core.event;
+
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A RecyclingPool keeps objects of a high-rate type for reuse, so that
+ * allocating them at millions per second does not churn the young
+ * generation.
+ * <p/>
+ * Each thread has its own cache of at most <tt>maxPerThread</tt> free
+ * objects, so that taking and returning objects takes no lock. An object
+ * belongs to the cache of the thread which first took it: released by
+ * another thread, as is the rule for events handed from stage to stage,
+ * it is pushed onto a lock-free return stack of its owner's cache, which
+ * the owner drains once its free list is empty. Objects beyond the cache
+ * limits are left to the garbage collector.
+ * <p/>
+ * Pooled objects are reference counted through a {@link Handle}, which
+ * they keep and to which they delegate {@link IRecyclable#retain} and
+ * {@link IRecyclable#release}. In debug mode (<tt>global.pool.debug</tt>),
+ * the pool records where each object is taken, reports objects released
+ * too many times, and objects collected without being released (leaks).
+ * <p/>
+ * Pooling is off unless enabled with <tt>global.pool.enable</tt>; pools
+ * then create a new object each time.
+ * <p/>
+ * The hit rate of each pool, i.e. the percentage of the objects taken
+ * since the previous sample which came from the pool, is reported to the
+ * profiler as <tt>pool NAME hitRate</tt>.
+ *
+ * @see IRecyclable
+ */
+public class RecyclingPool {
+
+	private static final boolean DEBUG = false;
+
+	/**
+	 * Creates and resets the objects of a pool.
+	 */
+	public interface IFactory {
+
+		/**
+		 * Return a new object, which keeps the given handle.
+		 */
+		Object create(Handle handle);
+
+		/**
+		 * Clear the state of an object going back to the pool, so that it
+		 * does not keep other objects alive.
+		 */
+		void reset(Object obj);
+	}
+
+	private static final List pools = new CopyOnWriteArrayList();
+	private static volatile IProfiler profiler;
+	private static volatile boolean enabled = false;
+	private static volatile boolean debug = false;
+	// whether a pooled object was ever taken, to skip releasing batches
+	private static volatile boolean active = false;
+
+	private static final ReferenceQueue leaked = new ReferenceQueue();
+
+	private String name;
+	private int maxPerThread;
+	private IFactory factory;
+	private final ThreadLocal caches = new ThreadLocal() {
+		protected Object initialValue() {
+			return new cache();
+		}
+	};
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final AtomicInteger numLeaked = new AtomicInteger();
+	private final Set tracked = Collections.newSetFromMap(new ConcurrentHashMap());
+
+	/**
+	 * Create a pool keeping up to maxPerThread free objects per thread.
+	 */
+	public RecyclingPool(String name, int maxPerThread, IFactory factory) {
+		this.name = name;
+		this.maxPerThread = maxPerThread;
+		this.factory = factory;
+		pools.add(this);
+		IProfiler p = profiler;
+		if (p != null) register(p);
+	}
+
+	/**
+	 * Report the hit rates of all pools to the given profiler, or stop
+	 * reporting them if it is null.
+	 */
+	public static synchronized void setProfiler(IProfiler p) {
+		for (int i = 0; i < pools.size(); i++) {
+			RecyclingPool pool = (RecyclingPool) pools.get(i);
+			if (profiler != null) pool.unregister(profiler);
+			if (p != null) pool.register(p);
+		}
+		profiler = p;
+	}
+
+	/**
+	 * When disabled, pools create a new, unpooled object each time.
+	 */
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	public static void setDebug(boolean enable) {
+		debug = enable;
+	}
+
+	public static boolean isDebug() {
+		return debug;
+	}
+
+	private void register(IProfiler p) {
+		p.add("pool " + name + " hitRate", new IProfilable() {
+			private long lastHits, lastMisses;
+
+			public int profileSize() {
+				long h = hits.sum(), m = misses.sum();
+				long dh = h - lastHits, dm = m - lastMisses;
+				lastHits = h;
+				lastMisses = m;
+				return (dh + dm == 0) ? 100 : (int) (100 * dh / (dh + dm));
+			}
+		});
+		p.add("pool " + name + " misses", new IProfilable() {
+			public int profileSize() {
+				return (int) misses.sum();
+			}
+		});
+	}
+
+	private void unregister(IProfiler p) {
+		p.remove("pool " + name + " hitRate");
+		p.remove("pool " + name + " misses");
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the number of objects taken from the pool.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Return the number of objects which had to be created.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Return the number of objects collected without being released, as
+	 * detected in debug mode.
+	 */
+	public int getLeaks() {
+		return numLeaked.get();
+	}
+
+	/**
+	 * Release all the recyclable events of the given batch. Called by the
+	 * thread managers once the event handler has returned.
+	 */
+	public static void releaseAll(List events) {
+		if (!active) return;
+		for (int i = 0; i < events.size(); i++) {
+			Object ev = events.get(i);
+			if (ev instanceof IRecyclable) ((IRecyclable) ev).release();
+		}
+	}
+
+	/**
+	 * Return an object holding one reference, taken from the cache of the
+	 * calling thread if it has one.
+	 */
+	public Object get() {
+		if (!enabled) return factory.create(null);
+		if (!active) active = true;
+		cache c = (cache) caches.get();
+		Handle h = (Handle) c.free.pollLast();
+		if (h == null && c.returned.get() != null) {
+			c.drainReturned();
+			h = (Handle) c.free.pollLast();
+		}
+		if (h == null) {
+			misses.increment();
+			h = new Handle(this, c);
+			h.value = factory.create(h);
+		} else {
+			hits.increment();
+		}
+		h.refs.set(1);
+		if (debug) track(h);
+		return h.value;
+	}
+
+	// Called when the last reference of the given handle is released
+	private void recycle(Handle h) {
+		if (h.site != null) untrack(h);
+		factory.reset(h.value);
+		cache c = (cache) caches.get();
+		if (h.owner == c) {
+			if (c.free.size() < maxPerThread) c.free.addLast(h);
+		} else {
+			h.owner.pushReturned(h, maxPerThread);
+		}
+	}
+
+	private void track(Handle h) {
+		reportLeaks();
+		h.site = new Throwable("Taken from pool <" + name + "> here");
+		h.leakRef = new leakRef(h.value, this, h.site);
+		tracked.add(h.leakRef);
+	}
+
+	private void untrack(Handle h) {
+		if (h.leakRef != null) {
+			h.leakRef.clear();
+			tracked.remove(h.leakRef);
+			h.leakRef = null;
+		}
+		h.site = null;
+	}
+
+	/**
+	 * Report the objects collected without being released since the last
+	 * call; only tracked in debug mode.
+	 */
+	public static void reportLeaks() {
+		leakRef ref;
+		while ((ref = (leakRef) leaked.poll()) != null) {
+			ref.pool.tracked.remove(ref);
+			ref.pool.numLeaked.incrementAndGet();
+			System.err.println("RecyclingPool <" + ref.pool.name + ">: Object collected without being released");
+			ref.site.printStackTrace();
+		}
+	}
+
+	/**
+	 * The pool side of a pooled object: its reference count, and the
+	 * cache it belongs to.
+	 */
+	public static final class Handle {
+		final RecyclingPool pool;
+		final cache owner;
+		final AtomicInteger refs = new AtomicInteger();
+		Object value;
+		Handle next;           // in the return stack of the owner
+		Throwable site;        // debug: where the object was taken
+		leakRef leakRef;
+
+		Handle(RecyclingPool pool, cache owner) {
+			this.pool = pool;
+			this.owner = owner;
+		}
+
+		/**
+		 * Take one more reference on the object.
+		 */
+		public void retain() {
+			if (refs.getAndIncrement() <= 0) {
+				refs.decrementAndGet();
+				misuse("retained after its last release");
+			}
+		}
+
+		/**
+		 * Give back one reference on the object, returning it to its pool
+		 * on the last one.
+		 */
+		public void release() {
+			int n = refs.decrementAndGet();
+			if (n == 0) {
+				pool.recycle(this);
+			} else if (n < 0) {
+				refs.incrementAndGet();
+				misuse("released too many times");
+			}
+		}
+
+		private void misuse(String what) {
+			if (debug) {
+				IllegalStateException e = new IllegalStateException("RecyclingPool <" + pool.name + ">: " + value + " " + what);
+				if (site != null) e.initCause(site);
+				throw e;
+			}
+			if (DEBUG) System.err.println("RecyclingPool <" + pool.name + ">: " + value + " " + what);
+		}
+	}
+
+	/**
+	 * The free objects of a thread.
+	 */
+	static final class cache {
+		final ArrayDeque free = new ArrayDeque();
+		// objects released by other threads, linked through Handle.next
+		final AtomicReference returned = new AtomicReference();
+		final AtomicInteger numReturned = new AtomicInteger();
+
+		void pushReturned(Handle h, int max) {
+			if (numReturned.incrementAndGet() > max) {
+				numReturned.decrementAndGet();
+				return;
+			}
+			Handle head;
+			do {
+				head = (Handle) returned.get();
+				h.next = head;
+			} while (!returned.compareAndSet(head, h));
+		}
+
+		// Called by the owner thread only
+		void drainReturned() {
+			Handle h = (Handle) returned.getAndSet(null);
+			int n = 0;
+			while (h != null) {
+				Handle next = h.next;
+				h.next = null;
+				free.addLast(h);
+				n++;
+				h = next;
+			}
+			numReturned.addAndGet(-n);
+		}
+	}
+
+	static final class leakRef extends WeakReference {
+		final RecyclingPool pool;
+		final Throwable site;
+
+		leakRef(Object value, RecyclingPool pool, Throwable site) {
+			super(value, leaked);
+			this.pool = pool;
+			this.site = site;
+		}
+	}
+
+}
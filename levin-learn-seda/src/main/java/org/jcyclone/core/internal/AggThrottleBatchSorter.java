@@ -27,7 +27,6 @@ package org.jcyclone.core.internal;
 import org.jcyclone.core.queue.ISource;
 import org.jcyclone.core.stage.IStageManager;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -41,10 +40,10 @@ public class AggThrottleBatchSorter implements IBatchSorter {
 	private String name;
 	private AggThrottle aggThrottle;
 	private ISource source;
-	private ThreadLocalList list;
+	private ThreadLocalBatch batches;
 
 	public AggThrottleBatchSorter() {
-		list = new ThreadLocalList();
+		batches = new ThreadLocalBatch();
 	}
 
 	/**
@@ -63,7 +62,8 @@ public class AggThrottleBatchSorter implements IBatchSorter {
 	 */
 	public IBatchDescr nextBatch(int timeout) throws InterruptedException {
 
-		final List buffer = (List) list.get();
+		NullBatchSorter.reusableBatch batch = (NullBatchSorter.reusableBatch) batches.get();
+		List buffer = batch.buffer;
 
 		int aggTarget = aggThrottle.getAggTarget();
 
@@ -77,20 +77,12 @@ public class AggThrottleBatchSorter implements IBatchSorter {
 		if (num == 0)
 			return null;
 		else
-			return new IBatchDescr() {
-				public List getBatch() {
-					return buffer;
-				}
-
-				public void batchDone() {
-					buffer.clear();
-				}
-			};
+			return batch;
 	}
 
-	class ThreadLocalList extends ThreadLocal {
+	class ThreadLocalBatch extends ThreadLocal {
 		public Object initialValue() {
-			return new ArrayList();
+			return new NullBatchSorter.reusableBatch();
 		}
 	}
 
@@ -0,0 +1,312 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.queue.ForwardingSink;
+import org.jcyclone.core.queue.IBlockingSink;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.rtc.ICreditListener;
+import org.jcyclone.core.stage.IStageManager;
+
+/**
+ * A CreditGate implements credit-based flow control between a stage and
+ * the stages which enqueue events onto it. The stage has
+ * <tt>stages.NAME.credits.limit</tt> credits (by default
+ * <tt>global.credits.limit</tt>); each event in its queue takes one.
+ * When the queue reaches the limit, the stage is <i>exhausted</i> until
+ * its threads drain it down to <tt>global.credits.resume</tt> times the
+ * limit.
+ * <p/>
+ * The gate learns the edges of the stage graph as events flow: an
+ * enqueue onto the sink of a stage from a thread running another stage
+ * makes that stage an upstream stage, and the edge is added to the
+ * StageGraph. The batch sorter of a stage does not pull input while any
+ * of its downstream stages is exhausted, so that a stage stops consuming
+ * events it cannot forward, and the overload propagates back to the
+ * sources of the graph instead of filling queues or rejecting events
+ * along the way. Sources that are not stages, such as the socket layer,
+ * are told through an {@link ICreditListener}, or may wait with
+ * {@link #awaitCredits}.
+ * <p/>
+ * A queue may exceed its limit by the batches being handled by the
+ * threads of its upstream stages when it is reached. Since a blocked
+ * stage keeps its own queue, a cycle of stages which all exhaust their
+ * credits stops; leave the limit of one stage of the cycle at -1 (no
+ * limit) to break it.
+ */
+public class CreditGate {
+
+	private static final boolean DEBUG = false;
+
+	private static final CreditGate[] NONE = new CreditGate[0];
+
+	// gate of the stage whose batch is being handled by this thread
+	private static final ThreadLocal current = new ThreadLocal();
+
+	private IStageWrapper stage;
+	private ISource queue;
+	private StageGraph graph;
+	private volatile int limit;
+	private double resume;
+	private volatile boolean exhausted;
+
+	// copy on write
+	private volatile CreditGate[] outbound = NONE;
+	private volatile CreditGate[] inbound = NONE;
+	private volatile ICreditListener[] listeners = new ICreditListener[0];
+
+	/**
+	 * Create a gate for the given stage, with the given number of credits,
+	 * and the fraction of the credits below which the stage takes events
+	 * again once exhausted. A limit of -1 means no limit.
+	 */
+	public CreditGate(IStageWrapper stage, IStageManager mgr, ISource queue, int limit, double resume) {
+		if (resume < 0 || resume > 1)
+			throw new IllegalArgumentException("Bad credit resume level " + resume);
+		this.stage = stage;
+		this.queue = queue;
+		this.limit = limit;
+		this.resume = resume;
+		this.graph = ((JCycloneProfiler) mgr.getProfiler()).getGraphProfiler();
+	}
+
+	/**
+	 * Return a sink which takes credits for the events enqueued onto the
+	 * given sink.
+	 */
+	IBlockingSink wrapSink(IBlockingSink sink) {
+		return new creditSink(sink);
+	}
+
+	/**
+	 * Return a batch sorter which stops pulling input from the given one
+	 * while a downstream stage is exhausted.
+	 */
+	IBatchSorter wrapSorter(IBatchSorter sorter) {
+		if (sorter instanceof creditSorter) return sorter;
+		return new creditSorter(sorter);
+	}
+
+	/**
+	 * Return the number of events that may still be enqueued before the
+	 * stage is exhausted, or Integer.MAX_VALUE if it has no limit.
+	 */
+	public int getCredits() {
+		int l = limit;
+		if (l < 0) return Integer.MAX_VALUE;
+		return Math.max(0, l - queue.size());
+	}
+
+	/**
+	 * Return true if the stage does not take events until it drains its
+	 * queue.
+	 */
+	public boolean isExhausted() {
+		return exhausted;
+	}
+
+	/**
+	 * Return true if a downstream stage is exhausted.
+	 */
+	public boolean isBlocked() {
+		CreditGate[] out = outbound;
+		for (int i = 0; i < out.length; i++) {
+			if (out[i].exhausted) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait until the stage takes events, for up to timeout_millis
+	 * milliseconds, or forever if timeout_millis is -1.
+	 *
+	 * @return false if the stage is still exhausted
+	 */
+	public boolean awaitCredits(int timeout_millis) throws InterruptedException {
+		if (!exhausted) return true;
+		synchronized (this) {
+			return await(this, timeout_millis);
+		}
+	}
+
+	/**
+	 * Wait on the monitor of this gate, held by the caller, while the
+	 * given gate, or any downstream gate if it is null, is exhausted.
+	 */
+	private boolean await(CreditGate gate, int timeout_millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout_millis;
+		while ((gate == null) ? isBlocked() : gate.exhausted) {
+			if (timeout_millis < 0) {
+				wait();
+			} else {
+				long waitTime = deadline - System.currentTimeMillis();
+				if (waitTime <= 0) return false;
+				wait(waitTime);
+			}
+		}
+		return true;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Set the number of credits of the stage. A limit of -1 means no limit.
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+		checkResume();
+	}
+
+	/**
+	 * Return the stages this stage has been seen enqueueing events onto.
+	 */
+	public IStageWrapper[] getDownstreamStages() {
+		CreditGate[] out = outbound;
+		IStageWrapper[] stages = new IStageWrapper[out.length];
+		for (int i = 0; i < out.length; i++) stages[i] = out[i].stage;
+		return stages;
+	}
+
+	public synchronized void addListener(ICreditListener listener) {
+		ICreditListener[] l = new ICreditListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, l, 0, listeners.length);
+		l[listeners.length] = listener;
+		listeners = l;
+	}
+
+	public synchronized void removeListener(ICreditListener listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				ICreditListener[] l = new ICreditListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, l, 0, i);
+				System.arraycopy(listeners, i + 1, l, i, l.length - i);
+				listeners = l;
+				return;
+			}
+		}
+	}
+
+	// Record that the stage of the calling thread enqueues onto this one
+	private void learnEdge() {
+		CreditGate from = (CreditGate) current.get();
+		if (from == null || from == this) return;
+		CreditGate[] out = from.outbound;
+		for (int i = 0; i < out.length; i++) {
+			if (out[i] == this) return;
+		}
+		synchronized (CreditGate.class) {
+			out = from.outbound;
+			for (int i = 0; i < out.length; i++) {
+				if (out[i] == this) return;
+			}
+			from.outbound = append(out, this);
+			inbound = append(inbound, from);
+		}
+		if (DEBUG) System.err.println("CreditGate: learned edge " + from.stage.getName() + " -> " + stage.getName());
+
+		StageGraphEdge edge = new StageGraphEdge();
+		edge.fromStage = from.stage;
+		edge.toStage = stage;
+		edge.sink = stage.getStage().getSink();
+		graph.addEdge(edge);
+	}
+
+	private static CreditGate[] append(CreditGate[] gates, CreditGate gate) {
+		CreditGate[] g = new CreditGate[gates.length + 1];
+		System.arraycopy(gates, 0, g, 0, gates.length);
+		g[gates.length] = gate;
+		return g;
+	}
+
+	private void checkExhausted() {
+		int l = limit;
+		if (exhausted || l < 0 || queue.size() < l) return;
+		synchronized (this) {
+			if (exhausted) return;
+			exhausted = true;
+			if (DEBUG) System.err.println("CreditGate <" + stage.getName() + ">: exhausted, queue " + queue.size());
+			ICreditListener[] l2 = listeners;
+			for (int i = 0; i < l2.length; i++) l2[i].creditsExhausted(stage.getStage());
+		}
+		// the stage may have drained its queue before it saw the flag
+		checkResume();
+	}
+
+	private void checkResume() {
+		if (!exhausted) return;
+		int l = limit;
+		if (l >= 0 && queue.size() > l * resume) return;
+		synchronized (this) {
+			if (!exhausted) return;
+			exhausted = false;
+			if (DEBUG) System.err.println("CreditGate <" + stage.getName() + ">: available, queue " + queue.size());
+			notifyAll();
+			ICreditListener[] l2 = listeners;
+			for (int i = 0; i < l2.length; i++) l2[i].creditsAvailable(stage.getStage());
+		}
+		// outside of our monitor, as stages may form a cycle
+		CreditGate[] in = inbound;
+		for (int i = 0; i < in.length; i++) {
+			in[i].downstreamAvailable();
+		}
+	}
+
+	// Called when a downstream stage takes events again
+	private void downstreamAvailable() {
+		synchronized (this) {
+			notifyAll();
+		}
+		IScheduler tm = stage.getThreadManager();
+		if (tm instanceof WorkStealingScheduler) {
+			((WorkStealingScheduler) tm).wake(stage);
+		}
+	}
+
+	/**
+	 * Takes credits for the events enqueued onto the stage.
+	 */
+	class creditSink extends ForwardingSink {
+
+		creditSink(IBlockingSink sink) {
+			super(sink);
+		}
+
+		protected void entered(int numEvents) {
+			learnEdge();
+			checkExhausted();
+		}
+	}
+
+	/**
+	 * Holds back the stage while a downstream stage is exhausted, and
+	 * gives back the credits of the events it dequeues.
+	 */
+	class creditSorter implements IBatchSorter {
+		private IBatchSorter sorter;
+
+		creditSorter(IBatchSorter sorter) {
+			this.sorter = sorter;
+		}
+
+		public void init(IStageWrapper stage, IStageManager mgr) {
+			sorter.init(stage, mgr);
+		}
+
+		public IBatchDescr nextBatch(int timeout_millis) throws InterruptedException {
+			current.set(CreditGate.this);
+			checkResume();
+			if (isBlocked()) {
+				// a work-stealing scheduler runs the stage again when woken up
+				if (timeout_millis == 0) return null;
+				synchronized (CreditGate.this) {
+					if (!await(null, timeout_millis)) return null;
+				}
+			}
+			IBatchDescr batch = sorter.nextBatch(timeout_millis);
+			checkResume();
+			return batch;
+		}
+	}
+
+}
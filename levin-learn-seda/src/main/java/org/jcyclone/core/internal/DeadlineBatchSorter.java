@@ -0,0 +1,223 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.event.IRecyclable;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.queue.DeadlineBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.rtc.DeadlinePolicy;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An earliest-deadline-first batch sorter. Each batch holds at most
+ * <tt>batchController.maxBatch</tt> events, handed to the event handler
+ * in deadline order, as given by the DeadlinePolicy of the stage.
+ * Events already past their deadline are not handled, but shed onto the
+ * sink of the stage named by <tt>deadline.shedStage</tt>, or dropped if
+ * there is none; <tt>deadline.shed</tt> set to false disables shedding.
+ * <p/>
+ * A stage queue of class DeadlineBlockingQueue, which a stage with this
+ * sorter gets unless it sets its <tt>queue.class</tt>, dequeues the events
+ * with the earliest deadlines of the whole queue first, with the deadlines
+ * it stamped on them when they were enqueued. On a FIFO queue, events are
+ * only ordered within a batch, and the deadline of an event which carries
+ * no time of its own (as an IDeadlineEvent or TimeStampedEvent) counts
+ * from when it is dequeued, so that it is never shed.
+ *
+ * @see DeadlinePolicy
+ * @see org.jcyclone.core.queue.DeadlineBlockingQueue
+ */
+public class DeadlineBatchSorter implements IBatchSorter {
+
+	private static final boolean DEBUG = false;
+
+	// the batch index is packed in the low bits of the sort keys
+	private static final int INDEX_BITS = 20;
+	private static final long MAX_REL = (1L << (63 - INDEX_BITS)) - 1;
+
+	private IStageManager mgr;
+	private String name;
+	private ISource source;
+	private DeadlineBlockingQueue deadlineQueue;   // source, if it stamps deadlines
+	private DeadlinePolicy policy;
+	private int maxBatch;
+	private boolean shed;
+	private String shedStage;
+	private volatile ISink shedSink;
+	private volatile boolean shedWarned;
+	private final AtomicInteger numShed = new AtomicInteger();
+	private ThreadLocalBatch batches;
+
+	public DeadlineBatchSorter() {
+		batches = new ThreadLocalBatch();
+	}
+
+	/**
+	 * Called by the thread manager to associate a stage with this
+	 * batch sorter.
+	 */
+	public void init(IStageWrapper stage, IStageManager mgr) {
+		this.mgr = mgr;
+		this.name = stage.getName();
+		this.source = stage.getSource();
+		this.deadlineQueue = (source instanceof DeadlineBlockingQueue) ? (DeadlineBlockingQueue) source : null;
+		ISystemConfig config = mgr.getConfig();
+		String tag = "stages." + name + ".";
+
+		this.policy = DeadlinePolicy.forStage(config, name);
+		maxBatch = config.getInt(tag + "batchController.maxBatch",
+		    config.getInt("global.batchController.maxBatch", -1));
+		if (maxBatch <= 0) maxBatch = Integer.MAX_VALUE;
+		shed = config.getBoolean(tag + "deadline.shed", config.getBoolean("global.deadline.shed"));
+		shedStage = config.getString(tag + "deadline.shedStage", config.getString("global.deadline.shedStage"));
+
+		mgr.getProfiler().add(name + " deadlineShed", new IProfilable() {
+			public int profileSize() {
+				return numShed.get();
+			}
+		});
+	}
+
+	/**
+	 * Return the number of events shed since startup.
+	 */
+	public int getShedCount() {
+		return numShed.get();
+	}
+
+	/**
+	 * Returns a batch of at most maxBatch events, earliest deadline first.
+	 * Blocks until a batch can be returned.
+	 */
+	public IBatchDescr nextBatch(int timeout) throws InterruptedException {
+		edfBatch batch = (edfBatch) batches.get();
+		List buffer = batch.buffer;
+
+		while (true) {
+			int num;
+			if (deadlineQueue != null) {
+				// take as many events as are queued, up to maxBatch
+				batch.ensure(Math.min(maxBatch, Math.max(batch.stamped.length, deadlineQueue.size())));
+				int max = Math.min(maxBatch, batch.stamped.length);
+				if (timeout == 0) {
+					num = deadlineQueue.dequeue(buffer, max, batch.stamped);
+				} else {
+					num = deadlineQueue.blockingDequeue(buffer, timeout, max, batch.stamped);
+				}
+			} else if (timeout == 0) {
+				num = source.dequeue(buffer, maxBatch);
+			} else {
+				num = source.blockingDequeue(buffer, timeout, maxBatch);
+			}
+			if (num == 0) return null;
+			sort(batch, System.currentTimeMillis());
+			if (!buffer.isEmpty()) return batch;
+			// everything was shed: look for live events
+		}
+	}
+
+	/**
+	 * Shed the late events of the batch and order the others by deadline.
+	 */
+	private void sort(edfBatch batch, long now) {
+		List buffer = batch.buffer;
+		int n = buffer.size();
+		batch.ensure(n);
+		Object[] events = batch.events;
+		long[] keys = batch.keys;
+
+		int live = 0;
+		long min = DeadlinePolicy.NONE;
+		for (int i = 0; i < n; i++) {
+			Object ev = buffer.get(i);
+			long d = (deadlineQueue != null) ? batch.stamped[i] : policy.deadlineOf(ev, now);
+			if (shed && d < now) {
+				shed((IElement) ev);
+				continue;
+			}
+			events[live] = ev;
+			keys[live] = d;
+			if (d < min) min = d;
+			live++;
+		}
+		buffer.clear();
+		if (live >= (1 << INDEX_BITS)) {
+			// too large to pack the indexes: keep the queue order
+			for (int i = 0; i < live; i++) buffer.add(events[i]);
+		} else {
+			for (int i = 0; i < live; i++) {
+				long rel = (keys[i] == DeadlinePolicy.NONE) ? MAX_REL : Math.min(keys[i] - min, MAX_REL);
+				keys[i] = (rel << INDEX_BITS) | i;
+			}
+			Arrays.sort(keys, 0, live);
+			for (int i = 0; i < live; i++) {
+				buffer.add(events[(int) (keys[i] & ((1 << INDEX_BITS) - 1))]);
+			}
+		}
+		Arrays.fill(events, 0, live, null);
+	}
+
+	private void shed(IElement event) {
+		numShed.incrementAndGet();
+		if (DEBUG) System.err.println("DeadlineBatchSorter <" + name + ">: shedding " + event);
+		if (!resolveShedSink() || !shedSink.enqueueLossy(event)) {
+			// dropped: the stage owned the reference of the event
+			if (event instanceof IRecyclable) ((IRecyclable) event).release();
+		}
+	}
+
+	private boolean resolveShedSink() {
+		if (shedSink != null) return true;
+		if (shedStage == null) return false;
+		try {
+			shedSink = mgr.getStage(shedStage).getSink();
+			return true;
+		} catch (Exception e) {
+			// the stage may not be created yet: drop until it is
+			if (!shedWarned) {
+				shedWarned = true;
+				System.err.println("DeadlineBatchSorter <" + name + ">: Cannot shed events to <" + shedStage + ">: " + e);
+			}
+			return false;
+		}
+	}
+
+	class edfBatch implements IBatchDescr {
+		final List buffer = new ArrayList();
+		Object[] events = new Object[0];
+		long[] keys = new long[0];
+		long[] stamped = new long[64];    // deadlines stamped by a DeadlineBlockingQueue
+
+		void ensure(int n) {
+			if (events.length < n) {
+				events = new Object[n];
+				keys = new long[n];
+			}
+			if (stamped.length < n) {
+				stamped = new long[n];
+			}
+		}
+
+		public List getBatch() {
+			return buffer;
+		}
+
+		public void batchDone() {
+			buffer.clear();
+		}
+	}
+
+	class ThreadLocalBatch extends ThreadLocal {
+		public Object initialValue() {
+			return new edfBatch();
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.event.RecyclingPool;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.queue.ForwardingSink;
+import org.jcyclone.core.queue.IBlockingSink;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.SinkException;
+import org.jcyclone.core.rtc.IResponseTimeController;
+import org.jcyclone.core.trace.StageTracer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A FusedSink sits in front of the event queue of a stage run by
+ * TPSScheduler, and runs the event handler of the stage directly on the
+ * thread of the stage enqueueing the events when the stage is idle,
+ * instead of queueing them and waking one of its threads. A chain of
+ * stages with short handlers then runs like a chain of method calls.
+ * <p/>
+ * Events are handed off directly only if:
+ * <ul>
+ * <li>the caller is itself running the handler of a stage, and fewer
+ * than <tt>global.fuse.maxDepth</tt> handlers are already nested on its
+ * stack;</li>
+ * <li>the batch the caller's thread took from its own queue holds at
+ * most <tt>global.fuse.maxBatch</tt> events: larger batches mean that
+ * the pipeline is loaded, and queueing lets the next stage batch events
+ * in turn;</li>
+ * <li>the queue of the stage is empty, so that events are not run ahead
+ * of earlier ones;</li>
+ * <li>the stage has an idle slot: for an ISingleThreadedEventHandler, no
+ * event of the stage is queued or being handled; otherwise, fewer
+ * handlers of the stage are running than it has threads.</li>
+ * </ul>
+ * Otherwise, and for transactional enqueues, events are queued as usual,
+ * so that a loaded stage falls back to its own threads. Enqueue
+ * predicates still apply, as the admission controller sits in front of
+ * this sink.
+ * <p/>
+ * Threads of the stage take the same slots through {@link #beginBatch}
+ * and {@link #endBatch}.
+ * <p/>
+ * A fused handler runs inside the handler of the calling stage, so its
+ * time is recorded against the stats of its own stage and taken out of
+ * the service time of the caller (see {@link context#beginHandler}).
+ */
+public class FusedSink extends ForwardingSink {
+
+	private static final boolean DEBUG = false;
+
+	private IStageWrapper stage;
+	private IEventHandler handler;
+	private IStageStats stats;
+	private IResponseTimeController rtController;
+	private StageTracer tracer;
+	private String name;
+	private int maxDepth;
+	private int maxBatch;
+	private boolean crashOnException;
+
+	private boolean singleThreaded;
+	// ISingleThreadedEventHandler: excludes the threads of the stage
+	private final ReentrantLock lock = new ReentrantLock();
+	// ISingleThreadedEventHandler: events queued or being handled
+	private final AtomicInteger inFlight = new AtomicInteger();
+	// other handlers: number of handlers running
+	private final AtomicInteger active = new AtomicInteger();
+	private volatile ThreadPool tp;
+
+	private static final ThreadLocal contexts = new ThreadLocal() {
+		protected Object initialValue() {
+			return new context();
+		}
+	};
+
+	/**
+	 * Per-thread state: number of handlers nested on the stack, size of
+	 * the batch taken from the queue, time spent in fused handlers, and a
+	 * reusable batch list for each level.
+	 */
+	static class context {
+		int depth;
+		int queuedBatch;
+		// time spent in the fused handlers nested in the current handler
+		private long nestedNanos;
+		private List[] batches = new List[0];
+
+		/**
+		 * Called before running a handler on this thread. Returns the
+		 * state of the enclosing handler, to pass to endHandler.
+		 */
+		long beginHandler() {
+			long outer = nestedNanos;
+			nestedNanos = 0;
+			return outer;
+		}
+
+		/**
+		 * Called once a handler returned, elapsed nanoseconds after it was
+		 * called. Returns the time spent in the handler itself, without
+		 * the fused handlers it ran, and charges elapsed to the enclosing
+		 * handler as nested time.
+		 */
+		long endHandler(long outer, long elapsed) {
+			long own = elapsed - nestedNanos;
+			nestedNanos = outer + elapsed;
+			return own;
+		}
+
+		List batch(int level) {
+			if (level >= batches.length) {
+				List[] b = new List[level + 1];
+				System.arraycopy(batches, 0, b, 0, batches.length);
+				for (int i = batches.length; i < b.length; i++) b[i] = new ArrayList();
+				batches = b;
+			}
+			return batches[level];
+		}
+	}
+
+	/**
+	 * Return the fusion state of the calling thread.
+	 */
+	static context currentContext() {
+		return (context) contexts.get();
+	}
+
+	public FusedSink(IStageWrapper stage, IBlockingSink sink, int maxDepth, int maxBatch, boolean crashOnException) {
+		super(sink);
+		this.stage = stage;
+		this.maxDepth = maxDepth;
+		this.maxBatch = maxBatch;
+		this.crashOnException = crashOnException;
+		this.name = stage.getName();
+		this.handler = stage.getEventHandler();
+		this.singleThreaded = (handler instanceof ISingleThreadedEventHandler);
+	}
+
+	/**
+	 * Called by TPSScheduler once the stage is registered.
+	 */
+	void init(ThreadPool tp) {
+		this.stats = stage.getStats();
+		this.rtController = stage.getResponseTimeController();
+		this.tracer = stage.getTracer();
+		this.tp = tp;
+	}
+
+	/**
+	 * Called by a thread of the stage before handling a batch.
+	 */
+	void beginBatch() {
+		if (singleThreaded) lock.lock();
+		else active.incrementAndGet();
+	}
+
+	/**
+	 * Called by a thread of the stage after handling a batch of
+	 * numEvents events, even if the handler failed.
+	 */
+	void endBatch(int numEvents) {
+		if (singleThreaded) {
+			inFlight.addAndGet(-numEvents);
+			lock.unlock();
+		} else {
+			active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Run the handler on the given elements on this thread, if the stage
+	 * allows it now.
+	 *
+	 * @return false if the elements must be queued
+	 */
+	private boolean tryFuse(IElement element, List elements) {
+		if (tp == null) return false;   // not registered yet
+		context ctx = (context) contexts.get();
+		int depth = ctx.depth;
+		if (depth == 0 || depth > maxDepth || ctx.queuedBatch > maxBatch) return false;
+		if (sink.size() != 0) return false;
+
+		if (singleThreaded) {
+			if (!inFlight.compareAndSet(0, 1)) return false;
+			if (!lock.tryLock()) {
+				inFlight.decrementAndGet();
+				return false;
+			}
+		} else {
+			int n;
+			do {
+				n = active.get();
+				// a pool always has a thread: only count them when busy
+				if (n > 0 && n >= tp.numThreads()) return false;
+			} while (!active.compareAndSet(n, n + 1));
+		}
+
+		List batch = ctx.batch(depth);
+		if (element != null) batch.add(element);
+		else batch.addAll(elements);
+		int numEvents = batch.size();
+		ctx.depth = depth + 1;
+		if (tracer != null) tracer.beginBatch(batch);
+		if (DEBUG) System.err.println("FusedSink <" + name + ">: running " + numEvents + " events on " + Thread.currentThread().getName());
+		long outer = ctx.beginHandler();
+		long tstart = System.nanoTime();
+		try {
+			long own;
+			try {
+				handler.handleEvents(batch);
+			} finally {
+				// the caller waited for the handler even if it failed
+				own = ctx.endHandler(outer, System.nanoTime() - tstart);
+			}
+			stats.recordServiceTime(numEvents, own);
+			if (rtController != null) {
+				rtController.adjustThreshold(batch, own / 1000000);
+			}
+		} catch (Exception e) {
+			System.err.println("JCyclone: Stage <" + name + "> got exception: " + e);
+			e.printStackTrace();
+			if (crashOnException) {
+				System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
+				System.exit(-1);
+			}
+		} finally {
+			ctx.depth = depth;
+			if (tracer != null) tracer.endBatch(tstart, System.nanoTime());
+			// the stage owns the references of its events
+			RecyclingPool.releaseAll(batch);
+			batch.clear();
+			if (singleThreaded) {
+				inFlight.decrementAndGet();
+				lock.unlock();
+			} else {
+				active.decrementAndGet();
+			}
+		}
+		return true;
+	}
+
+	// Account for events about to be queued, for single-threaded stages
+	private void queueing(int numEvents) {
+		if (singleThreaded) inFlight.addAndGet(numEvents);
+	}
+
+	public void enqueue(IElement element) throws SinkException {
+		if (tryFuse(element, null)) return;
+		queueing(1);
+		try {
+			sink.enqueue(element);
+		} catch (SinkException e) {
+			queueing(-1);
+			throw e;
+		}
+	}
+
+	public boolean enqueueLossy(IElement element) {
+		if (tryFuse(element, null)) return true;
+		queueing(1);
+		boolean pass = sink.enqueueLossy(element);
+		if (!pass) queueing(-1);
+		return pass;
+	}
+
+	public void enqueueMany(List elements) throws SinkException {
+		if (elements.isEmpty() || tryFuse(null, elements)) return;
+		queueing(elements.size());
+		try {
+			sink.enqueueMany(elements);
+		} catch (SinkException e) {
+			queueing(-elements.size());
+			throw e;
+		}
+	}
+
+	public void blockingEnqueue(IElement element) throws InterruptedException {
+		if (tryFuse(element, null)) return;
+		queueing(1);
+		boolean done = false;
+		try {
+			sink.blockingEnqueue(element);
+			done = true;
+		} finally {
+			if (!done) queueing(-1);
+		}
+	}
+
+	public boolean enqueueLossy(IElement element, int timeout_millis) throws InterruptedException {
+		if (tryFuse(element, null)) return true;
+		queueing(1);
+		boolean pass = false;
+		try {
+			pass = sink.enqueueLossy(element, timeout_millis);
+		} finally {
+			if (!pass) queueing(-1);
+		}
+		return pass;
+	}
+
+	// Transactional enqueues are queued: count them as in flight before
+	// they are committed, for single-threaded stages
+	protected boolean wrapsTransactions() {
+		return singleThreaded;
+	}
+
+	protected void committing(int numEvents) {
+		queueing(numEvents);
+	}
+
+	protected void commitFailed(int numEvents) {
+		queueing(-numEvents);
+	}
+
+}
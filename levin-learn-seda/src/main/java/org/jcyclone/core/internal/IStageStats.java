@@ -24,6 +24,8 @@
 
 package org.jcyclone.core.internal;
 
+import org.jcyclone.util.LatencyHistogram;
+
 /**
  * This interface allows various components of the system to record and
  * gather statistics about the stage during execution.
@@ -42,6 +44,23 @@ public interface IStageStats {
 	 */
 	void recordServiceRate(int numEvents, long time);
 
+	/**
+	 * Record that numEvents events were enqueued onto the stage's queue.
+	 */
+	void recordEnqueue(int numEvents);
+
+	/**
+	 * Record that a batch of numEvents events was just dequeued from the
+	 * stage's queue, to be passed to the event handler.
+	 */
+	void recordDequeue(int numEvents);
+
+	/**
+	 * Record that the event handler took the given number of
+	 * nanoseconds to process a batch of numEvents events.
+	 */
+	void recordServiceTime(int numEvents, long nanos);
+
 	/**
 	 * Get a moving average of the stage's service rate.
 	 */
@@ -63,5 +82,20 @@ public interface IStageStats {
 	 */
 	double get90thRT();
 
-}
+	/**
+	 * Get the distribution of the time events spend in the stage's
+	 * queue, in nanoseconds. Only a sample of the events is measured.
+	 */
+	LatencyHistogram getQueueWaitHistogram();
+
+	/**
+	 * Get the distribution of the number of events per batch.
+	 */
+	LatencyHistogram getBatchSizeHistogram();
 
+	/**
+	 * Get the distribution of the batch service times in nanoseconds.
+	 */
+	LatencyHistogram getServiceTimeHistogram();
+
+}
@@ -29,6 +29,7 @@ import org.jcyclone.core.queue.ISource;
 import org.jcyclone.core.rtc.IAdmissionControlledSink;
 import org.jcyclone.core.rtc.IResponseTimeController;
 import org.jcyclone.core.stage.IStage;
+import org.jcyclone.core.trace.StageTracer;
 
 /**
  * A StageWrapperIF is the internal representation for an application
@@ -91,6 +92,17 @@ public interface IStageWrapper {
 
 	IAdmissionControlledSink getSink();
 
+	/**
+	 * Return the credit gate of this stage, or null if credit-based flow
+	 * control is disabled.
+	 */
+	CreditGate getCreditGate();
+
+	/**
+	 * Return the tracer of this stage, or null if tracing is disabled.
+	 */
+	StageTracer getTracer();
+
 	int getLifecycleLevel();
 
 	void program() throws Exception;
@@ -25,6 +25,7 @@
 package org.jcyclone.core.internal;
 
 import org.jcyclone.core.stage.IStage;
+import org.jcyclone.core.trace.TraceCollector;
 
 /**
  * ISystemManager is an internal interface allowing modules
@@ -59,4 +60,9 @@ public interface ISystemManager {
 	IStage createStage(IStageWrapper wrapper, boolean initAndStart)
 	    throws Exception;
 
+	/**
+	 * Get the trace collector, or null if tracing is disabled.
+	 */
+	TraceCollector getTraceCollector();
+
 }
@@ -0,0 +1,32 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.queue.ForwardingSink;
+import org.jcyclone.core.queue.IBlockingSink;
+
+/**
+ * An InstrumentedSink sits in front of the event queue of a stage and
+ * tells the stage's IStageStats how many events were accepted, so that
+ * the queue-wait time of events can be sampled when they are dequeued.
+ * Events rejected by the queue are not counted.
+ * <p/>
+ * A stage gets one when <tt>stages.NAME.instrument.enable</tt> is set
+ * (by default <tt>global.instrument.enable</tt>, which is on), or when
+ * it uses the latency batch controller, which needs the queue-wait
+ * times. Service times and batch sizes are recorded in any case.
+ *
+ * @see StageStats#recordEnqueue
+ */
+public class InstrumentedSink extends ForwardingSink {
+
+	private IStageStats stats;
+
+	public InstrumentedSink(IBlockingSink sink, IStageStats stats) {
+		super(sink);
+		this.stats = stats;
+	}
+
+	protected void entered(int numEvents) {
+		stats.recordEnqueue(numEvents);
+	}
+
+}
@@ -0,0 +1,250 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.util.LatencyHistogram;
+import org.jcyclone.util.Util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LatencyBatchController tunes the batch size of a stage against both
+ * the per-event cost of its event handler and a latency target.
+ * <p/>
+ * Threads running the stage report each batch with {@link #record};
+ * once per <tt>recalcWindow</tt> one of them is elected to recompute the
+ * target from the batches of the window. The latency of the window is
+ * estimated as a percentile of the queue-wait time of the stage (see
+ * {@link IStageStats#getQueueWaitHistogram}) plus the mean service time
+ * of a batch. Then:
+ * <ul>
+ * <li>if the queue of the stage holds more than a batch at the end of the
+ * window, the stage cannot keep up: the batch size is grown while the
+ * queue builds up, unless the last increase raised the cost per event,
+ * and held while the queue drains;</li>
+ * <li>else if the latency exceeds the target, the batch size is scaled
+ * down so that the service time of a batch fits in what the queue wait
+ * leaves of the target;</li>
+ * <li>otherwise the batch size is moved one step in the current
+ * direction, which is reversed when growing the batches did not lower
+ * the cost per event by more than <tt>noise</tt>, or shrinking them
+ * raised it by more than <tt>noise</tt>. Batches are only grown while
+ * the predicted latency stays under the target, and while the batches
+ * actually dequeued fill at least half of the target.</li>
+ * </ul>
+ * The controller thus settles on the smallest batch that still gets the
+ * benefit of aggregation: handlers whose cost amortizes over a batch get
+ * large batches, and the others stay small.
+ * <p/>
+ * All settings are read from <tt>stages.&lt;name&gt;.batchController</tt>,
+ * falling back to <tt>global.batchController</tt>.
+ */
+class LatencyBatchController {
+
+	private static final boolean DEBUG = false;
+
+	// initial batch size when maxBatch is unbounded
+	private static final int INITIAL_TARGET = 64;
+	private static final int UNBOUNDED = Integer.MAX_VALUE / 2;
+
+	private IStageWrapper stage;
+	private String name;
+
+	private int minBatch;
+	private int maxBatch;
+	private long windowNanos;
+	private long latencyTargetNanos;
+	private double percentile;
+	private double step;
+	private double noise;
+
+	private volatile int batchTarget;
+
+	// accumulated over the current window
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong serviceNanos = new AtomicLong();
+	private final AtomicLong nextAdjust = new AtomicLong();
+
+	// only touched by the thread elected to adjust
+	private int direction = -1;
+	private double lastCost;
+	private long[] lastQueueWaits;
+	private int lastBacklog;
+	private volatile long lastLatency;
+	private volatile double lastCostNanos;
+
+	LatencyBatchController(IStageWrapper stage, IStageManager mgr) {
+		this.stage = stage;
+		this.name = stage.getStage().getName();
+		ISystemConfig config = mgr.getConfig();
+		String tag = "stages." + name + ".batchController.";
+		String gtag = "global.batchController.";
+
+		minBatch = config.getInt(tag + "minBatch", config.getInt(gtag + "minBatch", 1));
+		maxBatch = config.getInt(tag + "maxBatch", config.getInt(gtag + "maxBatch", -1));
+		if (minBatch < 1) minBatch = 1;
+		if (maxBatch <= 0 || maxBatch > UNBOUNDED) maxBatch = UNBOUNDED;
+		if (maxBatch < minBatch) maxBatch = minBatch;
+		windowNanos = config.getInt(tag + "recalcWindow", config.getInt(gtag + "recalcWindow", 1000)) * 1000000L;
+		latencyTargetNanos = (long) (config.getDouble(tag + "latencyTarget",
+		    config.getDouble(gtag + "latencyTarget", 10.0)) * 1.0e6);
+		percentile = config.getDouble(tag + "percentile", config.getDouble(gtag + "percentile", 0.9));
+		step = config.getDouble(tag + "step", config.getDouble(gtag + "step", 1.25));
+		if (step <= 1.0) step = 1.25;
+		noise = config.getDouble(tag + "noise", config.getDouble(gtag + "noise", 0.05));
+
+		batchTarget = (maxBatch == UNBOUNDED) ? Math.max(minBatch, Math.min(INITIAL_TARGET, maxBatch)) : maxBatch;
+		nextAdjust.set(System.nanoTime() + windowNanos);
+
+		System.err.println("LatencyBatchController <" + name + "> created: minBatch " + minBatch + ", maxBatch " + ((maxBatch == UNBOUNDED) ? "unbounded" : String.valueOf(maxBatch)) + ", latencyTarget " + (latencyTargetNanos / 1000) + " us");
+
+		mgr.getProfiler().add("LatencyBatchController batchTarget for <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return batchTarget;
+			    }
+		    });
+		mgr.getProfiler().add("LatencyBatchController latency (us) for <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) (lastLatency / 1000);
+			    }
+		    });
+		mgr.getProfiler().add("LatencyBatchController cost (ns/event) for <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) lastCostNanos;
+			    }
+		    });
+	}
+
+	public String toString() {
+		return "LatencyBatchController <" + name + ">";
+	}
+
+	/**
+	 * Return the current maximum batch size.
+	 */
+	int getBatchTarget() {
+		return batchTarget;
+	}
+
+	/**
+	 * Record a batch of numEvents events processed in serviceNanos
+	 * nanoseconds, ending at time now (as given by System.nanoTime()).
+	 */
+	void record(int numEvents, long serviceNanos, long now) {
+		events.addAndGet(numEvents);
+		batches.incrementAndGet();
+		this.serviceNanos.addAndGet(serviceNanos);
+
+		long next = nextAdjust.get();
+		if (now - next >= 0 && nextAdjust.compareAndSet(next, now + windowNanos)) {
+			adjust();
+		}
+	}
+
+	private void adjust() {
+		long numEvents = events.getAndSet(0);
+		long numBatches = batches.getAndSet(0);
+		long nanos = serviceNanos.getAndSet(0);
+		if (numEvents == 0 || numBatches == 0) return;
+
+		double meanBatch = (numEvents * 1.0) / numBatches;
+		double cost = (nanos * 1.0) / numEvents;
+		double batchTime = (nanos * 1.0) / numBatches;
+		long queueWait = windowQueueWait();
+		long latency = queueWait + (long) batchTime;
+
+		int cur = batchTarget;
+		double next = cur;
+		int backlog = stage.getSource().size();
+		int lastBacklog = this.lastBacklog;
+		this.lastBacklog = backlog;
+
+		if (backlog >= cur) {
+			// more than a batch is waiting: smaller batches would only
+			// make it worse, so grow them while the queue builds up unless
+			// it raised the cost per event, and hold while it drains
+			if (backlog >= lastBacklog &&
+			    (direction < 0 || !(cost > lastCost * (1.0 + noise)))) {
+				next = Math.max(cur * step, cur + 1);
+			}
+			direction = 1;
+		} else if (latency > latencyTargetNanos) {
+			// over budget: shrink the batches so that their service time
+			// fits in what queueing leaves, at most by half; if queueing
+			// alone exceeds the target, smaller batches would not help
+			double budget = latencyTargetNanos - queueWait;
+			if (budget > 0) {
+				next = cur * Math.max(0.5, budget / batchTime);
+				if ((int) next == cur) next = cur - 1;
+			}
+			direction = -1;
+		} else {
+			if (direction > 0 && !(cost < lastCost * (1.0 - noise))) {
+				// larger batches did not pay off
+				direction = -1;
+			} else if (direction < 0 && cost > lastCost * (1.0 + noise)) {
+				direction = 1;
+			}
+			if (direction > 0) {
+				if (meanBatch >= cur * 0.5 &&
+				    queueWait + batchTime * step <= latencyTargetNanos) {
+					next = Math.max(cur * step, cur + 1);
+				}
+			} else {
+				next = Math.min(cur / step, cur - 1);
+			}
+		}
+
+		int target = (int) Math.max(minBatch, Math.min(maxBatch, next));
+		// at a bound, probe the other way next time
+		if (target == minBatch && direction < 0 && latency <= latencyTargetNanos) direction = 1;
+		else if (target == maxBatch && direction > 0) direction = -1;
+
+		if (DEBUG) System.err.println("LatencyBatchController <" + name + ">: meanBatch " + Util.format(meanBatch) + ", cost " + Util.format(cost) + " ns, queueWait " + queueWait + " ns, latency " + latency + " ns, target " + cur + " -> " + target);
+
+		lastCost = cost;
+		lastCostNanos = cost;
+		lastLatency = latency;
+		batchTarget = target;
+	}
+
+	/**
+	 * Return the configured percentile of the queue-wait times sampled
+	 * since the last call, or 0 if there are none.
+	 */
+	private long windowQueueWait() {
+		LatencyHistogram hist = stage.getStats().getQueueWaitHistogram();
+		long[] counts = hist.getCounts();
+		long[] prev = lastQueueWaits;
+		lastQueueWaits = counts;
+
+		long[] delta = new long[counts.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			delta[i] = (prev == null) ? counts[i] : counts[i] - prev[i];
+			if (delta[i] < 0) {
+				// the histogram was reset
+				System.arraycopy(counts, 0, delta, 0, counts.length);
+				total = 0;
+				for (int j = 0; j < counts.length; j++) total += counts[j];
+				break;
+			}
+			total += delta[i];
+		}
+		if (total == 0) return 0;
+
+		long rank = Math.min((long) (total * percentile) + 1, total);
+		long cumulative = 0;
+		for (int i = 0; i < delta.length; i++) {
+			cumulative += delta[i];
+			if (cumulative >= rank) return Math.min(hist.bucketHighValue(i), hist.getMax());
+		}
+		return hist.getMax();
+	}
+
+}
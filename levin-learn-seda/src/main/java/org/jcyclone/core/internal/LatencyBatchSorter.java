@@ -0,0 +1,80 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch sorter whose batch size is set by a LatencyBatchController.
+ * Each thread reuses its own batch descriptor, and the dequeue path only
+ * reads the current target, so that no lock is taken besides the
+ * queue's own.
+ *
+ * @see LatencyBatchController
+ */
+public class LatencyBatchSorter implements IBatchSorter {
+
+	private LatencyBatchController controller;
+	private ISource source;
+	private ThreadLocalBatch batches;
+
+	public LatencyBatchSorter() {
+		batches = new ThreadLocalBatch();
+	}
+
+	/**
+	 * Called by the thread manager to associate a stage with this
+	 * batch sorter.
+	 */
+	public void init(IStageWrapper stage, IStageManager mgr) {
+		if (this.controller == null)
+			this.controller = new LatencyBatchController(stage, mgr);
+		this.source = stage.getSource();
+	}
+
+	/**
+	 * Returns a single batch of at most the controller's target size.
+	 * Blocks until a batch can be returned.
+	 */
+	public IBatchDescr nextBatch(int timeout) throws InterruptedException {
+
+		timedBatch batch = (timedBatch) batches.get();
+		int target = controller.getBatchTarget();
+
+		int num;
+		if (timeout == 0) {
+			num = source.dequeue(batch.buffer, target);
+		} else {
+			num = source.blockingDequeue(batch.buffer, timeout, target);
+		}
+
+		if (num == 0)
+			return null;
+		batch.start = System.nanoTime();
+		return batch;
+	}
+
+	class timedBatch implements IBatchDescr {
+		final List buffer = new ArrayList();
+		long start;
+
+		public List getBatch() {
+			return buffer;
+		}
+
+		public void batchDone() {
+			long now = System.nanoTime();
+			controller.record(buffer.size(), now - start, now);
+			buffer.clear();
+		}
+	}
+
+	class ThreadLocalBatch extends ThreadLocal {
+		public Object initialValue() {
+			return new timedBatch();
+		}
+	}
+
+}
@@ -42,10 +42,10 @@ import java.util.List;
 public class NullBatchSorter implements IBatchSorter {
 
 	private ISource source;
-	private ThreadLocalList list;
+	private ThreadLocalBatch batches;
 
 	public NullBatchSorter() {
-		list = new ThreadLocalList();
+		batches = new ThreadLocalBatch();
 	}
 
 	/**
@@ -62,7 +62,8 @@ public class NullBatchSorter implements IBatchSorter {
 	 */
 	public IBatchDescr nextBatch(int timeout) throws InterruptedException {
 
-		final List buffer = (List) list.get();
+		reusableBatch batch = (reusableBatch) batches.get();
+		List buffer = batch.buffer;
 
 		int num;
 		// XXX JM: should it be 'if (timeout <= 0)' ? 
@@ -74,20 +75,28 @@ public class NullBatchSorter implements IBatchSorter {
 		if (num == 0)
 			return null;
 		else
-			return new IBatchDescr() {
-				public List getBatch() {
-					return buffer;
-				}
+			return batch;
+	}
+
+	/**
+	 * The batch of a thread, reused from one call to the next so that
+	 * dispatching events does not allocate.
+	 */
+	static class reusableBatch implements IBatchDescr {
+		final List buffer = new ArrayList();
 
-				public void batchDone() {
-					buffer.clear();
-				}
-			};
+		public List getBatch() {
+			return buffer;
+		}
+
+		public void batchDone() {
+			buffer.clear();
+		}
 	}
 
-	class ThreadLocalList extends ThreadLocal {
+	class ThreadLocalBatch extends ThreadLocal {
 		public Object initialValue() {
-			return new ArrayList();
+			return new reusableBatch();
 		}
 	}
 
@@ -103,6 +103,11 @@ public class StageGraph {
 		threads.put(thread, stage);
 	}
 
+	public synchronized void removeThread(Thread thread) {
+		if (DEBUG) System.err.println("StageGraph: Removing thread " + thread);
+		threads.remove(thread);
+	}
+
 	public synchronized void addEdge(StageGraphEdge edge) {
 		if (!edges.contains(edge)) {
 			if ((edge.fromStage == null) ||
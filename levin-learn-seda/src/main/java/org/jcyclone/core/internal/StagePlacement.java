@@ -0,0 +1,438 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.queue.ForwardingSink;
+import org.jcyclone.core.queue.IBlockingSink;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StagePlacement assigns the stages run by TPSScheduler to placement
+ * groups, and pins the threads of each group to the CPU set of the group,
+ * so that events handed from one stage to the next stay on the same NUMA
+ * node.
+ * <p/>
+ * A stage is placed by its configuration when it has one:
+ * <ul>
+ * <li><tt>stages.&lt;name&gt;.cpuSet</tt> gives the CPUs of the stage, as
+ * a list such as <tt>0-3,8</tt>;</li>
+ * <li><tt>stages.&lt;name&gt;.group</tt> puts the stage in a named group,
+ * shared with other stages. The CPUs of the group are taken from the
+ * <tt>cpuSet</tt> of one of its stages, or from
+ * <tt>global.placement.group.&lt;group&gt;.cpuSet</tt>, or else a NUMA
+ * node is assigned to it.</li>
+ * </ul>
+ * Other stages are placed when they receive their first event: if it
+ * comes from a placed stage, the stage joins the group of that stage
+ * unless the group already holds its share of the stages, otherwise it
+ * gets the NUMA node of its rank in the configuration. Pipelines thus end
+ * up on as few nodes as possible. Threads pick up the placement of their
+ * stage between batches.
+ * <p/>
+ * Pinning uses <tt>taskset</tt> on Linux, which is looked up once at
+ * startup. Stage threads do not run it themselves: a thread whose group
+ * changed hands its thread id to a daemon thread, which pins it, so
+ * that starting a process stays off the event path. If <tt>taskset</tt>
+ * is not available, or <tt>global.placement.pin</tt> is false, threads
+ * are scheduled as usual but groups are still tracked. The number of events crossing from one
+ * group to another is reported to the profiler, per destination stage
+ * and in total.
+ */
+public class StagePlacement {
+
+	private static final boolean DEBUG = false;
+
+	private IStageManager mgr;
+	private ISystemConfig config;
+	private boolean pin;
+	private String[] stageNames;
+	private String[] nodes;          // CPU list of each NUMA node
+	private int nextNode;
+	private int nodeShare;           // auto-placed stages per group
+
+	private Map groups = new HashMap();    // group name --> group
+	private Map slots = new HashMap();     // stage name --> slot
+	private final AtomicLong totalHops = new AtomicLong();
+	private final ThreadLocal current = new ThreadLocal();
+	private volatile boolean pinningFailed;
+	private BlockingQueue pinRequests;     // of pinRequest, if pinning
+
+	public StagePlacement(IStageManager mgr) {
+		this.mgr = mgr;
+		this.config = mgr.getConfig();
+		this.pin = config.getBoolean("global.placement.pin");
+		this.stageNames = config.getStageNames();
+		this.nodes = readNodes();
+		int numStages = Math.max(1, stageNames.length);
+		this.nodeShare = (numStages + nodes.length - 1) / nodes.length;
+		if (pin) {
+			String taskset = findTaskset();
+			if (taskset == null) {
+				pin = false;
+				System.err.println("StagePlacement: Warning: taskset not found, threads will not be pinned");
+			} else {
+				startPinner(taskset);
+			}
+		}
+
+		System.err.println("StagePlacement: " + nodes.length + " NUMA nodes, pinning " + (pin ? "enabled" : "disabled"));
+	}
+
+	/**
+	 * A placement group: a set of CPUs shared by the threads of its stages.
+	 */
+	static class group {
+		final String name;
+		final String cpuList;
+		int members;
+
+		group(String name, String cpuList) {
+			this.name = name;
+			this.cpuList = cpuList;
+		}
+
+		public String toString() {
+			return "group <" + name + "> (cpus " + cpuList + ")";
+		}
+	}
+
+	/**
+	 * The placement of a stage.
+	 */
+	class slot {
+		final String stage;
+		final int rank;
+		final AtomicLong hops = new AtomicLong();
+		volatile group group;
+
+		slot(String stage, int rank) {
+			this.stage = stage;
+			this.rank = rank;
+		}
+	}
+
+	/**
+	 * What a stage thread last ran and was pinned to.
+	 */
+	static class threadState {
+		slot slot;
+		group pinned;
+		String tid;
+	}
+
+	/**
+	 * A thread to pin, by its Linux thread id.
+	 */
+	static class pinRequest {
+		final String tid;
+		final String thread;
+		final String cpuList;
+
+		pinRequest(String tid, String thread, String cpuList) {
+			this.tid = tid;
+			this.thread = thread;
+			this.cpuList = cpuList;
+		}
+	}
+
+	/**
+	 * Return the placement of the given stage, placing it now if its
+	 * configuration says where.
+	 */
+	synchronized slot getSlot(IStageWrapper stage) {
+		String name = stage.getName();
+		slot s = (slot) slots.get(name);
+		if (s != null) return s;
+
+		// The profiler does not exist yet when the scheduler is created
+		if (slots.isEmpty()) {
+			mgr.getProfiler().add("StagePlacement cross-group hops", new IProfilable() {
+				public int profileSize() {
+					return (int) totalHops.get();
+				}
+			});
+		}
+
+		int rank = 0;
+		while (rank < stageNames.length && !stageNames[rank].equals(name)) rank++;
+		s = new slot(name, rank);
+		slots.put(name, s);
+
+		String tag = "stages." + name + ".";
+		String cpuSet = config.getString(tag + "cpuSet");
+		String gname = config.getString(tag + "group");
+		if (cpuSet != null) cpuSet = normalize(cpuSet);
+		if (cpuSet != null || gname != null) {
+			if (gname == null) gname = "stage " + name;
+			group g = (group) groups.get(gname);
+			if (g == null) {
+				if (cpuSet == null) {
+					cpuSet = config.getString("global.placement.group." + gname + ".cpuSet");
+					if (cpuSet != null) cpuSet = normalize(cpuSet);
+				}
+				if (cpuSet == null) cpuSet = nodes[nextNode++ % nodes.length];
+				g = new group(gname, cpuSet);
+				groups.put(gname, g);
+			} else if (cpuSet != null && !cpuSet.equals(g.cpuList)) {
+				System.err.println("StagePlacement: Warning: cpuSet " + cpuSet + " of stage <" + name + "> ignored, " + g + " already defined");
+			}
+			place(s, g);
+		}
+
+		final slot fs = s;
+		mgr.getProfiler().add("StagePlacement hops into <" + name + ">", new IProfilable() {
+			public int profileSize() {
+				return (int) fs.hops.get();
+			}
+		});
+		return s;
+	}
+
+	// Call only under synch on this
+	private void place(slot s, group g) {
+		g.members++;
+		s.group = g;
+		System.err.println("StagePlacement: Stage <" + s.stage + "> placed in " + g);
+	}
+
+	// Place a stage on its first event, coming from stage 'from' if not null
+	private synchronized void placeAuto(slot s, slot from) {
+		if (s.group != null) return;
+		group g = (from == null) ? null : from.group;
+		if (g == null || g.members >= nodeShare) {
+			int node = (int) ((s.rank * 1L * nodes.length) / Math.max(1, stageNames.length)) % nodes.length;
+			String gname = "node" + node;
+			g = (group) groups.get(gname);
+			if (g == null) {
+				g = new group(gname, nodes[node]);
+				groups.put(gname, g);
+			}
+		}
+		place(s, g);
+	}
+
+	/**
+	 * Called by the threads of a stage before each round of batches:
+	 * records which stage the thread runs, and pins it to the CPUs of the
+	 * stage's group if it changed.
+	 *
+	 * @param pinnable whether the thread may be pinned; virtual threads
+	 *                 must not pin their carrier
+	 */
+	void runningStage(slot s, boolean pinnable) {
+		threadState ts = (threadState) current.get();
+		if (ts == null) {
+			ts = new threadState();
+			current.set(ts);
+		}
+		ts.slot = s;
+		group g = s.group;
+		if (g == null || ts.pinned == g) return;
+		ts.pinned = g;
+		if (pin && pinnable && !pinningFailed) {
+			if (ts.tid == null) ts.tid = currentTid();
+			if (ts.tid != null) {
+				pinRequests.offer(new pinRequest(ts.tid, Thread.currentThread().getName(), g.cpuList));
+			}
+		}
+	}
+
+	/**
+	 * Wrap the sink of a stage so that events entering the stage place it
+	 * and are counted when they cross groups.
+	 */
+	IBlockingSink wrapSink(IStageWrapper stage, IBlockingSink sink) {
+		return new hopSink(getSlot(stage), sink);
+	}
+
+	// Account for numEvents events entering stage 'to'
+	private void enter(slot to, int numEvents) {
+		threadState ts = (threadState) current.get();
+		slot from = (ts == null) ? null : ts.slot;
+		if (to.group == null) {
+			placeAuto(to, from);
+		} else if (from != null && from.group != null && from.group != to.group) {
+			to.hops.addAndGet(numEvents);
+			totalHops.addAndGet(numEvents);
+		}
+	}
+
+	/**
+	 * Return the Linux thread id of the calling thread, or null if it
+	 * cannot be found, in which case pinning is disabled.
+	 */
+	private String currentTid() {
+		try {
+			// resolves to <pid>/task/<tid>
+			String self = Files.readSymbolicLink(Paths.get("/proc/thread-self")).toString();
+			return self.substring(self.lastIndexOf('/') + 1);
+		} catch (Exception e) {
+			disablePinning(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Return the path of the taskset command, or null if it is not on the
+	 * PATH.
+	 */
+	private static String findTaskset() {
+		String path = System.getenv("PATH");
+		if (path == null) path = "/usr/bin:/bin";
+		String[] dirs = path.split(File.pathSeparator);
+		for (int i = 0; i < dirs.length; i++) {
+			if (dirs[i].length() == 0) continue;
+			File f = new File(dirs[i], "taskset");
+			if (f.isFile() && f.canExecute()) return f.getPath();
+		}
+		return null;
+	}
+
+	/**
+	 * Start the daemon thread which pins the threads handed to it.
+	 */
+	private void startPinner(final String taskset) {
+		pinRequests = new LinkedBlockingQueue();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (!pinningFailed) {
+					pinRequest req;
+					try {
+						req = (pinRequest) pinRequests.take();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (DEBUG) System.err.println("StagePlacement: Pinning " + req.thread + " to cpus " + req.cpuList);
+					try {
+						pin(taskset, req.tid, req.cpuList);
+					} catch (Exception e) {
+						disablePinning(e);
+					}
+				}
+				pinRequests.clear();
+			}
+		}, "StagePlacement pinner");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	// Pin the thread with the given id to the given CPUs
+	private static void pin(String taskset, String tid, String cpuList) throws IOException, InterruptedException {
+		Process p = new ProcessBuilder(new String[]{taskset, "-p", "-c", cpuList, tid})
+		    .redirectErrorStream(true).start();
+		InputStream in = p.getInputStream();
+		byte[] buf = new byte[256];
+		while (in.read(buf) >= 0)
+			;
+		in.close();
+		int rc = p.waitFor();
+		// the thread may have exited in the meantime
+		if (rc != 0 && new File("/proc/self/task/" + tid).exists())
+			throw new IOException("taskset exited with status " + rc);
+	}
+
+	// On failure, pinning is disabled for the rest of the run
+	private void disablePinning(Exception e) {
+		if (pinningFailed) return;
+		pinningFailed = true;
+		System.err.println("StagePlacement: Warning: cannot pin threads (" + e + "), falling back to plain scheduling");
+	}
+
+	/**
+	 * Read the CPU lists of the NUMA nodes from sysfs; if there is none,
+	 * all CPUs form a single node.
+	 */
+	private static String[] readNodes() {
+		List list = new ArrayList();
+		for (int i = 0; ; i++) {
+			File f = new File("/sys/devices/system/node/node" + i + "/cpulist");
+			if (!f.exists()) break;
+			try {
+				BufferedReader r = new BufferedReader(new FileReader(f));
+				try {
+					String line = r.readLine();
+					if (line != null && line.trim().length() > 0)
+						list.add(normalize(line));
+				} finally {
+					r.close();
+				}
+			} catch (IOException e) {
+				break;
+			}
+		}
+		if (list.isEmpty()) {
+			int ncpus = Runtime.getRuntime().availableProcessors();
+			list.add((ncpus == 1) ? "0" : "0-" + (ncpus - 1));
+		}
+		return (String[]) list.toArray(new String[list.size()]);
+	}
+
+	/**
+	 * Parse a CPU list such as "0-3,8,10-11" and return it in canonical
+	 * form.
+	 *
+	 * @throws IllegalArgumentException if the list is malformed or empty
+	 */
+	static String normalize(String cpuList) {
+		BitSet cpus = new BitSet();
+		String[] parts = cpuList.trim().split(",");
+		try {
+			for (int i = 0; i < parts.length; i++) {
+				String part = parts[i].trim();
+				if (part.length() == 0) continue;
+				int dash = part.indexOf('-');
+				int lo = Integer.parseInt((dash < 0) ? part : part.substring(0, dash).trim());
+				int hi = (dash < 0) ? lo : Integer.parseInt(part.substring(dash + 1).trim());
+				if (lo < 0 || hi < lo) throw new NumberFormatException(part);
+				cpus.set(lo, hi + 1);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad CPU list '" + cpuList + "'");
+		}
+		if (cpus.isEmpty()) throw new IllegalArgumentException("Empty CPU list '" + cpuList + "'");
+
+		StringBuffer sb = new StringBuffer();
+		for (int lo = cpus.nextSetBit(0); lo >= 0; lo = cpus.nextSetBit(lo + 1)) {
+			int hi = cpus.nextClearBit(lo) - 1;
+			if (sb.length() > 0) sb.append(',');
+			sb.append(lo);
+			if (hi > lo) sb.append('-').append(hi);
+			lo = hi;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Counts the events entering a stage from another group.
+	 */
+	class hopSink extends ForwardingSink {
+
+		private slot to;
+
+		hopSink(slot to, IBlockingSink sink) {
+			super(sink);
+			this.to = to;
+		}
+
+		protected void entered(int numEvents) {
+			enter(to, numEvents);
+		}
+	}
+
+}
@@ -27,14 +27,40 @@ package org.jcyclone.core.internal;
 import org.jcyclone.core.boot.JCyclone;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class provides controllers with a view of statistics gathered
  * by the stage internally during execution.
+ * <p/>
+ * Queue-wait times are estimated without touching the events. The
+ * dequeue side numbers the events it takes off the stage's queue, once
+ * per batch. About one in <tt>sampleInterval</tt> enqueue calls takes a
+ * sample: the time, and the sequence number of the element just
+ * enqueued, worked out from the number of events dequeued so far and the
+ * size of the queue. The other enqueue calls only bump a counter, which
+ * takes no atomic operation, so that instrumenting a stage costs its
+ * producers almost nothing. The dequeue side reads the samples back in
+ * order and records the wait of those falling in its batch. This assumes
+ * a FIFO queue; with concurrent producers or consumers a sample may be
+ * attributed to a neighbouring element, or lost.
+ * <p/>
+ * Recording takes no lock: service times are summed in LongAdders, and
+ * the thread which closes an estimation window updates the service rate
+ * if no other thread is doing so. The histograms track times up to
+ * MAX_TIME and batches up to MAX_BATCH (larger values fall in their last
+ * bucket) with HISTOGRAM_STRIPES stripes, which keeps the statistics of a
+ * stage under 100 KB.
  *
  * @author Matt Welsh
  */
-public class StageStats implements IStageStats {
+public class StageStats implements IStageStats, StageStatsMBean {
 	private static final boolean DEBUG = false;
 	private static final boolean PROFILE = false;
 
@@ -42,85 +68,198 @@ public class StageStats implements IStageStats {
 	private static final int ESTIMATION_SIZE = 100;
 	private static final long ESTIMATION_TIME = 1000;
 
+	// number of timestamp slots; samples are lost when more than
+	// SAMPLE_SLOTS * sampleInterval events are queued
+	private static final int SAMPLE_SLOTS = 1024;
+
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+	// bounds of the histograms
+	private static final long MAX_TIME = 60L * 1000000000L;     // 1 minute
+	private static final long MAX_BATCH = 65536;
+	private static final int HISTOGRAM_BITS = 5;
+	private static final int HISTOGRAM_STRIPES = 4;
+
 	/* A handle to the stage. */
 	IStageWrapper stage;
 
 	/* Average service rate of events. */
-	private double serviceRate;
+	private volatile double serviceRate;
 
 	/* 90th percentile response time of the stage. */
 	private double rt90thPercentile;
 
 	private boolean first = true;
-	private long lastTime;
-	private int count;
-	private long totalServiceTime, totalEvents, cumulativeEvents;
+	private volatile long lastTime;
+	private final AtomicInteger count = new AtomicInteger();
+	private final LongAdder totalServiceNanos = new LongAdder();
+	private final LongAdder totalEvents = new LongAdder();
+	private final LongAdder cumulativeEvents = new LongAdder();
+	// held by the thread updating the service rate
+	private final ReentrantLock estimating = new ReentrantLock();
+
+	/* Distributions of queue-wait times, batch sizes and service times. */
+	private final LatencyHistogram queueWaits = new LatencyHistogram(MAX_TIME, HISTOGRAM_BITS, HISTOGRAM_STRIPES);
+	private final LatencyHistogram batchSizes = new LatencyHistogram(MAX_BATCH, HISTOGRAM_BITS, HISTOGRAM_STRIPES);
+	private final LatencyHistogram serviceTimes = new LatencyHistogram(MAX_TIME, HISTOGRAM_BITS, HISTOGRAM_STRIPES);
+
+	/* Sampled enqueue timestamps, in a ring read by the dequeue side. */
+	private final int sampleShift;
+	private int enqueueCalls;                      // racy: only paces the samples
+	private final AtomicLong dequeued = new AtomicLong();
+	private final AtomicLong samplePos = new AtomicLong();
+	private long readPos;                          // guarded by reading
+	private final ReentrantLock reading = new ReentrantLock();
+	private final AtomicLongArray sampleSeq = new AtomicLongArray(SAMPLE_SLOTS);
+	private final AtomicLongArray sampleTime = new AtomicLongArray(SAMPLE_SLOTS);
 
 	public StageStats(IStageWrapper stage) {
+		this(stage, 16);
+	}
+
+	/**
+	 * Create the statistics of the given stage, timestamping one in
+	 * sampleInterval (rounded up to a power of two) enqueued events.
+	 */
+	public StageStats(IStageWrapper stage, int sampleInterval) {
 		this.stage = stage;
+		int shift = 0;
+		while ((1 << shift) < sampleInterval) shift++;
+		this.sampleShift = shift;
+		for (int i = 0; i < SAMPLE_SLOTS; i++) {
+			sampleSeq.set(i, -1);
+		}
 		reset();
 	}
 
 	/**
 	 * Reset all statistics.
 	 */
-	public void reset() {
+	public synchronized void reset() {
 		serviceRate = 0.0;
-		count = 0;
+		count.set(0);
 		lastTime = System.currentTimeMillis();
-		totalEvents = totalServiceTime = cumulativeEvents = 0;
+		totalEvents.reset();
+		totalServiceNanos.reset();
+		cumulativeEvents.reset();
+		queueWaits.reset();
+		batchSizes.reset();
+		serviceTimes.reset();
 	}
 
 	/**
 	 * Return a moving average of the service rate.
 	 */
-	public synchronized double getServiceRate() {
+	public double getServiceRate() {
 		return serviceRate;
 	}
 
 	/**
 	 * Get total number of processed events.
 	 */
-	public synchronized long getTotalEvents() {
-		return this.cumulativeEvents;
+	public long getTotalEvents() {
+		return cumulativeEvents.sum();
 	}
 
 	/**
 	 * Record the service time for numEvents taking 'time' msec to
 	 * be processed.
 	 */
-	public synchronized void recordServiceRate(int numEvents, long time) {
+	public void recordServiceRate(int numEvents, long time) {
+		recordServiceTime(numEvents, time * 1000000);
+	}
+
+	/**
+	 * Record that numEvents events were enqueued, timestamping the last one
+	 * about once every sample interval.
+	 */
+	public void recordEnqueue(int numEvents) {
+		int c = enqueueCalls;
+		enqueueCalls = c + numEvents;
+		if (((c + numEvents) >>> sampleShift) == (c >>> sampleShift)) return;
+		long seq = dequeued.get() + stage.getSource().size() - 1;
+		long now = System.nanoTime();
+		int slot = (int) samplePos.getAndIncrement() & (SAMPLE_SLOTS - 1);
+		sampleTime.set(slot, now);
+		sampleSeq.set(slot, seq);
+	}
+
+	/**
+	 * Record a batch of numEvents events just dequeued, measuring the
+	 * queue-wait time of the sampled ones.
+	 */
+	public void recordDequeue(int numEvents) {
+		batchSizes.record(numEvents);
+
+		// sequence numbers of the batch are [end - numEvents, end)
+		long end = dequeued.addAndGet(numEvents);
+		long start = end - numEvents;
+		long pos = samplePos.get();
+		// a busy reader leaves the samples of this batch behind
+		if (pos == readPos || !reading.tryLock()) return;
+		try {
+			long now = System.nanoTime();
+			long i = Math.max(readPos, pos - SAMPLE_SLOTS);
+			for (; i < pos; i++) {
+				int slot = (int) i & (SAMPLE_SLOTS - 1);
+				long seq = sampleSeq.get(slot);
+				// a later sample: it belongs to a later batch
+				if (seq >= end) break;
+				if (seq >= start) queueWaits.record(now - sampleTime.get(slot));
+			}
+			readPos = i;
+		} finally {
+			reading.unlock();
+		}
+	}
+
+	/**
+	 * Record the service time for numEvents taking 'nanos' nanoseconds
+	 * to be processed.
+	 */
+	public void recordServiceTime(int numEvents, long nanos) {
 
 		// Only possible to add ourselves to the profile after we start running
 		if (PROFILE && first) {
-			first = false;
-			IStageManager mgr = JCyclone.getInstance().getManager();
-			if (mgr.getProfiler() != null) {
-				mgr.getProfiler().add("StageStats serviceRate <" + stage.getStage().getName() + ">",
-				    new IProfilable() {
-					    public int profileSize() {
-						    return (int) serviceRate;
-					    }
-				    });
+			synchronized (this) {
+				if (first) {
+					first = false;
+					IStageManager mgr = JCyclone.getInstance().getManager();
+					if (mgr.getProfiler() != null) {
+						mgr.getProfiler().add("StageStats serviceRate <" + stage.getStage().getName() + ">",
+						    new IProfilable() {
+							    public int profileSize() {
+								    return (int) serviceRate;
+							    }
+						    });
+					}
+				}
 			}
 		}
 
-		totalEvents += numEvents;
-		cumulativeEvents += numEvents;
-		totalServiceTime += time;
+		serviceTimes.record(nanos);
+		totalEvents.add(numEvents);
+		cumulativeEvents.add(numEvents);
+		totalServiceNanos.add(nanos);
 
-		count++;
+		int n = count.incrementAndGet();
 		long curTime = System.currentTimeMillis();
 
-		if ((count == ESTIMATION_SIZE) ||
-		    (curTime - lastTime >= ESTIMATION_TIME)) {
-			if (totalServiceTime == 0) totalServiceTime = 1;
-			double rate = totalEvents / (totalServiceTime * 1.0e-3);
-			serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
-			if (DEBUG) System.err.println("Stats <" + stage.getStage().getName() + ">: numEvents=" + totalEvents + " time=" + totalServiceTime + ", rate=" + serviceRate);
-			count = 0;
-			lastTime = curTime;
-			totalEvents = totalServiceTime = 0;
+		if ((n >= ESTIMATION_SIZE || curTime - lastTime >= ESTIMATION_TIME) && estimating.tryLock()) {
+			try {
+				// another thread may have closed the window meanwhile
+				if (count.get() < ESTIMATION_SIZE && curTime - lastTime < ESTIMATION_TIME) return;
+				count.set(0);
+				lastTime = curTime;
+				long events = totalEvents.sumThenReset();
+				long serviceNanos = totalServiceNanos.sumThenReset();
+				if (serviceNanos == 0) serviceNanos = 1;
+				double rate = events / (serviceNanos * 1.0e-9);
+				serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
+				if (DEBUG) System.err.println("Stats <" + stage.getStage().getName() + ">: numEvents=" + events + " time=" + serviceNanos + " ns, rate=" + serviceRate);
+			} finally {
+				estimating.unlock();
+			}
 		}
 	}
 
@@ -138,6 +277,52 @@ public class StageStats implements IStageStats {
 		return this.rt90thPercentile;
 	}
 
+	public LatencyHistogram getQueueWaitHistogram() {
+		return queueWaits;
+	}
 
-}
+	public LatencyHistogram getBatchSizeHistogram() {
+		return batchSizes;
+	}
+
+	public LatencyHistogram getServiceTimeHistogram() {
+		return serviceTimes;
+	}
 
+// --------------------- Interface StageStatsMBean ---------------------
+
+	public int getQueueLength() {
+		return stage.getSource().size();
+	}
+
+	public double getMeanQueueWait() {
+		return queueWaits.getMean();
+	}
+
+	public long[] getQueueWaitPercentiles() {
+		return queueWaits.getPercentiles(PERCENTILES);
+	}
+
+	public double getMeanBatchSize() {
+		return batchSizes.getMean();
+	}
+
+	public long[] getBatchSizePercentiles() {
+		return batchSizes.getPercentiles(PERCENTILES);
+	}
+
+	public double getMeanServiceTime() {
+		return serviceTimes.getMean();
+	}
+
+	public long[] getServiceTimePercentiles() {
+		return serviceTimes.getPercentiles(PERCENTILES);
+	}
+
+	public String toString() {
+		return "StageStats <" + stage.getName() + ">: events " + getTotalEvents() +
+		    ", queueWait(ns) " + queueWaits + ", batchSize " + batchSizes +
+		    ", serviceTime(ns) " + serviceTimes;
+	}
+
+}
@@ -0,0 +1,31 @@
+package org.jcyclone.core.internal;
+
+/**
+ * Management interface of StageStats, registered with the platform
+ * MBeanServer as <tt>org.jcyclone:type=Stage,name=&lt;stage&gt;</tt> when
+ * <tt>global.instrument.jmx</tt> is set. Times are in nanoseconds;
+ * percentile arrays hold the 50th, 90th, 99th and 99.9th percentiles.
+ */
+public interface StageStatsMBean {
+
+	long getTotalEvents();
+
+	double getServiceRate();
+
+	int getQueueLength();
+
+	double getMeanQueueWait();
+
+	long[] getQueueWaitPercentiles();
+
+	double getMeanBatchSize();
+
+	long[] getBatchSizePercentiles();
+
+	double getMeanServiceTime();
+
+	long[] getServiceTimePercentiles();
+
+	void reset();
+
+}
@@ -29,13 +29,21 @@ import org.jcyclone.core.cfg.ConfigDataProxy;
 import org.jcyclone.core.cfg.IConfigData;
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.handler.ISingleThreadedEventHandler;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.queue.*;
 import org.jcyclone.core.rtc.*;
 import org.jcyclone.core.stage.IStage;
 import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.core.stage.Stage;
-
+import org.jcyclone.core.trace.StageTracer;
+import org.jcyclone.core.trace.TraceCollector;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -59,6 +67,8 @@ public class StageWrapper implements IStageWrapper {
 	private IStageStats stats;
 	private IResponseTimeController rtc;
 	private IBatchSorter sorter;
+	private CreditGate credits;
+	private StageTracer tracer;
 	private int status; // lifecycle level
 	private boolean reprogrammable;
 
@@ -114,14 +124,28 @@ public class StageWrapper implements IStageWrapper {
 			}
 		}
 
-		// XXX JM: queue implementation should be specified in the config
+		String queueClass = mgrcfg.getString(tag + "queue.class",
+		    mgrcfg.getString("global.queue.class"));
+		int queueCapacity = mgrcfg.getInt(tag + "queue.capacity",
+		    mgrcfg.getInt("global.queue.capacity", -1));
+		if (queueClass == null && mgrcfg.getBoolean("global.batchController.enable")
+		    && "deadline".equals(mgrcfg.getString(tag + "batchController.type",
+		    mgrcfg.getString("global.batchController.type")))) {
+			// a deadline queue stamps the deadlines of events as they arrive
+			queueClass = DeadlineBlockingQueue.class.getName();
+		}
+
+		// a single thread at a time runs a single-threaded handler
+		boolean singleConsumer = mgrcfg.getBoolean(tag + "queue.singleConsumer",
+		    handler instanceof ISingleThreadedEventHandler);
+
 		if (this.eventQ == null)
-//			this.eventQ = new LinkedBlockingQueue();
-			this.eventQ = new DynamicArrayBlockingQueue();
-		else {
-			// XXX JM: change the queue only if it's not the same implementation
+			this.eventQ = createQueue(queueClass, queueCapacity, singleConsumer);
+		else if (queueClass != null && (!queueClass.equals(this.eventQ.getClass().getName())
+		    || (eventQ instanceof LockFreeArrayBlockingQueue
+		    && ((LockFreeArrayBlockingQueue) eventQ).isSingleConsumer() != singleConsumer))) {
 			// create the new queue
-			IQueue newQueue = new LinkedBlockingQueue();
+			IBlockingQueue newQueue = createQueue(queueClass, queueCapacity, singleConsumer);
 			try {
 				// ensure that the new queue has enough space
 				int size = this.eventQ.size();
@@ -131,25 +155,88 @@ public class StageWrapper implements IStageWrapper {
 				// transfer remaining events into the new queue
 				List buffer = new ArrayList();
 				this.eventQ.dequeueAll(buffer);
-				newQueue.enqueueMany(buffer);
+				if (!buffer.isEmpty())
+					newQueue.enqueueMany(buffer);
+				this.eventQ = newQueue;
 			} catch (SinkException e) {
 				e.printStackTrace();
 			}
 		}
 
+		if (eventQ instanceof SpillingBlockingQueue) {
+			configureSpilling((SpillingBlockingQueue) eventQ, mgrcfg, tag);
+		}
+		if (eventQ instanceof DeadlineBlockingQueue) {
+			((DeadlineBlockingQueue) eventQ).setDeadlinePolicy(DeadlinePolicy.forStage(mgrcfg, name));
+		}
+
+		// the threshold predicate sets the capacity of the queue: leave the
+		// configured capacity alone unless a threshold is given
 		int queueThreshold = mgrcfg.getInt(tag + "queueThreshold", -1);
-		IEnqueuePredicate pred = new QueueThresholdPredicate(eventQ, queueThreshold);
-		admContSink = new AdmissionControlledSink(eventQ);
+		IEnqueuePredicate pred = null;
+		if (queueThreshold >= 0) pred = new QueueThresholdPredicate(eventQ, queueThreshold);
+
+		int sampleInterval = mgrcfg.getInt(tag + "instrument.sampleInterval",
+		    mgrcfg.getInt("global.instrument.sampleInterval", 16));
+		this.stats = new StageStats(this, sampleInterval);
+
+		IBlockingSink queueSink = eventQ;
+		// the latency batch controller works from the queue-wait times
+		boolean latencyControl = mgrcfg.getBoolean("global.batchController.enable") &&
+		    "latency".equals(mgrcfg.getString(tag + "batchController.type",
+		        mgrcfg.getString("global.batchController.type")));
+		if (latencyControl || mgrcfg.getBoolean(tag + "instrument.enable",
+		    mgrcfg.getBoolean("global.instrument.enable"))) {
+			queueSink = new InstrumentedSink(queueSink, stats);
+		}
+		if (threadmgr instanceof WorkStealingScheduler) {
+			// the scheduler must learn about new events to run the stage
+			queueSink = ((WorkStealingScheduler) threadmgr).wrapSink(this, queueSink);
+		} else if (threadmgr instanceof TPSScheduler) {
+			queueSink = ((TPSScheduler) threadmgr).wrapSink(this, queueSink);
+		}
+		if (mgrcfg.getBoolean("global.credits.enable")) {
+			int limit = mgrcfg.getInt(tag + "credits.limit", mgrcfg.getInt("global.credits.limit"));
+			System.err.print(", " + limit + " credits");
+			this.credits = new CreditGate(this, mgr, (ISource) eventQ, limit,
+			    mgrcfg.getDouble("global.credits.resume"));
+			queueSink = credits.wrapSink(queueSink);
+		} else {
+			this.credits = null;
+		}
+		TraceCollector collector = sysmgr.getTraceCollector();
+		if (collector != null) {
+			// stamp events before they may wait for credits or run fused
+			this.tracer = new StageTracer(name, collector);
+			queueSink = tracer.wrapSink(queueSink);
+		} else {
+			this.tracer = null;
+		}
+		admContSink = new AdmissionControlledSink(queueSink);
 		admContSink.setEnqueuePredicate(pred);
 
 		if (mgrcfg.getBoolean("global.batchController.enable")) {
-			System.err.print(", batch controller enabled");
-			this.sorter = new AggThrottleBatchSorter();
+			String sorterType = mgrcfg.getString(tag + "batchController.type",
+			    mgrcfg.getString("global.batchController.type"));
+			if (sorterType == null || sorterType.equals("aggthrottle")) {
+				System.err.print(", batch controller enabled");
+				this.sorter = new AggThrottleBatchSorter();
+			} else if (sorterType.equals("latency")) {
+				System.err.print(", latency batch controller enabled");
+				this.sorter = new LatencyBatchSorter();
+			} else if (sorterType.equals("deadline")) {
+				System.err.print(", deadline batch controller enabled");
+				this.sorter = new DeadlineBatchSorter();
+			} else {
+				throw new RuntimeException("StageWrapper <" + name + ">: Bad batch controller type " + sorterType);
+			}
 		} else {
 			this.sorter = new NullBatchSorter();
 		}
+		if (credits != null) {
+			this.sorter = credits.wrapSorter(sorter);
+		}
 
-		this.stats = new StageStats(this);
 		this.stage = new Stage(name, this, (ISink) admContSink, config);
 
 		// XXX JM: I know, this is ugly
@@ -198,6 +285,9 @@ public class StageWrapper implements IStageWrapper {
 			mgr.getProfiler().add(name + " queueLength",
 			    (IProfilable) stage.getSink());
 		}
+		if (mgrcfg.getBoolean("global.instrument.jmx")) {
+			registerMBean();
+		}
 		status = PROGRAMMED;
 	}
 
@@ -242,9 +332,92 @@ public class StageWrapper implements IStageWrapper {
 		if (status <= LOADED) return;
 		destroy();
 		this.mgr.getProfiler().remove(name + " queueLength");
+		unregisterMBean();
 		status = LOADED;
 	}
 
+	private ObjectName mbeanName() throws MalformedObjectNameException {
+		return new ObjectName("org.jcyclone:type=Stage,name=" + ObjectName.quote(name));
+	}
+
+	/**
+	 * Expose the statistics of this stage through JMX, replacing those of
+	 * a previous programming of the stage.
+	 */
+	private void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName oname = mbeanName();
+			if (server.isRegistered(oname)) server.unregisterMBean(oname);
+			server.registerMBean(stats, oname);
+		} catch (Exception e) {
+			System.err.println("StageWrapper <" + name + ">: Cannot register MBean: " + e);
+		}
+	}
+
+	private void unregisterMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName oname = mbeanName();
+			if (server.isRegistered(oname)) server.unregisterMBean(oname);
+		} catch (Exception e) {
+			System.err.println("StageWrapper <" + name + ">: Cannot unregister MBean: " + e);
+		}
+	}
+
+	/**
+	 * Set up a spilling queue from the <tt>queue.spill.*</tt> keys of the
+	 * stage, or else the global ones.
+	 */
+	private void configureSpilling(SpillingBlockingQueue queue, ISystemConfig mgrcfg, String tag) throws Exception {
+		String gtag = "global.queue.spill.";
+		tag = tag + "queue.spill.";
+		queue.setMemoryCapacity(mgrcfg.getInt(tag + "memoryCapacity", mgrcfg.getInt(gtag + "memoryCapacity")));
+		queue.setSegmentSize(mgrcfg.getInt(tag + "segmentSize", mgrcfg.getInt(gtag + "segmentSize")));
+		queue.setMaxSegments(mgrcfg.getInt(tag + "maxSegments", mgrcfg.getInt(gtag + "maxSegments")));
+		String dir = mgrcfg.getString(tag + "dir", mgrcfg.getString(gtag + "dir"));
+		if (dir != null && queue.getSpillDirectory() == null) {
+			queue.setSpillDirectory(new File(dir, name));
+		}
+		String codec = mgrcfg.getString(tag + "codec", mgrcfg.getString(gtag + "codec"));
+		if (codec != null && !codec.equals(queue.getCodec().getClass().getName())) {
+			queue.setCodec((IElementCodec) Class.forName(codec).newInstance());
+		}
+	}
+
+	/**
+	 * Instantiate the event queue implementation named by the
+	 * configuration. If a capacity is given, the queue is created with
+	 * its <tt>(int capacity)</tt> constructor when it has one, otherwise
+	 * its capacity is set after construction. A LockFreeArrayBlockingQueue
+	 * is created in single-consumer mode if singleConsumer is true.
+	 */
+	private IBlockingQueue createQueue(String classname, int capacity, boolean singleConsumer) throws Exception {
+		if (classname == null)
+			classname = DynamicArrayBlockingQueue.class.getName();
+		Class theclass;
+		try {
+			theclass = Class.forName(classname);
+		} catch (ClassNotFoundException cnfe) {
+			System.err.println("The queue class '" + classname + "' cannot be located");
+			throw cnfe;
+		}
+		if (theclass == LockFreeArrayBlockingQueue.class) {
+			if (capacity <= 0) capacity = LockFreeArrayBlockingQueue.DEFAULT_CAPACITY;
+			return new LockFreeArrayBlockingQueue(capacity, singleConsumer);
+		}
+		if (capacity <= 0)
+			return (IBlockingQueue) theclass.newInstance();
+		try {
+			return (IBlockingQueue) theclass.getConstructor(new Class[]{int.class})
+			    .newInstance(new Object[]{Integer.valueOf(capacity)});
+		} catch (NoSuchMethodException nsme) {
+			IBlockingQueue queue = (IBlockingQueue) theclass.newInstance();
+			queue.setCapacity(capacity);
+			return queue;
+		}
+	}
+
 	public int getLifecycleLevel() {
 		return status;
 	}
@@ -300,13 +473,27 @@ public class StageWrapper implements IStageWrapper {
 	 * Set the batch sorter.
 	 */
 	public void setBatchSorter(IBatchSorter sorter) {
-		this.sorter = sorter;
+		this.sorter = (credits == null) ? sorter : credits.wrapSorter(sorter);
 	}
 
 	public IAdmissionControlledSink getSink() {
 		return admContSink;
 	}
 
+	/**
+	 * Return the credit gate, if any.
+	 */
+	public CreditGate getCreditGate() {
+		return credits;
+	}
+
+	/**
+	 * Return the tracer, if any.
+	 */
+	public StageTracer getTracer() {
+		return tracer;
+	}
+
 	/**
 	 * Return the batch sorter.
 	 */
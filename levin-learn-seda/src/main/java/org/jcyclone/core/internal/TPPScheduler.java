@@ -25,6 +25,7 @@
 package org.jcyclone.core.internal;
 
 import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.RecyclingPool;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.handler.ISingleThreadedEventHandler;
 import org.jcyclone.core.queue.ISource;
@@ -258,8 +259,14 @@ public class TPPScheduler implements IScheduler {
 
 						// No need to pay synchronization cost here for
 						// stages that are SingleThreaded
-						handler.handleEvents(buffer);
-						buffer.clear();
+						try {
+							handler.handleEvents(buffer);
+						} finally {
+							// The stage owns the references of its events, even
+							// if the handler failed
+							RecyclingPool.releaseAll(buffer);
+							buffer.clear();
+						}
 
 						if (DEBUG) System.err.println(name + ": returned from handleEvents for " + element.stage);
 					} else {
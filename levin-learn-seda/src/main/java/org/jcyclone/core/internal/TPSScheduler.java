@@ -25,11 +25,14 @@
 package org.jcyclone.core.internal;
 
 import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.event.RecyclingPool;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.queue.IBlockingSink;
 import org.jcyclone.core.queue.ISource;
 import org.jcyclone.core.rtc.IResponseTimeController;
 import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.core.trace.StageTracer;
 
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -49,6 +52,10 @@ public class TPSScheduler implements IScheduler {
 	protected ISystemConfig config;
 	protected Hashtable srTbl;     // IStageWrapper --> stageRunnable
 	protected ThreadPoolController sizeController;
+	protected StagePlacement placement;
+	protected boolean fusion;
+	protected int fuseMaxDepth, fuseMaxBatch;
+	protected Hashtable fusedTbl;  // IStageWrapper --> FusedSink
 	protected boolean crashOnException;
 
 	public TPSScheduler(IStageManager mgr) {
@@ -63,6 +70,13 @@ public class TPSScheduler implements IScheduler {
 			if (config.getBoolean("global.threadPool.sizeController.enable")) {
 				sizeController = new ThreadPoolController(mgr);
 			}
+			if (config.getBoolean("global.placement.enable")) {
+				placement = new StagePlacement(mgr);
+			}
+			fusion = config.getBoolean("global.fuse.enable");
+			fuseMaxDepth = config.getInt("global.fuse.maxDepth");
+			fuseMaxBatch = config.getInt("global.fuse.maxBatch");
+			fusedTbl = new Hashtable();
 			srTbl = new Hashtable();
 		}
 
@@ -104,6 +118,26 @@ public class TPSScheduler implements IScheduler {
 		}
 	}
 
+	/**
+	 * Return the sink to put in front of the event queue of the given
+	 * stage. With placement enabled, the sink places the stage and counts
+	 * the events coming from other placement groups. With fusion enabled
+	 * for the stage, the sink runs the handler of the stage directly on
+	 * the threads of the stages feeding it while it is idle.
+	 *
+	 * @see StagePlacement
+	 * @see FusedSink
+	 */
+	public IBlockingSink wrapSink(IStageWrapper stage, IBlockingSink sink) {
+		if (placement != null) sink = placement.wrapSink(stage, sink);
+		if (fusion && config.getBoolean("stages." + stage.getName() + ".fuse.enable", true)) {
+			FusedSink fused = new FusedSink(stage, sink, fuseMaxDepth, fuseMaxBatch, crashOnException);
+			fusedTbl.put(stage, fused);
+			sink = fused;
+		}
+		return sink;
+	}
+
 	/**
 	 * Wake any thread waiting for work.  This is called by
 	 * an enqueue* method of FiniteQueue.
@@ -126,6 +160,9 @@ public class TPSScheduler implements IScheduler {
 		protected boolean firstToken = false;
 		protected int blockTime = -1;
 		protected int terminationTimeout = 100;
+		protected StagePlacement.slot slot;
+		protected FusedSink fused;
+		protected StageTracer tracer;
 
 
 		protected stageRunnable(IStageWrapper wrapper) {
@@ -144,6 +181,7 @@ public class TPSScheduler implements IScheduler {
 			this.handler = wrapper.getEventHandler();
 			this.name = wrapper.getStage().getName();
 			this.rtController = wrapper.getResponseTimeController();
+			this.tracer = wrapper.getTracer();
 
 			blockTime = (int) tp.getBlockTime();
 			if (sizeController != null) {
@@ -162,6 +200,14 @@ public class TPSScheduler implements IScheduler {
 			}
 			sorter.init(wrapper, mgr);
 
+			if (placement != null) {
+				this.slot = placement.getSlot(wrapper);
+			}
+			if (fusion) {
+				this.fused = (FusedSink) fusedTbl.get(wrapper);
+				if (fused != null) fused.init(tp);
+			}
+
 			tp.start();
 		}
 
@@ -185,19 +231,23 @@ public class TPSScheduler implements IScheduler {
 		}
 
 		public void run() {
-			long t1, t2;
 			long tstart = 0, tend = 0;
 
 			if (DEBUG) System.err.println(name + ": starting, source is " + source);
 
-			t1 = System.currentTimeMillis();
+			// time the last batch completed, reusing the handler timings
+			long lastBusy = System.nanoTime();
+
+			// lets the handler run other stages on this thread
+			FusedSink.context fusionContext = fusion ? FusedSink.currentContext() : null;
 
 			while (true) {
 
 				try {
 					if (DEBUG_VERBOSE) System.err.println(name + ": Doing blocking dequeue for " + wrapper);
 
-					Thread.yield(); // only accomplishes delay
+					// Follow the placement of the stage, which may be set by its first event
+					if (slot != null) placement.runningStage(slot, !tp.isVirtual());
 
 					// Run any pending batches
 					boolean ranbatch = false;
@@ -208,33 +258,66 @@ public class TPSScheduler implements IScheduler {
 						List events = batch.getBatch();
 						if (DEBUG_VERBOSE) System.err.println("<" + name + ">: Got batch of " + events.size() + " events");
 
-						// Call event handler
-						tstart = System.currentTimeMillis();
-						handler.handleEvents(events);
-						batch.batchDone();
-						tend = System.currentTimeMillis();
+						// The batch sorter may clear the list in batchDone()
+						int numEvents = events.size();
+						IStageStats stats = wrapper.getStats();
+						stats.recordDequeue(numEvents);
 
-						// Record service rate
-						wrapper.getStats().recordServiceRate(events.size(), tend - tstart);
+						// Call event handler
+						if (fusionContext != null) {
+							fusionContext.depth++;
+							fusionContext.queuedBatch = numEvents;
+							if (fused != null) fused.beginBatch();
+						}
+						if (tracer != null) tracer.beginBatch(events);
+						long outer = (fusionContext != null) ? fusionContext.beginHandler() : 0;
+						long serviceNanos;
+						tstart = System.nanoTime();
+						try {
+							try {
+								handler.handleEvents(events);
+							} finally {
+								tend = System.nanoTime();
+								serviceNanos = tend - tstart;
+								if (tracer != null) tracer.endBatch(tstart, tend);
+								if (fusionContext != null) {
+									// fused handlers record their own time
+									serviceNanos = fusionContext.endHandler(outer, serviceNanos);
+									if (fused != null) fused.endBatch(numEvents);
+									fusionContext.depth--;
+								}
+							}
+
+							// Record service rate
+							stats.recordServiceTime(numEvents, serviceNanos);
+
+							// Run response time controller
+							if (rtController != null) {
+								rtController.adjustThreshold(events, serviceNanos / 1000000);
+							}
+						} finally {
+							// The stage owns the references of its events, and the
+							// sorter must get the batch back even if the handler failed
+							RecyclingPool.releaseAll(events);
+							batch.batchDone();
+						}
+						lastBusy = tend;
 
-						// Run response time controller
-						if (rtController != null) {
-							rtController.adjustThreshold(events, tend - tstart);
+						if (tp.stopRequested()) {
+							if (DEBUG) System.err.println(name + ": Exiting");
+							return;
 						}
 					}
 
 					// Check if idle
 					if (!ranbatch) {
-						t2 = System.currentTimeMillis();
-						if (tp.timeToStop(t2 - t1)) {
+						if (tp.timeToStop((System.nanoTime() - lastBusy) / 1000000)) {
 							if (DEBUG) System.err.println(name + ": Exiting");
 							return;
 						}
 						continue;
 					}
 
-					t1 = System.currentTimeMillis();
-
 					if (tp.timeToStop(0)) {
 						if (DEBUG) System.err.println(name + ": Exiting");
 						return;
@@ -29,10 +29,28 @@ import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.profiler.JCycloneProfiler;
 import org.jcyclone.core.stage.IStageManager;
 
+import java.lang.reflect.Method;
 import java.util.*;
 
 /**
  * ThreadPool is a generic class which provides a thread pool.
+ * <p/>
+ * A pool may be configured (<tt>threadPool.virtual.enable</tt>) to run its
+ * threads as virtual threads when the JVM supports them. Virtual pools
+ * are meant for stages whose handlers mostly block: they are bounded by
+ * <tt>threadPool.virtual.maxThreads</tt> instead of
+ * <tt>threadPool.maxThreads</tt>, and the ThreadPoolController doubles
+ * their size each time they need to grow rather than adding one thread
+ * at a time. Idle threads are retired down to <tt>minThreads</tt> as for
+ * platform pools. On a JVM without virtual threads, the pool falls back
+ * to platform threads and the platform limits.
+ * <p/>
+ * The queues and batch sorters wait in <tt>synchronized</tt> blocks with
+ * <tt>Object.wait()</tt>. Before Java 24, a virtual thread waiting there
+ * pins its carrier thread, and the JVM only adds carriers up to
+ * <tt>jdk.virtualThreadScheduler.maxPoolSize</tt> (256 by default) to
+ * make up for it. On such JVMs a virtual pool is therefore capped to that
+ * many threads, so that idle stage threads cannot take every carrier.
  *
  * @author Matt Welsh and Jean Morissette
  */
@@ -40,6 +58,41 @@ public class ThreadPool implements IProfilable {
 
 	private static final boolean DEBUG = false;
 
+	// Thread.ofVirtual(), Thread.Builder.name(String) and
+	// Thread.Builder.unstarted(Runnable), if this JVM has virtual threads
+	private static Method ofVirtual, builderName, builderUnstarted;
+
+	static {
+		try {
+			Method m = Thread.class.getMethod("ofVirtual", new Class[0]);
+			Class builderClass = Class.forName("java.lang.Thread$Builder");
+			builderName = builderClass.getMethod("name", new Class[]{String.class});
+			builderUnstarted = builderClass.getMethod("unstarted", new Class[]{Runnable.class});
+			// fails if virtual threads are a disabled preview feature
+			m.invoke(null, new Object[0]);
+			ofVirtual = m;
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+	}
+
+	/**
+	 * Return the number of virtual threads that may wait in a monitor at
+	 * once on this JVM, or -1 if waiting does not pin carriers.
+	 */
+	private static int pinnedThreadLimit() {
+		String spec = System.getProperty("java.specification.version", "1.0");
+		int version;
+		try {
+			version = Integer.parseInt(spec.startsWith("1.") ? spec.substring(2) : spec);
+		} catch (NumberFormatException e) {
+			version = 0;
+		}
+		if (version >= 24) return -1;
+		int limit = Math.max(256, Runtime.getRuntime().availableProcessors());
+		return Integer.getInteger("jdk.virtualThreadScheduler.maxPoolSize", limit).intValue();
+	}
+
 	private IStageWrapper stage;
 	private IStageManager mgr;
 	private String poolname;
@@ -47,8 +100,11 @@ public class ThreadPool implements IProfilable {
 	private Runnable runnable;
 	private List threads;
 	private List stoppingThreads;
+	// size of stoppingThreads, read without locking by busy threads
+	private volatile int numStopping;
 
 	private int initialThreads, minThreads, maxThreads;
+	private boolean virtual;
 
 	private int blockTime;
 	private int idleTimeThreshold;
@@ -110,7 +166,26 @@ public class ThreadPool implements IProfilable {
 		int idleTimeThreshold = config.getInt(tag + "sizeController.idleTimeThreshold",
 		    config.getInt(globaltag + "sizeController.idleTimeThreshold", blockTime));
 
+		boolean virtual = config.getBoolean(tag + "virtual.enable",
+		    config.getBoolean(globaltag + "virtual.enable"));
+		if (virtual) {
+			if (ofVirtual == null) {
+				System.err.println("TP <" + stage.getStage().getName() + ">: virtual threads not supported by this JVM, using platform threads");
+				virtual = false;
+			} else {
+				maxThreads = config.getInt(tag + "virtual.maxThreads",
+				    config.getInt(globaltag + "virtual.maxThreads", 0));
+				if (maxThreads == 0) maxThreads = -1; // Infinite
+				int limit = pinnedThreadLimit();
+				if (limit > 0 && (maxThreads < 0 || maxThreads > limit)) {
+					System.err.println("TP <" + stage.getStage().getName() + ">: waiting virtual threads pin their carriers on this JVM, limiting the pool to " + limit + " threads");
+					maxThreads = limit;
+				}
+			}
+		}
+
 		init(stage, mgr, runnable, initialThreads, minThreads, maxThreads, blockTime, idleTimeThreshold);
+		this.virtual = virtual;
 	}
 
 	/**
@@ -162,7 +237,8 @@ public class ThreadPool implements IProfilable {
 		int state = runState;
 		if (state == RUNNING) return;
 
-		pooltg = new ThreadGroup(getName());
+		// virtual threads always belong to the same special thread group
+		if (!virtual) pooltg = new ThreadGroup(getName());
 		addThreads(initialThreads, false);
 		mgr.getProfiler().add(getName(), this);
 
@@ -199,6 +275,7 @@ public class ThreadPool implements IProfilable {
 				it.remove();
 				stoppingThreads.add(t);
 			}
+			numStopping = stoppingThreads.size();
 		}
 	}
 
@@ -218,6 +295,7 @@ public class ThreadPool implements IProfilable {
 				it.remove();
 				stoppingThreads.add(t);
 			}
+			numStopping = stoppingThreads.size();
 
 			// cause thread to die
 			System.err.println(getName() + ": Stopping now " + stoppingThreads.size() + " threads");
@@ -297,9 +375,13 @@ public class ThreadPool implements IProfilable {
 
 		System.err.println(getName() + ": Adding " + numToAdd + " threads to pool, size " + (threadCount + numToAdd));
 		for (int i = 0; i < numToAdd; i++) {
-			String name = "TP-" + numThreads() + " <" + poolname + ">";
 			RunnableProxy r = new RunnableProxy(runnable);
-			Thread t = new Thread(pooltg, r, name);
+			Thread t;
+			if (virtual) {
+				t = newVirtualThread(r, "VTP-" + numThreads() + " <" + poolname + ">");
+			} else {
+				t = new Thread(pooltg, r, "TP-" + numThreads() + " <" + poolname + ">");
+			}
 			threads.add(t);
 
 			// XXX JM: From a design point of view, Is-it better to
@@ -309,6 +391,17 @@ public class ThreadPool implements IProfilable {
 		}
 	}
 
+	private static Thread newVirtualThread(Runnable r, String name) {
+		try {
+			Object builder = ofVirtual.invoke(null, new Object[0]);
+			builder = builderName.invoke(builder, new Object[]{name});
+			return (Thread) builderUnstarted.invoke(builder, new Object[]{r});
+		} catch (Exception e) {
+			// cannot happen, virtual threads were probed at class loading
+			throw new Error("Cannot create virtual thread: " + e);
+		}
+	}
+
 	/**
 	 * Remove threads from pool.
 	 */
@@ -321,9 +414,17 @@ public class ThreadPool implements IProfilable {
 				Thread t = (Thread) threads.remove(0);
 				stoppingThreads.add(t);
 			}
+			numStopping = stoppingThreads.size();
 		}
 	}
 
+	/**
+	 * Returns true if the threads of this pool are virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
 	/**
 	 * Return the number of threads in this pool.
 	 */
@@ -350,6 +451,7 @@ public class ThreadPool implements IProfilable {
 					// cause the given thread to stop execution
 					if (threads.remove(t))
 						stoppingThreads.add(t);
+					numStopping = stoppingThreads.size();
 					return true;
 				}
 			}
@@ -357,6 +459,15 @@ public class ThreadPool implements IProfilable {
 		return stoppingThreads.contains(t);
 	}
 
+	/**
+	 * Used by a busy thread, between two batches, to determine whether it
+	 * was removed from the pool: such a thread does not get idle, and would
+	 * otherwise never call timeToStop.
+	 */
+	public boolean stopRequested() {
+		return numStopping > 0 && stoppingThreads.contains(Thread.currentThread());
+	}
+
 	public String toString() {
 		return "TP (size=" + numThreads() + ") for <" + poolname + ">";
 	}
@@ -390,7 +501,9 @@ public class ThreadPool implements IProfilable {
 					System.err.println("Warning: thread " + t.getName() + " terminated without being requested to stop first");
 					threads.remove(t);
 				}
+				numStopping = stoppingThreads.size();
 			}
+			((JCycloneProfiler) mgr.getProfiler()).getGraphProfiler().removeThread(t);
 
 			synchronized (ThreadPool.this) {
 				if (runState != STOP)
@@ -34,6 +34,22 @@ import java.util.Vector;
 /**
  * The ThreadPoolController is responsible for dynamically adusting the
  * size of a given ThreadPool.
+ * <p/>
+ * Each pool is sized in one of two ways, chosen by
+ * <tt>threadPool.sizeController.type</tt>:
+ * <ul>
+ * <li><tt>threshold</tt> (the default) adds a thread whenever the queue
+ * of the stage holds <tt>threshold</tt> elements or more;</li>
+ * <li><tt>gradient</tt> measures the throughput of the stage against its
+ * number of threads, and hill-climbs up or down to the knee of that
+ * curve: the fewest threads that give the best throughput. Moves which
+ * do not pay off are undone, and the controller then waits for a number
+ * of periods which doubles every time it has to undo a move in a row,
+ * so that it settles instead of oscillating around the knee. Threads
+ * left idle while the queue is empty are removed. The controller keeps
+ * the pool within <tt>threadPool.sizeController.minThreads</tt> and
+ * <tt>maxThreads</tt>, and reports its decisions to the profiler.</li>
+ * </ul>
  *
  * @author Matt Welsh
  */
@@ -55,12 +71,28 @@ public class ThreadPoolController {
 
 	private static final double SMOOTH_CONST = 0.3;
 
+	// Values of threadPool.sizeController.type
+	static final String TYPE_THRESHOLD = "threshold";
+	static final String TYPE_GRADIENT = "gradient";
+
+	// Largest step of the gradient controller, in number of threads
+	private static final int GRADIENT_MAX_STEP = 8;
+
+	// Largest wait of the gradient controller after undoing a move, in periods
+	private static final int GRADIENT_MAX_HOLD = 32;
+
+	// Decisions of the gradient controller
+	static final int DECISION_HOLD = 0;
+	static final int DECISION_UP = 1;
+	static final int DECISION_DOWN = -1;
+
 	private IStageManager mgr;
 	private Vector tpvec;
 
 	private boolean autoMaxDetect;
 	private Thread controller;
 	private int controllerDelay, controllerThreshold;
+	private double gradientNoise;
 
 	public ThreadPoolController(IStageManager mgr) {
 		this.mgr = mgr;
@@ -70,6 +102,7 @@ public class ThreadPoolController {
 		this.controllerDelay = config.getInt("global.threadPool.sizeController.delay");
 		this.controllerThreshold = config.getInt("global.threadPool.sizeController.threshold");
 		this.autoMaxDetect = config.getBoolean("global.threadPool.sizeController.autoMaxDetect");
+		this.gradientNoise = config.getDouble("global.threadPool.sizeController.noise", 0.05);
 
 		start();
 	}
@@ -88,6 +121,7 @@ public class ThreadPoolController {
 		}
 
 		this.autoMaxDetect = config.getBoolean("global.threadPool.sizeController.autoMaxDetect");
+		this.gradientNoise = config.getDouble("global.threadPool.sizeController.noise", 0.05);
 		start();
 	}
 
@@ -98,7 +132,9 @@ public class ThreadPoolController {
 	public void register(IStageWrapper stage, ThreadPool tp) {
 		ISystemConfig config = mgr.getConfig();
 		int thresh = config.getInt("stages." + stage.getStage().getName() + ".threadPool.sizeController.threshold", controllerThreshold);
-		tpvec.addElement(new tpcClient(stage, tp, null, thresh));
+		tpcClient tpc = new tpcClient(stage, tp, null, thresh);
+		configure(tpc);
+		tpvec.addElement(tpc);
 	}
 
 	/**
@@ -106,7 +142,29 @@ public class ThreadPoolController {
 	 * specified by the system configuration.
 	 */
 	public void register(IStageWrapper stage, ThreadPool tp, IProfilable metric) {
-		tpvec.addElement(new tpcClient(stage, tp, metric, controllerThreshold));
+		tpcClient tpc = new tpcClient(stage, tp, metric, controllerThreshold);
+		configure(tpc);
+		tpvec.addElement(tpc);
+	}
+
+	/**
+	 * Read the sizing type and bounds of a stage.
+	 */
+	private void configure(tpcClient tpc) {
+		ISystemConfig config = mgr.getConfig();
+		String tag = "stages." + tpc.stage.getStage().getName() + ".threadPool.sizeController.";
+		String globaltag = "global.threadPool.sizeController.";
+		String type = config.getString(tag + "type", config.getString(globaltag + "type"));
+		if (type == null || type.equals(TYPE_THRESHOLD)) {
+			tpc.gradient = false;
+		} else if (type.equals(TYPE_GRADIENT)) {
+			tpc.gradient = true;
+		} else {
+			throw new IllegalArgumentException("Unknown threadPool.sizeController.type '" + type + "' for stage <" + tpc.stage.getStage().getName() + ">");
+		}
+		tpc.minThreads = Math.max(1, config.getInt(tag + "minThreads", config.getInt(globaltag + "minThreads", 1)));
+		tpc.maxThreads = config.getInt(tag + "maxThreads", config.getInt(globaltag + "maxThreads", -1));
+		if (tpc.gradient) tpc.addGradientProfiles();
 	}
 
 	private void start() {
@@ -129,6 +187,18 @@ public class ThreadPoolController {
 		double savedThroughput, avgThroughput;
 		long last_time, reset_time;
 
+		// State of the gradient controller
+		boolean gradient;
+		int minThreads, maxThreads;
+		double throughput;        // measured over the last period
+		int refThreads;           // number of threads before the last move
+		double refThroughput;     // throughput with refThreads
+		boolean moved, settling;
+		int direction = 1, step = 1;
+		int hold, holdPeriods = 1;
+		int decision;
+		int ups, downs, holds, reversals, idleRemovals;
+
 		tpcClient(final IStageWrapper stage, ThreadPool tp, IProfilable metric, int threshold) {
 			this.stage = stage;
 			this.tp = tp;
@@ -173,6 +243,53 @@ public class ThreadPoolController {
 				    }
 			    });
 		}
+
+		void addGradientProfiles() {
+			String name = stage.getStage().getName();
+			mgr.getProfiler().add("TPController threads <" + name + ">", tp);
+			mgr.getProfiler().add("TPController throughput <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return (int) throughput;
+				    }
+			    });
+			mgr.getProfiler().add("TPController decision <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return decision;
+				    }
+			    });
+			mgr.getProfiler().add("TPController ups <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return ups;
+				    }
+			    });
+			mgr.getProfiler().add("TPController downs <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return downs;
+				    }
+			    });
+			mgr.getProfiler().add("TPController holds <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return holds;
+				    }
+			    });
+			mgr.getProfiler().add("TPController reversals <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return reversals;
+				    }
+			    });
+			mgr.getProfiler().add("TPController idleRemovals <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return idleRemovals;
+				    }
+			    });
+		}
 	}
 
 	/**
@@ -208,6 +325,7 @@ public class ThreadPoolController {
 
 				for (int i = 0; i < tpvec.size(); i++) {
 					tpcClient tpc = (tpcClient) tpvec.elementAt(i);
+					if (tpc.gradient) continue;
 
 					//if (DEBUG) System.err.println("TP controller: Inspecting "+tpc.tp);
 
@@ -217,11 +335,18 @@ public class ThreadPoolController {
 					if (sz >= tpc.threshold) addThread = true;
 
 					if (addThread) {
-						tpc.tp.addThreads(1);
+						// virtual threads are cheap: grow geometrically, so
+						// that a blocking stage gets many threads in a few steps
+						tpc.tp.addThreads(tpc.tp.isVirtual() ? Math.max(1, tpc.tp.numThreads()) : 1);
 					}
 				}
 			}
 
+			for (int i = 0; i < tpvec.size(); i++) {
+				tpcClient tpc = (tpcClient) tpvec.elementAt(i);
+				if (tpc.gradient) adjustGradient(tpc);
+			}
+
 			if ((DEBUG || autoMaxDetect) &&
 			    (adjust_count % THROUGHPUT_MEASUREMENT_DELAY) == 0) {
 
@@ -229,6 +354,7 @@ public class ThreadPoolController {
 
 				for (int i = 0; i < tpvec.size(); i++) {
 					tpcClient tpc = (tpcClient) tpvec.elementAt(i);
+					if (tpc.gradient) continue;
 
 					StageWrapper sw;
 					try {
@@ -258,6 +384,7 @@ public class ThreadPoolController {
 
 				for (int i = 0; i < tpvec.size(); i++) {
 					tpcClient tpc = (tpcClient) tpvec.elementAt(i);
+					if (tpc.gradient) continue;
 
 					// Periodically override saved values
 					//long tr = curTime - tpc.reset_time;
@@ -317,7 +444,134 @@ public class ThreadPoolController {
 			}
 
 		}
-	}
-}
 
+		/**
+		 * One period of the gradient controller for the given pool.
+		 */
+		private void adjustGradient(tpcClient tpc) {
+			long curTime = System.currentTimeMillis();
+			long elapsed = curTime - tpc.last_time;
+			if (elapsed <= 0) return;
+			long events = tpc.stage.getStats().getTotalEvents();
+			long curEvents = events - tpc.savedTotalEvents;
+			tpc.savedTotalEvents = events;
+			tpc.last_time = curTime;
+			if (curEvents < 0) return;   // stats were reset
+			tpc.throughput = (curEvents * 1.0) / (elapsed * 1.0e-3);
+
+			// The period after a move mixes both sizes: do not judge it
+			if (tpc.settling) {
+				tpc.settling = false;
+				return;
+			}
+
+			String name = tpc.stage.getStage().getName();
+			int threads = tpc.tp.numThreads();
+			int backlog = tpc.metric.profileSize();
+
+			if (tpc.hold > 0) {
+				// Waiting after an undone move, unless the load has changed
+				double change = Math.abs(tpc.throughput - tpc.refThroughput) / Math.max(tpc.refThroughput, 1.0);
+				if (change <= 2 * gradientNoise) {
+					tpc.hold--;
+					decide(tpc, DECISION_HOLD);
+					return;
+				}
+				if (DEBUG) System.err.println("TP controller <" + name + "> load changed, throughput " + tpc.throughput + " was " + tpc.refThroughput);
+				tpc.hold = 0;
+				tpc.holdPeriods = 1;
+				tpc.moved = false;
+			}
+
+			if (backlog == 0) {
+				// Keeping up: drop threads which have nothing to do
+				double rate = tpc.stage.getStats().getServiceRate();
+				int busy = (rate > 0) ? (int) Math.ceil(tpc.throughput / rate) : threads;
+				int target = Math.max(busy + 1, tpc.minThreads);
+				tpc.moved = false;
+				if (target < threads) {
+					tpc.idleRemovals++;
+					move(tpc, target, threads);
+				} else {
+					decide(tpc, DECISION_HOLD);
+				}
+				return;
+			}
+
+			if (!tpc.moved) {
+				// Take the current size as reference, and probe
+				tpc.refThreads = threads;
+				tpc.refThroughput = tpc.throughput;
+				probe(tpc, threads);
+				return;
+			}
+
+			if (threads == tpc.refThreads) {
+				// The pool could not move, at one of its bounds
+				tpc.direction = -tpc.direction;
+				tpc.step = 1;
+				tpc.refThroughput = tpc.throughput;
+				probe(tpc, threads);
+				return;
+			}
+
+			double gain = (tpc.throughput - tpc.refThroughput) / Math.max(tpc.refThroughput, 1.0);
+			if (DEBUG) System.err.println("TP controller <" + name + "> " + tpc.refThreads + " -> " + threads + " threads, throughput " + tpc.refThroughput + " -> " + tpc.throughput);
+
+			if (gain > gradientNoise || (gain >= -gradientNoise && threads < tpc.refThreads)) {
+				// The move paid off, or saved threads for the same throughput:
+				// keep going, faster
+				if (gain > gradientNoise) tpc.step = Math.min(tpc.step * 2, GRADIENT_MAX_STEP);
+				tpc.holdPeriods = 1;
+				tpc.refThreads = threads;
+				tpc.refThroughput = tpc.throughput;
+				probe(tpc, threads);
+			} else {
+				// Past the knee: undo the move, and wait longer every time
+				tpc.reversals++;
+				tpc.direction = (threads > tpc.refThreads) ? -1 : 1;
+				tpc.step = 1;
+				tpc.hold = tpc.holdPeriods;
+				tpc.holdPeriods = Math.min(tpc.holdPeriods * 2, GRADIENT_MAX_HOLD);
+				tpc.moved = false;
+				move(tpc, tpc.refThreads, threads);
+			}
+		}
+
+		// Move from the reference size one step in the current direction
+		private void probe(tpcClient tpc, int threads) {
+			int target = threads + tpc.direction * tpc.step;
+			target = Math.max(target, tpc.minThreads);
+			if (tpc.maxThreads > 0) target = Math.min(target, tpc.maxThreads);
+			if (target == threads) {
+				// At a bound: try the other way next time
+				tpc.direction = -tpc.direction;
+				tpc.step = 1;
+				tpc.moved = false;
+				decide(tpc, DECISION_HOLD);
+				return;
+			}
+			tpc.moved = true;
+			move(tpc, target, threads);
+		}
 
+		private void move(tpcClient tpc, int target, int threads) {
+			if (DEBUG) System.err.println("TP controller <" + tpc.stage.getStage().getName() + "> " + threads + " -> " + target + " threads");
+			if (target > threads) {
+				tpc.tp.addThreads(target - threads);
+				decide(tpc, DECISION_UP);
+			} else {
+				tpc.tp.removeThreads(threads - target);
+				decide(tpc, DECISION_DOWN);
+			}
+			tpc.settling = true;
+		}
+
+		private void decide(tpcClient tpc, int decision) {
+			tpc.decision = decision;
+			if (decision == DECISION_UP) tpc.ups++;
+			else if (decision == DECISION_DOWN) tpc.downs++;
+			else tpc.holds++;
+		}
+	}
+}
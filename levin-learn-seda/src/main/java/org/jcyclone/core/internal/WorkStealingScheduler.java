@@ -0,0 +1,423 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.event.RecyclingPool;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.queue.ForwardingSink;
+import org.jcyclone.core.queue.IBlockingSink;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.rtc.IResponseTimeController;
+import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.core.trace.StageTracer;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * WorkStealingScheduler runs all of its stages on a fixed set of worker
+ * threads, one per CPU by default. A stage becomes runnable when an
+ * element is enqueued onto its sink; the resulting task is pushed onto
+ * the deque of the enqueuing worker (or handed to an idle worker when
+ * the producer is not a worker). Workers run their own tasks newest
+ * first and, when they run out, steal the oldest tasks of other workers.
+ * <p/>
+ * A task runs a bounded number of batches of its stage through the
+ * stage's IBatchSorter before yielding the worker. A stage whose handler
+ * is an ISingleThreadedEventHandler never has more than one task queued
+ * or running; other stages fork extra tasks while their queue stays
+ * non-empty, so a hot stage can spread over idle workers.
+ * <p/>
+ * Stages are notified of new work through the sink returned by
+ * {@link #wrapSink}, which StageWrapper installs in front of the event
+ * queue of every stage it assigns to this scheduler.
+ */
+public class WorkStealingScheduler implements IScheduler {
+
+	private static final boolean DEBUG = false;
+
+	protected IStageManager mgr;
+	protected ISystemConfig config;
+	protected boolean crashOnException;
+
+	private int numWorkers;
+	private int batchesPerRun;
+	private long idleNanos;
+
+	private Map taskTbl;                    // IStageWrapper --> stageTask
+	private worker[] workers;
+	private ConcurrentLinkedQueue submissionQueue;
+	private ConcurrentLinkedQueue idleWorkers;
+	private volatile boolean running;
+	private final AtomicInteger stealCount = new AtomicInteger();
+
+	public WorkStealingScheduler(IStageManager mgr) {
+		this.mgr = mgr;
+		this.config = mgr.getConfig();
+
+		numWorkers = config.getInt("global.WSTM.numThreads", 0);
+		if (numWorkers <= 0) numWorkers = Runtime.getRuntime().availableProcessors();
+		batchesPerRun = config.getInt("global.WSTM.batchesPerRun", 4);
+		if (batchesPerRun <= 0) batchesPerRun = 1;
+		idleNanos = config.getInt("global.WSTM.idleTime", 100) * 1000000L;
+
+		crashOnException = config.getBoolean("global.crashOnException");
+
+		taskTbl = new ConcurrentHashMap();
+		submissionQueue = new ConcurrentLinkedQueue();
+		idleWorkers = new ConcurrentLinkedQueue();
+
+		System.err.println("WorkStealingScheduler: " + numWorkers + " workers, " + batchesPerRun + " batches per run");
+	}
+
+	/**
+	 * Register a stage with this scheduler, starting the workers if needed.
+	 */
+	public synchronized void register(IStageWrapper stage) {
+		if (taskTbl.containsKey(stage))
+			throw new IllegalStateException("Stage " + stage.getStage().getName() + " already registered");
+		stageTask task = new stageTask(stage);
+		taskTbl.put(stage, task);
+		start();
+		// events may have been enqueued before the stage was registered
+		wake(stage);
+	}
+
+	/**
+	 * Deregister a stage. Tasks of the stage that are still queued are
+	 * dropped; a batch already running is allowed to complete.
+	 */
+	public synchronized void deregister(IStageWrapper stage) {
+		stageTask task = (stageTask) taskTbl.remove(stage);
+		if (task == null)
+			throw new IllegalStateException("Stage " + stage.getStage().getName() + " not registered");
+		task.deregistered = true;
+	}
+
+	/**
+	 * Deregister all stages and stop the workers.
+	 */
+	public synchronized void deregisterAll() {
+		Iterator it = taskTbl.values().iterator();
+		while (it.hasNext()) {
+			stageTask task = (stageTask) it.next();
+			task.deregistered = true;
+			it.remove();
+		}
+		stop();
+	}
+
+	/**
+	 * Wrap the given event queue sink so that enqueuing onto it makes the
+	 * stage runnable on this scheduler.
+	 */
+	public IBlockingSink wrapSink(IStageWrapper stage, IBlockingSink sink) {
+		return new wakingSink(stage, sink);
+	}
+
+	/**
+	 * Make the given stage runnable if it has pending events and is not
+	 * already queued or running on enough workers.
+	 */
+	public void wake(IStageWrapper stage) {
+		stageTask task = (stageTask) taskTbl.get(stage);
+		if (task != null && task.runners.get() == 0 && task.runners.compareAndSet(0, 1))
+			submit(task, false);
+	}
+
+	/**
+	 * Return the number of tasks stolen by workers since startup.
+	 */
+	public int getStealCount() {
+		return stealCount.get();
+	}
+
+	private void start() {
+		if (running) return;
+		running = true;
+		workers = new worker[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new worker(i);
+		}
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i].start();
+		}
+		mgr.getProfiler().add("WorkStealingScheduler steals", new IProfilable() {
+			public int profileSize() {
+				return stealCount.get();
+			}
+		});
+	}
+
+	private void stop() {
+		if (!running) return;
+		running = false;
+		for (int i = 0; i < workers.length; i++) {
+			LockSupport.unpark(workers[i]);
+		}
+		Thread current = Thread.currentThread();
+		for (int i = 0; i < workers.length; i++) {
+			if (workers[i] == current) continue;
+			try {
+				workers[i].join(1000);
+			} catch (InterruptedException ie) {
+				Thread.interrupted();
+			}
+		}
+		submissionQueue.clear();
+		idleWorkers.clear();
+		mgr.getProfiler().remove("WorkStealingScheduler steals");
+	}
+
+	/**
+	 * Queue a task. A task submitted from a worker goes on that worker's
+	 * deque: at the tail (run next) for new work, or at the head (run
+	 * last, stolen first) for a stage that used up its batch budget.
+	 */
+	private void submit(stageTask task, boolean requeue) {
+		Thread t = Thread.currentThread();
+		if (t instanceof worker && ((worker) t).scheduler() == this) {
+			worker w = (worker) t;
+			if (requeue)
+				w.deque.addFirst(task);
+			else
+				w.deque.addLast(task);
+		} else {
+			submissionQueue.offer(task);
+		}
+		worker idle = (worker) idleWorkers.poll();
+		if (idle != null) LockSupport.unpark(idle);
+	}
+
+	/**
+	 * Internal class representing the schedulable unit of a stage.
+	 */
+	protected class stageTask {
+
+		protected IStageWrapper wrapper;
+		protected IBatchSorter sorter;
+		protected IEventHandler handler;
+		protected ISource source;
+		protected String name;
+		protected IResponseTimeController rtController;
+		protected int maxRunners;
+		protected CreditGate credits;
+		protected StageTracer tracer;
+		protected volatile boolean deregistered;
+
+		// number of tasks of this stage queued or running
+		final AtomicInteger runners = new AtomicInteger();
+
+		protected stageTask(IStageWrapper wrapper) {
+			this.wrapper = wrapper;
+			this.source = wrapper.getSource();
+			this.handler = wrapper.getEventHandler();
+			this.name = wrapper.getStage().getName();
+			this.rtController = wrapper.getResponseTimeController();
+			this.credits = wrapper.getCreditGate();
+			this.tracer = wrapper.getTracer();
+			this.maxRunners = (handler instanceof ISingleThreadedEventHandler) ? 1 : numWorkers;
+
+			this.sorter = wrapper.getBatchSorter();
+			if (this.sorter == null) {
+				this.sorter = new NullBatchSorter();
+			}
+			sorter.init(wrapper, mgr);
+		}
+
+		/**
+		 * Run up to batchesPerRun batches, then either requeue the task or
+		 * release it.
+		 */
+		void run() {
+			if (deregistered) {
+				runners.decrementAndGet();
+				return;
+			}
+			int ran = 0;
+			boolean requeue = false;
+			try {
+				try {
+					IBatchDescr batch;
+					while (ran < batchesPerRun && !deregistered && (batch = sorter.nextBatch(0)) != null) {
+						ran++;
+						List events = batch.getBatch();
+
+						// let an idle worker pick up the rest of the queue
+						fork();
+
+						// the batch sorter may clear the list in batchDone()
+						int numEvents = events.size();
+						IStageStats stats = wrapper.getStats();
+						stats.recordDequeue(numEvents);
+
+						if (tracer != null) tracer.beginBatch(events);
+						long tstart = System.nanoTime();
+						long tend;
+						try {
+							try {
+								handler.handleEvents(events);
+							} finally {
+								tend = System.nanoTime();
+								if (tracer != null) tracer.endBatch(tstart, tend);
+							}
+
+							stats.recordServiceTime(numEvents, tend - tstart);
+							if (rtController != null) {
+								rtController.adjustThreshold(events, (tend - tstart) / 1000000);
+							}
+						} finally {
+							// the stage owns the references of its events, and
+							// the sorter must get the batch back even if the
+							// handler failed
+							RecyclingPool.releaseAll(events);
+							batch.batchDone();
+						}
+					}
+				} catch (InterruptedException e) {
+					// only stop() interrupts workers
+				} catch (Exception e) {
+					System.err.println("JCyclone: Stage <" + name + "> got exception: " + e);
+					e.printStackTrace();
+					if (crashOnException) {
+						System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
+						System.exit(-1);
+					}
+				}
+				requeue = ran == batchesPerRun && !deregistered && source.size() > 0;
+			} finally {
+				// an Error from the handler must not leak the runner slot
+				if (requeue) {
+					submit(this, true);
+				} else {
+					runners.decrementAndGet();
+					// an enqueue may have raced with the decrement; a stage held
+					// back by its credit gate is woken up when credits return
+					if (!deregistered && source.size() > 0 && (credits == null || !credits.isBlocked()))
+						wake(wrapper);
+				}
+			}
+		}
+
+		private void fork() {
+			for (; ;) {
+				int n = runners.get();
+				if (n >= maxRunners || source.size() == 0) return;
+				if (runners.compareAndSet(n, n + 1)) {
+					submit(this, false);
+					return;
+				}
+			}
+		}
+
+		public String toString() {
+			return "stageTask <" + name + ">";
+		}
+	}
+
+	/**
+	 * Internal class representing a worker thread.
+	 */
+	protected class worker extends Thread {
+
+		final int index;
+		final ConcurrentLinkedDeque deque = new ConcurrentLinkedDeque();
+		private int victim;
+
+		worker(int index) {
+			super("WSTM-" + index);
+			this.index = index;
+			this.victim = index;
+			setDaemon(true);
+		}
+
+		WorkStealingScheduler scheduler() {
+			return WorkStealingScheduler.this;
+		}
+
+		public void run() {
+			if (DEBUG) System.err.println(getName() + ": starting");
+			while (running) {
+				stageTask task = findTask();
+				if (task == null) {
+					idleWorkers.offer(this);
+					// re-check after publishing ourselves as idle, so that a
+					// concurrent submit either is seen here or unparks us
+					task = findTask();
+					if (task == null) {
+						LockSupport.parkNanos(this, idleNanos);
+						idleWorkers.remove(this);
+						Thread.interrupted();
+						if (!running) break;
+						rescan();
+						continue;
+					}
+					idleWorkers.remove(this);
+				}
+				task.run();
+			}
+			if (DEBUG) System.err.println(getName() + ": exiting");
+		}
+
+		private stageTask findTask() {
+			stageTask task = (stageTask) deque.pollLast();
+			if (task != null) return task;
+			task = (stageTask) submissionQueue.poll();
+			if (task != null) return task;
+			return steal();
+		}
+
+		private stageTask steal() {
+			worker[] ws = workers;
+			for (int i = 0; i < ws.length; i++) {
+				if (++victim >= ws.length) victim = 0;
+				if (victim == index) continue;
+				stageTask task = (stageTask) ws[victim].deque.pollFirst();
+				if (task != null) {
+					stealCount.incrementAndGet();
+					return task;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Safety net for events that reached a stage queue without going
+		 * through its waking sink.
+		 */
+		private void rescan() {
+			Iterator it = taskTbl.values().iterator();
+			while (it.hasNext()) {
+				stageTask task = (stageTask) it.next();
+				if (task.source.size() > 0)
+					wake(task.wrapper);
+			}
+		}
+	}
+
+	/**
+	 * Sink decorator that makes its stage runnable after every
+	 * successful enqueue.
+	 */
+	class wakingSink extends ForwardingSink {
+
+		private IStageWrapper stage;
+
+		wakingSink(IStageWrapper stage, IBlockingSink sink) {
+			super(sink);
+			this.stage = stage;
+		}
+
+		protected void entered(int numEvents) {
+			wake(stage);
+		}
+	}
+
+}
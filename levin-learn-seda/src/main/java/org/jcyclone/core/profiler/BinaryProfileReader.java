@@ -0,0 +1,318 @@
+package org.jcyclone.core.profiler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the profiles written by a BinaryProfilerHandler: prints a
+ * summary of the values of each profilable, and optionally writes all
+ * the snapshots to a CSV file, with one column per profilable and an
+ * empty cell where a profilable was not registered.
+ * <p/>
+ * Usage: <tt>BinaryProfileReader [-csv &lt;csv file&gt;] &lt;profile&gt;...</tt>
+ * <p/>
+ * where each profile is either the <tt>global.profile.binary.filename</tt>
+ * of a run, standing for all its segments, or a single segment.
+ *
+ * @see BinaryProfilerHandler
+ */
+public class BinaryProfileReader {
+
+	static class series {
+		String name;
+		int column;
+		int[] values = new int[0];
+		int num;
+		long sum;
+
+		void add(int v) {
+			if (num == values.length) {
+				int[] n = new int[Math.max(16, num * 2)];
+				System.arraycopy(values, 0, n, 0, num);
+				values = n;
+			}
+			values[num++] = v;
+			sum += v;
+		}
+
+		/**
+		 * Return the given percentile, once the values are sorted.
+		 */
+		int percentile(double p) {
+			int i = (int) Math.ceil(p / 100 * num) - 1;
+			return values[Math.max(0, Math.min(num - 1, i))];
+		}
+	}
+
+	/**
+	 * Decodes the records of one segment.
+	 */
+	static class segment {
+		File file;
+		long start;
+		ByteBuffer buf;
+		long time;
+		int delay;
+		List names = new ArrayList();
+		int[] values = new int[0];
+		int num;
+
+		segment(File file) throws IOException {
+			this.file = file;
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel ch = in.getChannel();
+				buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			} finally {
+				in.close();
+			}
+			if (buf.remaining() < BinaryProfilerHandler.HEADER_SIZE
+			    || buf.getInt() != BinaryProfilerHandler.MAGIC)
+				throw new IOException(file + " is not a binary profile");
+			int version = buf.getInt();
+			if (version != BinaryProfilerHandler.VERSION)
+				throw new IOException(file + ": unsupported version " + version);
+			start = buf.getLong();
+		}
+
+		void rewind() {
+			buf.position(BinaryProfilerHandler.HEADER_SIZE);
+			time = start;
+			delay = 0;
+			names.clear();
+			values = new int[0];
+			num = 0;
+		}
+
+		/**
+		 * Decode the next record, return its tag, or END at the end of
+		 * the segment. After a SNAPSHOT, the values of the first num
+		 * profilables are in values.
+		 */
+		byte next() throws IOException {
+			if (!buf.hasRemaining()) return BinaryProfilerHandler.END;
+			byte tag = buf.get();
+			switch (tag) {
+				case BinaryProfilerHandler.END:
+					break;
+				case BinaryProfilerHandler.NAMES:
+					names.clear();
+					int count = getVarint();
+					for (int i = 0; i < count; i++) names.add(getName());
+					values = new int[count];
+					break;
+				case BinaryProfilerHandler.ADDED:
+					names.add(getName());
+					int[] a = new int[values.length + 1];
+					System.arraycopy(values, 0, a, 0, values.length);
+					values = a;
+					break;
+				case BinaryProfilerHandler.REMOVED:
+					int i = getVarint();
+					names.remove(i);
+					int[] r = new int[values.length - 1];
+					System.arraycopy(values, 0, r, 0, i);
+					System.arraycopy(values, i + 1, r, i, r.length - i);
+					values = r;
+					break;
+				case BinaryProfilerHandler.DELAY:
+					delay = getVarint();
+					break;
+				case BinaryProfilerHandler.SNAPSHOT:
+					time += getVarlong();
+					num = getVarint();
+					for (int j = 0; j < num; j++) {
+						int z = getVarint();
+						values[j] += (z >>> 1) ^ -(z & 1);
+					}
+					break;
+				default:
+					throw new IOException(file + ": bad record " + tag + " at " + (buf.position() - 1));
+			}
+			return tag;
+		}
+
+		private long getVarlong() {
+			long v = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = buf.get();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+		}
+
+		private int getVarint() {
+			return (int) getVarlong();
+		}
+
+		private String getName() throws UnsupportedEncodingException {
+			byte[] b = new byte[getVarint()];
+			buf.get(b);
+			return new String(b, "UTF-8");
+		}
+	}
+
+	/**
+	 * Open the segments of the given profiles, in the order they were
+	 * written.
+	 */
+	public static List open(String[] profiles) throws IOException {
+		List segments = new ArrayList();
+		for (int i = 0; i < profiles.length; i++) {
+			File f = new File(profiles[i]);
+			File[] files = f.isFile() ? new File[]{f} : BinaryProfilerHandler.segments(profiles[i]);
+			if (files.length == 0) throw new IOException("No profile " + profiles[i]);
+			for (int j = 0; j < files.length; j++) segments.add(new segment(files[j]));
+		}
+		Collections.sort(segments, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long s1 = ((segment) o1).start, s2 = ((segment) o2).start;
+				return (s1 < s2) ? -1 : (s1 == s2 ? 0 : 1);
+			}
+		});
+		return segments;
+	}
+
+	public static void main(String args[]) throws IOException {
+		String csvname = null;
+		int first = 0;
+		if (args.length > 1 && args[0].equals("-csv")) {
+			csvname = args[1];
+			first = 2;
+		}
+		if (args.length <= first) {
+			System.err.println("Usage: BinaryProfileReader [-csv <csv file>] <profile>...");
+			System.exit(1);
+		}
+		String[] profiles = new String[args.length - first];
+		System.arraycopy(args, first, profiles, 0, profiles.length);
+		List segments = open(profiles);
+
+		// First pass: the profilables, in the order they appear
+		Map byName = new HashMap();
+		List columns = new ArrayList();
+		int snapshots = 0;
+		for (int s = 0; s < segments.size(); s++) {
+			segment seg = (segment) segments.get(s);
+			seg.rewind();
+			byte tag;
+			while ((tag = seg.next()) != BinaryProfilerHandler.END) {
+				if (tag == BinaryProfilerHandler.SNAPSHOT) {
+					snapshots++;
+				} else if (tag == BinaryProfilerHandler.NAMES || tag == BinaryProfilerHandler.ADDED) {
+					for (int i = 0; i < seg.names.size(); i++) {
+						String name = (String) seg.names.get(i);
+						if (byName.get(name) == null) {
+							series sr = new series();
+							sr.name = name;
+							sr.column = columns.size();
+							byName.put(name, sr);
+							columns.add(sr);
+						}
+					}
+				}
+			}
+		}
+
+		// Second pass: the values
+		PrintWriter csv = null;
+		if (csvname != null) {
+			csv = new PrintWriter(new BufferedWriter(new FileWriter(csvname)));
+			csv.print("time");
+			for (int i = 0; i < columns.size(); i++) {
+				csv.print(',');
+				csv.print(quote(((series) columns.get(i)).name));
+			}
+			csv.println();
+		}
+		long begin = 0, end = 0;
+		int[] row = new int[columns.size()];
+		boolean[] present = new boolean[columns.size()];
+		for (int s = 0; s < segments.size(); s++) {
+			segment seg = (segment) segments.get(s);
+			seg.rewind();
+			series[] current = new series[0];
+			byte tag;
+			while ((tag = seg.next()) != BinaryProfilerHandler.END) {
+				if (tag == BinaryProfilerHandler.NAMES || tag == BinaryProfilerHandler.ADDED
+				    || tag == BinaryProfilerHandler.REMOVED) {
+					current = new series[seg.names.size()];
+					for (int i = 0; i < current.length; i++) {
+						current[i] = (series) byName.get(seg.names.get(i));
+					}
+				}
+				if (tag != BinaryProfilerHandler.SNAPSHOT) continue;
+				if (begin == 0) begin = seg.time;
+				end = seg.time;
+				Arrays.fill(present, false);
+				for (int i = 0; i < seg.num; i++) {
+					current[i].add(seg.values[i]);
+					row[current[i].column] = seg.values[i];
+					present[current[i].column] = true;
+				}
+				if (csv != null) {
+					csv.print(seg.time);
+					for (int i = 0; i < row.length; i++) {
+						csv.print(',');
+						if (present[i]) csv.print(row[i]);
+					}
+					csv.println();
+				}
+			}
+		}
+		if (csv != null) csv.close();
+
+		System.out.println(snapshots + " snapshots of " + columns.size() + " profilables in "
+		    + segments.size() + " segments, " + ((end - begin) / 1000) + " s");
+		System.out.println();
+		System.out.println(padRight("profilable", 40) + pad("samples", 9) + pad("min", 11) + pad("mean", 11)
+		    + pad("p50", 11) + pad("p90", 11) + pad("p99", 11) + pad("max", 11));
+		for (int i = 0; i < columns.size(); i++) {
+			series sr = (series) columns.get(i);
+			if (sr.num == 0) continue;
+			Arrays.sort(sr.values, 0, sr.num);
+			System.out.println(padRight(sr.name, 40) + pad(Integer.toString(sr.num), 9)
+			    + pad(Integer.toString(sr.values[0]), 11) + pad(Long.toString(sr.sum / sr.num), 11)
+			    + pad(Integer.toString(sr.percentile(50)), 11) + pad(Integer.toString(sr.percentile(90)), 11)
+			    + pad(Integer.toString(sr.percentile(99)), 11) + pad(Integer.toString(sr.values[sr.num - 1]), 11));
+		}
+	}
+
+	private static String quote(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0) return s;
+		StringBuffer sb = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"') sb.append('"');
+			sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String pad(String s, int width) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < width) sb.insert(0, ' ');
+		return sb.toString();
+	}
+
+	private static String padRight(String s, int width) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < width) sb.append(' ');
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,290 @@
+package org.jcyclone.core.profiler;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A profiler handler that writes the snapshots of the profiler as a
+ * compact binary time-series into rotating memory-mapped files, cheap
+ * enough to sample hundreds of profilables several times per second
+ * for the whole life of the system. The files are read back offline
+ * with {@link BinaryProfileReader}.
+ * <p/>
+ * The handler writes to segments named <tt>global.profile.binary.filename</tt>
+ * followed by a sequence number. Once a segment reaches
+ * <tt>global.profile.binary.segmentSize</tt> bytes, the handler goes on
+ * with the next one, and deletes the oldest so as to keep at most
+ * <tt>global.profile.binary.segments</tt> segments on disk. Since the
+ * segments are mapped in memory, the samples written survive a crash
+ * of the JVM.
+ * <p/>
+ * Each segment can be read on its own. It starts with a header made of
+ * the magic number, the format version and the time at which it was
+ * started, followed by the list of the profilables, then holds a
+ * sequence of records, and ends with a zero byte or the end of file.
+ * Each record is a tag byte followed by varints:
+ * <ul>
+ * <li>NAMES: count, then the length and UTF-8 bytes of each name;
+ * <li>ADDED: the length and UTF-8 bytes of a name added at the end;
+ * <li>REMOVED: the index of the name removed;
+ * <li>DELAY: the sample delay in milliseconds;
+ * <li>SNAPSHOT: the milliseconds since the previous snapshot, or since
+ * the start of the segment, the number of values, then the zigzag
+ * encoded difference between each value and the previous value of the
+ * same profilable, which is 0 at the start of a segment or when the
+ * profilable is added.
+ * </ul>
+ * Profilables which keep the same value thus cost a single byte per
+ * snapshot.
+ *
+ * @see BinaryProfileReader
+ */
+public class BinaryProfilerHandler implements IProfilerHandler {
+
+	private static final boolean DEBUG = false;
+
+	static final int MAGIC = 0x4a435042; // "JCPB"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+
+	static final byte END = 0;
+	static final byte NAMES = 1;
+	static final byte ADDED = 2;
+	static final byte REMOVED = 3;
+	static final byte DELAY = 4;
+	static final byte SNAPSHOT = 5;
+
+	private String filename;
+	private int segmentSize;
+	private int maxSegments;
+
+	private List names = new ArrayList();
+	private int[] last = new int[0];
+	private int delay = -1;
+	private long lastTime;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buf;
+	private int segment = -1;
+	private byte[] rec = new byte[64];
+	private int reclen;
+
+	public synchronized void init(IStageManager mgr) {
+		ISystemConfig config = mgr.getConfig();
+		filename = config.getString("global.profile.binary.filename");
+		segmentSize = config.getInt("global.profile.binary.segmentSize");
+		maxSegments = config.getInt("global.profile.binary.segments");
+		// Overwrite the profile of a previous run, as FileProfilerHandler does
+		File[] old = segments(filename);
+		for (int i = 0; i < old.length; i++) old[i].delete();
+		rotate(0);
+	}
+
+	/**
+	 * Return the name of the given segment of the given profile.
+	 */
+	static String segmentName(String filename, int segment) {
+		return filename + "." + segment;
+	}
+
+	/**
+	 * Return the segments of the given profile found on disk.
+	 */
+	static File[] segments(String filename) {
+		File f = new File(filename).getAbsoluteFile();
+		final String prefix = f.getName() + ".";
+		File[] files = f.getParentFile().listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				if (!name.startsWith(prefix) || name.length() == prefix.length()) return false;
+				for (int i = prefix.length(); i < name.length(); i++) {
+					if (!Character.isDigit(name.charAt(i))) return false;
+				}
+				return true;
+			}
+		});
+		return (files != null) ? files : new File[0];
+	}
+
+	public synchronized void profilableAdded(String name) {
+		names.add(name);
+		int[] l = new int[last.length + 1];
+		System.arraycopy(last, 0, l, 0, last.length);
+		last = l;
+
+		reclen = 0;
+		put(ADDED);
+		putName(name);
+		write();
+	}
+
+	public synchronized void profilableRemoved(String name) {
+		int i = names.indexOf(name);
+		if (i < 0) return;
+		names.remove(i);
+		int[] l = new int[last.length - 1];
+		System.arraycopy(last, 0, l, 0, i);
+		System.arraycopy(last, i + 1, l, i, l.length - i);
+		last = l;
+
+		reclen = 0;
+		put(REMOVED);
+		putVarint(i);
+		write();
+	}
+
+	public synchronized void sampleDelayChanged(int newDelay) {
+		delay = newDelay;
+		reclen = 0;
+		put(DELAY);
+		putVarint(newDelay);
+		write();
+	}
+
+	public synchronized void profilablesSnapshot(int[] sizes) {
+		if (buf == null) return;
+		long now = System.currentTimeMillis();
+		// The profiler may sample before notifying a change of profilables
+		int num = Math.min(sizes.length, last.length);
+
+		reclen = 0;
+		put(SNAPSHOT);
+		putVarint(Math.max(now - lastTime, 0));
+		putVarint(num);
+		for (int i = 0; i < num; i++) {
+			int d = sizes[i] - last[i];
+			putVarint((d << 1) ^ (d >> 31));
+			last[i] = sizes[i];
+		}
+		if (reclen + 1 > buf.remaining()) {
+			// Start the next segment over from 0, room for the largest record
+			rotate(16 + 5 * num);
+			profilablesSnapshot(sizes);
+			return;
+		}
+		buf.put(rec, 0, reclen);
+		lastTime = now;
+	}
+
+	public synchronized void destroy() {
+		close();
+	}
+
+	/**
+	 * Write the record being built, going on with the next segment if
+	 * it does not fit in the current one.
+	 */
+	private void write() {
+		if (buf == null) return;
+		if (reclen + 1 > buf.remaining()) {
+			// The header of the next segment includes the change
+			rotate(0);
+			return;
+		}
+		buf.put(rec, 0, reclen);
+	}
+
+	/**
+	 * Close the current segment and open the next one, large enough for
+	 * its header and a record of the given size.
+	 */
+	private void rotate(int needed) {
+		close();
+		segment++;
+		if (segment >= maxSegments) {
+			new File(segmentName(filename, segment - maxSegments)).delete();
+		}
+		String name = segmentName(filename, segment);
+		try {
+			// Build the list of profilables first, to size the segment
+			reclen = 0;
+			put(NAMES);
+			putVarint(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				putName((String) names.get(i));
+			}
+			if (delay >= 0) {
+				put(DELAY);
+				putVarint(delay);
+			}
+			int size = Math.max(segmentSize, HEADER_SIZE + reclen + needed + 1);
+
+			new File(name).delete();
+			file = new RandomAccessFile(name, "rw");
+			buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			lastTime = System.currentTimeMillis();
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putLong(lastTime);
+			buf.put(rec, 0, reclen);
+			for (int i = 0; i < last.length; i++) last[i] = 0;
+			if (DEBUG) System.err.println("BinaryProfilerHandler: writing " + name + ", " + size + " bytes");
+		} catch (IOException e) {
+			System.err.println("BinaryProfilerHandler: cannot map " + name + ": " + e);
+			close();
+		}
+	}
+
+	/**
+	 * Flush the current segment to disk and trim it to what was written.
+	 */
+	private void close() {
+		if (file == null) return;
+		try {
+			if (buf != null) {
+				int len = buf.position();
+				buf.force();
+				buf = null;
+				// Leaves the END byte after the last record
+				file.getChannel().truncate(len + 1);
+			}
+			file.close();
+		} catch (IOException e) {
+			System.err.println("BinaryProfilerHandler: cannot close " + segmentName(filename, segment) + ": " + e);
+		}
+		file = null;
+		buf = null;
+	}
+
+	private void put(int b) {
+		if (reclen == rec.length) {
+			byte[] r = new byte[rec.length * 2];
+			System.arraycopy(rec, 0, r, 0, reclen);
+			rec = r;
+		}
+		rec[reclen++] = (byte) b;
+	}
+
+	private void putVarint(long v) {
+		while ((v & ~0x7fL) != 0) {
+			put((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		put((int) v);
+	}
+
+	private void putVarint(int v) {
+		putVarint(v & 0xffffffffL);
+	}
+
+	private void putName(String name) {
+		byte[] b;
+		try {
+			b = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			b = name.getBytes();
+		}
+		putVarint(b.length);
+		for (int i = 0; i < b.length; i++) put(b[i]);
+	}
+
+}
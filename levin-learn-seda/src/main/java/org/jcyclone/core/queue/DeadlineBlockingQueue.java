@@ -0,0 +1,378 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.rtc.DeadlinePolicy;
+
+import java.util.List;
+
+/**
+ * A IBlockingQueue implementation which dequeues elements earliest
+ * deadline first, as given by its DeadlinePolicy. Elements with the same
+ * deadline, including those without one, are dequeued in the order they
+ * were enqueued, so that with the default policy the queue is FIFO except
+ * for IDeadlineEvents.
+ * <p/>
+ * The deadline of an element is stamped when it is enqueued, so that an
+ * element which carries no time of its own still ages while it waits;
+ * the DeadlineBatchSorter gets these deadlines with the elements.
+ * <p/>
+ * The elements are kept in a binary heap guarded by the queue monitor,
+ * so that enqueue and dequeue take O(log n) time. A stage uses it by
+ * setting its <tt>queue.class</tt>; the StageWrapper then sets the policy
+ * from the <tt>deadline.class<i>N</i>Target</tt> keys of the stage.
+ *
+ * @see DeadlinePolicy
+ * @see org.jcyclone.core.internal.DeadlineBatchSorter
+ */
+public class DeadlineBlockingQueue implements IBlockingQueue, IProfilable {
+
+	private static final boolean DEBUG = false;
+
+	private IElement[] heap;
+	private long[] deadlines;
+	private long[] seqs;          // enqueue order, to break ties
+	private int count;
+	private int reserved;         // slots of uncommitted transactions
+	private long nextSeq;
+
+	private int waitingTakes;
+	private int waitingPuts;
+
+	protected volatile int capacity;
+	private volatile DeadlinePolicy policy;
+
+	/**
+	 * Create an unbounded queue.
+	 */
+	public DeadlineBlockingQueue() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a queue with the given capacity.
+	 *
+	 * @throws IllegalArgumentException if capacity less or equal to zero
+	 */
+	public DeadlineBlockingQueue(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.policy = new DeadlinePolicy();
+		int initial = Math.min(capacity, 16);
+		heap = new IElement[initial];
+		deadlines = new long[initial];
+		seqs = new long[initial];
+	}
+
+	public DeadlinePolicy getDeadlinePolicy() {
+		return policy;
+	}
+
+	/**
+	 * Set the policy giving the deadlines of the elements enqueued from
+	 * now on.
+	 */
+	public void setDeadlinePolicy(DeadlinePolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Return the deadline of the element at the head of the queue, or
+	 * DeadlinePolicy.NONE if the queue is empty.
+	 */
+	public synchronized long headDeadline() {
+		return (count == 0) ? DeadlinePolicy.NONE : deadlines[0];
+	}
+
+// --------------------- heap ---------------------
+
+	private boolean before(int i, int j) {
+		return deadlines[i] < deadlines[j] || (deadlines[i] == deadlines[j] && seqs[i] < seqs[j]);
+	}
+
+	private void swap(int i, int j) {
+		IElement e = heap[i];
+		heap[i] = heap[j];
+		heap[j] = e;
+		long d = deadlines[i];
+		deadlines[i] = deadlines[j];
+		deadlines[j] = d;
+		long s = seqs[i];
+		seqs[i] = seqs[j];
+		seqs[j] = s;
+	}
+
+	// Call only under synch on this
+	private void insert(IElement x, long now) {
+		if (count == heap.length) {
+			int n = Math.max(16, heap.length * 2);
+			IElement[] h = new IElement[n];
+			long[] d = new long[n];
+			long[] s = new long[n];
+			System.arraycopy(heap, 0, h, 0, count);
+			System.arraycopy(deadlines, 0, d, 0, count);
+			System.arraycopy(seqs, 0, s, 0, count);
+			heap = h;
+			deadlines = d;
+			seqs = s;
+		}
+		int i = count++;
+		heap[i] = x;
+		deadlines[i] = policy.deadlineOf(x, now);
+		seqs[i] = nextSeq++;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (!before(i, parent)) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	// Call only under synch on this
+	private IElement extract() {
+		if (count == 0) return null;
+		IElement x = heap[0];
+		count--;
+		if (count > 0) swap(0, count);
+		heap[count] = null;
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= count) break;
+			if (child + 1 < count && before(child + 1, child)) child++;
+			if (!before(child, i)) break;
+			swap(i, child);
+			i = child;
+		}
+		return x;
+	}
+
+	// Call only under synch on this; deadlines may be null
+	private int extract(List list, int maxElements, long[] deadlines) {
+		int n = 0;
+		while (n < maxElements && count > 0) {
+			if (deadlines != null) deadlines[n] = this.deadlines[0];
+			list.add(extract());
+			n++;
+		}
+		if (n > 0 && waitingPuts > 0) notifyAll();
+		return n;
+	}
+
+	private void added() {
+		if (waitingTakes > 0) notifyAll();
+	}
+
+	/**
+	 * Wait until the queue holds room for n more elements, for up to msecs
+	 * milliseconds, or forever if msecs is -1.
+	 * Call only under synch on this.
+	 */
+	private boolean awaitRoom(int n, int msecs) throws InterruptedException {
+		long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
+		long waitTime = msecs;
+		while (count + reserved + n > capacity) {
+			if (msecs >= 0 && waitTime <= 0) return false;
+			++waitingPuts;
+			try {
+				if (msecs < 0) wait();
+				else wait(waitTime);
+			} finally {
+				--waitingPuts;
+			}
+			if (msecs >= 0) waitTime = msecs - (System.currentTimeMillis() - start);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the queue is not empty, for up to msecs milliseconds, or
+	 * forever if msecs is -1.
+	 * Call only under synch on this.
+	 */
+	private boolean awaitElement(int msecs) throws InterruptedException {
+		long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
+		long waitTime = msecs;
+		while (count == 0) {
+			if (msecs >= 0 && waitTime <= 0) return false;
+			++waitingTakes;
+			try {
+				if (msecs < 0) wait();
+				else wait(waitTime);
+			} finally {
+				--waitingTakes;
+			}
+			if (msecs >= 0) waitTime = msecs - (System.currentTimeMillis() - start);
+		}
+		return true;
+	}
+
+// --------------------- Interface IBlockingSink ---------------------
+
+	public synchronized void enqueue(IElement x) throws SinkException {
+		if (x == null) throw new IllegalArgumentException();
+		if (count + reserved >= capacity) throw new SinkFullException();
+		insert(x, System.currentTimeMillis());
+		added();
+	}
+
+	public synchronized boolean enqueueLossy(IElement x) {
+		if (x == null) throw new IllegalArgumentException();
+		if (count + reserved >= capacity) return false;
+		insert(x, System.currentTimeMillis());
+		added();
+		return true;
+	}
+
+	public synchronized void enqueueMany(List list) throws SinkException {
+		if (list == null) throw new IllegalArgumentException();
+		int size = list.size();
+		if (count + reserved + size > capacity) throw new SinkFullException();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < size; i++) {
+			insert((IElement) list.get(i), now);
+		}
+		added();
+	}
+
+	public ITransaction enqueuePrepare(List elements) throws SinkException {
+		if (elements == null) throw new IllegalArgumentException();
+		int size = elements.size();
+		synchronized (this) {
+			if (count + reserved + size > capacity) throw new SinkFullException();
+			reserved += size;
+		}
+		return PooledTransaction.get(txnOwner, elements, size);
+	}
+
+	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
+		txn.join(enqueuePrepare(elements));
+	}
+
+	public synchronized void blockingEnqueue(IElement x) throws InterruptedException {
+		if (x == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		awaitRoom(1, -1);
+		insert(x, System.currentTimeMillis());
+		added();
+	}
+
+	public synchronized boolean enqueueLossy(IElement x, int msecs) throws InterruptedException {
+		if (x == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitRoom(1, Math.max(msecs, 0))) return false;
+		insert(x, System.currentTimeMillis());
+		added();
+		return true;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Reset the capacity of this queue. If the new capacity is less than
+	 * the number of elements, existing elements are NOT removed, but
+	 * incoming puts will not proceed until the number of elements is less
+	 * than the new capacity.
+	 *
+	 * @throws IllegalArgumentException if capacity less or equal to zero
+	 */
+	public synchronized void setCapacity(int newCapacity) {
+		if (newCapacity <= 0) throw new IllegalArgumentException();
+		capacity = newCapacity;
+		if (waitingPuts > 0) notifyAll();
+	}
+
+	public int profileSize() {
+		return size();
+	}
+
+// --------------------- Interface IBlockingSource ---------------------
+
+	public synchronized IElement dequeue() {
+		IElement x = extract();
+		if (x != null && waitingPuts > 0) notifyAll();
+		return x;
+	}
+
+	public synchronized int dequeueAll(List list) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, count, null);
+	}
+
+	public synchronized int dequeue(List list, int maxElements) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, maxElements, null);
+	}
+
+	/**
+	 * Dequeue at most maxElements elements, earliest deadline first, and
+	 * store the deadline stamped on each one when it was enqueued into
+	 * deadlines, from index 0. maxElements must not exceed
+	 * deadlines.length.
+	 */
+	public synchronized int dequeue(List list, int maxElements, long[] deadlines) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, Math.min(maxElements, deadlines.length), deadlines);
+	}
+
+	/**
+	 * Like dequeue(List, int, long[]), waiting for up to msecs
+	 * milliseconds, or forever if msecs is -1, for an element.
+	 */
+	public synchronized int blockingDequeue(List list, int msecs, int maxElements, long[] deadlines) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitElement(msecs)) return 0;
+		return extract(list, Math.min(maxElements, deadlines.length), deadlines);
+	}
+
+	public synchronized IElement blockingDequeue(int timeout_millis) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitElement(timeout_millis)) return null;
+		return dequeue();
+	}
+
+	public synchronized int blockingDequeueAll(List list, int msecs) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitElement(msecs)) return 0;
+		return extract(list, count, null);
+	}
+
+	public synchronized int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitElement(msecs)) return 0;
+		return extract(list, maxElements, null);
+	}
+
+// --------------------- transactions ---------------------
+
+	// transactions are pooled, and hold their provisional elements
+	private final PooledTransaction.IOwner txnOwner = new PooledTransaction.IOwner() {
+		public void enqueueCommit(List elements, int reservedSize) {
+			synchronized (DeadlineBlockingQueue.this) {
+				reserved -= reservedSize;
+				long now = System.currentTimeMillis();
+				for (int i = 0; i < reservedSize; i++) {
+					insert((IElement) elements.get(i), now);
+				}
+				added();
+			}
+			if (DEBUG) System.err.println("DeadlineBlockingQueue: committed " + reservedSize + " elements");
+		}
+
+		public void enqueueAbort(int reservedSize) {
+			synchronized (DeadlineBlockingQueue.this) {
+				reserved -= reservedSize;
+				if (waitingPuts > 0) DeadlineBlockingQueue.this.notifyAll();
+			}
+		}
+	};
+
+}
@@ -2,10 +2,7 @@ package org.jcyclone.core.queue;
 
 import org.jcyclone.core.profiler.IProfilable;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
 
 /**
  * IQueue implementation that use an array, so no memory
@@ -41,9 +38,6 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 	 */
 	protected final Object takeMonitor = new Object();
 
-	// transactional map
-	protected Map txnMap = Collections.synchronizedMap(new WeakHashMap());
-
 	/**
 	 * Create a queue with the default capacity
 	 */
@@ -239,52 +233,30 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 			}
 			emptySlots -= size;
 		}
-		Txn key = new Txn(size);
-		txnMap.put(key, elements);
-		return key;
+		return PooledTransaction.get(txnOwner, elements, size);
 	}
 
 	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
 		txn.join(enqueuePrepare(elements));
 	}
 
-	class Txn extends ITransaction.AbstractTransaction {
-		int reservedSize;
-
-		public Txn(int size) {
-			this.reservedSize = size;
-		}
-
-		protected void doCommit() {
-			DynamicArrayBlockingQueue.this.enqueueCommit(this);
-		}
-
-		protected void doAbort() {
-			DynamicArrayBlockingQueue.this.enqueueAbort(this);
+	// transactions are pooled, and hold their provisional elements
+	private final PooledTransaction.IOwner txnOwner = new PooledTransaction.IOwner() {
+		public void enqueueCommit(List elements, int reservedSize) {
+			synchronized (putMonitor) {
+				for (int i = 0; i < reservedSize; i++) {
+					array[putPtr] = (IElement) elements.get(i);
+					if (++putPtr >= array.length) putPtr = 0;
+				}
+			}
+			incUsedSlots(reservedSize);
 		}
-	}
 
-	private void enqueueCommit(Txn key) {
-		List list = (List) txnMap.remove(key);
-		if (list == null) throw new IllegalArgumentException("unknown key " + key);
-		if (list.size() != key.reservedSize) {
-			incEmptySlots(key.reservedSize);  // abort
-			throw new IllegalStateException("transaction aborted: the size of the provisionally enqueued list has been modified");
+		public void enqueueAbort(int reservedSize) {
+			incEmptySlots(reservedSize);
 		}
-		synchronized (putMonitor) {
-			for (int i = 0; i < key.reservedSize; i++) {
-				array[putPtr] = (IElement) list.get(i);
-				if (++putPtr >= array.length) putPtr = 0;
-			}
-		}
-		incUsedSlots(key.reservedSize);
-	}
+	};
 
-	private void enqueueAbort(Txn key) {
-		List list = (List) txnMap.remove(key);
-		if (list == null) throw new IllegalArgumentException("unknown key " + key);
-		incEmptySlots(key.reservedSize);
-	}
 
 
 // --------------------- Interface ISource ---------------------
@@ -0,0 +1,209 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.event.RecyclingPool;
+
+import java.util.List;
+
+/**
+ * A ForwardingSink passes its elements on to another sink, and lets its
+ * subclasses act before the elements are enqueued ({@link #entering}),
+ * once the sink has accepted them ({@link #entered}), around the commit
+ * of a transactional enqueue ({@link #committing}, {@link #commitFailed})
+ * and when it is aborted ({@link #aborted}). All hooks do nothing by
+ * default.
+ * <p/>
+ * The transactions of a forwarding sink are pooled like those of the
+ * queues (see PooledTransaction), so that a chain of forwarding sinks
+ * does not allocate a wrapper per enqueuePrepare. A subclass which needs
+ * no transaction hook returns false from {@link #wrapsTransactions}, and
+ * enqueuePrepare then returns the transaction of the sink itself.
+ */
+public abstract class ForwardingSink implements IBlockingSink {
+
+	private static final RecyclingPool pool = new RecyclingPool("ForwardingSink.Transaction", 256,
+	    new RecyclingPool.IFactory() {
+		    public Object create(RecyclingPool.Handle handle) {
+			    return new forwardingTxn(handle);
+		    }
+
+		    public void reset(Object obj) {
+			    ((forwardingTxn) obj).clear();
+		    }
+	    });
+
+	protected final IBlockingSink sink;
+
+	protected ForwardingSink(IBlockingSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Return the sink the elements are passed on to.
+	 */
+	public IBlockingSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Called before the given element is passed on to the sink.
+	 */
+	protected void entering(IElement element) {
+	}
+
+	/**
+	 * Called before the given elements are passed on to the sink,
+	 * including for a transactional enqueue.
+	 */
+	protected void entering(List elements) {
+	}
+
+	/**
+	 * Called once the sink has accepted numEvents elements, and for a
+	 * transactional enqueue, once it is committed.
+	 */
+	protected void entered(int numEvents) {
+	}
+
+	/**
+	 * Called before the transaction of the sink for numEvents elements is
+	 * committed.
+	 */
+	protected void committing(int numEvents) {
+	}
+
+	/**
+	 * Called when committing the transaction of the sink for numEvents
+	 * elements failed, after {@link #committing}.
+	 */
+	protected void commitFailed(int numEvents) {
+	}
+
+	/**
+	 * Called once the transaction of the sink for the given elements was
+	 * aborted, or failed to commit. numEvents is the number of elements
+	 * when the transaction was prepared.
+	 */
+	protected void aborted(List elements, int numEvents) {
+	}
+
+	/**
+	 * Return true if the transactions of the sink must be wrapped to call
+	 * {@link #committing}, {@link #commitFailed}, {@link #aborted} and
+	 * {@link #entered}.
+	 * The default is true.
+	 */
+	protected boolean wrapsTransactions() {
+		return true;
+	}
+
+	public void enqueue(IElement element) throws SinkException {
+		entering(element);
+		sink.enqueue(element);
+		entered(1);
+	}
+
+	public boolean enqueueLossy(IElement element) {
+		entering(element);
+		boolean pass = sink.enqueueLossy(element);
+		if (pass) entered(1);
+		return pass;
+	}
+
+	public void enqueueMany(List elements) throws SinkException {
+		entering(elements);
+		sink.enqueueMany(elements);
+		entered(elements.size());
+	}
+
+	public ITransaction enqueuePrepare(List elements) throws SinkException {
+		entering(elements);
+		ITransaction txn = sink.enqueuePrepare(elements);
+		if (!wrapsTransactions()) return txn;
+		forwardingTxn ftxn = RecyclingPool.isDebug() ? new forwardingTxn(null) : (forwardingTxn) pool.get();
+		ftxn.owner = this;
+		ftxn.txn = txn;
+		ftxn.txnStamp = PooledTransaction.stampOf(txn);
+		ftxn.elements = elements;
+		ftxn.numEvents = elements.size();
+		ftxn.begin();
+		return ftxn;
+	}
+
+	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
+		if (wrapsTransactions()) {
+			txn.join(enqueuePrepare(elements));
+		} else {
+			entering(elements);
+			sink.enqueuePrepare(elements, txn);
+		}
+	}
+
+	public void blockingEnqueue(IElement element) throws InterruptedException {
+		entering(element);
+		sink.blockingEnqueue(element);
+		entered(1);
+	}
+
+	public boolean enqueueLossy(IElement element, int timeout_millis) throws InterruptedException {
+		entering(element);
+		boolean pass = sink.enqueueLossy(element, timeout_millis);
+		if (pass) entered(1);
+		return pass;
+	}
+
+	public int size() {
+		return sink.size();
+	}
+
+	public void setCapacity(int newCapacity) {
+		sink.setCapacity(newCapacity);
+	}
+
+	public int capacity() {
+		return sink.capacity();
+	}
+
+	/**
+	 * Completes the transaction of the sink and calls the hooks of the
+	 * forwarding sink which prepared it.
+	 */
+	static final class forwardingTxn extends PooledTransaction {
+		private ForwardingSink owner;
+		private ITransaction txn;
+		private long txnStamp;
+		private List elements;
+		private int numEvents;
+
+		forwardingTxn(RecyclingPool.Handle handle) {
+			super(handle);
+		}
+
+		protected void doCommit() {
+			owner.committing(numEvents);
+			boolean done = false;
+			try {
+				PooledTransaction.commit(txn, txnStamp);
+				done = true;
+			} finally {
+				if (!done) {
+					owner.commitFailed(numEvents);
+					owner.aborted(elements, numEvents);
+				}
+			}
+			owner.entered(numEvents);
+		}
+
+		protected void doAbort() {
+			PooledTransaction.abort(txn, txnStamp);
+			owner.aborted(elements, numEvents);
+		}
+
+		protected void clear() {
+			super.clear();
+			owner = null;
+			txn = null;
+			elements = null;
+		}
+	}
+
+}
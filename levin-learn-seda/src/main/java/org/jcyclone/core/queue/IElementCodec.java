@@ -0,0 +1,23 @@
+package org.jcyclone.core.queue;
+
+import java.io.IOException;
+
+/**
+ * An element codec turns queue elements into bytes and back, for queues
+ * which keep some of their elements outside of the heap.
+ *
+ * @see SpillingBlockingQueue
+ */
+public interface IElementCodec {
+
+	/**
+	 * Return the encoded form of the given element.
+	 */
+	byte[] encode(IElement element) throws IOException;
+
+	/**
+	 * Return the element encoded in the given bytes.
+	 */
+	IElement decode(byte[] data) throws IOException;
+
+}
@@ -1,6 +1,10 @@
 package org.jcyclone.core.queue;
 
 /**
+ * A provisional enqueue operation. A transaction must not be used once
+ * committed or aborted, since queues may recycle their transactions
+ * (see PooledTransaction).
+ *
  * @author Jean Morissette
  */
 public interface ITransaction {
@@ -34,14 +38,18 @@ public interface ITransaction {
 
 		public void commit() {
 			doCommit();
-			if (joinedTxn != null)
-				joinedTxn.commit();
+			ITransaction txn = joinedTxn;
+			joinedTxn = null;
+			if (txn != null)
+				txn.commit();
 		}
 
 		public void abort() {
 			doAbort();
-			if (joinedTxn != null)
-				joinedTxn.abort();
+			ITransaction txn = joinedTxn;
+			joinedTxn = null;
+			if (txn != null)
+				txn.abort();
 		}
 
 		public void join(ITransaction txn) {   // combine transaction
@@ -17,7 +17,7 @@ import java.util.WeakHashMap;
  */
 public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 
-	private class LinkedNode {
+	private static class LinkedNode {
 		LinkedNode next;
 		IElement value;
 
@@ -438,7 +438,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 		}
 		synchronized (this.last) {
 			this.last.next = n;
-			this.last = n;
+			this.last = last;
 		}
 	}
 
@@ -633,7 +633,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 			}
 			synchronized (this.last) {
 				this.last.next = n;
-				this.last = n;
+				this.last = last;
 			}
 		}
 		// call outside of lock to loosen put/take coupling
@@ -0,0 +1,486 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.profiler.IProfilable;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded IBlockingQueue implementation backed by a lock-free ring
+ * buffer. Every slot carries a sequence number, so producers and
+ * consumers claim slots with a single CAS on their own position counter
+ * instead of taking a monitor. Monitors are only used to park threads
+ * when the queue is empty (takes) or full (puts), and the other side only
+ * touches them when somebody is actually waiting.
+ * <p/>
+ * The ring is allocated once, rounded up to a power of two; the capacity
+ * may later be lowered (or raised back up to the ring size) with
+ * <tt>setCapacity</tt>. Under contention the capacity check may be
+ * overshot by the number of concurrent producers, but the ring itself
+ * never overflows.
+ * <p/>
+ * When the queue is known to be drained by a single thread, it can be
+ * created in single-consumer mode, which avoids the CAS on the take
+ * side. The StageWrapper does so for the queue of a stage whose handler
+ * is an ISingleThreadedEventHandler, unless the stage sets
+ * <tt>queue.singleConsumer</tt> to false; other stages may set it to
+ * true if a single thread dequeues their events.
+ */
+public class LockFreeArrayBlockingQueue implements IBlockingQueue, IProfilable {
+
+	/**
+	 * The capacity of a queue created without one.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+	private static final int MAX_RING_SIZE = 1 << 30;
+
+	// number of busy-spins before yielding while waiting for a slot
+	// claimed by another thread to be published or released
+	private static final int SPINS = 64;
+
+	private final int mask;
+	private final AtomicReferenceArray buffer;
+	private final AtomicLongArray sequence;
+	private final boolean singleConsumer;
+
+	private final AtomicLong putPos = new AtomicLong();
+	private final AtomicLong takePos = new AtomicLong();
+
+	// slots provisionally reserved by uncommitted transactions
+	private final AtomicInteger reservedSlots = new AtomicInteger();
+
+	private volatile int capacity;
+
+	private final AtomicInteger waitingTakes = new AtomicInteger();
+	private final AtomicInteger waitingPuts = new AtomicInteger();
+
+	/**
+	 * Helper monitor used to park takes on an empty queue.
+	 */
+	protected final Object takeMonitor = new Object();
+
+	/**
+	 * Helper monitor used to park puts on a full queue.
+	 */
+	protected final Object putMonitor = new Object();
+
+	/**
+	 * Create a multi-consumer queue with the default capacity.
+	 */
+	public LockFreeArrayBlockingQueue() {
+		this(DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * Create a multi-consumer queue with the given capacity.
+	 *
+	 * @throws IllegalArgumentException if capacity less or equal to zero
+	 */
+	public LockFreeArrayBlockingQueue(int capacity) {
+		this(capacity, false);
+	}
+
+	/**
+	 * Create a queue with the given capacity. If <code>singleConsumer</code>
+	 * is true, at most one thread at a time may dequeue from this queue.
+	 *
+	 * @throws IllegalArgumentException if capacity less or equal to zero
+	 */
+	public LockFreeArrayBlockingQueue(int capacity, boolean singleConsumer) {
+		if (capacity <= 0 || capacity > MAX_RING_SIZE) throw new IllegalArgumentException();
+		int ringSize = 1;
+		while (ringSize < capacity) ringSize <<= 1;
+		this.mask = ringSize - 1;
+		this.buffer = new AtomicReferenceArray(ringSize);
+		this.sequence = new AtomicLongArray(ringSize);
+		for (int i = 0; i < ringSize; i++) {
+			sequence.set(i, i);
+		}
+		this.capacity = capacity;
+		this.singleConsumer = singleConsumer;
+	}
+
+	/**
+	 * Return true if at most one thread at a time may dequeue from this
+	 * queue.
+	 */
+	public boolean isSingleConsumer() {
+		return singleConsumer;
+	}
+
+// --------------------- Interface ISink ---------------------
+
+	public void enqueue(IElement element) throws SinkException {
+		if (element == null) throw new IllegalArgumentException();
+		if (!offer(element))
+			throw new SinkFullException();
+		signalNotEmpty(1);
+	}
+
+	public boolean enqueueLossy(IElement element) {
+		if (element == null) throw new IllegalArgumentException();
+		if (!offer(element))
+			return false;
+		signalNotEmpty(1);
+		return true;
+	}
+
+	public void enqueueMany(List elements) throws SinkException {
+		if (elements == null) throw new IllegalArgumentException();
+		int size = elements.size();
+		if (size == 0) return;
+		long pos = claim(size, false);
+		if (pos < 0)
+			throw new SinkFullException();
+		publish(elements, pos);
+		signalNotEmpty(size);
+	}
+
+	public ITransaction enqueuePrepare(List elements) throws SinkException {
+		if (elements == null) throw new IllegalArgumentException();
+		int size = elements.size();
+		for (; ;) {
+			int reserved = reservedSlots.get();
+			if (used(putPos.get(), reserved) + size > capacity)
+				throw new SinkFullException();
+			if (reservedSlots.compareAndSet(reserved, reserved + size))
+				return PooledTransaction.get(txnOwner, elements, size);
+		}
+	}
+
+	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
+		txn.join(enqueuePrepare(elements));
+	}
+
+	/**
+	 * Return the number of elements in the queue. This is only a snapshot
+	 * value, that may change immediately after returning.
+	 */
+	public int size() {
+		long n = putPos.get() - takePos.get();
+		if (n < 0) return 0;
+		return (int) Math.min(n, mask + 1);
+	}
+
+	/**
+	 * Reset the capacity of this queue. The capacity cannot exceed the
+	 * size of the ring allocated at construction time; larger values
+	 * (such as the Integer.MAX_VALUE used for "no threshold") are clamped
+	 * to the ring size.
+	 *
+	 * @throws IllegalArgumentException if capacity less or equal to zero
+	 */
+	public void setCapacity(int newCapacity) {
+		if (newCapacity <= 0) throw new IllegalArgumentException();
+		if (newCapacity > mask + 1)
+			newCapacity = mask + 1;
+		int oldCapacity = capacity;
+		capacity = newCapacity;
+		if (newCapacity > oldCapacity)
+			signalNotFull(newCapacity - oldCapacity);
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+// --------------------- Interface IBlockingSink ---------------------
+
+	public void blockingEnqueue(IElement element) throws InterruptedException {
+		enqueueLossy(element, -1);
+	}
+
+	/**
+	 * Adds the specified element, waiting up to <code>msecs</code>
+	 * milliseconds for space to become available. If <code>msecs</code>
+	 * is negative, waits forever.
+	 */
+	public boolean enqueueLossy(IElement element, int msecs) throws InterruptedException {
+		if (element == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (offer(element)) {
+			signalNotEmpty(1);
+			return true;
+		}
+		if (msecs == 0) return false;
+
+		long start = (msecs < 0) ? 0 : System.currentTimeMillis();
+		synchronized (putMonitor) {
+			waitingPuts.incrementAndGet();
+			try {
+				long waitTime = msecs;
+				for (; ;) {
+					if (offer(element))
+						break;
+					if (msecs < 0) {
+						putMonitor.wait();
+					} else {
+						if (waitTime <= 0) return false;
+						putMonitor.wait(waitTime);
+						waitTime = msecs - (System.currentTimeMillis() - start);
+					}
+				}
+			} catch (InterruptedException ex) {
+				putMonitor.notify();
+				throw ex;
+			} finally {
+				waitingPuts.decrementAndGet();
+			}
+		}
+		signalNotEmpty(1);
+		return true;
+	}
+
+// --------------------- Interface ISource ---------------------
+
+	public IElement dequeue() {
+		IElement x = poll();
+		if (x != null) signalNotFull(1);
+		return x;
+	}
+
+	public int dequeueAll(List list) {
+		if (list == null) throw new NullPointerException();
+		return drain(list, mask + 1);
+	}
+
+	public int dequeue(List list, int maxElements) {
+		if (list == null) throw new NullPointerException();
+		return drain(list, maxElements);
+	}
+
+// --------------------- Interface IBlockingSource ---------------------
+
+	public IElement blockingDequeue(int timeout_millis) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		long deadline = deadline(timeout_millis);
+		for (; ;) {
+			IElement x = poll();
+			if (x != null) {
+				signalNotFull(1);
+				return x;
+			}
+			if (!awaitNotEmpty(timeout_millis, deadline))
+				return null;
+		}
+	}
+
+	public int blockingDequeueAll(List list, int msecs) throws InterruptedException {
+		return blockingDequeue(list, msecs, mask + 1);
+	}
+
+	public int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (maxElements <= 0) return 0;
+		long deadline = deadline(msecs);
+		for (; ;) {
+			int n = drain(list, maxElements);
+			if (n > 0)
+				return n;
+			if (!awaitNotEmpty(msecs, deadline))
+				return 0;
+		}
+	}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	public boolean isEmpty() {
+		long pos = takePos.get();
+		return sequence.get((int) pos & mask) != pos + 1;
+	}
+
+	public int profileSize() {
+		return size();
+	}
+
+	public String toString() {
+		return "LockFreeArrayBlockingQueue[size=" + size() + ", capacity=" + capacity + "]";
+	}
+
+	/**
+	 * Number of occupied slots, counting provisional reservations.
+	 */
+	private long used(long putPosition, int reserved) {
+		return putPosition - takePos.get() + reserved;
+	}
+
+	/**
+	 * Claim and publish a single slot. Returns false if the queue is full.
+	 */
+	private boolean offer(IElement x) {
+		for (; ;) {
+			long pos = putPos.get();
+			if (used(pos, reservedSlots.get()) >= capacity)
+				return false;
+			int index = (int) pos & mask;
+			long dif = sequence.get(index) - pos;
+			if (dif == 0) {
+				if (putPos.compareAndSet(pos, pos + 1)) {
+					buffer.lazySet(index, x);
+					sequence.set(index, pos + 1);
+					return true;
+				}
+			} else if (dif < 0) {
+				// the slot has not been released by its consumer yet
+				return false;
+			}
+			// another producer got ahead of us: retry
+		}
+	}
+
+	/**
+	 * Claim <code>n</code> contiguous slots, so that no other producer can
+	 * interleave its elements with ours. Returns the first claimed position,
+	 * or -1 if the queue is full. Reservations made by
+	 * <tt>enqueuePrepare</tt> bypass the capacity check since their room was
+	 * accounted for at prepare time.
+	 */
+	private long claim(int n, boolean reserved) {
+		if (n > mask + 1) return -1;
+		for (; ;) {
+			long pos = putPos.get();
+			if (!reserved && used(pos, reservedSlots.get()) + n > capacity)
+				return -1;
+			long last = pos + n - 1;
+			long dif = sequence.get((int) last & mask) - last;
+			if (dif < 0) {
+				if (!reserved) return -1;
+				// room was reserved, but capacity may have been overshot by
+				// concurrent producers: wait for consumers to catch up
+				Thread.yield();
+				continue;
+			}
+			if (putPos.compareAndSet(pos, pos + n))
+				return pos;
+		}
+	}
+
+	/**
+	 * Fill the slots claimed from position <code>pos</code> with the
+	 * given elements, in order.
+	 */
+	private void publish(List elements, long pos) {
+		int size = elements.size();
+		for (int i = 0; i < size; i++, pos++) {
+			int index = (int) pos & mask;
+			// a consumer of the previous round may still be reading the slot
+			for (int spins = 0; sequence.get(index) != pos; spins++) {
+				if (spins >= SPINS) Thread.yield();
+			}
+			buffer.lazySet(index, elements.get(i));
+			sequence.set(index, pos + 1);
+		}
+	}
+
+	/**
+	 * Take a single element, or return null if the queue is empty.
+	 */
+	private IElement poll() {
+		for (; ;) {
+			long pos = takePos.get();
+			int index = (int) pos & mask;
+			long dif = sequence.get(index) - (pos + 1);
+			if (dif == 0) {
+				if (singleConsumer) {
+					takePos.lazySet(pos + 1);
+				} else if (!takePos.compareAndSet(pos, pos + 1)) {
+					continue;
+				}
+				IElement x = (IElement) buffer.get(index);
+				buffer.lazySet(index, null);
+				sequence.set(index, pos + mask + 1);
+				return x;
+			} else if (dif < 0) {
+				return null;
+			}
+			// another consumer got ahead of us: retry
+		}
+	}
+
+	private int drain(List list, int maxElements) {
+		int n = 0;
+		IElement x;
+		while (n < maxElements && (x = poll()) != null) {
+			list.add(x);
+			n++;
+		}
+		if (n > 0) signalNotFull(n);
+		return n;
+	}
+
+	private static long deadline(int msecs) {
+		return (msecs > 0) ? System.currentTimeMillis() + msecs : 0;
+	}
+
+	/**
+	 * Park until the queue becomes non-empty. Returns false if the timeout
+	 * elapsed first. A negative timeout waits forever, zero does not wait.
+	 */
+	private boolean awaitNotEmpty(int msecs, long deadline) throws InterruptedException {
+		if (msecs == 0) return false;
+		synchronized (takeMonitor) {
+			// registering as a waiter before re-checking guarantees that a
+			// producer publishing after the check will see us and notify
+			waitingTakes.incrementAndGet();
+			try {
+				while (isEmpty()) {
+					if (msecs < 0) {
+						takeMonitor.wait();
+					} else {
+						long waitTime = deadline - System.currentTimeMillis();
+						if (waitTime <= 0) return false;
+						takeMonitor.wait(waitTime);
+					}
+				}
+				return true;
+			} catch (InterruptedException ex) {
+				takeMonitor.notify();
+				throw ex;
+			} finally {
+				waitingTakes.decrementAndGet();
+			}
+		}
+	}
+
+	private void signalNotEmpty(int count) {
+		if (waitingTakes.get() > 0) {
+			synchronized (takeMonitor) {
+				if (count > 1)
+					takeMonitor.notifyAll();
+				else
+					takeMonitor.notify();
+			}
+		}
+	}
+
+	private void signalNotFull(int count) {
+		if (waitingPuts.get() > 0) {
+			synchronized (putMonitor) {
+				if (count > 1)
+					putMonitor.notifyAll();
+				else
+					putMonitor.notify();
+			}
+		}
+	}
+
+	// transactions are pooled, and hold their provisional elements
+	private final PooledTransaction.IOwner txnOwner = new PooledTransaction.IOwner() {
+		public void enqueueCommit(List elements, int reservedSize) {
+			long pos = claim(reservedSize, true);
+			reservedSlots.addAndGet(-reservedSize);
+			publish(elements, pos);
+			signalNotEmpty(reservedSize);
+		}
+
+		public void enqueueAbort(int reservedSize) {
+			reservedSlots.addAndGet(-reservedSize);
+			signalNotFull(reservedSize);
+		}
+	};
+
+}
@@ -0,0 +1,259 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.event.RecyclingPool;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transaction which goes back to a RecyclingPool once committed or
+ * aborted, so that enqueuePrepare allocates nothing when pooling is
+ * enabled. {@link #get} returns the transaction of the queues which keep
+ * no map of their pending transactions: it holds the provisional
+ * elements itself. Forwarding sinks subclass it to act on the
+ * transactions of the sinks they forward to.
+ * <p/>
+ * Since a recycled transaction is handed out again, each use of it gets
+ * a new <i>stamp</i>, made of a generation number and a pending bit. A
+ * transaction is committed or aborted once per stamp; committing or
+ * aborting it again throws an IllegalStateException. Code which keeps a
+ * transaction while the caller may complete it, like the transactions of
+ * forwarding sinks and joined transactions, takes its stamp with
+ * {@link #stampOf} and completes it with {@link #commit(ITransaction, long)}
+ * or {@link #abort(ITransaction, long)}, which fail rather than act on a
+ * later use of the object. In debug mode (<tt>global.pool.debug</tt>),
+ * transactions are not pooled at all, so that any late use of a
+ * transaction fails.
+ * <p/>
+ * Pooled transactions have no finalizer; an unpooled queue transaction,
+ * created while pooling is disabled or in debug mode, aborts itself when
+ * collected, as other transactions do.
+ *
+ * @see RecyclingPool
+ * @see ForwardingSink
+ */
+public abstract class PooledTransaction implements ITransaction {
+
+	/**
+	 * The queue side of a transaction.
+	 */
+	public interface IOwner {
+
+		/**
+		 * Enqueue the elements of a committed transaction, which hold the
+		 * given number of reserved slots.
+		 */
+		void enqueueCommit(List elements, int reservedSize);
+
+		/**
+		 * Release the slots reserved by an aborted transaction.
+		 */
+		void enqueueAbort(int reservedSize);
+	}
+
+	private static final long PENDING = 1;
+
+	private static final RecyclingPool pool = new RecyclingPool("Transaction", 256,
+	    new RecyclingPool.IFactory() {
+		    public Object create(RecyclingPool.Handle handle) {
+			    return (handle == null) ? new finalized() : new queueTxn(handle);
+		    }
+
+		    public void reset(Object obj) {
+			    ((PooledTransaction) obj).clear();
+		    }
+	    });
+
+	private final RecyclingPool.Handle handle;
+	private final AtomicLong stamp = new AtomicLong();
+	private ITransaction joinedTxn;
+	private long joinedStamp;
+
+	/**
+	 * @param handle the handle of the transaction in its pool, or null if
+	 *               it is not pooled
+	 */
+	protected PooledTransaction(RecyclingPool.Handle handle) {
+		this.handle = handle;
+	}
+
+	/**
+	 * Return a pending transaction of the given owner, for the given
+	 * elements which hold size reserved slots.
+	 */
+	public static PooledTransaction get(IOwner owner, List elements, int size) {
+		queueTxn txn = RecyclingPool.isDebug() ? new finalized() : (queueTxn) pool.get();
+		txn.owner = owner;
+		txn.elements = elements;
+		txn.reservedSize = size;
+		txn.begin();
+		return txn;
+	}
+
+	/**
+	 * Make this transaction pending under a new stamp. Subclasses call it
+	 * once they have set up a transaction taken from their pool; it
+	 * publishes their fields to the thread completing the transaction.
+	 */
+	protected final void begin() {
+		stamp.set(((stamp.get() >>> 1) + 1) << 1 | PENDING);
+	}
+
+	/**
+	 * Return the current stamp of the given transaction, or 0 if it is
+	 * not a PooledTransaction.
+	 */
+	public static long stampOf(ITransaction txn) {
+		return (txn instanceof PooledTransaction) ? ((PooledTransaction) txn).stamp.get() : 0;
+	}
+
+	/**
+	 * Commit the given transaction, provided it still has the given stamp
+	 * if it is a PooledTransaction.
+	 */
+	public static void commit(ITransaction txn, long stamp) {
+		if (txn instanceof PooledTransaction) ((PooledTransaction) txn).commit(stamp);
+		else txn.commit();
+	}
+
+	/**
+	 * Abort the given transaction, provided it still has the given stamp
+	 * if it is a PooledTransaction.
+	 */
+	public static void abort(ITransaction txn, long stamp) {
+		if (txn instanceof PooledTransaction) ((PooledTransaction) txn).abort(stamp);
+		else txn.abort();
+	}
+
+	public void commit() {
+		commit(stamp.get());
+	}
+
+	public void abort() {
+		abort(stamp.get());
+	}
+
+	/**
+	 * Commit this transaction if it still has the given stamp.
+	 *
+	 * @throws IllegalStateException if it was already completed, or reused
+	 */
+	public void commit(long s) {
+		complete(s);
+		ITransaction joined = joinedTxn;
+		long js = joinedStamp;
+		try {
+			doCommit();
+		} finally {
+			recycle();
+		}
+		if (joined != null) commit(joined, js);
+	}
+
+	/**
+	 * Abort this transaction if it still has the given stamp.
+	 *
+	 * @throws IllegalStateException if it was already completed, or reused
+	 */
+	public void abort(long s) {
+		complete(s);
+		ITransaction joined = joinedTxn;
+		long js = joinedStamp;
+		try {
+			doAbort();
+		} finally {
+			recycle();
+		}
+		if (joined != null) abort(joined, js);
+	}
+
+	public void join(ITransaction txn) {   // combine transaction
+		if (joinedTxn == null) {
+			joinedStamp = stampOf(txn);
+			joinedTxn = txn;
+		} else {
+			joinedTxn.join(txn);
+		}
+	}
+
+	/**
+	 * Carry out the commit; the transaction goes back to its pool when
+	 * this returns.
+	 */
+	protected abstract void doCommit();
+
+	/**
+	 * Carry out the abort; the transaction goes back to its pool when
+	 * this returns.
+	 */
+	protected abstract void doAbort();
+
+	/**
+	 * Drop the references held by this transaction before it goes back to
+	 * its pool.
+	 */
+	protected void clear() {
+		joinedTxn = null;
+	}
+
+	// Clear the pending bit of the given stamp, once
+	private void complete(long s) {
+		if ((s & PENDING) == 0 || !stamp.compareAndSet(s, s & ~PENDING)) {
+			if ((stamp.get() >>> 1) != (s >>> 1))
+				throw new IllegalStateException("transaction already committed or aborted, and reused");
+			throw new IllegalStateException("transaction already committed or aborted");
+		}
+	}
+
+	private void recycle() {
+		if (handle != null) handle.release();
+	}
+
+	/**
+	 * The transaction of a queue: holds the provisionally enqueued
+	 * elements until the queue is told to enqueue them.
+	 */
+	static class queueTxn extends PooledTransaction {
+		private IOwner owner;
+		private List elements;
+		private int reservedSize;
+
+		queueTxn(RecyclingPool.Handle handle) {
+			super(handle);
+		}
+
+		protected void doCommit() {
+			if (elements.size() != reservedSize) {
+				owner.enqueueAbort(reservedSize);
+				throw new IllegalStateException("transaction aborted: the size of the provisionally enqueued list has been modified");
+			}
+			if (reservedSize > 0) owner.enqueueCommit(elements, reservedSize);
+		}
+
+		protected void doAbort() {
+			owner.enqueueAbort(reservedSize);
+		}
+
+		protected void clear() {
+			super.clear();
+			owner = null;
+			elements = null;
+		}
+	}
+
+	/**
+	 * An unpooled queue transaction, which aborts itself if it is
+	 * collected while pending.
+	 */
+	static final class finalized extends queueTxn {
+		finalized() {
+			super(null);
+		}
+
+		protected void finalize() throws Throwable {
+			long s = stampOf(this);
+			if ((s & PENDING) != 0) abort(s);
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package org.jcyclone.core.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * The default element codec, which uses Java serialization: elements
+ * must be Serializable.
+ */
+public class SerializingElementCodec implements IElementCodec {
+
+	public byte[] encode(IElement element) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(element);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	public IElement decode(byte[] data) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return (IElement) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot decode element: " + e);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,733 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.profiler.IProfilable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A IBlockingQueue implementation which keeps at most
+ * <tt>memoryCapacity</tt> elements on the heap, and spills the others to
+ * a log of memory-mapped segment files on local disk, so that a stage
+ * which must not drop events absorbs long bursts without growing the
+ * heap. The queue is FIFO: once elements are spilled, new elements go to
+ * the log behind them, and the in-memory ring is refilled from the log,
+ * in order, whenever the consumer drains it to half its size.
+ * <p/>
+ * Spilled elements are encoded by an IElementCodec, by default Java
+ * serialization; an element which cannot be encoded is rejected with a
+ * BadElementException when it has to be spilled. A spilled element which
+ * cannot be decoded is not dropped: it is dequeued in its place as an
+ * {@link UndecodableElement}. A segment holds records of a 4-byte length
+ * followed by the encoded element; it is recycled once read, and a few
+ * empty segments are kept mapped for reuse. The queue is full when it
+ * holds <tt>capacity</tt> elements, or when the log would need more than
+ * <tt>maxSegments</tt> segments; the blocking enqueue methods and
+ * transaction commits then wait for the consumer. A commit waits until
+ * the consumer makes room, and an interrupt aborts it: the commit then
+ * throws an IllegalStateException, and leaves the interrupt status set.
+ * The log is not
+ * recovered across restarts: it only extends the queue, and its files
+ * are deleted when the VM exits.
+ * <p/>
+ * <tt>dequeueAll</tt> returns at most the elements of the in-memory
+ * ring, so that a stage draining its queue does not load the whole log
+ * onto the heap.
+ * <p/>
+ * A stage uses it by setting its <tt>queue.class</tt>; the StageWrapper
+ * then sets it up from its <tt>queue.spill.*</tt> keys.
+ *
+ * @see IElementCodec
+ */
+public class SpillingBlockingQueue implements IBlockingQueue, IProfilable {
+
+	private static final boolean DEBUG = false;
+
+	// empty segments kept mapped for reuse
+	private static final int SPARE_SEGMENTS = 2;
+
+	private ArrayDeque memory = new ArrayDeque();
+	private int memoryCapacity = 1024;
+
+	private LinkedList segments = new LinkedList();   // read from the first, written to the last
+	private LinkedList spares = new LinkedList();
+	private int diskCount;                            // elements in the log
+	private int reserved;                             // slots of uncommitted transactions
+
+	private int waitingTakes;
+	private int waitingPuts;
+
+	protected volatile int capacity;
+
+	private IElementCodec codec = new SerializingElementCodec();
+	private File dir;
+	private int segmentSize = 64 * 1024 * 1024;
+	private int maxSegments = -1;
+
+	private long numSpilled;
+	private int numLost;
+	private boolean ioWarned;
+
+	/**
+	 * Create an unbounded queue.
+	 */
+	public SpillingBlockingQueue() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a queue with the given capacity, counting the elements in
+	 * memory and on disk.
+	 *
+	 * @throws IllegalArgumentException if capacity less or equal to zero
+	 */
+	public SpillingBlockingQueue(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException();
+		this.capacity = capacity;
+	}
+
+// --------------------- configuration ---------------------
+
+	public synchronized int getMemoryCapacity() {
+		return memoryCapacity;
+	}
+
+	/**
+	 * Set the number of elements kept on the heap before spilling.
+	 */
+	public synchronized void setMemoryCapacity(int memoryCapacity) {
+		if (memoryCapacity <= 0) throw new IllegalArgumentException("Bad memory capacity " + memoryCapacity);
+		this.memoryCapacity = memoryCapacity;
+	}
+
+	public synchronized IElementCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Set the codec of spilled elements. It cannot be changed while
+	 * elements are spilled.
+	 */
+	public synchronized void setCodec(IElementCodec codec) {
+		if (diskCount > 0) throw new IllegalStateException("Cannot change the codec of spilled elements");
+		this.codec = codec;
+	}
+
+	/**
+	 * Set the directory of the segment files. By default, a new temporary
+	 * directory is created on the first spill.
+	 */
+	public synchronized void setSpillDirectory(File dir) {
+		if (!segments.isEmpty() || !spares.isEmpty())
+			throw new IllegalStateException("Cannot move the segments of a queue");
+		this.dir = dir;
+	}
+
+	public synchronized File getSpillDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Set the size in bytes of new segments. Elements larger than a
+	 * segment get a segment of their own.
+	 */
+	public synchronized void setSegmentSize(int segmentSize) {
+		if (segmentSize < 1024) throw new IllegalArgumentException("Bad segment size " + segmentSize);
+		this.segmentSize = segmentSize;
+		while (!spares.isEmpty()) ((segment) spares.removeFirst()).close();
+	}
+
+	public synchronized int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Set the maximum number of segments of the log; -1 means no limit.
+	 */
+	public synchronized void setMaxSegments(int maxSegments) {
+		this.maxSegments = maxSegments;
+	}
+
+	public synchronized int getMaxSegments() {
+		return maxSegments;
+	}
+
+	/**
+	 * Return the number of elements currently spilled to disk.
+	 */
+	public synchronized int spilledSize() {
+		return diskCount;
+	}
+
+	/**
+	 * Return the number of elements spilled to disk since startup.
+	 */
+	public synchronized long getSpillCount() {
+		return numSpilled;
+	}
+
+	/**
+	 * Return the number of spilled elements which could not be decoded,
+	 * and were dequeued as UndecodableElements.
+	 */
+	public synchronized int getLostCount() {
+		return numLost;
+	}
+
+	/**
+	 * Return the number of segments of the log.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+// --------------------- segment log ---------------------
+
+	/**
+	 * A memory-mapped segment file. The writer and reader buffers share
+	 * the mapping; their positions are the write and read offsets.
+	 */
+	static class segment {
+		File file;
+		RandomAccessFile raf;
+		int size;
+		MappedByteBuffer map;
+		ByteBuffer writer;
+		ByteBuffer reader;
+
+		segment(File dir, int size) throws IOException {
+			this.size = size;
+			this.file = File.createTempFile("segment", ".log", dir);
+			file.deleteOnExit();
+			this.raf = new RandomAccessFile(file, "rw");
+			raf.setLength(size);
+			this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.writer = map.duplicate();
+			this.reader = map.duplicate();
+		}
+
+		int free() {
+			return size - writer.position();
+		}
+
+		boolean drained() {
+			return reader.position() == writer.position();
+		}
+
+		void reset() {
+			writer.clear();
+			reader.clear();
+		}
+
+		// Unmap the file before deleting it, so that its disk and address
+		// space come back now rather than when the buffers are collected
+		void close() {
+			MappedByteBuffer m = map;
+			map = null;
+			writer = null;
+			reader = null;
+			unmap(m);
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			file.delete();
+		}
+	}
+
+	/**
+	 * Release the mapping of the given buffer, which must not be used
+	 * afterwards. Does nothing if the VM does not allow it; the mapping
+	 * is then released once the buffer is collected.
+	 */
+	static void unmap(MappedByteBuffer buf) {
+		if (buf == null || unmapper == null) return;
+		try {
+			unmapper.invoke(unsafe, buf);
+		} catch (Exception e) {
+			if (DEBUG) System.err.println("SpillingBlockingQueue: Cannot unmap segment: " + e);
+		}
+	}
+
+	// Unsafe.invokeCleaner, on Java 9 and later
+	private static Object unsafe;
+	private static Method unmapper;
+
+	static {
+		try {
+			Class c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+			unmapper = c.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			unmapper = null;
+		}
+	}
+
+	// Call only under synch on this
+	private segment newSegment(int size) throws IOException {
+		if (size == segmentSize && !spares.isEmpty()) return (segment) spares.removeFirst();
+		if (dir == null) {
+			dir = Files.createTempDirectory("jcyclone-spill").toFile();
+			dir.deleteOnExit();
+		} else if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create spill directory " + dir);
+		}
+		if (DEBUG) System.err.println("SpillingBlockingQueue: new segment of " + size + " bytes in " + dir);
+		return new segment(dir, size);
+	}
+
+	// Call only under synch on this
+	private void recycle(segment s) {
+		if (s.size == segmentSize && spares.size() < SPARE_SEGMENTS) {
+			s.reset();
+			spares.addLast(s);
+		} else {
+			s.close();
+		}
+	}
+
+	/**
+	 * Return true if the given records fit in the log.
+	 * Call only under synch on this.
+	 */
+	private boolean fits(byte[][] records, int num) {
+		segment tail = segments.isEmpty() ? null : (segment) segments.getLast();
+		int free = (tail == null) ? 0 : tail.free();
+		int n = segments.size();
+		for (int i = 0; i < num; i++) {
+			int need = 4 + records[i].length;
+			if (free < need) {
+				if (maxSegments > 0 && n >= maxSegments) return false;
+				n++;
+				free = Math.max(segmentSize, need);
+			}
+			free -= need;
+		}
+		return true;
+	}
+
+	/**
+	 * Append a record to the log.
+	 * Call only under synch on this.
+	 *
+	 * @return false if the log is full or cannot grow
+	 */
+	private boolean write(byte[] data) {
+		int need = 4 + data.length;
+		segment tail = segments.isEmpty() ? null : (segment) segments.getLast();
+		if (tail == null || tail.free() < need) {
+			if (maxSegments > 0 && segments.size() >= maxSegments) return false;
+			try {
+				tail = newSegment(Math.max(segmentSize, need));
+			} catch (IOException e) {
+				if (!ioWarned) {
+					ioWarned = true;
+					System.err.println("SpillingBlockingQueue: Cannot create segment: " + e);
+				}
+				return false;
+			}
+			segments.addLast(tail);
+		}
+		tail.writer.putInt(data.length);
+		tail.writer.put(data);
+		diskCount++;
+		numSpilled++;
+		return true;
+	}
+
+	/**
+	 * Take the next record from the log and decode it; a record which
+	 * cannot be decoded is returned as an UndecodableElement.
+	 * Call only under synch on this, with diskCount > 0.
+	 */
+	private IElement read() {
+		segment head = (segment) segments.getFirst();
+		while (head.drained()) {
+			segments.removeFirst();
+			recycle(head);
+			head = (segment) segments.getFirst();
+		}
+		byte[] data = new byte[head.reader.getInt()];
+		head.reader.get(data);
+		diskCount--;
+		if (diskCount == 0) {
+			// the log is empty: start over in a recycled segment
+			while (!segments.isEmpty()) recycle((segment) segments.removeFirst());
+		}
+		try {
+			return codec.decode(data);
+		} catch (IOException e) {
+			numLost++;
+			return new UndecodableElement(data, e);
+		}
+	}
+
+	/**
+	 * Move elements from the log to memory once the ring is half empty.
+	 * Call only under synch on this.
+	 */
+	private void refill() {
+		if (diskCount == 0 || memory.size() > memoryCapacity / 2) return;
+		while (diskCount > 0 && memory.size() < memoryCapacity) {
+			memory.addLast(read());
+		}
+	}
+
+	private byte[] encode(IElement x) throws BadElementException {
+		try {
+			return codec.encode(x);
+		} catch (IOException e) {
+			throw new BadElementException("Cannot encode element: " + e, x);
+		}
+	}
+
+	/**
+	 * Add an element, spilling it if the ring is full or elements are
+	 * already spilled. Call only under synch on this, with room for it.
+	 *
+	 * @return false if the log is full
+	 */
+	private boolean put(IElement x) throws BadElementException {
+		if (diskCount == 0 && memory.size() < memoryCapacity) {
+			memory.addLast(x);
+			return true;
+		}
+		return write(encode(x));
+	}
+
+	private int count() {
+		return memory.size() + diskCount;
+	}
+
+	// Call only under synch on this
+	private int extract(List list, int maxElements) {
+		int n = 0;
+		while (n < maxElements) {
+			IElement x = (IElement) memory.pollFirst();
+			if (x == null) {
+				if (diskCount == 0) break;
+				refill();
+				continue;
+			}
+			list.add(x);
+			n++;
+		}
+		refill();
+		if (n > 0 && waitingPuts > 0) notifyAll();
+		return n;
+	}
+
+	private void added() {
+		if (waitingTakes > 0) notifyAll();
+	}
+
+	/**
+	 * Add an element, waiting for room in the queue and in the log, for up
+	 * to msecs milliseconds, or forever if msecs is -1.
+	 * Call only under synch on this.
+	 *
+	 * @return false if the time elapsed first
+	 */
+	private boolean awaitPut(IElement x, int msecs) throws InterruptedException, BadElementException {
+		long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
+		long waitTime = msecs;
+		while (count() + reserved >= capacity || !put(x)) {
+			if (msecs >= 0 && waitTime <= 0) return false;
+			awaitTake(waitTime);
+			if (msecs >= 0) waitTime = msecs - (System.currentTimeMillis() - start);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for a dequeue, for up to msecs milliseconds, or forever if
+	 * msecs is negative.
+	 * Call only under synch on this.
+	 */
+	private void awaitTake(long msecs) throws InterruptedException {
+		++waitingPuts;
+		try {
+			if (msecs < 0) wait();
+			else wait(msecs);
+		} finally {
+			--waitingPuts;
+		}
+	}
+
+	/**
+	 * Wait until the queue is not empty, for up to msecs milliseconds, or
+	 * forever if msecs is -1.
+	 * Call only under synch on this.
+	 */
+	private boolean awaitElement(int msecs) throws InterruptedException {
+		long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
+		long waitTime = msecs;
+		while (count() == 0) {
+			if (msecs >= 0 && waitTime <= 0) return false;
+			++waitingTakes;
+			try {
+				if (msecs < 0) wait();
+				else wait(waitTime);
+			} finally {
+				--waitingTakes;
+			}
+			if (msecs >= 0) waitTime = msecs - (System.currentTimeMillis() - start);
+		}
+		return true;
+	}
+
+	/**
+	 * Add the given elements, all or none.
+	 * Call only under synch on this, with room for them.
+	 *
+	 * @return false if the log is full
+	 */
+	private boolean putMany(List list) throws BadElementException {
+		int size = list.size();
+		// the memory capacity may have been lowered below the ring's size
+		int inMemory = (diskCount == 0) ? Math.min(size, Math.max(0, memoryCapacity - memory.size())) : 0;
+		byte[][] records = new byte[size - inMemory][];
+		for (int i = inMemory; i < size; i++) {
+			records[i - inMemory] = encode((IElement) list.get(i));
+		}
+		if (!fits(records, records.length)) return false;
+		for (int i = 0; i < inMemory; i++) {
+			memory.addLast(list.get(i));
+		}
+		for (int i = 0; i < records.length; i++) {
+			// fits() checked the segment limit; only a new segment may fail
+			if (!write(records[i])) throw new IllegalStateException("Cannot spill element to " + dir);
+		}
+		return true;
+	}
+
+// --------------------- Interface IBlockingSink ---------------------
+
+	public synchronized void enqueue(IElement x) throws SinkException {
+		if (x == null) throw new IllegalArgumentException();
+		if (count() + reserved >= capacity) throw new SinkFullException();
+		if (!put(x)) throw new SinkFullException();
+		added();
+	}
+
+	public synchronized boolean enqueueLossy(IElement x) {
+		if (x == null) throw new IllegalArgumentException();
+		if (count() + reserved >= capacity) return false;
+		try {
+			if (!put(x)) return false;
+		} catch (BadElementException e) {
+			return false;
+		}
+		added();
+		return true;
+	}
+
+	public synchronized void enqueueMany(List list) throws SinkException {
+		if (list == null) throw new IllegalArgumentException();
+		if (count() + reserved + list.size() > capacity) throw new SinkFullException();
+		if (!putMany(list)) throw new SinkFullException();
+		added();
+	}
+
+	public ITransaction enqueuePrepare(List elements) throws SinkException {
+		if (elements == null) throw new IllegalArgumentException();
+		int size = elements.size();
+		synchronized (this) {
+			if (count() + reserved + size > capacity) throw new SinkFullException();
+			reserved += size;
+		}
+		return PooledTransaction.get(txnOwner, elements, size);
+	}
+
+	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
+		txn.join(enqueuePrepare(elements));
+	}
+
+	/**
+	 * Enqueue the given element, waiting for room in the queue and in the
+	 * log.
+	 *
+	 * @throws IllegalArgumentException if the element has to be spilled
+	 *                                  and cannot be encoded
+	 */
+	public synchronized void blockingEnqueue(IElement x) throws InterruptedException {
+		if (x == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		try {
+			awaitPut(x, -1);
+		} catch (BadElementException e) {
+			IllegalArgumentException iae = new IllegalArgumentException(e.getMessage());
+			iae.initCause(e);
+			throw iae;
+		}
+		added();
+	}
+
+	public synchronized boolean enqueueLossy(IElement x, int msecs) throws InterruptedException {
+		if (x == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		try {
+			if (!awaitPut(x, Math.max(msecs, 0))) return false;
+		} catch (BadElementException e) {
+			return false;
+		}
+		added();
+		return true;
+	}
+
+	public synchronized int size() {
+		return count();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Reset the capacity of this queue. If the new capacity is less than
+	 * the number of elements, existing elements are NOT removed, but
+	 * incoming puts will not proceed until the number of elements is less
+	 * than the new capacity.
+	 *
+	 * @throws IllegalArgumentException if capacity less or equal to zero
+	 */
+	public synchronized void setCapacity(int newCapacity) {
+		if (newCapacity <= 0) throw new IllegalArgumentException();
+		capacity = newCapacity;
+		if (waitingPuts > 0) notifyAll();
+	}
+
+	public int profileSize() {
+		return size();
+	}
+
+// --------------------- Interface IBlockingSource ---------------------
+
+	public synchronized IElement dequeue() {
+		while (true) {
+			IElement x = (IElement) memory.pollFirst();
+			if (x == null && diskCount > 0) {
+				refill();
+				continue;
+			}
+			refill();
+			if (x != null && waitingPuts > 0) notifyAll();
+			return x;
+		}
+	}
+
+	public synchronized int dequeueAll(List list) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, Math.max(memory.size(), 1));
+	}
+
+	public synchronized int dequeue(List list, int maxElements) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, maxElements);
+	}
+
+	public synchronized IElement blockingDequeue(int timeout_millis) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitElement(timeout_millis)) return null;
+		return dequeue();
+	}
+
+	public synchronized int blockingDequeueAll(List list, int msecs) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitElement(msecs)) return 0;
+		return extract(list, Math.max(memory.size(), 1));
+	}
+
+	public synchronized int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (!awaitElement(msecs)) return 0;
+		return extract(list, maxElements);
+	}
+
+// --------------------- transactions ---------------------
+
+	private final PooledTransaction.IOwner txnOwner = new PooledTransaction.IOwner() {
+		// Waits for room in the log rather than losing the elements, for as
+		// long as the log is full; an element which cannot be encoded, or an
+		// interrupt while waiting, aborts the whole transaction
+		public void enqueueCommit(List elements, int reservedSize) {
+			synchronized (SpillingBlockingQueue.this) {
+				while (true) {
+					try {
+						if (putMany(elements)) break;
+					} catch (BadElementException e) {
+						enqueueAbort(reservedSize);
+						throw new IllegalStateException("transaction aborted: " + e.getMessage());
+					}
+					try {
+						awaitTake(-1);
+					} catch (InterruptedException e) {
+						enqueueAbort(reservedSize);
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("transaction aborted: interrupted while the log is full");
+					}
+				}
+				reserved -= reservedSize;
+				added();
+			}
+			if (DEBUG) System.err.println("SpillingBlockingQueue: committed " + reservedSize + " elements");
+		}
+
+		public void enqueueAbort(int reservedSize) {
+			synchronized (SpillingBlockingQueue.this) {
+				reserved -= reservedSize;
+				if (waitingPuts > 0) SpillingBlockingQueue.this.notifyAll();
+			}
+		}
+	};
+
+// --------------------- undecodable elements ---------------------
+
+	/**
+	 * Dequeued in place of a spilled element which could not be decoded,
+	 * so that the consumer learns about it instead of losing it silently.
+	 */
+	public static class UndecodableElement implements IElement {
+		private final byte[] data;
+		private final IOException cause;
+
+		UndecodableElement(byte[] data, IOException cause) {
+			this.data = data;
+			this.cause = cause;
+		}
+
+		/**
+		 * Return the encoded element.
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * Return the error of the codec.
+		 */
+		public IOException getCause() {
+			return cause;
+		}
+
+		public String toString() {
+			return "UndecodableElement [" + data.length + " bytes: " + cause + "]";
+		}
+	}
+
+}
@@ -6,15 +6,20 @@ import org.jcyclone.core.queue.*;
 import java.util.List;
 
 /**
+ * A sink which screens the elements enqueued onto it with an enqueue
+ * predicate. With an {@link ITokenPredicate}, the tokens of admitted
+ * elements are given back when the sink rejects them or their
+ * transaction is aborted, and {@link #enqueuePrefix} admits the head of
+ * a batch.
+ *
  * @author Jean Morissette
  */
-public class AdmissionControlledSink implements IAdmissionControlledSink, IProfilable {
+public class AdmissionControlledSink extends ForwardingSink implements IAdmissionControlledSink, IProfilable {
 
 	volatile IEnqueuePredicate pred;
-	IBlockingSink sink;
 
 	public AdmissionControlledSink(IBlockingSink sink) {
-		this.sink = sink;
+		super(sink);
 	}
 
 	public synchronized void setEnqueuePredicate(IEnqueuePredicate pred) {
@@ -26,43 +31,109 @@ public class AdmissionControlledSink implements IAdmissionControlledSink, IProfi
 	}
 
 	public void blockingEnqueue(IElement element) throws InterruptedException {
-		if (pred != null)
-			pred.blockingAccept(element);
-		sink.blockingEnqueue(element);
+		IEnqueuePredicate p = pred;
+		if (p instanceof ITokenPredicate) {
+			// once the token is taken, an interrupt makes the sink fail
+			// below, which gives it back
+			if (!((ITokenPredicate) p).blockingAcquire(element)) {
+				Thread.interrupted();
+				throw new InterruptedException();
+			}
+		} else if (p != null) {
+			p.blockingAccept(element);
+			// the predicate returns early without admitting the element
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+		boolean done = false;
+		try {
+			sink.blockingEnqueue(element);
+			done = true;
+		} finally {
+			if (!done) release(p, element);
+		}
 	}
 
 	public void enqueue(IElement element) throws SinkException {
-		if (pred != null && !pred.accept(element))
+		IEnqueuePredicate p = pred;
+		if (p != null && !p.accept(element))
 			throw new SinkFullException();
-		sink.enqueue(element);
+		try {
+			sink.enqueue(element);
+		} catch (SinkException e) {
+			release(p, element);
+			throw e;
+		}
 	}
 
 	public boolean enqueueLossy(IElement element) {
-		if (pred != null && !pred.accept(element))
+		IEnqueuePredicate p = pred;
+		if (p != null && !p.accept(element))
 			return false;
-		return sink.enqueueLossy(element);
+		boolean pass = sink.enqueueLossy(element);
+		if (!pass) release(p, element);
+		return pass;
 	}
 
 	public void enqueueMany(List list) throws SinkException {
-		if (pred != null && !pred.acceptMany(list))
+		IEnqueuePredicate p = pred;
+		if (p != null && !p.acceptMany(list))
 			throw new SinkFullException();
-		sink.enqueueMany(list);
+		try {
+			sink.enqueueMany(list);
+		} catch (SinkException e) {
+			release(p, list, list.size());
+			throw e;
+		}
+	}
+
+	/**
+	 * Enqueue as many elements from the head of the given list as the
+	 * predicate admits, and remove them from the list. With a predicate
+	 * which is not an ITokenPredicate, all of the elements or none are
+	 * enqueued.
+	 *
+	 * @return the number of elements enqueued
+	 * @throws SinkException if the sink rejected the admitted elements
+	 */
+	public int enqueuePrefix(List elements) throws SinkException {
+		IEnqueuePredicate p = pred;
+		int n = elements.size();
+		if (p instanceof ITokenPredicate) n = ((ITokenPredicate) p).acceptPrefix(elements);
+		else if (p != null && !p.acceptMany(elements)) n = 0;
+		if (n == 0) return 0;
+		List prefix = (n == elements.size()) ? elements : elements.subList(0, n);
+		try {
+			sink.enqueueMany(prefix);
+		} catch (SinkException e) {
+			release(p, prefix, n);
+			throw e;
+		}
+		prefix.clear();
+		return n;
 	}
 
 	public ITransaction enqueuePrepare(List elements) throws SinkException {
-		if (pred != null && !pred.acceptMany(elements))
+		IEnqueuePredicate p = pred;
+		if (p != null && !p.acceptMany(elements))
 			throw new SinkFullException();
-		return sink.enqueuePrepare(elements);
+		try {
+			return super.enqueuePrepare(elements);
+		} catch (SinkException e) {
+			release(p, elements, elements.size());
+			throw e;
+		}
 	}
 
 	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
-		if (pred != null && !pred.acceptMany(elements))
+		IEnqueuePredicate p = pred;
+		if (p != null && !p.acceptMany(elements))
 			throw new SinkFullException();
-		sink.enqueuePrepare(elements, txn);
-	}
-
-	public int size() {
-		return sink.size();
+		try {
+			super.enqueuePrepare(elements, txn);
+		} catch (SinkException e) {
+			release(p, elements, elements.size());
+			throw e;
+		}
 	}
 
 	public void setCapacity(int newCapacity) {
@@ -71,17 +142,37 @@ public class AdmissionControlledSink implements IAdmissionControlledSink, IProfi
 		sink.setCapacity(newCapacity);
 	}
 
-	public int capacity() {
-		return sink.capacity();
-	}
-
 	public boolean enqueueLossy(IElement element, int timeout_millis) throws InterruptedException {
-		if (pred != null && !pred.accept(element))
+		IEnqueuePredicate p = pred;
+		if (p != null && !p.accept(element))
 			return false;
-		return sink.enqueueLossy(element, timeout_millis);
+		boolean pass = false;
+		try {
+			pass = sink.enqueueLossy(element, timeout_millis);
+		} finally {
+			if (!pass) release(p, element);
+		}
+		return pass;
 	}
 
 	public int profileSize() {
 		return sink.size();
 	}
+
+	// Transactions only need a wrapper to give tokens back on abort
+	protected boolean wrapsTransactions() {
+		return pred instanceof ITokenPredicate;
+	}
+
+	protected void aborted(List elements, int numEvents) {
+		release(pred, elements, numEvents);
+	}
+
+	private static void release(IEnqueuePredicate p, IElement element) {
+		if (p instanceof ITokenPredicate) ((ITokenPredicate) p).release(element);
+	}
+
+	private static void release(IEnqueuePredicate p, List elements, int num) {
+		if (p instanceof ITokenPredicate) ((ITokenPredicate) p).release(elements, num);
+	}
 }
@@ -0,0 +1,94 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.event.TimeStampedEvent;
+
+/**
+ * A DeadlinePolicy gives the deadline of an event, in milliseconds since
+ * the epoch:
+ * <ul>
+ * <li>the deadline of an {@link IDeadlineEvent}, if it has one;</li>
+ * <li>otherwise, the time the event was created (the timestamp of a
+ * {@link TimeStampedEvent}) or else enqueued, plus the response time
+ * target of its class;</li>
+ * <li>{@link #NONE} if its class has no target.</li>
+ * </ul>
+ * Elements which are not IClassEvents, or have no class, belong to class
+ * 0. Giving the latency-sensitive class a short target and bulk work a
+ * long one serves the former first, while bulk events still age towards
+ * the head of the queue.
+ *
+ * @see org.jcyclone.core.queue.DeadlineBlockingQueue
+ * @see org.jcyclone.core.internal.DeadlineBatchSorter
+ */
+public class DeadlinePolicy {
+
+	/**
+	 * The deadline of events which have none.
+	 */
+	public static final long NONE = Long.MAX_VALUE;
+
+	private static final int MAX_CLASSES = 10;
+
+	private long targets[];
+
+	/**
+	 * Create a policy with no class targets: only IDeadlineEvents have a
+	 * deadline.
+	 */
+	public DeadlinePolicy() {
+		this(new long[0]);
+	}
+
+	/**
+	 * Create a policy with the given response time targets, in
+	 * milliseconds, indexed by class. A target of -1 means no deadline.
+	 */
+	public DeadlinePolicy(long targets[]) {
+		this.targets = targets;
+	}
+
+	/**
+	 * Create the policy of the given stage, from the
+	 * <tt>deadline.class<i>N</i>Target</tt> keys of the stage or else the
+	 * global ones.
+	 */
+	public static DeadlinePolicy forStage(ISystemConfig config, String name) {
+		long targets[] = new long[MAX_CLASSES];
+		for (int c = 0; c < MAX_CLASSES; c++) {
+			targets[c] = config.getInt("stages." + name + ".deadline.class" + c + "Target",
+			    config.getInt("global.deadline.class" + c + "Target", -1));
+		}
+		return new DeadlinePolicy(targets);
+	}
+
+	/**
+	 * Return the response time target of the given class, or -1.
+	 */
+	public long getTarget(int theclass) {
+		return (theclass < targets.length) ? targets[theclass] : -1;
+	}
+
+	/**
+	 * Return the deadline of the given event, enqueued at time now.
+	 */
+	public long deadlineOf(Object event, long now) {
+		if (event instanceof IDeadlineEvent) {
+			long d = ((IDeadlineEvent) event).getDeadline();
+			if (d != 0) return d;
+		}
+		int c = 0;
+		if (event instanceof IClassEvent) {
+			c = ((IClassEvent) event).getRequestClass();
+			if (c == -1) c = 0;
+		}
+		long t = getTarget(c);
+		if (t < 0) return NONE;
+		long base = now;
+		if (event instanceof TimeStampedEvent && ((TimeStampedEvent) event).timestamp != 0) {
+			base = ((TimeStampedEvent) event).timestamp;
+		}
+		return base + t;
+	}
+
+}
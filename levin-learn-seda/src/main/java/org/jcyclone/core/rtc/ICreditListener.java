@@ -0,0 +1,30 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.stage.IStage;
+
+/**
+ * A credit listener is told when a stage runs out of credits, that is,
+ * when its event queue reaches its credit limit, and when it has drained
+ * enough to take events again. Event sources that do not run in a stage,
+ * such as the readers of a socket layer, use it to stop and resume
+ * producing events for the stage, e.g. by suspending reads on their
+ * connections.
+ * <p/>
+ * Like enqueue predicates, listeners run in the context of the thread
+ * that crosses the limit, which means they must be simple and fast.
+ *
+ * @see org.jcyclone.core.internal.CreditGate
+ */
+public interface ICreditListener {
+
+	/**
+	 * Called when the given stage has no credits left.
+	 */
+	void creditsExhausted(IStage stage);
+
+	/**
+	 * Called when the given stage takes events again.
+	 */
+	void creditsAvailable(IStage stage);
+
+}
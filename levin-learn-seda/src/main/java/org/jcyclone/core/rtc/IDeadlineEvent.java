@@ -0,0 +1,19 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.queue.IElement;
+
+/**
+ * A IDeadlineEvent represents an event which carries its own deadline,
+ * used for deadline-ordered queueing and batching.
+ *
+ * @see DeadlinePolicy
+ */
+public interface IDeadlineEvent extends IElement {
+
+	/**
+	 * Return the time, in milliseconds since the epoch, by which the event
+	 * should be handled, or 0 if the event has no deadline of its own.
+	 */
+	long getDeadline();
+
+}
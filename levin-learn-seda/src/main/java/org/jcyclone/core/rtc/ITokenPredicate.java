@@ -0,0 +1,45 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.queue.IElement;
+
+import java.util.List;
+
+/**
+ * An enqueue predicate which takes tokens for the elements it admits. It
+ * can admit the head of a batch, and give tokens back for admitted
+ * elements which did not get into the queue, so that elements rejected
+ * by the sink or by an aborted transaction do not use up the rate.
+ *
+ * @see AdmissionControlledSink#enqueuePrefix
+ * @see TokenBucket
+ */
+public interface ITokenPredicate extends IEnqueuePredicate {
+
+	/**
+	 * Accept the longest prefix of the given elements that the available
+	 * tokens allow.
+	 *
+	 * @return the number of elements accepted, from the head of the list
+	 */
+	int acceptPrefix(List elements);
+
+	/**
+	 * Wait until a token is available for the given element, and take it.
+	 * Unlike {@link #blockingAccept}, tells whether the token was taken.
+	 *
+	 * @return true once the token is taken; false, with the interrupt
+	 *         status set, if the calling thread was interrupted while it
+	 *         waited, in which case no token is taken
+	 */
+	boolean blockingAcquire(IElement element);
+
+	/**
+	 * Give back the token taken for the given element.
+	 */
+	void release(IElement element);
+
+	/**
+	 * Give back the tokens taken for the first num given elements.
+	 */
+	void release(List elements, int num);
+}
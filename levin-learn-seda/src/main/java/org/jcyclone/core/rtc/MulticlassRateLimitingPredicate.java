@@ -24,160 +24,23 @@
 
 package org.jcyclone.core.rtc;
 
-import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
-import org.jcyclone.util.StatsGatherer;
-
-import java.util.List;
 
 /**
  * This enqueue predicate implements multiclass input rate policing.
+ *
+ * @deprecated Replaced by {@link MulticlassTokenBucketPredicate}, of which
+ * this class is now an alias.
  */
-public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
-
-	private static final boolean DEBUG = false;
-
-	private ISink thesink;
-	private int NUM_CLASSES;
-	private double targetRate[];
-	private int depth[];
-	private double tokenCount[];
-	private double regenTimeMS[];
-	private long lasttime[];
-
-	// Number of milliseconds between regenerations
-	private long MIN_REGEN_TIME = 0;
-
-	private static final boolean PROFILE = true;
-	private StatsGatherer interArrivalStats;
-	private StatsGatherer acceptArrivalStats;
+public class MulticlassRateLimitingPredicate extends MulticlassTokenBucketPredicate {
 
 	/**
-	 * Create a new RateLimitingPredicate for the given sink,
-	 * targetRate, and token bucket depth. A rate of -1.0 indicates no rate limit.
+	 * Create a new MulticlassRateLimitingPredicate for the given sink,
+	 * number of classes, targetRate, and token bucket depth. A rate of -1.0
+	 * indicates no rate limit.
 	 */
 	public MulticlassRateLimitingPredicate(ISink sink, int numclasses, double targetRate, int depth) {
-		this.thesink = sink;
-		this.NUM_CLASSES = numclasses;
-
-		this.targetRate = new double[NUM_CLASSES];
-		this.depth = new int[NUM_CLASSES];
-		this.regenTimeMS = new double[NUM_CLASSES];
-		this.tokenCount = new double[NUM_CLASSES];
-		this.lasttime = new long[NUM_CLASSES];
-
-		for (int c = 0; c < NUM_CLASSES; c++) {
-			this.targetRate[c] = targetRate;
-			this.regenTimeMS[c] = (1.0 / this.targetRate[c]) * 1.0e3;
-			if (this.regenTimeMS[c] < 1) this.regenTimeMS[c] = 1;
-			this.depth[c] = depth;
-			this.tokenCount[c] = depth * 1.0;
-			this.lasttime[c] = System.currentTimeMillis();
-		}
-
-		System.err.println("MulticlassRateLimitingPredicate<" + sink.toString() + ">: Created");
-
-		if (PROFILE) {
-			interArrivalStats = new StatsGatherer("IA<" + sink.toString() + ">",
-			    "IA<" + sink.toString() + ">", 1, 0);
-			acceptArrivalStats = new StatsGatherer("AA<" + sink.toString() + ">",
-			    "AA<" + sink.toString() + ">", 1, 0);
-		}
-	}
-
-	/**
-	 * Returns true if the given element can be accepted into the queue.
-	 */
-	public boolean accept(IElement qel) {
-
-		if (DEBUG) System.err.println("MCRLP <" + thesink.toString() + ": Got " + qel);
-
-		int c = 0;
-		if (qel instanceof IClassEvent) {
-			IClassEvent cqel = (IClassEvent) qel;
-			c = cqel.getRequestClass();
-			if (c == -1) c = 0;
-		}
-		if (DEBUG) System.err.println("MCRLP <" + thesink.toString() + ": Class is " + c);
-
-		if (targetRate[c] == -1.0) return true;
-
-		// First regenerate tokens
-		long curtime = System.currentTimeMillis();
-		long delay = curtime - lasttime[c];
-
-		if (PROFILE) {
-			interArrivalStats.add(delay);
-		}
-
-		if (delay >= MIN_REGEN_TIME) {
-			double numTokens = ((double) delay * 1.0) / (regenTimeMS[c] * 1.0);
-			tokenCount[c] += numTokens;
-			if (tokenCount[c] > depth[c]) tokenCount[c] = depth[c];
-			lasttime[c] = curtime;
-		}
-
-		if (tokenCount[c] >= 1.0) {
-			tokenCount[c] -= 1.0;
-			if (PROFILE) {
-				acceptArrivalStats.add(delay);
-			}
-			return true;
-		} else {
-			return false;
-		}
-	}
-
-	public void blockingAccept(IElement element) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
-	}
-
-	public boolean acceptMany(List elements) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
-	}
-
-	/**
-	 * Return the current rate limit.
-	 */
-	public double getTargetRate(int theclass) {
-		return targetRate[theclass];
-	}
-
-	/**
-	 * Return the current depth.
-	 */
-	public int getDepth(int theclass) {
-		return depth[theclass];
-	}
-
-	/**
-	 * Return the number of tokens currently in the bucket.
-	 */
-	public int getBucketSize(int theclass) {
-		return (int) tokenCount[theclass];
-	}
-
-	/**
-	 * Set the rate limit. A limit of -1.0 indicates no rate limit.
-	 */
-	public void setTargetRate(int theclass, double targetRate) {
-		// Kill off old tokens if reducing rate
-		if (targetRate < this.targetRate[theclass]) {
-			this.tokenCount[theclass] = 0;
-		}
-
-		this.targetRate[theclass] = targetRate;
-		this.regenTimeMS[theclass] = (1.0 / targetRate) * 1.0e3;
-		if (regenTimeMS[theclass] < 1) regenTimeMS[theclass] = 1;
-	}
-
-	/**
-	 * Set the bucket depth.
-	 */
-	public void setDepth(int theclass, int depth) {
-		this.depth[theclass] = depth;
+		super(sink, numclasses, targetRate, depth);
 	}
 
 }
@@ -0,0 +1,177 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+
+import java.util.List;
+
+/**
+ * This enqueue predicate implements multiclass input rate policing, with
+ * one token bucket per request class. Elements which are not
+ * IClassEvents, or have no class, belong to class 0. It may be used by
+ * any number of threads enqueueing concurrently.
+ *
+ * @see TokenBucketPredicate
+ * @see IClassEvent
+ */
+public class MulticlassTokenBucketPredicate implements ITokenPredicate {
+
+	private static final boolean DEBUG = false;
+
+	private ISink thesink;
+	private TokenBucket buckets[];
+
+	/**
+	 * Create a new MulticlassTokenBucketPredicate for the given sink,
+	 * number of classes, targetRate, and token bucket depth of each class.
+	 * A rate of -1.0 indicates no rate limit.
+	 */
+	public MulticlassTokenBucketPredicate(ISink sink, int numclasses, double targetRate, int depth) {
+		this.thesink = sink;
+		this.buckets = new TokenBucket[numclasses];
+		for (int c = 0; c < numclasses; c++) {
+			buckets[c] = new TokenBucket(targetRate, depth);
+		}
+
+		System.err.println("MulticlassTokenBucketPredicate<" + sink.toString() + ">: Created");
+	}
+
+	private static int classOf(Object qel) {
+		if (qel instanceof IClassEvent) {
+			int c = ((IClassEvent) qel).getRequestClass();
+			if (c != -1) return c;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if the given element can be accepted into the queue.
+	 */
+	public boolean accept(IElement qel) {
+		int c = classOf(qel);
+		boolean pass = buckets[c].tryAcquire();
+		if (DEBUG) System.err.println("MCTBP <" + thesink + ">: " + (pass ? "accepted " : "rejected ") + qel + ", class " + c);
+		return pass;
+	}
+
+	/**
+	 * Returns true if all the given elements can be accepted into the
+	 * queue; no token is taken otherwise.
+	 */
+	public boolean acceptMany(List elements) {
+		int[] count = new int[buckets.length];
+		for (int i = 0; i < elements.size(); i++) {
+			count[classOf(elements.get(i))]++;
+		}
+		for (int c = 0; c < buckets.length; c++) {
+			if (!buckets[c].tryAcquire(count[c])) {
+				// give back the tokens of the classes already taken
+				for (int d = 0; d < c; d++) {
+					buckets[d].release(count[d]);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Accept the longest prefix of the given elements that the available
+	 * tokens of their classes allow. Tokens are taken for each run of
+	 * elements of the same class at once.
+	 *
+	 * @return the number of elements accepted, from the head of the list
+	 */
+	public int acceptPrefix(List elements) {
+		int size = elements.size();
+		int accepted = 0;
+		while (accepted < size) {
+			int c = classOf(elements.get(accepted));
+			int run = 1;
+			while (accepted + run < size && classOf(elements.get(accepted + run)) == c) run++;
+			int got = buckets[c].acquireUpTo(run);
+			accepted += got;
+			if (got < run) break;
+		}
+		return accepted;
+	}
+
+	/**
+	 * Give back the token taken for the given element.
+	 */
+	public void release(IElement element) {
+		buckets[classOf(element)].release(1);
+	}
+
+	/**
+	 * Give back the tokens taken for the first num given elements. Tokens
+	 * of elements no longer in the list are not given back, as their
+	 * class is unknown.
+	 */
+	public void release(List elements, int num) {
+		num = Math.min(num, elements.size());
+		int i = 0;
+		while (i < num) {
+			int c = classOf(elements.get(i));
+			int run = 1;
+			while (i + run < num && classOf(elements.get(i + run)) == c) run++;
+			buckets[c].release(run);
+			i += run;
+		}
+	}
+
+	/**
+	 * Wait until the given element can be accepted into the queue, and
+	 * take its token. If the calling thread is interrupted while it waits,
+	 * returns with its interrupt status set without taking a token; since
+	 * the status may also be set once the token is taken, callers which
+	 * give tokens back use {@link #blockingAcquire} instead.
+	 */
+	public void blockingAccept(IElement element) {
+		blockingAcquire(element);
+	}
+
+	public boolean blockingAcquire(IElement element) {
+		return buckets[classOf(element)].acquire();
+	}
+
+	/**
+	 * Return the current rate limit.
+	 */
+	public double getTargetRate(int theclass) {
+		return buckets[theclass].getRate();
+	}
+
+	/**
+	 * Return the current depth.
+	 */
+	public int getDepth(int theclass) {
+		return buckets[theclass].getDepth();
+	}
+
+	/**
+	 * Return the number of tokens currently in the bucket.
+	 */
+	public int getBucketSize(int theclass) {
+		return buckets[theclass].available();
+	}
+
+	/**
+	 * Set the rate limit. A limit of -1.0 indicates no rate limit.
+	 */
+	public void setTargetRate(int theclass, double targetRate) {
+		// Kill off old tokens if reducing rate
+		if (targetRate < buckets[theclass].getRate()) {
+			buckets[theclass].drain();
+		}
+		buckets[theclass].setRate(targetRate);
+	}
+
+	/**
+	 * Set the bucket depth.
+	 */
+	public void setDepth(int theclass, int depth) {
+		buckets[theclass].setDepth(depth);
+	}
+
+}
@@ -29,8 +29,8 @@ import org.jcyclone.core.internal.IStageWrapper;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.util.LatencyHistogram;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -68,7 +68,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	private static final double MIN_RATE = 0.05;
 
 	private long adjtime;
-	private long measurements[], sortedmeasurements[];
+	private LatencyHistogram measurements;
 	private int curThreshold, cur_measurement;
 	private double curRate;
 	private double ninetiethRT;
@@ -77,8 +77,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	public ResponseTimeControllerDirect(IStageManager mgr, IStageWrapper stage) throws IllegalArgumentException {
 		super(mgr, stage);
 
-		this.measurements = new long[MEASUREMENT_SIZE];
-		this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+		this.measurements = new LatencyHistogram();
 		this.cur_measurement = 0;
 		this.adjtime = System.currentTimeMillis();
 
@@ -113,8 +112,8 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 				    }
 			    });
 
-			this.pred = new RateLimitingPredicate(stage.getStage().getSink(), INIT_RATE, INIT_DEPTH);
-			this.curRate = ((RateLimitingPredicate) pred).getTargetRate();
+			this.pred = new TokenBucketPredicate(stage.getStage().getSink(), INIT_RATE, INIT_DEPTH);
+			this.curRate = ((TokenBucketPredicate) pred).getTargetRate();
 			stage.getSink().setEnqueuePredicate(pred);
 
 			System.err.println("RTControllerDirect <" + stage.getStage().getName() + ">: ADJUST_RATE enabled, target=" + targetRT + ", MEASUREMENT_SIZE=" + MEASUREMENT_SIZE + ", SMOOTH_CONST=" + SMOOTH_CONST + ", LOW_WATER=" + LOW_WATER + ", HIGH_WATER=" + HIGH_WATER + ", ADDITIVE_INCREASE=" + ADDITIVE_INCREASE + ", MULTIPLCATIVE_DECREASE=" + MULTIPLICATIVE_DECREASE);
@@ -130,7 +129,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 		if (ADJUST_THRESHOLD) {
 			this.pred = new QueueThresholdPredicate(stage.getStage().getSink(), curThreshold);
 		} else if (ADJUST_RATE) {
-			this.pred = new RateLimitingPredicate(stage.getStage().getSink(), curRate, INIT_DEPTH);
+			this.pred = new TokenBucketPredicate(stage.getStage().getSink(), curRate, INIT_DEPTH);
 		}
 
 		stage.getSink().setEnqueuePredicate(pred);
@@ -156,7 +155,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 				TimeStampedEvent ev = (TimeStampedEvent) event;
 				long time = ev.timestamp;
 				if (time != 0) {
-					measurements[cur_measurement] = curtime - time;
+					measurements.record(curtime - time);
 					cur_measurement++;
 					if (cur_measurement == MEASUREMENT_SIZE) {
 						cur_measurement = 0;
@@ -166,17 +165,14 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 			}
 		}
 
-		int numsort = MEASUREMENT_SIZE;
 		if ((curtime - adjtime) >= MEASUREMENT_TIME) {
 			adjust = true;
-			numsort = cur_measurement;
 			cur_measurement = 0;
 		}
 
 		if (!adjust) return;
-		System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-		Arrays.sort(sortedmeasurements, 0, numsort);
-		long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
+		long cur = measurements.getPercentile(0.9);
+		measurements.reset();
 		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
 		stage.getStats().record90thRT(ninetiethRT);
 
@@ -208,7 +204,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 				if (curRate < MIN_RATE) curRate = MIN_RATE;
 			}
 			if (DEBUG) System.err.println("RTController <" + stage.getStage().getName() + ">: ninetiethRT " + ninetiethRT + " target " + targetRT + " rate now " + curRate);
-			((RateLimitingPredicate) pred).setTargetRate(this.curRate);
+			((TokenBucketPredicate) pred).setTargetRate(this.curRate);
 
 		}
 
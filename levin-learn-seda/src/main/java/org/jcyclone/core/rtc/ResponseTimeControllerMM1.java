@@ -108,8 +108,8 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 			this.curThreshold = ((QueueThresholdPredicate) pred).getThreshold();
 		}
 		if (ADJUST_RATE) {
-			this.pred = new RateLimitingPredicate(stage.getStage().getSink(), INIT_RATE, INIT_DEPTH);
-			this.curRate = ((RateLimitingPredicate) pred).getTargetRate();
+			this.pred = new TokenBucketPredicate(stage.getStage().getSink(), INIT_RATE, INIT_DEPTH);
+			this.curRate = ((TokenBucketPredicate) pred).getTargetRate();
 		}
 		stage.getSink().setEnqueuePredicate(pred);
 		enabled = true;
@@ -179,7 +179,7 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 			mgr.getProfiler().add("RTControllerMM1 tokenBucket <" + stage.getStage().getName() + ">",
 			    new IProfilable() {
 				    public int profileSize() {
-					    return ((RateLimitingPredicate) pred).getBucketSize();
+					    return ((TokenBucketPredicate) pred).getBucketSize();
 				    }
 			    });
 		}
@@ -195,7 +195,7 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 			this.pred = new QueueThresholdPredicate(stage.getStage().getSink(), curThreshold);
 
 		} else if (ADJUST_RATE) {
-			this.pred = new RateLimitingPredicate(stage.getStage().getSink(), curRate, INIT_DEPTH);
+			this.pred = new TokenBucketPredicate(stage.getStage().getSink(), curRate, INIT_DEPTH);
 		}
 		stage.getSink().setEnqueuePredicate(this.pred);
 		enabled = true;
@@ -421,7 +421,7 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 			}
 
 			this.curRate = Math.max(MIN_RATE, this.curRate);
-			((RateLimitingPredicate) pred).setTargetRate(this.curRate);
+			((TokenBucketPredicate) pred).setTargetRate(this.curRate);
 
 			if (DEBUG) System.err.println("RTControllerMM1 <" + stage.getStage().getName() + "> rate now " + curRate);
 		}
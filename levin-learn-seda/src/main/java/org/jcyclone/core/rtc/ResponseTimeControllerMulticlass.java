@@ -29,9 +29,9 @@ import org.jcyclone.core.event.TimeStampedEvent;
 import org.jcyclone.core.internal.IStageWrapper;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.util.LatencyHistogram;
 import org.jcyclone.util.Util;
 
-import java.util.Arrays;
 
 /**
  * An implementation of ResponseTimeController that uses a direct
@@ -77,7 +77,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 		int theclass;
 		double adjtime;
 		double targetRT;
-		long measurements[], sortedmeasurements[];
+		LatencyHistogram measurements;
 		int cur_measurement = 0;
 		int num_measurements = 0;
 		double curRate;
@@ -92,10 +92,9 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 		cinfo(int theclass, double target) {
 			this.theclass = theclass;
 			this.targetRT = target;
-			this.measurements = new long[MEASUREMENT_SIZE];
-			this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+			this.measurements = new LatencyHistogram();
 
-			this.curRate = ((MulticlassRateLimitingPredicate) pred).getTargetRate(theclass);
+			this.curRate = ((MulticlassTokenBucketPredicate) pred).getTargetRate(theclass);
 			this.adjtime = System.currentTimeMillis();
 			System.err.println("RTControllerMulticlass: Class " + theclass + " targetRT " + targetRT + ", curRate " + this.curRate);
 		}
@@ -105,11 +104,11 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 			if (curRate < MIN_RATE) curRate = MIN_RATE;
 			if (curRate > MAX_RATE) curRate = MAX_RATE;
 			if (SAVE_MAX_RATE && maxRate > 0.0 && curRate > maxRate) curRate = maxRate;
-			((MulticlassRateLimitingPredicate) pred).setTargetRate(theclass, curRate);
+			((MulticlassTokenBucketPredicate) pred).setTargetRate(theclass, curRate);
 		}
 
 		void addMeasurement(long time) {
-			measurements[cur_measurement] = time;
+			measurements.record(time);
 			cur_measurement++;
 			num_measurements++;
 			if (cur_measurement == MEASUREMENT_SIZE) {
@@ -118,33 +117,28 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 			}
 		}
 
-		void record90th(int numsort, long curtime) {
-			System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-			Arrays.sort(sortedmeasurements, 0, numsort);
-			long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
+		void record90th(long curtime) {
+			long cur = measurements.getPercentile(0.9);
+			// an empty window yields 0 rather than an old value
+			measurements.reset();
 			ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
 			if (ninetiethRT < MIN_90th) ninetiethRT = 0;
 
 			if (theclass == 0) stage.getStats().record90thRT(ninetiethRT);
 			adjtime = curtime;
-
-			// Avoid timeout causing us to always read old value
-			if (cur_measurement == 0) sortedmeasurements[0] = 0L;
 		}
 
 		boolean adjust(long curtime) {
 
-			int numsort = MEASUREMENT_SIZE;
 			if (num_measurements > 0 && (curtime - adjtime) >= MEASUREMENT_TIME) {
 				adjust = true;
-				numsort = cur_measurement;
 				cur_measurement = 0;
 			}
 
 			if (!adjust) return false;
 			adjust = false;
 
-			record90th(numsort, curtime);
+			record90th(curtime);
 
 			if (!enabled) return false;
 			if (targetRT == -1) return false;
@@ -220,7 +214,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 			NUM_CLASSES = 1;
 		}
 
-		this.pred = new MulticlassRateLimitingPredicate(stage.getStage().getSink(), NUM_CLASSES, INIT_RATE, INIT_DEPTH);
+		this.pred = new MulticlassTokenBucketPredicate(stage.getStage().getSink(), NUM_CLASSES, INIT_RATE, INIT_DEPTH);
 		stage.getSink().setEnqueuePredicate(pred);
 
 		this.carr = new cinfo[NUM_CLASSES];
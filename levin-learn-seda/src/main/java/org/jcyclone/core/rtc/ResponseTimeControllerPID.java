@@ -30,9 +30,9 @@ import org.jcyclone.core.internal.MonitoredSink;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.util.LatencyHistogram;
 import org.jcyclone.util.Util;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -67,7 +67,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 	private static final double MIN_RATE = 0.05;
 
 	private MonitoredSink sinkProxy;
-	private long measurements[], sortedmeasurements[];
+	private LatencyHistogram measurements;
 	private double errors[], lasterr, lastinterr, totalinterr;
 	private int curThreshold, cur_measurement, cur_error;
 	private long numReceived;
@@ -80,8 +80,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 		super(mgr, stage);
 		this.adjtime = System.currentTimeMillis();
 		this.sinkProxy = (MonitoredSink) stage.getStage().getSink();
-		this.measurements = new long[MEASUREMENT_SIZE];
-		this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+		this.measurements = new LatencyHistogram();
 		this.errors = new double[MEASUREMENT_SIZE];
 		this.cur_measurement = 0;
 		this.cur_error = 0;
@@ -112,8 +111,8 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 
 		} else if (ADJUST_RATE) {
 
-			this.pred = new RateLimitingPredicate(stage.getStage().getSink(), INIT_RATE, INIT_DEPTH);
-			this.curRate = ((RateLimitingPredicate) pred).getTargetRate();
+			this.pred = new TokenBucketPredicate(stage.getStage().getSink(), INIT_RATE, INIT_DEPTH);
+			this.curRate = ((TokenBucketPredicate) pred).getTargetRate();
 			stage.getSink().setEnqueuePredicate(pred);
 
 			System.err.println("RTControllerPID <" + stage.getStage().getName() + ">: ADJUST_RATE enabled, MEASUREMENT_SIZE=" + MEASUREMENT_SIZE + ", SMOOTH_CONST=" + SMOOTH_CONST + ", PROP_GAIN=" + PROP_GAIN + ", DERIV_GAIN=" + DERIV_GAIN + ", INTR_GAIN=" + INTR_GAIN);
@@ -130,7 +129,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 			this.pred = new QueueThresholdPredicate(stage.getStage().getSink(), curThreshold);
 
 		} else if (ADJUST_RATE) {
-			this.pred = new RateLimitingPredicate(stage.getStage().getSink(), curRate, INIT_DEPTH);
+			this.pred = new TokenBucketPredicate(stage.getStage().getSink(), curRate, INIT_DEPTH);
 		}
 
 		stage.getSink().setEnqueuePredicate(this.pred);
@@ -156,7 +155,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 				TimeStampedEvent ev = (TimeStampedEvent) event;
 				long time = ev.timestamp;
 				if (time != 0) {
-					measurements[cur_measurement] = curtime - time;
+					measurements.record(curtime - time);
 					cur_measurement++;
 					if (cur_measurement == MEASUREMENT_SIZE) {
 						cur_measurement = 0;
@@ -166,18 +165,15 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 			}
 		}
 
-		int numsort = MEASUREMENT_SIZE;
 		long elapsed = curtime - adjtime;
 		if (elapsed >= MEASUREMENT_TIME) {
 			adjust = true;
-			numsort = cur_measurement;
 			cur_measurement = 0;
 		}
 
 		if (!adjust) return;
-		System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-		Arrays.sort(sortedmeasurements, 0, numsort);
-		long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
+		long cur = measurements.getPercentile(0.9);
+		measurements.reset();
 		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
 		adjtime = curtime;
 		stage.getStats().record90thRT(ninetiethRT);
@@ -243,7 +239,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 
 			curRate = Math.max(MIN_RATE, curRate);
 			curRate = Math.min(MAX_RATE, curRate);
-			((RateLimitingPredicate) pred).setTargetRate(this.curRate);
+			((TokenBucketPredicate) pred).setTargetRate(this.curRate);
 
 			if (DEBUG) System.err.println("RTControllerPID <" + stage.getStage().getName() + ">: ninetiethRT " + ninetiethRT + " target " + targetRT + " rate now " + curRate);
 
@@ -0,0 +1,182 @@
+package org.jcyclone.core.rtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread-safe token bucket, refilled at <tt>rate</tt> tokens per second
+ * up to <tt>depth</tt> tokens.
+ * <p/>
+ * The bucket holds no token count: its whole state is the time, in
+ * nanoseconds, at which it will have refilled up to the tokens already
+ * taken (the "theoretical arrival time" of the generic cell rate
+ * algorithm). Taking n tokens moves that time forward by n token
+ * intervals, and is allowed if it does not move past the current time.
+ * Since the state is a single long, acquiring and refilling are one
+ * compare-and-set: tokens are neither lost nor granted twice, however
+ * many threads take them, and refill is exact to the nanosecond.
+ * <p/>
+ * A rate of -1.0 means no rate limit.
+ */
+public class TokenBucket {
+
+	/**
+	 * Time at which the bucket has refilled up to the tokens taken.
+	 */
+	private final AtomicLong tat;
+	private volatile double rate;
+	private volatile double intervalNanos;  // nanoseconds per token
+	private volatile int depth;
+
+	/**
+	 * Create a full bucket.
+	 */
+	public TokenBucket(double rate, int depth) {
+		setRate(rate);
+		setDepth(depth);
+		this.tat = new AtomicLong(System.nanoTime() - fillTime(depth));
+	}
+
+	private long fillTime(int tokens) {
+		double t = tokens * intervalNanos;
+		return (t >= Long.MAX_VALUE / 4) ? Long.MAX_VALUE / 4 : (long) (t + 0.5);
+	}
+
+	/**
+	 * Take one token if there is one.
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(1);
+	}
+
+	/**
+	 * Take n tokens if there are at least n, or none.
+	 */
+	public boolean tryAcquire(int n) {
+		if (n <= 0 || rate == -1.0) return true;
+		if (n > depth) return false;
+		long cost = fillTime(n);
+		while (true) {
+			long now = System.nanoTime();
+			long cur = tat.get();
+			long base = Math.max(cur, now - fillTime(depth));
+			long next = base + cost;
+			if (next - now > 0) return false;
+			if (tat.compareAndSet(cur, next)) return true;
+		}
+	}
+
+	/**
+	 * Take as many tokens as there are, up to n.
+	 *
+	 * @return the number of tokens taken
+	 */
+	public int acquireUpTo(int n) {
+		if (n <= 0) return 0;
+		if (rate == -1.0) return n;
+		double interval = intervalNanos;
+		while (true) {
+			long now = System.nanoTime();
+			long cur = tat.get();
+			long base = Math.max(cur, now - fillTime(depth));
+			int avail = (int) Math.min(n, (now - base) / interval);
+			if (avail <= 0) return 0;
+			if (tat.compareAndSet(cur, base + fillTime(avail))) return avail;
+		}
+	}
+
+	/**
+	 * Take one token, parking the calling thread until it is available.
+	 * Waiting threads reserve their token when they start waiting, so that
+	 * they are served in order.
+	 * <p/>
+	 * If the thread is interrupted while waiting, the token is given back
+	 * and the method returns false with the interrupt status set.
+	 *
+	 * @return true once the token is taken
+	 */
+	public boolean acquire() {
+		if (rate == -1.0) return true;
+		long cost = fillTime(1);
+		long deadline;
+		while (true) {
+			long now = System.nanoTime();
+			long cur = tat.get();
+			long base = Math.max(cur, now - fillTime(depth));
+			deadline = base + cost;
+			if (tat.compareAndSet(cur, deadline)) break;
+		}
+		long wait;
+		while ((wait = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, wait);
+			if (Thread.currentThread().isInterrupted()) {
+				release(1);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Give back n tokens taken from this bucket.
+	 */
+	public void release(int n) {
+		if (n <= 0 || rate == -1.0) return;
+		tat.addAndGet(-fillTime(n));
+	}
+
+	/**
+	 * Empty the bucket.
+	 */
+	public void drain() {
+		while (true) {
+			long now = System.nanoTime();
+			long cur = tat.get();
+			if (cur - now >= 0 || tat.compareAndSet(cur, now)) return;
+		}
+	}
+
+	/**
+	 * Return the number of tokens currently in the bucket.
+	 */
+	public int available() {
+		if (rate == -1.0) return depth;
+		long now = System.nanoTime();
+		long base = Math.max(tat.get(), now - fillTime(depth));
+		return (int) ((now - base) / intervalNanos);
+	}
+
+	/**
+	 * Return the rate, in tokens per second.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Set the rate, in tokens per second. A rate of -1.0 indicates no rate
+	 * limit.
+	 */
+	public void setRate(double rate) {
+		if (rate != -1.0 && rate <= 0)
+			throw new IllegalArgumentException("Bad rate " + rate);
+		this.intervalNanos = (rate == -1.0) ? 0 : 1.0e9 / rate;
+		this.rate = rate;
+	}
+
+	/**
+	 * Return the depth of the bucket.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Set the depth of the bucket.
+	 */
+	public void setDepth(int depth) {
+		if (depth < 1) throw new IllegalArgumentException("Bad depth " + depth);
+		this.depth = depth;
+	}
+
+}
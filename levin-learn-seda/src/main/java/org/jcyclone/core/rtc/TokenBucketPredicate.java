@@ -0,0 +1,132 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+
+import java.util.List;
+
+/**
+ * This enqueue predicate implements input rate policing with a token
+ * bucket: each element enqueued takes one token, and the bucket refills
+ * at the target rate up to its depth. It may be used by any number of
+ * threads enqueueing concurrently.
+ * <p/>
+ * {@link #acceptMany} admits a batch only if there are tokens for all of
+ * its elements, as <tt>enqueueMany</tt> is all or nothing;
+ * {@link #acceptPrefix} admits as much of a batch as the tokens allow.
+ * {@link #blockingAccept} parks the caller until a token is available.
+ * AdmissionControlledSink gives back the tokens of admitted elements
+ * which the queue rejected.
+ *
+ * @see TokenBucket
+ */
+public class TokenBucketPredicate implements ITokenPredicate {
+
+	private static final boolean DEBUG = false;
+
+	private ISink thesink;
+	private TokenBucket bucket;
+
+	/**
+	 * Create a new TokenBucketPredicate for the given sink,
+	 * targetRate, and token bucket depth. A rate of -1.0 indicates no rate limit.
+	 */
+	public TokenBucketPredicate(ISink sink, double targetRate, int depth) {
+		this.thesink = sink;
+		this.bucket = new TokenBucket(targetRate, depth);
+
+		System.err.println("TokenBucketPredicate<" + sink.toString() + ">: Created");
+	}
+
+	/**
+	 * Returns true if the given element can be accepted into the queue.
+	 */
+	public boolean accept(IElement qel) {
+		boolean pass = bucket.tryAcquire();
+		if (DEBUG) System.err.println("TokenBucketPredicate<" + thesink + ">: " + (pass ? "accepted " : "rejected ") + qel);
+		return pass;
+	}
+
+	/**
+	 * Returns true if all the given elements can be accepted into the
+	 * queue; no token is taken otherwise.
+	 */
+	public boolean acceptMany(List elements) {
+		return bucket.tryAcquire(elements.size());
+	}
+
+	/**
+	 * Accept the longest prefix of the given elements that the available
+	 * tokens allow.
+	 *
+	 * @return the number of elements accepted, from the head of the list
+	 */
+	public int acceptPrefix(List elements) {
+		return bucket.acquireUpTo(elements.size());
+	}
+
+	/**
+	 * Give back the token taken for the given element.
+	 */
+	public void release(IElement element) {
+		bucket.release(1);
+	}
+
+	/**
+	 * Give back the tokens taken for the first num given elements.
+	 */
+	public void release(List elements, int num) {
+		bucket.release(num);
+	}
+
+	/**
+	 * Wait until the given element can be accepted into the queue, and
+	 * take its token. If the calling thread is interrupted while it waits,
+	 * returns with its interrupt status set without taking a token; since
+	 * the status may also be set once the token is taken, callers which
+	 * give tokens back use {@link #blockingAcquire} instead.
+	 */
+	public void blockingAccept(IElement element) {
+		blockingAcquire(element);
+	}
+
+	public boolean blockingAcquire(IElement element) {
+		return bucket.acquire();
+	}
+
+	/**
+	 * Return the current rate limit.
+	 */
+	public double getTargetRate() {
+		return bucket.getRate();
+	}
+
+	/**
+	 * Return the current depth.
+	 */
+	public int getDepth() {
+		return bucket.getDepth();
+	}
+
+	/**
+	 * Return the number of tokens currently in the bucket.
+	 */
+	public int getBucketSize() {
+		return bucket.available();
+	}
+
+	/**
+	 * Set the rate limit. A limit of -1.0 indicates no rate limit.
+	 */
+	public void setTargetRate(double targetRate) {
+		bucket.setRate(targetRate);
+	}
+
+	/**
+	 * Set the bucket depth.
+	 */
+	public void setDepth(int depth) {
+		bucket.setDepth(depth);
+	}
+
+}
@@ -51,4 +51,10 @@ public interface ISignalMgr {
 	 * Send the given signal to all registered handlers.
 	 */
 	void fire(ISignal signal);
+
+	/**
+	 * Send the given signal to all registered handlers on the calling
+	 * thread, and return once they all handled it.
+	 */
+	void fireNow(ISignal signal);
 }
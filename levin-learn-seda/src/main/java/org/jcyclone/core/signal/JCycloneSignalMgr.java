@@ -25,22 +25,34 @@
 package org.jcyclone.core.signal;
 
 import org.jcyclone.core.cfg.ISystemConfig;
-import org.jcyclone.core.queue.IBlockingQueue;
-import org.jcyclone.core.queue.LinkedBlockingQueue;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The SignalMgr is an implementation of ISignalMgr. It allows signal handlers
  * to register to receive certain signals and delivers those signals once
  * they are triggered.
  * <p/>
- * Signal handlers are registered with the chain of superclasses for each signal
- * as well, so that triggering a superclass of a given signal will also
- * reach those handlers registered for the subclass.
+ * Triggering a superclass of a given signal will also reach those handlers
+ * registered for the subclass. The handlers of each class of signal are
+ * resolved the first time a signal of that class is fired, into an
+ * immutable array which is then read without locking; registering or
+ * deregistering a handler drops the resolved arrays.
+ * <p/>
+ * {@link #fireNow} calls the handlers on the calling thread. {@link #fire}
+ * hands the signal to a mailbox per handler, run by a pool of
+ * <tt>global.signal.numThreads</tt> threads: each handler receives the
+ * signals in the order they were fired, one at a time, while distinct
+ * handlers run in parallel.
  *
  * @author Matt Welsh and Jean Morissette
  * @see ISignalMgr
@@ -48,11 +60,19 @@ import java.util.Map;
  */
 public class JCycloneSignalMgr implements ISignalMgr {
 
+	private static final boolean DEBUG = false;
+
+	// Number of signals a handler gets before giving its thread to others
+	private static final int MAX_BATCH = 16;
+
+	private static final mailbox[] NONE = new mailbox[0];
+
 	private ISystemConfig config;
-	private Map signalToHandlerTbl; // Map signal type to List of handlers
-	private Thread thread;
-	private IBlockingQueue signalQueue;
-	private volatile boolean blocked;  // Indicate if the thread is blocked in blocking_dequeue
+	private Map signalToHandlerTbl; // Map signal type to List of mailboxes registered for it
+	private Map mailboxTbl;         // Map handler to its mailbox
+	private Map resolvedTbl;        // Map fired class to array of mailboxes
+	private BlockingQueue runQueue; // mailboxes with pending signals
+	private Thread[] threads;
 
 	volatile int runState;
 	private static final int RUNNING = 1;
@@ -60,7 +80,9 @@ public class JCycloneSignalMgr implements ISignalMgr {
 
 	public JCycloneSignalMgr(ISystemConfig conf) {
 		signalToHandlerTbl = new HashMap();
-		signalQueue = new LinkedBlockingQueue();
+		mailboxTbl = new IdentityHashMap();
+		resolvedTbl = new ConcurrentHashMap();
+		runQueue = new java.util.concurrent.LinkedBlockingQueue();
 		this.config = conf;
 	}
 
@@ -71,93 +93,167 @@ public class JCycloneSignalMgr implements ISignalMgr {
 		// check preconditions
 		if (handler == null)
 			throw new NullPointerException();
-		if (listeners != null && listeners.contains(handler))
+		mailbox mb = (mailbox) mailboxTbl.get(handler);
+		if (listeners != null && mb != null && listeners.contains(mb))
 			throw new IllegalArgumentException("Handler " + handler + " already registered for signal type " + type);
 
-		do {
-			if (listeners == null) {
-				listeners = new ArrayList();
-				signalToHandlerTbl.put(type, listeners);
-			} else {
-				if (listeners.contains(handler))
-					break;
-			}
-			listeners.add(handler);
-			type = type.getSuperclass();
-			listeners = (List) signalToHandlerTbl.get(type);
-		} while (ISignal.class.isAssignableFrom(type));
+		if (mb == null) {
+			mb = new mailbox(handler);
+			mailboxTbl.put(handler, mb);
+		}
+		mb.refs++;
+		if (listeners == null) {
+			listeners = new ArrayList();
+			signalToHandlerTbl.put(type, listeners);
+		}
+		listeners.add(mb);
+		resolvedTbl.clear();
 	}
 
 	public synchronized void deregister(ISignal signalType, ISignalHandler handler) {
 		Class type = signalType.getClass();
 		List listeners = (List) signalToHandlerTbl.get(type);
+		mailbox mb = (mailbox) mailboxTbl.get(handler);
 
 		// check preconditions
-		if (listeners == null || !listeners.contains(handler))
+		if (listeners == null || mb == null || !listeners.contains(mb))
 			throw new IllegalArgumentException("Handler " + handler + " not registered for signal type " + type);
 
-		do {
-			// XXX: use a better data structure to avoid to keep the lock
-			synchronized (listeners) {
-				listeners.remove(handler);
+		listeners.remove(mb);
+		if (listeners.isEmpty()) signalToHandlerTbl.remove(type);
+		if (--mb.refs == 0) mailboxTbl.remove(handler);
+		resolvedTbl.clear();
+	}
+
+	/**
+	 * Return the mailboxes of the handlers of the given class of signal,
+	 * that is of the handlers registered for that class or a subclass.
+	 */
+	private mailbox[] resolve(Class type) {
+		mailbox[] mbs = (mailbox[]) resolvedTbl.get(type);
+		if (mbs != null) return mbs;
+		synchronized (this) {
+			mbs = (mailbox[]) resolvedTbl.get(type);
+			if (mbs == null) {
+				List resolved = new ArrayList();
+				Iterator it = signalToHandlerTbl.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry e = (Map.Entry) it.next();
+					if (!type.isAssignableFrom((Class) e.getKey())) continue;
+					List listeners = (List) e.getValue();
+					for (int i = 0; i < listeners.size(); i++) {
+						Object mb = listeners.get(i);
+						if (!resolved.contains(mb)) resolved.add(mb);
+					}
+				}
+				mbs = resolved.isEmpty() ? NONE : (mailbox[]) resolved.toArray(new mailbox[resolved.size()]);
+				resolvedTbl.put(type, mbs);
+				if (DEBUG) System.err.println("JCycloneSignalMgr: " + mbs.length + " handlers for " + type.getName());
 			}
-			type = type.getSuperclass();
-			listeners = (List) signalToHandlerTbl.get(type);
-		} while (ISignal.class.isAssignableFrom(type));
+		}
+		return mbs;
 	}
 
+	/**
+	 * Send the given signal to all registered handlers, which receive it
+	 * on the threads of the signal manager.
+	 */
 	public void fire(final ISignal signal) {
-		try {
-			signalQueue.blockingEnqueue(signal);
-		} catch (InterruptedException ignore) {
-			// this must not occur
+		if (runState == STOP) return;
+		if (runState != RUNNING) start();
+		mailbox[] mbs = resolve(signal.getClass());
+		for (int i = 0; i < mbs.length; i++) {
+			mbs[i].post(signal);
+		}
+	}
+
+	/**
+	 * Send the given signal to all registered handlers on the calling
+	 * thread, and return once they all handled it.
+	 */
+	public void fireNow(ISignal signal) {
+		mailbox[] mbs = resolve(signal.getClass());
+		for (int i = 0; i < mbs.length; i++) {
+			mbs[i].deliver(signal);
 		}
 	}
 
 	synchronized void start() {
-		if (runState == RUNNING) return;
+		if (runState != 0) return;
 		runState = RUNNING;
 		int prio = config.getInt("global.signal.prio", Thread.MAX_PRIORITY);
-		thread = new Thread(new SignalPublisher(), "Thread-SignalMgr");
-		thread.setPriority(prio);
-		thread.start();
+		int num = config.getInt("global.signal.numThreads", 0);
+		if (num <= 0) num = Runtime.getRuntime().availableProcessors();
+		threads = new Thread[num];
+		for (int i = 0; i < num; i++) {
+			threads[i] = new Thread(new SignalPublisher(), "Thread-SignalMgr-" + i);
+			threads[i].setPriority(prio);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
 	}
 
 	public synchronized void stop() {
+		int state = runState;
 		runState = STOP;
-		// XXX JM: warning, we don't want to interrupt a blocking *enqueue*!
-		if (blocked) thread.interrupt();
+		if (state != RUNNING) return;
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].interrupt();
+		}
 	}
 
-	class SignalPublisher implements Runnable {
+	/**
+	 * Pending signals of a handler, run by at most one thread at a time.
+	 */
+	class mailbox implements Runnable {
+		final ISignalHandler handler;
+		final ConcurrentLinkedQueue signals = new ConcurrentLinkedQueue();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		int refs; // number of registrations, guarded by the manager
+
+		mailbox(ISignalHandler handler) {
+			this.handler = handler;
+		}
+
+		void post(ISignal signal) {
+			signals.add(signal);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) runQueue.add(this);
+		}
+
+		void deliver(ISignal signal) {
+			try {
+				handler.handleSignal(signal);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
 
 		public void run() {
-			while (true) {
-				ISignal signal = null;
+			ISignal signal;
+			for (int i = 0; i < MAX_BATCH && (signal = (ISignal) signals.poll()) != null; i++) {
+				deliver(signal);
+			}
+			scheduled.set(false);
+			// A signal may have been posted while we were still scheduled
+			if (!signals.isEmpty()) schedule();
+		}
+	}
 
-				blocked = true;
-				if (runState == STOP) return;
+	class SignalPublisher implements Runnable {
 
+		public void run() {
+			while (runState != STOP) {
+				mailbox mb;
 				try {
-					signal = (ISignal) signalQueue.blockingDequeue(-1);
+					mb = (mailbox) runQueue.take();
 				} catch (InterruptedException e) {
 					return;
 				}
-
-				blocked = false;
-				if (runState == STOP) return;
-
-				List listeners = (List) signalToHandlerTbl.get(signal);
-				synchronized (listeners) {
-					for (int i = 0; i < listeners.size(); i++) {
-						ISignalHandler h = (ISignalHandler) listeners.get(i);
-						try {
-							h.handleSignal(signal);
-						} catch (Throwable t) {
-							t.printStackTrace();
-						}
-					}
-				}
+				mb.run();
 			}
 		}
 	}
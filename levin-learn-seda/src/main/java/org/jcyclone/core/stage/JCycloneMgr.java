@@ -26,6 +26,7 @@ package org.jcyclone.core.stage;
 
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.event.RecyclingPool;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.internal.*;
 import org.jcyclone.core.profiler.IProfiler;
@@ -35,7 +36,9 @@ import org.jcyclone.core.signal.JCycloneSignalMgr;
 import org.jcyclone.core.signal.StagesInitializedSignal;
 import org.jcyclone.core.timer.ITimer;
 import org.jcyclone.core.timer.JCycloneTimer;
+import org.jcyclone.core.timer.TimingWheelTimer;
 import org.jcyclone.core.plugin.IPlugin;
+import org.jcyclone.core.trace.TraceCollector;
 
 import java.util.*;
 
@@ -62,8 +65,9 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 	private ISystemConfig mgrconfig;
 	private ConcurrentMap stagetbl;    // stage name --> StageWrapper
 	private JCycloneProfiler profiler;
+	private TraceCollector traceCollector;
 	private JCycloneSignalMgr signalMgr;
-	private JCycloneTimer timer;
+	private ITimer timer;
 	private boolean crashOnException = false;
 
 	/**
@@ -76,7 +80,7 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 		stagetbl = new ConcurrentHashMap();
 		tmtbl = Collections.synchronizedMap(new HashMap());
 		signalMgr = new JCycloneSignalMgr(mgrconfig);
-		timer = new JCycloneTimer();
+		timer = createTimer();
 
 		crashOnException = mgrconfig.getBoolean("global.crashOnException");
 		String dtm = mgrconfig.getString("global.defaultThreadManager");
@@ -92,6 +96,8 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 //			defaulttm = new TPPSchedulerOld(mgrconfig);
 		} else if (dtm.equals(JCycloneConfig.THREADMGR_TPSTM)) {
 			defaulttm = new TPSScheduler(this);
+		} else if (dtm.equals(JCycloneConfig.THREADMGR_WSTM)) {
+			defaulttm = new WorkStealingScheduler(this);
 		} else if (dtm.equals(JCycloneConfig.THREADMGR_AggTPSTM)) {
 			throw new Error("AggTPSThreadManager is no longer supported.");
 //			 defaulttm = new AggTPSThreadManager(mgrconfig);
@@ -104,6 +110,19 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 		// Create profiler even if disabled
 		profiler = new JCycloneProfiler(this);
 
+		RecyclingPool.setEnabled(mgrconfig.getBoolean("global.pool.enable"));
+		RecyclingPool.setDebug(mgrconfig.getBoolean("global.pool.debug"));
+		RecyclingPool.setProfiler(profiler);
+
+		if (mgrconfig.getBoolean("global.trace.enable")) {
+			traceCollector = new TraceCollector(mgrconfig.getString("global.trace.filename"),
+			    mgrconfig.getInt("global.trace.bufferSize"),
+			    mgrconfig.getInt("global.trace.sampleRate"),
+			    mgrconfig.getInt("global.trace.flushInterval"));
+			System.err.println("JCyclone: Tracing to " + traceCollector.getFilename());
+			traceCollector.start();
+		}
+
 		if (mgrconfig.getBoolean("global.profile.enable")) {
 			System.err.println("JCyclone: Starting profiler");
 			profiler.start();
@@ -113,6 +132,20 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 //		loadStages();
 	}
 
+	private ITimer createTimer() {
+		String type = mgrconfig.getString("global.timer.type", JCycloneConfig.TIMER_LIST);
+		if (type.equals(JCycloneConfig.TIMER_LIST)) {
+			return new JCycloneTimer();
+		} else if (type.equals(JCycloneConfig.TIMER_WHEEL)) {
+			return new TimingWheelTimer(mgrconfig.getInt("global.timer.wheel.tickMillis", 10),
+			    mgrconfig.getInt("global.timer.wheel.bits", 8),
+			    mgrconfig.getInt("global.timer.wheel.levels", 4),
+			    mgrconfig.getBoolean("global.timer.wheel.monotonic", true));
+		} else {
+			throw new IllegalArgumentException("Bad timer type specified by configuration: " + type);
+		}
+	}
+
 	private void initializePlugins() throws Exception {
 
 		String[] exts = ((JCycloneConfig)mgrconfig).getPluginNames();
@@ -144,6 +177,8 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 	void stop() throws Exception {
 		unloadStages();
 		profiler.stop();
+		RecyclingPool.setProfiler(null);
+		if (traceCollector != null) traceCollector.stop();
 		signalMgr.stop();
 	}
 
@@ -235,6 +270,13 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 		return profiler;
 	}
 
+	/**
+	 * Return the trace collector, or null if tracing is disabled.
+	 */
+	public TraceCollector getTraceCollector() {
+		return traceCollector;
+	}
+
 	public ITimer getTimer() {
 		return timer;
 	}
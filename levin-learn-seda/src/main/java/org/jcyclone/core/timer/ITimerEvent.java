@@ -1,6 +1,14 @@
 package org.jcyclone.core.timer;
 
+import org.jcyclone.core.event.IRecyclable;
 import org.jcyclone.core.queue.IElement;
 
-public interface ITimerEvent extends IElement {
+/**
+ * The handle of a registered timer event. Timers may recycle their
+ * events: the caller of registerEvent holds one reference on the event
+ * it gets back, and calls release() once it no longer needs to cancel
+ * it. An event which is never released is simply left to the garbage
+ * collector.
+ */
+public interface ITimerEvent extends IElement, IRecyclable {
 }
@@ -24,6 +24,7 @@
 
 package org.jcyclone.core.timer;
 
+import org.jcyclone.core.event.RecyclingPool;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.IQueue;
@@ -57,6 +58,23 @@ public class JCycloneTimer implements Runnable, IProfilable, ITimer {
 		public ISink queue;
 		public TimerEvent nextE;
 		public TimerEvent prevE;
+		private RecyclingPool.Handle handle;
+
+		private static final RecyclingPool pool = new RecyclingPool("JCycloneTimer.TimerEvent", 1024,
+		    new RecyclingPool.IFactory() {
+			    public Object create(RecyclingPool.Handle handle) {
+				    TimerEvent evt = new TimerEvent(0, null, null);
+				    evt.handle = handle;
+				    return evt;
+			    }
+
+			    public void reset(Object obj) {
+				    TimerEvent evt = (TimerEvent) obj;
+				    evt.obj = null;
+				    evt.queue = null;
+				    evt.nextE = evt.prevE = null;
+			    }
+		    });
 
 		public TimerEvent(long m, IElement o, ISink q) {
 			time_millis = m;
@@ -66,6 +84,27 @@ public class JCycloneTimer implements Runnable, IProfilable, ITimer {
 			prevE = null;
 		}
 
+		/**
+		 * Return a pooled event holding two references: one for the
+		 * caller of registerEvent, one for the timer.
+		 */
+		static TimerEvent get(long m, IElement o, ISink q) {
+			TimerEvent evt = (TimerEvent) pool.get();
+			evt.time_millis = m;
+			evt.obj = o;
+			evt.queue = q;
+			evt.retain();
+			return evt;
+		}
+
+		public void retain() {
+			if (handle != null) handle.retain();
+		}
+
+		public void release() {
+			if (handle != null) handle.release();
+		}
+
 		public String toString() {
 			return "TimerEvent<" + hashCode() + ">";
 		}
@@ -83,7 +122,7 @@ public class JCycloneTimer implements Runnable, IProfilable, ITimer {
 	public ITimerEvent registerEvent(long millis, IElement obj,
 	                                 ISink queue) {
 		long time_millis = System.currentTimeMillis() + millis;
-		TimerEvent newTimer = new TimerEvent(time_millis, obj, queue);
+		TimerEvent newTimer = TimerEvent.get(time_millis, obj, queue);
 
 		insertEvent(newTimer);
 
@@ -102,7 +141,7 @@ public class JCycloneTimer implements Runnable, IProfilable, ITimer {
 	public ITimerEvent registerEvent(java.util.Date the_date,
 	                                 IElement obj,
 	                                 ISink queue) {
-		TimerEvent newTimer = new TimerEvent(the_date.getTime(),
+		TimerEvent newTimer = TimerEvent.get(the_date.getTime(),
 		    obj, queue);
 		insertEvent(newTimer);
 
@@ -139,8 +178,15 @@ public class JCycloneTimer implements Runnable, IProfilable, ITimer {
 	 */
 	public void cancelAll() {
 		synchronized (sync_o) {
+			TimerEvent evt = head_event;
 			head_event = tail_event = null;
 			num_events = 0;
+			while (evt != null) {
+				TimerEvent next = evt.nextE;
+				evt.nextE = evt.prevE = null;
+				evt.release();
+				evt = next;
+			}
 		}
 	}
 
@@ -156,47 +202,40 @@ public class JCycloneTimer implements Runnable, IProfilable, ITimer {
 		if (evt == null)
 			return;
 
-		try {
-			synchronized (sync_o) {
-				if (evt == tail_event) {
-
-					// is this only list item?
-					if (tail_event == head_event) {
-						tail_event = head_event = null;
-						num_events--;
-						return;
-					}
+		boolean removed = false;
+		synchronized (sync_o) {
+			if (evt == tail_event) {
 
+				// is this only list item?
+				if (tail_event == head_event) {
+					tail_event = head_event = null;
+				} else {
 					// not only list item, is at tail, so lop off tail
 					tail_event = tail_event.prevE;
 					tail_event.nextE = null;
-					num_events--;
-					return;
-
-				} else if (evt == head_event) {
+				}
+				removed = true;
 
-					// not only list item, is at head, so lop off head
-					head_event = head_event.nextE;
-					head_event.prevE = null;
-					num_events--;
-					return;
+			} else if (evt == head_event) {
 
-				} else {
-
-					// make sure event didn't fire already
-					if ((evt.prevE != null) && (evt.nextE != null)) {
-						// in middle somewhere
-						evt.prevE.nextE = evt.nextE;
-						evt.nextE.prevE = evt.prevE;
-						num_events--;
-						return;
-					}
-				}
+				// not only list item, is at head, so lop off head
+				head_event = head_event.nextE;
+				head_event.prevE = null;
+				removed = true;
+
+			} else if ((evt.prevE != null) && (evt.nextE != null)) {
+				// make sure event didn't fire already
+				// in middle somewhere
+				evt.prevE.nextE = evt.nextE;
+				evt.nextE.prevE = evt.prevE;
+				removed = true;
 			}
-		} finally {
 			evt.nextE = null;
 			evt.prevE = null;
+			if (removed) num_events--;
 		}
+		// drop the reference of the timer
+		if (removed) evt.release();
 	}
 
 	// takes the event, does insertion-sort into ssTimerEvent linked list
@@ -297,6 +336,7 @@ public class JCycloneTimer implements Runnable, IProfilable, ITimer {
 
 		if (fire != null) {
 			fire.queue.enqueueLossy(fire.obj);
+			fire.release();
 		}
 	}
 
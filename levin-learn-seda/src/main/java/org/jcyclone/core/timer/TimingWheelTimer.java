@@ -0,0 +1,415 @@
+package org.jcyclone.core.timer;
+
+import org.jcyclone.core.event.RecyclingPool;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.SinkException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TimingWheelTimer is an ITimer implementation based on a hashed
+ * hierarchical timing wheel. Time is divided in ticks of
+ * <tt>tickMillis</tt> milliseconds; the first wheel has one slot per
+ * tick, and every following wheel has one slot per full rotation of the
+ * wheel below it. Events far in the future are cascaded down one wheel
+ * each time their slot comes up, so registering and cancelling an event
+ * are both constant time, whatever the number of pending events.
+ * <p/>
+ * Events are fired with a granularity of one tick and never before their
+ * deadline. All events expiring in a tick are handed to their sinks in
+ * one <tt>enqueueMany</tt> call per sink; if a sink rejects the batch,
+ * the events are enqueued one by one with <tt>enqueueLossy</tt>, as
+ * JCycloneTimer does.
+ * <p/>
+ * By default deadlines are measured with <tt>System.nanoTime()</tt>, so
+ * timers are not affected by changes of the wall clock; events
+ * registered with an absolute date are converted to a delay when they
+ * are registered.
+ */
+public class TimingWheelTimer implements Runnable, IProfilable, ITimer {
+
+	private static final boolean DEBUG = false;
+
+	// time to sleep when no events are pending
+	private static final long IDLE_WAIT = 500;
+
+	private final long tickMillis;
+	private final int wheelBits;
+	private final int wheelMask;
+	private final int numWheels;
+	private final long maxTicks;
+	private final boolean monotonic;
+	private final long startTime;
+
+	// wheels[level][slot] is the sentinel of a circular doubly linked list
+	private final TimerEvent[][] wheels;
+
+	// next tick to process; only advanced under sync_o
+	private long currentTick;
+	private volatile int num_events;
+	private volatile boolean die_thread;
+
+	private final Object sync_o = new Object();
+	private Thread thr;
+
+	/**
+	 * Create a timer with 10 ms ticks, four wheels of 256 slots and a
+	 * monotonic clock.
+	 */
+	public TimingWheelTimer() {
+		this(10, 8, 4, true);
+	}
+
+	/**
+	 * Create a timer.
+	 *
+	 * @param tickMillis the duration of a tick, in milliseconds
+	 * @param wheelBits  log2 of the number of slots of each wheel
+	 * @param numWheels  number of wheels; events further than
+	 *                   2^(wheelBits*numWheels) ticks are cascaded again
+	 *                   each time they come up in the last wheel
+	 * @param monotonic  whether to measure time with System.nanoTime()
+	 *                   rather than System.currentTimeMillis()
+	 */
+	public TimingWheelTimer(long tickMillis, int wheelBits, int numWheels, boolean monotonic) {
+		if (tickMillis <= 0 || wheelBits <= 0 || numWheels <= 0 || wheelBits * numWheels > 62)
+			throw new IllegalArgumentException();
+		this.tickMillis = tickMillis;
+		this.wheelBits = wheelBits;
+		this.wheelMask = (1 << wheelBits) - 1;
+		this.numWheels = numWheels;
+		this.maxTicks = (1L << (wheelBits * numWheels)) - 1;
+		this.monotonic = monotonic;
+
+		wheels = new TimerEvent[numWheels][1 << wheelBits];
+		for (int i = 0; i < numWheels; i++) {
+			for (int j = 0; j <= wheelMask; j++) {
+				TimerEvent head = new TimerEvent(0, null, null);
+				head.nextE = head.prevE = head;
+				wheels[i][j] = head;
+			}
+		}
+
+		startTime = now();
+		currentTick = 0;
+		die_thread = false;
+		thr = new Thread(this, "Timer thread");
+		thr.start();
+	}
+
+	public static class TimerEvent implements ITimerEvent {
+		public long tick;
+		public IElement obj;
+		public ISink queue;
+		TimerEvent nextE;
+		TimerEvent prevE;
+		// sentinel of the slot holding this event, null if not pending
+		TimerEvent slot;
+		private RecyclingPool.Handle handle;
+
+		private static final RecyclingPool pool = new RecyclingPool("TimingWheelTimer.TimerEvent", 1024,
+		    new RecyclingPool.IFactory() {
+			    public Object create(RecyclingPool.Handle handle) {
+				    TimerEvent evt = new TimerEvent(0, null, null);
+				    evt.handle = handle;
+				    return evt;
+			    }
+
+			    public void reset(Object obj) {
+				    TimerEvent evt = (TimerEvent) obj;
+				    evt.obj = null;
+				    evt.queue = null;
+			    }
+		    });
+
+		public TimerEvent(long tick, IElement o, ISink q) {
+			this.tick = tick;
+			obj = o;
+			queue = q;
+		}
+
+		/**
+		 * Return a pooled event holding two references: one for the
+		 * caller of registerEvent, one for the timer.
+		 */
+		static TimerEvent get(long tick, IElement o, ISink q) {
+			TimerEvent evt = (TimerEvent) pool.get();
+			evt.tick = tick;
+			evt.obj = o;
+			evt.queue = q;
+			evt.retain();
+			return evt;
+		}
+
+		public void retain() {
+			if (handle != null) handle.retain();
+		}
+
+		public void release() {
+			if (handle != null) handle.release();
+		}
+
+		public String toString() {
+			return "TimerEvent<" + hashCode() + ">";
+		}
+	}
+
+	private long now() {
+		return monotonic ? System.nanoTime() / 1000000 : System.currentTimeMillis();
+	}
+
+	/**
+	 * Object <code>obj</code> will be placed on ISink <code>queue</code>
+	 * no earlier than <code>millis</code> milliseconds from now.
+	 *
+	 * @param millis the number of milliseconds from now when the event will
+	 *               take place
+	 * @param obj    the object that will be placed on the queue
+	 * @param queue  the queue on which the object will be placed
+	 */
+	public ITimerEvent registerEvent(long millis, IElement obj, ISink queue) {
+		if (millis < 0) millis = 0;
+		long elapsed = now() - startTime + millis;
+		// round up, so that the event never fires early
+		TimerEvent evt = TimerEvent.get((elapsed + tickMillis - 1) / tickMillis, obj, queue);
+
+		synchronized (sync_o) {
+			if (evt.tick < currentTick) evt.tick = currentTick;
+			insertEvent(evt);
+			if (num_events++ == 0) sync_o.notify();
+		}
+		return evt;
+	}
+
+	/**
+	 * Object <code>obj</code> will be placed on ISink <code>queue</code>
+	 * no earlier than absolute time <code>the_date</code>.
+	 *
+	 * @param the_date the date when the event will take place - if this date
+	 *                 is in the past, the event will happen right away
+	 * @param obj      the object that will be placed on the queue
+	 * @param queue    the queue on which the object will be placed
+	 */
+	public ITimerEvent registerEvent(Date the_date, IElement obj, ISink queue) {
+		return registerEvent(the_date.getTime() - System.currentTimeMillis(), obj, queue);
+	}
+
+	/**
+	 * Kills off this timer object, dropping all pending events on floor.
+	 */
+	public void doneWithTimer() {
+		die_thread = true;
+
+		synchronized (sync_o) {
+			sync_o.notify();
+		}
+	}
+
+	/**
+	 * How many events yet to fire?
+	 */
+	public int size() {
+		return num_events;
+	}
+
+	/**
+	 * Return the profile size of this timer.
+	 */
+	public int profileSize() {
+		return size();
+	}
+
+	/**
+	 * Cancels all events.
+	 */
+	public void cancelAll() {
+		synchronized (sync_o) {
+			for (int i = 0; i < numWheels; i++) {
+				for (int j = 0; j <= wheelMask; j++) {
+					TimerEvent head = wheels[i][j];
+					for (TimerEvent e = head.nextE; e != head;) {
+						TimerEvent next = e.nextE;
+						e.nextE = e.prevE = e.slot = null;
+						e.release();
+						e = next;
+					}
+					head.nextE = head.prevE = head;
+				}
+			}
+			num_events = 0;
+		}
+	}
+
+	/**
+	 * Cancels the firing of this timer event. Has no effect if the event
+	 * already fired or was already cancelled.
+	 *
+	 * @param timerEvt the event to cancel, as returned by registerEvent
+	 */
+	public void cancelEvent(ITimerEvent timerEvt) {
+		TimerEvent evt = (TimerEvent) timerEvt;
+
+		if (evt == null)
+			return;
+
+		boolean removed = false;
+		synchronized (sync_o) {
+			if (evt.slot != null) {
+				unlink(evt);
+				num_events--;
+				removed = true;
+			}
+		}
+		// drop the reference of the timer
+		if (removed) evt.release();
+	}
+
+	// Call only under synch on sync_o
+	private void insertEvent(TimerEvent evt) {
+		long delta = evt.tick - currentTick;
+		long tick = evt.tick;
+		if (delta > maxTicks) {
+			// too far away, park it in the last wheel; it will be
+			// re-inserted from there when its slot comes up
+			delta = maxTicks;
+			tick = currentTick + maxTicks;
+		}
+		int level = 0;
+		while (level < numWheels - 1 && delta >= (1L << (wheelBits * (level + 1))))
+			level++;
+		TimerEvent head = wheels[level][(int) (tick >>> (wheelBits * level)) & wheelMask];
+
+		evt.slot = head;
+		evt.prevE = head.prevE;
+		evt.nextE = head;
+		head.prevE.nextE = evt;
+		head.prevE = evt;
+	}
+
+	// Call only under synch on sync_o
+	private void unlink(TimerEvent evt) {
+		evt.prevE.nextE = evt.nextE;
+		evt.nextE.prevE = evt.prevE;
+		evt.nextE = evt.prevE = evt.slot = null;
+	}
+
+	// Re-insert all the events of the given slot; returns the slot index
+	// Call only under synch on sync_o
+	private int cascade(int level) {
+		int index = (int) (currentTick >>> (wheelBits * level)) & wheelMask;
+		TimerEvent head = wheels[level][index];
+		TimerEvent e = head.nextE;
+		head.nextE = head.prevE = head;
+		while (e != head) {
+			TimerEvent next = e.nextE;
+			insertEvent(e);
+			e = next;
+		}
+		return index;
+	}
+
+	// Process currentTick, moving its expired events to fired
+	// Call only under synch on sync_o
+	private void processTick(List fired) {
+		int index = (int) currentTick & wheelMask;
+		if (index == 0) {
+			for (int level = 1; level < numWheels && cascade(level) == 0; level++)
+				;
+		}
+
+		TimerEvent head = wheels[0][index];
+		TimerEvent e = head.nextE;
+		head.nextE = head.prevE = head;
+		while (e != head) {
+			TimerEvent next = e.nextE;
+			e.nextE = e.prevE = e.slot = null;
+			fired.add(e);
+			num_events--;
+			e = next;
+		}
+		currentTick++;
+	}
+
+	private void fire(List fired) {
+		if (DEBUG) System.err.println("TimingWheelTimer: Firing " + fired.size() + " events, " + num_events + " pending");
+		if (fired.size() == 1) {
+			TimerEvent e = (TimerEvent) fired.get(0);
+			e.queue.enqueueLossy(e.obj);
+		} else {
+			enqueueBatches(fired);
+		}
+		// drop the references of the timer
+		for (int i = 0; i < fired.size(); i++) {
+			((TimerEvent) fired.get(i)).release();
+		}
+	}
+
+	// Hand the fired events to their sinks, one enqueueMany per sink
+	private void enqueueBatches(List fired) {
+		Map batches = new IdentityHashMap();
+		for (int i = 0; i < fired.size(); i++) {
+			TimerEvent e = (TimerEvent) fired.get(i);
+			List batch = (List) batches.get(e.queue);
+			if (batch == null) {
+				batch = new ArrayList();
+				batches.put(e.queue, batch);
+			}
+			batch.add(e.obj);
+		}
+
+		Iterator it = batches.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			ISink queue = (ISink) entry.getKey();
+			List batch = (List) entry.getValue();
+			try {
+				queue.enqueueMany(batch);
+			} catch (SinkException se) {
+				for (int i = 0; i < batch.size(); i++) {
+					queue.enqueueLossy((IElement) batch.get(i));
+				}
+			}
+		}
+	}
+
+	public void run() {
+		List fired = new ArrayList();
+		while (die_thread == false) {
+			try {
+				synchronized (sync_o) {
+					long nowTick = (now() - startTime) / tickMillis;
+					if (num_events == 0) {
+						// nothing to process, catch up at once
+						if (nowTick > currentTick) currentTick = nowTick;
+						if (die_thread == false) sync_o.wait(IDLE_WAIT);
+						continue;
+					}
+					if (nowTick < currentTick) {
+						// sleep till next tick
+						long wait_time = startTime + currentTick * tickMillis - now();
+						if (wait_time > 0) sync_o.wait(wait_time);
+						continue;
+					}
+					while (currentTick <= nowTick && num_events > 0) {
+						processTick(fired);
+					}
+				}
+				if (!fired.isEmpty()) {
+					fire(fired);
+					fired.clear();
+				}
+			} catch (Throwable t) {
+				t.printStackTrace();
+				fired.clear();
+			}
+		}
+	}
+
+}
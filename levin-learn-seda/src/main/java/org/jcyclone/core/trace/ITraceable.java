@@ -0,0 +1,26 @@
+package org.jcyclone.core.trace;
+
+import org.jcyclone.core.queue.IElement;
+
+/**
+ * An ITraceable is an element which can carry a TraceContext from stage
+ * to stage. When tracing is enabled, the sinks of the stages set the
+ * context of the traceable elements enqueued onto them, and the thread
+ * managers record a span for each traced element they handle.
+ *
+ * @see TraceCollector
+ */
+public interface ITraceable extends IElement {
+
+	/**
+	 * Return the trace context of this element, or null if it is not
+	 * traced.
+	 */
+	TraceContext getTraceContext();
+
+	/**
+	 * Set the trace context of this element.
+	 */
+	void setTraceContext(TraceContext ctx);
+
+}
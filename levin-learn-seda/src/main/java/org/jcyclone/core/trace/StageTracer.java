@@ -0,0 +1,190 @@
+package org.jcyclone.core.trace;
+
+import org.jcyclone.core.queue.ForwardingSink;
+import org.jcyclone.core.queue.IBlockingSink;
+import org.jcyclone.core.queue.IElement;
+
+import java.util.List;
+
+/**
+ * A StageTracer traces the elements going through one stage: its sink
+ * sets the trace context of the traceable elements enqueued onto the
+ * stage, and the thread manager calls {@link #beginBatch} and
+ * {@link #endBatch} around each call to the event handler, to record
+ * the spans of the traced elements and carry their context on the
+ * thread of the handler.
+ * <p/>
+ * Stages only get a tracer when <tt>global.trace.enable</tt> is set;
+ * otherwise their sinks are not wrapped and tracing costs nothing.
+ * Elements which are not sampled are passed on without allocating.
+ *
+ * @see TraceCollector
+ */
+public class StageTracer {
+
+	private static final boolean DEBUG = false;
+
+	private final String name;
+	private final TraceCollector collector;
+
+	public StageTracer(String name, TraceCollector collector) {
+		this.name = name;
+		this.collector = collector;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return a sink tracing the elements enqueued onto the given sink.
+	 */
+	public IBlockingSink wrapSink(IBlockingSink sink) {
+		return new tracingSink(sink);
+	}
+
+	/**
+	 * Set the trace context of a traceable element being enqueued: the
+	 * next hop of its own context, or of that of the calling handler, or
+	 * a new trace if the element enters the system and is sampled.
+	 */
+	private void attach(Object element) {
+		if (!(element instanceof ITraceable)) return;
+		ITraceable ev = (ITraceable) element;
+		TraceContext ctx = ev.getTraceContext();
+		if (ctx == null) {
+			ctx = TraceContext.currentOrUnsampled();
+			if (ctx == TraceContext.UNSAMPLED) return;
+			if (ctx == null) {
+				// entering the system
+				if (!collector.sample()) return;
+				ev.setTraceContext(TraceContext.root(System.nanoTime()));
+				if (DEBUG) System.err.println("StageTracer <" + name + ">: tracing " + ev);
+				return;
+			}
+		}
+		ev.setTraceContext(ctx.child(System.nanoTime()));
+	}
+
+	private void attach(List elements) {
+		for (int i = 0; i < elements.size(); i++) {
+			attach(elements.get(i));
+		}
+	}
+
+	/**
+	 * Called by the thread manager before handing a batch to the event
+	 * handler: notes the contexts of the traced events, since the handler
+	 * may forward them. If the batch holds a single traced event, makes
+	 * its context the current context of the thread; with several events,
+	 * it cannot tell which one causes the events enqueued by the handler.
+	 * Each call must be followed by a call to endBatch on the same thread,
+	 * even if the handler fails.
+	 */
+	public void beginBatch(List events) {
+		frame f = ((frames) stack.get()).push();
+		int n = events.size();
+		for (int i = 0; i < n; i++) {
+			Object ev = events.get(i);
+			if (ev instanceof ITraceable) {
+				TraceContext ctx = ((ITraceable) ev).getTraceContext();
+				if (ctx != null) f.add(ctx);
+			}
+		}
+		f.batch = n;
+		f.previous = TraceContext.swap((n == 1 && f.num == 1) ? f.ctxs[0] : TraceContext.UNSAMPLED);
+	}
+
+	/**
+	 * Called by the thread manager once the event handler returned:
+	 * records a span for each traced event of the batch, and restores the
+	 * context of the thread.
+	 *
+	 * @param start the System.nanoTime() at which the handler started
+	 * @param end   the System.nanoTime() at which it returned
+	 */
+	public void endBatch(long start, long end) {
+		frame f = ((frames) stack.get()).pop();
+		TraceContext.swap(f.previous);
+		if (f.num > 0) {
+			String thread = Thread.currentThread().getName();
+			for (int i = 0; i < f.num; i++) {
+				collector.record(new TraceCollector.span(f.ctxs[i], name, thread, start, end, f.batch));
+			}
+		}
+		f.clear();
+	}
+
+	// Per-thread stack of the batches being handled: fused stages nest
+	private static final ThreadLocal stack = new ThreadLocal() {
+		protected Object initialValue() {
+			return new frames();
+		}
+	};
+
+	static final class frames {
+		private frame[] frames = new frame[0];
+		private int depth;
+
+		frame push() {
+			if (depth == frames.length) {
+				frame[] f = new frame[depth + 4];
+				System.arraycopy(frames, 0, f, 0, depth);
+				for (int i = depth; i < f.length; i++) f[i] = new frame();
+				frames = f;
+			}
+			return frames[depth++];
+		}
+
+		frame pop() {
+			return frames[--depth];
+		}
+	}
+
+	static final class frame {
+		TraceContext previous;
+		TraceContext[] ctxs = new TraceContext[4];
+		int num;
+		int batch;
+
+		void add(TraceContext ctx) {
+			if (num == ctxs.length) {
+				TraceContext[] c = new TraceContext[num * 2];
+				System.arraycopy(ctxs, 0, c, 0, num);
+				ctxs = c;
+			}
+			ctxs[num++] = ctx;
+		}
+
+		void clear() {
+			for (int i = 0; i < num; i++) ctxs[i] = null;
+			num = 0;
+			previous = null;
+		}
+	}
+
+	/**
+	 * Sets the trace context of the elements before enqueueing them. It
+	 * needs no transaction hook, so transactional enqueues go through
+	 * without a wrapper.
+	 */
+	class tracingSink extends ForwardingSink {
+
+		tracingSink(IBlockingSink sink) {
+			super(sink);
+		}
+
+		protected void entering(IElement element) {
+			attach(element);
+		}
+
+		protected void entering(List elements) {
+			attach(elements);
+		}
+
+		protected boolean wrapsTransactions() {
+			return false;
+		}
+	}
+
+}
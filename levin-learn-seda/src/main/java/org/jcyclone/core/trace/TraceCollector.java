@@ -0,0 +1,256 @@
+package org.jcyclone.core.trace;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The TraceCollector samples the requests entering the system, and
+ * writes the spans recorded by the stages to a file.
+ * <p/>
+ * A traceable element enqueued from outside of any handler starts a new
+ * trace with a probability of 1/<tt>global.trace.sampleRate</tt>. Each
+ * stage handling a traced element records a span with the time the
+ * element waited in its queue and the time its handler took.
+ * <p/>
+ * Spans are put in a lock-free ring of <tt>global.trace.bufferSize</tt>
+ * entries, and appended to <tt>global.trace.filename</tt> every
+ * <tt>global.trace.flushInterval</tt> milliseconds by a background
+ * thread; spans recorded while the ring is full are dropped. The file
+ * holds one JSON object per line:
+ * <pre>
+ * {"trace":"2a","span":"2c","parent":"2b","stage":"parse","thread":"TPS-2",
+ *  "ts":1234567890123456,"wait":52,"service":8,"batch":1}
+ * </pre>
+ * where ts is the wall-clock time at which the handler started, and
+ * wait and service are the queue-wait and handler times, all in
+ * microseconds. The handler time is that of the whole batch holding the
+ * element. TraceReport prints the slowest traces of such a file.
+ *
+ * @see ITraceable
+ * @see TraceReport
+ */
+public class TraceCollector implements Runnable {
+
+	private static final boolean DEBUG = false;
+
+	private final String filename;
+	private final int sampleRate;
+	private final long flushInterval;
+
+	private final AtomicReferenceArray ring;
+	private final int mask;
+	private final AtomicLong writePos = new AtomicLong();
+	private volatile long readPos;
+	private final AtomicLong dropped = new AtomicLong();
+	private long written;
+
+	// to convert System.nanoTime() to wall-clock time
+	private final long wallBase;
+	private final long nanoBase;
+
+	private Writer out;
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Create a collector.
+	 *
+	 * @param filename      the file to append spans to
+	 * @param bufferSize    the number of spans the ring holds, rounded up
+	 *                      to a power of two
+	 * @param sampleRate    one request in sampleRate is traced
+	 * @param flushInterval the delay between flushes, in milliseconds
+	 */
+	public TraceCollector(String filename, int bufferSize, int sampleRate, long flushInterval) {
+		if (bufferSize <= 0 || sampleRate <= 0 || flushInterval <= 0) throw new IllegalArgumentException();
+		int size = 1;
+		while (size < bufferSize) size <<= 1;
+		this.ring = new AtomicReferenceArray(size);
+		this.mask = size - 1;
+		this.filename = filename;
+		this.sampleRate = sampleRate;
+		this.flushInterval = flushInterval;
+		this.wallBase = System.currentTimeMillis() * 1000;
+		this.nanoBase = System.nanoTime();
+	}
+
+	/**
+	 * Open the file and start the flushing thread.
+	 */
+	public synchronized void start() throws IOException {
+		if (running) return;
+		out = new BufferedWriter(new FileWriter(filename, true));
+		running = true;
+		thread = new Thread(this, "JCyclone trace collector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the flushing thread, write the remaining spans and close the
+	 * file.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			if (!running) return;
+			running = false;
+			t = thread;
+		}
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			// ignore
+		}
+		synchronized (this) {
+			flush();
+			try {
+				out.close();
+			} catch (IOException e) {
+				System.err.println("TraceCollector: Cannot close " + filename + ": " + e);
+			}
+			out = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(flushInterval);
+			} catch (InterruptedException e) {
+				// stopping
+			}
+			synchronized (this) {
+				if (running) flush();
+			}
+		}
+	}
+
+	/**
+	 * Decide whether a new request is traced.
+	 */
+	boolean sample() {
+		return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+	}
+
+	/**
+	 * Put a span in the ring, unless it is full.
+	 */
+	void record(span s) {
+		long pos;
+		do {
+			pos = writePos.get();
+			if (pos - readPos > mask) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!writePos.compareAndSet(pos, pos + 1));
+		ring.set((int) pos & mask, s);
+	}
+
+	/**
+	 * Write the spans of the ring to the file. Called by the flushing
+	 * thread; spans still being put in the ring are left for the next
+	 * call.
+	 *
+	 * @return the number of spans written
+	 */
+	public synchronized int flush() {
+		if (out == null) return 0;
+		long pos = readPos;
+		long end = writePos.get();
+		int n = 0;
+		StringBuffer sb = new StringBuffer(256);
+		try {
+			while (pos < end) {
+				span s = (span) ring.getAndSet((int) pos & mask, null);
+				if (s == null) break;
+				pos++;
+				readPos = pos;
+				sb.setLength(0);
+				format(s, sb);
+				out.write(sb.toString());
+				n++;
+			}
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("TraceCollector: Cannot write to " + filename + ": " + e);
+		}
+		written += n;
+		if (DEBUG) System.err.println("TraceCollector: wrote " + n + " spans, " + dropped.get() + " dropped");
+		return n;
+	}
+
+	private void format(span s, StringBuffer sb) {
+		TraceContext ctx = s.ctx;
+		sb.append("{\"trace\":\"").append(Long.toHexString(ctx.getTraceId()));
+		sb.append("\",\"span\":\"").append(Long.toHexString(ctx.getSpanId()));
+		sb.append("\",\"parent\":\"").append(Long.toHexString(ctx.getParentId()));
+		sb.append("\",\"stage\":");
+		quote(s.stage, sb);
+		sb.append(",\"thread\":");
+		quote(s.thread, sb);
+		sb.append(",\"ts\":").append(wallBase + (s.start - nanoBase) / 1000);
+		sb.append(",\"wait\":").append(Math.max(0, s.start - ctx.getEnqueueTime()) / 1000);
+		sb.append(",\"service\":").append((s.end - s.start) / 1000);
+		sb.append(",\"batch\":").append(s.batch);
+		sb.append("}\n");
+	}
+
+	private static void quote(String str, StringBuffer sb) {
+		sb.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(' ');
+			else sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Return the number of spans dropped because the ring was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Return the number of spans written to the file.
+	 */
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * The time a stage spent on one traced element.
+	 */
+	static final class span {
+		final TraceContext ctx;
+		final String stage;
+		final String thread;
+		final long start;
+		final long end;
+		final int batch;
+
+		span(TraceContext ctx, String stage, String thread, long start, long end, int batch) {
+			this.ctx = ctx;
+			this.stage = stage;
+			this.thread = thread;
+			this.start = start;
+			this.end = end;
+			this.batch = batch;
+		}
+	}
+
+}
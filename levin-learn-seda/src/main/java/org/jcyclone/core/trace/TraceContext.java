@@ -0,0 +1,114 @@
+package org.jcyclone.core.trace;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TraceContext identifies one hop of a traced request: the trace it
+ * belongs to, its own span, the span which caused it, and the time the
+ * element carrying it was enqueued.
+ * <p/>
+ * Contexts are immutable. Each time a traced element is enqueued onto a
+ * stage, it gets a child of its previous context, so that an element
+ * forwarded from stage to stage carries its trace across stages and
+ * threads. While a thread runs the handler of a stage on a batch made of
+ * a single traced element, its context is the current context of the
+ * thread, and traceable elements enqueued by the handler without a
+ * context of their own inherit it. A handler of batches of several
+ * events carries the trace over to the elements it creates by setting
+ * their context to that of the event they derive from.
+ */
+public final class TraceContext {
+
+	// current context of threads running handlers on untraced events
+	static final TraceContext UNSAMPLED = new TraceContext(0, 0, 0, 0);
+
+	private static final AtomicLong ids = new AtomicLong(new Random().nextLong() & 0x0000ffffffffffffL);
+
+	private static final ThreadLocal current = new ThreadLocal();
+
+	private final long traceId;
+	private final long spanId;
+	private final long parentId;
+	private final long enqueueTime;
+
+	private TraceContext(long traceId, long spanId, long parentId, long enqueueTime) {
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.parentId = parentId;
+		this.enqueueTime = enqueueTime;
+	}
+
+	/**
+	 * Start a new trace, whatever the sampling rate: an element given
+	 * this context is traced through all the stages it goes through.
+	 */
+	public static TraceContext start() {
+		long id = ids.incrementAndGet();
+		return new TraceContext(id, id, 0, System.nanoTime());
+	}
+
+	/**
+	 * Return the first hop of a new trace, enqueued at the given time.
+	 */
+	static TraceContext root(long now) {
+		long id = ids.incrementAndGet();
+		return new TraceContext(id, id, 0, now);
+	}
+
+	/**
+	 * Return the next hop of this trace, enqueued at the given time.
+	 */
+	TraceContext child(long now) {
+		return new TraceContext(traceId, ids.incrementAndGet(), spanId, now);
+	}
+
+	/**
+	 * Return the context of the traced events being handled by the
+	 * calling thread, or null if there is none.
+	 */
+	public static TraceContext current() {
+		TraceContext ctx = (TraceContext) current.get();
+		return (ctx == UNSAMPLED) ? null : ctx;
+	}
+
+	// Return the raw current context: null outside of handlers
+	static TraceContext currentOrUnsampled() {
+		return (TraceContext) current.get();
+	}
+
+	// Set the current context of the calling thread, return the previous one
+	static TraceContext swap(TraceContext ctx) {
+		TraceContext prev = (TraceContext) current.get();
+		current.set(ctx);
+		return prev;
+	}
+
+	public long getTraceId() {
+		return traceId;
+	}
+
+	public long getSpanId() {
+		return spanId;
+	}
+
+	/**
+	 * Return the span which caused this one, or 0 for the first span of
+	 * a trace.
+	 */
+	public long getParentId() {
+		return parentId;
+	}
+
+	/**
+	 * Return the System.nanoTime() at which the element was enqueued.
+	 */
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+
+	public String toString() {
+		return "TraceContext[" + Long.toHexString(traceId) + "/" + Long.toHexString(spanId) + "]";
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.jcyclone.core.trace;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Prints the slowest traces of a file written by a TraceCollector, with
+ * the time each request spent waiting in the queue of, and in the
+ * handler of, each stage it went through.
+ * <p/>
+ * Usage: <tt>TraceReport &lt;trace file&gt; [number of traces]</tt>
+ */
+public class TraceReport {
+
+	private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(?:\"((?:[^\"\\\\]|\\\\.)*)\"|(-?\\d+))");
+
+	static class span {
+		String traceId, spanId, parentId, stage, thread;
+		long ts, wait, service;
+		int batch;
+	}
+
+	static class trace {
+		String id;
+		List spans = new ArrayList();
+		long begin = Long.MAX_VALUE, end = Long.MIN_VALUE;
+
+		void add(span s) {
+			spans.add(s);
+			begin = Math.min(begin, s.ts - s.wait);
+			end = Math.max(end, s.ts + s.service);
+		}
+
+		long latency() {
+			return end - begin;
+		}
+	}
+
+	static span parse(String line) {
+		span s = new span();
+		Matcher m = FIELD.matcher(line);
+		while (m.find()) {
+			String key = m.group(1);
+			String str = m.group(2);
+			long num = (m.group(3) != null) ? Long.parseLong(m.group(3)) : 0;
+			if (key.equals("trace")) s.traceId = str;
+			else if (key.equals("span")) s.spanId = str;
+			else if (key.equals("parent")) s.parentId = str;
+			else if (key.equals("stage")) s.stage = str;
+			else if (key.equals("thread")) s.thread = str;
+			else if (key.equals("ts")) s.ts = num;
+			else if (key.equals("wait")) s.wait = num;
+			else if (key.equals("service")) s.service = num;
+			else if (key.equals("batch")) s.batch = (int) num;
+		}
+		return (s.traceId != null) ? s : null;
+	}
+
+	/**
+	 * Read the traces of the given file.
+	 */
+	public static List read(String filename) throws IOException {
+		Map traces = new HashMap();
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				span s = parse(line);
+				if (s == null) continue;
+				trace t = (trace) traces.get(s.traceId);
+				if (t == null) {
+					t = new trace();
+					t.id = s.traceId;
+					traces.put(s.traceId, t);
+				}
+				t.add(s);
+			}
+		} finally {
+			in.close();
+		}
+		return new ArrayList(traces.values());
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TraceReport <trace file> [number of traces]");
+			System.exit(1);
+		}
+		int num = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		List traces = read(args[0]);
+		Collections.sort(traces, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long l1 = ((trace) o1).latency(), l2 = ((trace) o2).latency();
+				return (l1 < l2) ? 1 : (l1 == l2 ? 0 : -1);
+			}
+		});
+
+		System.out.println(traces.size() + " traces in " + args[0]);
+		for (int i = 0; i < num && i < traces.size(); i++) {
+			trace t = (trace) traces.get(i);
+			Collections.sort(t.spans, new Comparator() {
+				public int compare(Object o1, Object o2) {
+					long t1 = ((span) o1).ts, t2 = ((span) o2).ts;
+					return (t1 < t2) ? -1 : (t1 == t2 ? 0 : 1);
+				}
+			});
+			System.out.println();
+			System.out.println("trace " + t.id + ": " + t.latency() + " us, " + t.spans.size() + " spans");
+			Iterator it = t.spans.iterator();
+			while (it.hasNext()) {
+				span s = (span) it.next();
+				System.out.println("  +" + pad(s.ts - t.begin, 9) + " us  " + padRight(s.stage, 24)
+				    + " wait " + pad(s.wait, 8) + " us  service " + pad(s.service, 8) + " us  batch "
+				    + pad(s.batch, 4) + "  " + s.thread + "  span " + s.spanId + " <- " + s.parentId);
+			}
+		}
+	}
+
+	private static String pad(long v, int width) {
+		StringBuffer sb = new StringBuffer(Long.toString(v));
+		while (sb.length() < width) sb.insert(0, ' ');
+		return sb.toString();
+	}
+
+	private static String padRight(String s, int width) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < width) sb.append(' ');
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,294 @@
+package org.jcyclone.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of non-negative long values (typically
+ * latencies), which can be updated concurrently without locks or
+ * allocation.
+ * <p/>
+ * Buckets are log-linear: values below 2^<tt>subBucketBits</tt> get one
+ * bucket each, and every following power of two is split into
+ * 2^<tt>subBucketBits</tt> equal buckets. The relative error of a
+ * reported value is thus bounded by 2^-<tt>subBucketBits</tt> (about 3%
+ * with the default of 5 bits), whatever its magnitude. Values greater
+ * than the highest trackable value are counted in the last bucket; the
+ * minimum, maximum and sum are always exact.
+ * <p/>
+ * To keep writers from contending on the same counters, the histogram is
+ * striped: each thread records into one of several copies of the counts,
+ * chosen from its id. Readers merge the stripes, so reads are more
+ * expensive than writes and return a snapshot that may miss concurrent
+ * updates. Each stripe takes 8 bytes per bucket, so histograms created
+ * in large numbers, such as one per stage, should bound their range and
+ * their number of stripes.
+ */
+public class LatencyHistogram {
+
+	private static final int DEFAULT_SUB_BUCKET_BITS = 5;
+	private static final int MAX_STRIPES = 16;
+
+	private final int subBucketBits;
+	private final int subBucketCount;
+	private final long highestTrackableValue;
+	private final int numBuckets;
+
+	// each stripe holds the bucket counts followed by the sum, min and max
+	private final AtomicLongArray[] stripes;
+	private final int stripeMask;
+	private final int sumIndex, minIndex, maxIndex;
+
+	/**
+	 * Create a histogram tracking values up to Integer.MAX_VALUE with
+	 * about 3% precision.
+	 */
+	public LatencyHistogram() {
+		this(Integer.MAX_VALUE, DEFAULT_SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Create a histogram tracking values up to highestTrackableValue with
+	 * about 3% precision.
+	 */
+	public LatencyHistogram(long highestTrackableValue) {
+		this(highestTrackableValue, DEFAULT_SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * Create a histogram.
+	 *
+	 * @param highestTrackableValue the highest value that gets a bucket of
+	 *                              its own
+	 * @param subBucketBits         log2 of the number of buckets per power
+	 *                              of two, between 1 and 16
+	 */
+	public LatencyHistogram(long highestTrackableValue, int subBucketBits) {
+		this(highestTrackableValue, subBucketBits, MAX_STRIPES);
+	}
+
+	/**
+	 * Create a histogram with at most maxStripes stripes.
+	 *
+	 * @param highestTrackableValue the highest value that gets a bucket of
+	 *                              its own
+	 * @param subBucketBits         log2 of the number of buckets per power
+	 *                              of two, between 1 and 16
+	 * @param maxStripes            the maximum number of copies of the
+	 *                              counts, rounded up to a power of two;
+	 *                              1 disables striping
+	 */
+	public LatencyHistogram(long highestTrackableValue, int subBucketBits, int maxStripes) {
+		if (highestTrackableValue < 1 || subBucketBits < 1 || subBucketBits > 16 || maxStripes < 1)
+			throw new IllegalArgumentException();
+		this.subBucketBits = subBucketBits;
+		this.subBucketCount = 1 << subBucketBits;
+		this.highestTrackableValue = highestTrackableValue;
+		this.numBuckets = bucketIndex(highestTrackableValue) + 1;
+		this.sumIndex = numBuckets;
+		this.minIndex = numBuckets + 1;
+		this.maxIndex = numBuckets + 2;
+
+		int n = 1;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		while (n < cpus && n < maxStripes && n < MAX_STRIPES) n <<= 1;
+		stripes = new AtomicLongArray[n];
+		stripeMask = n - 1;
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new AtomicLongArray(numBuckets + 3);
+			stripes[i].set(minIndex, Long.MAX_VALUE);
+		}
+	}
+
+	private int bucketIndex(long value) {
+		if (value < subBucketCount) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+		return ((shift + 1) << subBucketBits) + (int) (value >>> shift) - subBucketCount;
+	}
+
+	/**
+	 * Return the lowest value counted in the given bucket.
+	 */
+	public long bucketLowValue(int index) {
+		if (index < subBucketCount) return index;
+		int shift = (index >> subBucketBits) - 1;
+		return ((long) (index & (subBucketCount - 1)) + subBucketCount) << shift;
+	}
+
+	/**
+	 * Return the highest value counted in the given bucket.
+	 */
+	public long bucketHighValue(int index) {
+		if (index == numBuckets - 1) return Long.MAX_VALUE;
+		return bucketLowValue(index + 1) - 1;
+	}
+
+	/**
+	 * Return the number of buckets of this histogram.
+	 */
+	public int numBuckets() {
+		return numBuckets;
+	}
+
+	private AtomicLongArray stripe() {
+		long id = Thread.currentThread().getId();
+		return stripes[(int) (id ^ (id >>> 16)) & stripeMask];
+	}
+
+	/**
+	 * Record a value. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * Record <code>count</code> occurrences of the same value.
+	 */
+	public void record(long value, long count) {
+		if (count <= 0) return;
+		if (value < 0) value = 0;
+		AtomicLongArray s = stripe();
+		int index = (value > highestTrackableValue) ? numBuckets - 1 : bucketIndex(value);
+		s.addAndGet(index, count);
+		s.addAndGet(sumIndex, value * count);
+		long cur;
+		while (value < (cur = s.get(minIndex))) {
+			if (s.compareAndSet(minIndex, cur, value)) break;
+		}
+		while (value > (cur = s.get(maxIndex))) {
+			if (s.compareAndSet(maxIndex, cur, value)) break;
+		}
+	}
+
+	/**
+	 * Reset all counts. Values recorded concurrently with a reset may be
+	 * partially lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < stripes.length; i++) {
+			AtomicLongArray s = stripes[i];
+			for (int j = 0; j < numBuckets; j++) {
+				if (s.get(j) != 0) s.set(j, 0);
+			}
+			s.set(sumIndex, 0);
+			s.set(minIndex, Long.MAX_VALUE);
+			s.set(maxIndex, 0);
+		}
+	}
+
+	/**
+	 * Return a snapshot of the bucket counts, merged over all stripes.
+	 */
+	public long[] getCounts() {
+		long[] counts = new long[numBuckets];
+		for (int i = 0; i < stripes.length; i++) {
+			AtomicLongArray s = stripes[i];
+			for (int j = 0; j < numBuckets; j++) {
+				counts[j] += s.get(j);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Return the number of recorded values.
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			AtomicLongArray s = stripes[i];
+			for (int j = 0; j < numBuckets; j++) {
+				total += s.get(j);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Return the sum of the recorded values.
+	 */
+	public long getSum() {
+		long sum = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			sum += stripes[i].get(sumIndex);
+		}
+		return sum;
+	}
+
+	/**
+	 * Return the mean of the recorded values, or 0 if there are none.
+	 */
+	public double getMean() {
+		long count = getCount();
+		if (count == 0) return 0.0;
+		return (getSum() * 1.0) / count;
+	}
+
+	/**
+	 * Return the smallest recorded value, or 0 if there are none.
+	 */
+	public long getMin() {
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < stripes.length; i++) {
+			min = Math.min(min, stripes[i].get(minIndex));
+		}
+		return (min == Long.MAX_VALUE) ? 0 : min;
+	}
+
+	/**
+	 * Return the largest recorded value, or 0 if there are none.
+	 */
+	public long getMax() {
+		long max = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			max = Math.max(max, stripes[i].get(maxIndex));
+		}
+		return max;
+	}
+
+	/**
+	 * Return the value below which the fraction <code>pct</code> (between
+	 * 0 and 1) of the recorded values fall, or 0 if there are none. The
+	 * value returned is the highest value of its bucket, capped by the
+	 * largest recorded value.
+	 */
+	public long getPercentile(double pct) {
+		return getPercentiles(new double[]{pct})[0];
+	}
+
+	/**
+	 * Return several percentiles (fractions between 0 and 1, in
+	 * increasing order) from a single snapshot.
+	 */
+	public long[] getPercentiles(double[] pcts) {
+		long[] counts = getCounts();
+		long[] values = new long[pcts.length];
+		long total = 0;
+		for (int j = 0; j < numBuckets; j++) {
+			total += counts[j];
+		}
+		if (total == 0) return values;
+		long max = getMax();
+
+		int bucket = 0;
+		long cumulative = counts[0];
+		for (int i = 0; i < pcts.length; i++) {
+			long rank = Math.min((long) (total * pcts[i]) + 1, total);
+			while (cumulative < rank && bucket < numBuckets - 1) {
+				cumulative += counts[++bucket];
+			}
+			values[i] = Math.min(bucketHighValue(bucket), max);
+		}
+		return values;
+	}
+
+	/**
+	 * Return a one-line summary with the count, mean, p50, p90, p99, p999
+	 * and max of the recorded values.
+	 */
+	public String toString() {
+		long[] p = getPercentiles(new double[]{0.5, 0.9, 0.99, 0.999});
+		return "num " + getCount() + " avg " + Util.format(getMean()) + " p50 " + p[0] + " p90 " + p[1] + " p99 " + p[2] + " p999 " + p[3] + " max " + getMax();
+	}
+
+}
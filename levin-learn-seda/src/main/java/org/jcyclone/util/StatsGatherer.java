@@ -24,33 +24,47 @@
 
 package org.jcyclone.util;
 
-import java.util.*;
-
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StatsGatherer collects samples (typically times in milliseconds) and
+ * reports their distribution. Samples are recorded in a
+ * LatencyHistogram, so <tt>add</tt> takes no lock and does not allocate;
+ * the histogram dump aggregates its buckets into rows of
+ * <tt>bucketSize</tt>.
+ * <p/>
+ * Every gatherer is registered by name so that it can be looked up and
+ * dumped with the others; use <tt>unregister</tt> for short-lived ones.
+ */
 public class StatsGatherer {
 
-	private Hashtable histogram;
+	private LatencyHistogram histogram;
 	private int bucketSize;
 	private String name;
 	private String tag;
-	private double mean = -1;
 
 	private int skipSamples;
-	private int skip = 0;
-	public int num = 0;
-	public double maxVal = 0;
-	public double minVal = Double.MAX_VALUE;
-	public double cumulativeVal = 0;
+	private final AtomicInteger skip = new AtomicInteger();
+
+	// exact min, max and sum of the samples, as Double.doubleToLongBits
+	private final AtomicLong minBits = new AtomicLong();
+	private final AtomicLong maxBits = new AtomicLong();
+	private final AtomicLong sumBits = new AtomicLong();
 
-	private static Hashtable sgTbl = new Hashtable();
+	private static Map sgTbl = new ConcurrentHashMap();
 
 	public StatsGatherer(String name, String tag, int bucketSize, int skipSamples) {
 		this.name = name;
 		this.tag = tag;
 		this.bucketSize = bucketSize;
 		this.skipSamples = skipSamples;
-		if (bucketSize != 0) {
-			histogram = new Hashtable(1);
-		}
+		this.histogram = new LatencyHistogram();
+		reset();
 		sgTbl.put(name, this);
 	}
 
@@ -63,7 +77,7 @@ public class StatsGatherer {
 	}
 
 	public static Enumeration lookupAll() {
-		return sgTbl.elements();
+		return Collections.enumeration(sgTbl.values());
 	}
 
 	public static void dumpAll() {
@@ -74,106 +88,104 @@ public class StatsGatherer {
 		}
 	}
 
-	public synchronized void reset() {
-		this.num = 0;
-		this.maxVal = 0;
-		this.minVal = Double.MAX_VALUE;
-		this.cumulativeVal = 0;
-		if (bucketSize != 0) {
-			histogram = new Hashtable(1);
-		}
+	/**
+	 * Remove this gatherer from the table used by lookup and dumpAll.
+	 */
+	public void unregister() {
+		sgTbl.remove(name);
+	}
+
+	/**
+	 * Return the histogram backing this gatherer.
+	 */
+	public LatencyHistogram getHistogram() {
+		return histogram;
 	}
 
-	public synchronized void add(double val) {
-		if (skip < skipSamples) {
-			skip++;
+	public void reset() {
+		histogram.reset();
+		minBits.set(Double.doubleToLongBits(Double.MAX_VALUE));
+		maxBits.set(Double.doubleToLongBits(0));
+		sumBits.set(Double.doubleToLongBits(0));
+	}
+
+	public void add(double val) {
+		if (skip.get() < skipSamples && skip.getAndIncrement() < skipSamples) {
 			return;
 		}
 
-		num++;
-
-		if (val > maxVal) maxVal = val;
-		if (val < minVal) minVal = val;
-		cumulativeVal += val;
+		histogram.record((long) val);
 
-		if (bucketSize != 0) {
-			Integer ct = new Integer((int) val / bucketSize);
-			Integer bval = (Integer) histogram.remove(ct);
-
-			if (bval == null) {
-				histogram.put(ct, new Integer(1));
-			} else {
-				bval = new Integer(bval.intValue() + 1);
-				histogram.put(ct, bval);
-			}
+		long cur;
+		while (val < Double.longBitsToDouble(cur = minBits.get())) {
+			if (minBits.compareAndSet(cur, Double.doubleToLongBits(val))) break;
+		}
+		while (val > Double.longBitsToDouble(cur = maxBits.get())) {
+			if (maxBits.compareAndSet(cur, Double.doubleToLongBits(val))) break;
 		}
+		do {
+			cur = sumBits.get();
+		} while (!sumBits.compareAndSet(cur, Double.doubleToLongBits(Double.longBitsToDouble(cur) + val)));
 	}
 
-	public synchronized void dumpHistogram() {
+	public void dumpHistogram() {
 		System.err.println("=== Histogram dump of StatsGatherer: " + name + " ===");
 
-		TreeSet ts = new TreeSet(new Comparator() {
-			public int compare(Object o1, Object o2) {
-				Integer i1 = (Integer) o1;
-				Integer i2 = (Integer) o2;
-				if (i1.intValue() == i2.intValue())
-					return 0;
-				else if (i1.intValue() < i2.intValue())
-					return -1;
-				else
-					return 1;
+		if (bucketSize != 0) {
+			long[] counts = histogram.getCounts();
+			long num = 0;
+			for (int i = 0; i < counts.length; i++) {
+				num += counts[i];
 			}
-		});
-
-		ts.addAll(histogram.keySet());
 
-		Object arr[] = ts.toArray();
-		for (int i = 0; i < arr.length; i++) {
-			Integer bucket = (Integer) arr[i];
-			int time = bucket.intValue() * bucketSize;
-			int val = ((Integer) histogram.get(bucket)).intValue();
-			System.err.println(tag + " " + time + " ms " + Util.format(val) + " count " + Util.format((val * 100.0) / (num * 1.0)) + " pct");
+			// merge the histogram buckets into rows of bucketSize
+			long row = -1;
+			long val = 0;
+			for (int i = 0; i <= counts.length; i++) {
+				long r = (i < counts.length) ? histogram.bucketLowValue(i) / bucketSize : -1;
+				if (r != row || i == counts.length) {
+					if (val != 0) {
+						System.err.println(tag + " " + (row * bucketSize) + " ms " + Util.format(val) + " count " + Util.format((val * 100.0) / (num * 1.0)) + " pct");
+					}
+					row = r;
+					val = 0;
+				}
+				if (i < counts.length) val += counts[i];
+			}
 		}
 		System.err.println("=== Summary of StatsGatherer: " + name + " ===");
-		System.err.println(tag + ": num " + num + " avg " + mean() + " max " + max() + " 90th " + percentile(0.9));
+		System.err.println(tag + ": num " + num() + " avg " + mean() + " max " + max() + " 90th " + percentile(0.9) + " 99th " + percentile(0.99) + " 99.9th " + percentile(0.999));
 		System.err.println("=== End of summmary for StatsGatherer: " + name + " ===");
 		System.err.println("\n");
 	}
 
-	public synchronized int num() {
-		return num;
+	public int num() {
+		return (int) histogram.getCount();
 	}
 
-	public synchronized double mean() {
+	public double mean() {
+		long num = histogram.getCount();
 		if (num == 0) return 0.0;
-		return (cumulativeVal * 1.0) / num;
+		return Double.longBitsToDouble(sumBits.get()) / num;
 	}
 
-	public synchronized double min() {
-		return minVal;
+	public double min() {
+		return Double.longBitsToDouble(minBits.get());
 	}
 
-	public synchronized double max() {
-		return maxVal;
+	public double max() {
+		return Double.longBitsToDouble(maxBits.get());
 	}
 
-	public synchronized double percentile(double pct) {
-		if (num == 0) return 0.0;
-		double data[] = new double[num];
-		int n = 0;
-		Enumeration e = histogram.keys();
-		while (e.hasMoreElements()) {
-			Integer bucket = (Integer) e.nextElement();
-			int time = bucket.intValue() * bucketSize;
-			int val = ((Integer) histogram.get(bucket)).intValue();
-			for (int j = 0; j < val; j++) {
-				data[n++] = time;
-			}
-		}
-		Arrays.sort(data);
-		int index = (int) (data.length * pct);
-		return data[index];
+	/**
+	 * Return the given percentile (between 0 and 1) of the samples,
+	 * rounded down to a multiple of bucketSize as the histogram dump.
+	 */
+	public double percentile(double pct) {
+		if (histogram.getCount() == 0) return 0.0;
+		long val = histogram.getPercentile(pct);
+		if (bucketSize != 0) val -= val % bucketSize;
+		return val;
 	}
 
 }
-
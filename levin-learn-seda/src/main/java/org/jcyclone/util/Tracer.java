@@ -48,6 +48,7 @@ import java.util.*;
  * tracer is created and the call to <tt>trace("event1")</tt>.
  *
  * @author Matt Welsh
+ * @see org.jcyclone.core.trace.TraceCollector for tracing requests across stages
  */
 public class Tracer {
 
@@ -0,0 +1,80 @@
+package org.jcyclone.core.event;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferElementTest {
+
+	@Before
+	public void setUp() {
+		RecyclingPool.setEnabled(true);
+	}
+
+	@After
+	public void tearDown() {
+		RecyclingPool.setEnabled(false);
+	}
+
+	@Test
+	public void testAllocateRecycles() {
+		BufferElement a = BufferElement.allocate(100);
+		assertEquals(100, a.size);
+		assertEquals(0, a.offset);
+		assertEquals(128, a.data.length);
+		a.userTag = "tag";
+		a.release();
+		assertNull(a.userTag);
+
+		BufferElement b = BufferElement.allocate(70);
+		assertSame(a, b);
+		assertEquals(70, b.size);
+		b.release();
+	}
+
+	@Test
+	public void testRetain() {
+		BufferElement a = BufferElement.allocate(10);
+		a.retain();
+		a.release();
+		assertNotSame(a, BufferElement.allocate(10));
+		a.release();
+		assertSame(a, BufferElement.allocate(10));
+	}
+
+	@Test
+	public void testLargeBuffersNotPooled() {
+		BufferElement a = BufferElement.allocate(100000);
+		assertEquals(100000, a.data.length);
+		a.release();
+		assertNotSame(a, BufferElement.allocate(100000));
+	}
+
+	@Test
+	public void testWrapper() {
+		byte[] data = new byte[10];
+		BufferElement a = BufferElement.allocate(data, 2, 5);
+		assertSame(data, a.data);
+		assertEquals(2, a.offset);
+		assertEquals(5, a.size);
+		a.release();
+		assertNull(a.data);
+		assertSame(a, BufferElement.allocate(new byte[4], 0, 4));
+	}
+
+	@Test
+	public void testConstructedNotPooled() {
+		BufferElement a = new BufferElement(16);
+		a.release();
+		a.release();
+		assertEquals(16, a.size);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadWrapper() {
+		BufferElement.allocate(new byte[4], 2, 3);
+	}
+
+}
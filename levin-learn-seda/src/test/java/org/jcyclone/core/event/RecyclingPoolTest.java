@@ -0,0 +1,161 @@
+package org.jcyclone.core.event;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecyclingPoolTest {
+
+	static class pooled implements IRecyclable {
+		final RecyclingPool.Handle handle;
+		int resets;
+
+		pooled(RecyclingPool.Handle handle) {
+			this.handle = handle;
+		}
+
+		public void retain() {
+			if (handle != null) handle.retain();
+		}
+
+		public void release() {
+			if (handle != null) handle.release();
+		}
+	}
+
+	private static RecyclingPool newPool(int maxPerThread) {
+		return new RecyclingPool("test", maxPerThread, new RecyclingPool.IFactory() {
+			public Object create(RecyclingPool.Handle handle) {
+				return new pooled(handle);
+			}
+
+			public void reset(Object obj) {
+				((pooled) obj).resets++;
+			}
+		});
+	}
+
+	@Before
+	public void setUp() {
+		RecyclingPool.setEnabled(true);
+	}
+
+	@After
+	public void tearDown() {
+		RecyclingPool.setEnabled(false);
+		RecyclingPool.setDebug(false);
+	}
+
+	@Test
+	public void testDisabled() {
+		RecyclingPool.setEnabled(false);
+		RecyclingPool pool = newPool(4);
+		pooled a = (pooled) pool.get();
+		assertNull(a.handle);
+		a.release();
+		assertNotSame(a, pool.get());
+		assertEquals(0, a.resets);
+	}
+
+	@Test
+	public void testRecycle() {
+		RecyclingPool pool = newPool(4);
+		pooled a = (pooled) pool.get();
+		a.release();
+		assertEquals(1, a.resets);
+		assertSame(a, pool.get());
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getHits());
+	}
+
+	@Test
+	public void testRetain() {
+		RecyclingPool pool = newPool(4);
+		pooled a = (pooled) pool.get();
+		a.retain();
+		a.release();
+		assertEquals(0, a.resets);
+		assertNotSame(a, pool.get());
+		a.release();
+		assertEquals(1, a.resets);
+		assertSame(a, pool.get());
+	}
+
+	@Test
+	public void testOverReleaseIgnored() {
+		RecyclingPool pool = newPool(4);
+		pooled a = (pooled) pool.get();
+		a.release();
+		a.release();
+		assertEquals(1, a.resets);
+		// a went back to the pool once only
+		assertSame(a, pool.get());
+		assertNotSame(a, pool.get());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testOverReleaseDebug() {
+		RecyclingPool.setDebug(true);
+		RecyclingPool pool = newPool(4);
+		pooled a = (pooled) pool.get();
+		a.release();
+		a.release();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRetainAfterReleaseDebug() {
+		RecyclingPool.setDebug(true);
+		RecyclingPool pool = newPool(4);
+		pooled a = (pooled) pool.get();
+		a.release();
+		a.retain();
+	}
+
+	@Test
+	public void testReleasedByAnotherThread() throws InterruptedException {
+		RecyclingPool pool = newPool(4);
+		final pooled a = (pooled) pool.get();
+		Thread t = new Thread() {
+			public void run() {
+				a.release();
+			}
+		};
+		t.start();
+		t.join();
+		assertEquals(1, a.resets);
+		// back on the return stack of this thread's cache
+		assertSame(a, pool.get());
+	}
+
+	@Test
+	public void testMaxPerThread() {
+		RecyclingPool pool = newPool(1);
+		pooled a = (pooled) pool.get();
+		pooled b = (pooled) pool.get();
+		a.release();
+		b.release();
+		pooled c = (pooled) pool.get();
+		assertSame(a, c);
+		pooled d = (pooled) pool.get();
+		assertNotSame(b, d);
+		assertEquals(3, pool.getMisses());
+	}
+
+	@Test
+	public void testReleaseAll() {
+		RecyclingPool pool = newPool(4);
+		List events = new ArrayList();
+		events.add(pool.get());
+		events.add(new NullEvent());
+		events.add(pool.get());
+		RecyclingPool.releaseAll(events);
+		assertEquals(1, ((pooled) events.get(0)).resets);
+		assertEquals(1, ((pooled) events.get(2)).resets);
+	}
+
+}
@@ -0,0 +1,214 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.queue.IBlockingSink;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.LockFreeArrayBlockingQueue;
+import org.jcyclone.core.queue.SinkException;
+import org.jcyclone.core.rtc.ICreditListener;
+import org.jcyclone.core.stage.IStage;
+import org.jcyclone.core.stage.IStageManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CreditGateTest {
+
+	static class item implements IElement {
+	}
+
+	// answers the calls the gate makes on stages and managers
+	static class stub implements InvocationHandler {
+		final String name;
+		final Object[] answers;
+
+		stub(String name, Object[] answers) {
+			this.name = name;
+			this.answers = answers;
+		}
+
+		public Object invoke(Object proxy, Method m, Object[] args) {
+			if (m.getName().equals("equals")) return Boolean.valueOf(proxy == args[0]);
+			if (m.getName().equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+			if (m.getName().equals("toString") || m.getName().equals("getName")) return name;
+			for (int i = 0; i < answers.length; i += 2) {
+				if (m.getName().equals(answers[i])) return answers[i + 1];
+			}
+			return null;
+		}
+
+		static Object proxy(Class iface, String name, Object[] answers) {
+			return Proxy.newProxyInstance(CreditGateTest.class.getClassLoader(), new Class[]{iface},
+			    new stub(name, answers));
+		}
+	}
+
+	// hands out one event per batch
+	static class oneByOne implements IBatchSorter {
+		final LockFreeArrayBlockingQueue queue;
+
+		oneByOne(LockFreeArrayBlockingQueue queue) {
+			this.queue = queue;
+		}
+
+		public void init(IStageWrapper stage, IStageManager mgr) {
+		}
+
+		public IBatchDescr nextBatch(int timeout_millis) {
+			final List events = new ArrayList();
+			if (queue.dequeue(events, 1) == 0) return null;
+			return new IBatchDescr() {
+				public List getBatch() {
+					return events;
+				}
+
+				public void batchDone() {
+				}
+			};
+		}
+	}
+
+	static class listener implements ICreditListener {
+		int exhausted, available;
+
+		public void creditsExhausted(IStage stage) {
+			exhausted++;
+		}
+
+		public void creditsAvailable(IStage stage) {
+			available++;
+		}
+	}
+
+	class stage {
+		final LockFreeArrayBlockingQueue queue = new LockFreeArrayBlockingQueue(64);
+		final IStageWrapper wrapper;
+		final CreditGate gate;
+		final IBlockingSink sink;
+		final IBatchSorter sorter;
+
+		stage(String name, int limit) {
+			IStage s = (IStage) stub.proxy(IStage.class, name, new Object[]{"getSink", queue});
+			wrapper = (IStageWrapper) stub.proxy(IStageWrapper.class, name, new Object[]{"getStage", s});
+			gate = new CreditGate(wrapper, mgr, queue, limit, 0.5);
+			sink = gate.wrapSink(queue);
+			sorter = gate.wrapSorter(new oneByOne(queue));
+		}
+
+		void enqueue(int num) throws SinkException {
+			for (int i = 0; i < num; i++) sink.enqueue(new item());
+		}
+	}
+
+	private IStageManager mgr;
+
+	@Before
+	public void setUp() {
+		JCycloneConfig config = new JCycloneConfig();
+		Object[] answers = new Object[]{"getConfig", config, "getProfiler", null};
+		mgr = (IStageManager) stub.proxy(IStageManager.class, "mgr", answers);
+		answers[3] = new JCycloneProfiler(mgr);
+	}
+
+	@Test
+	public void testExhaustAndResume() throws Exception {
+		stage b = new stage("b", 4);
+		listener l = new listener();
+		b.gate.addListener(l);
+
+		b.enqueue(3);
+		assertFalse(b.gate.isExhausted());
+		assertEquals(1, b.gate.getCredits());
+		b.enqueue(1);
+		assertTrue(b.gate.isExhausted());
+		assertEquals(0, b.gate.getCredits());
+		assertEquals(1, l.exhausted);
+		// the limit does not reject events
+		b.enqueue(1);
+		assertEquals(1, l.exhausted);
+
+		// resumes at half the limit
+		assertNotNull(b.sorter.nextBatch(0));
+		assertNotNull(b.sorter.nextBatch(0));
+		assertTrue(b.gate.isExhausted());
+		assertFalse(b.gate.awaitCredits(10));
+		assertNotNull(b.sorter.nextBatch(0));
+		assertFalse(b.gate.isExhausted());
+		assertEquals(1, l.available);
+		assertTrue(b.gate.awaitCredits(0));
+		assertEquals(2, b.gate.getCredits());
+
+		b.enqueue(2);
+		assertTrue(b.gate.isExhausted());
+		assertEquals(2, l.exhausted);
+	}
+
+	@Test
+	public void testSetLimitResumes() throws Exception {
+		stage b = new stage("b", 2);
+		b.enqueue(2);
+		assertTrue(b.gate.isExhausted());
+		b.gate.setLimit(-1);
+		assertFalse(b.gate.isExhausted());
+		assertEquals(Integer.MAX_VALUE, b.gate.getCredits());
+		b.enqueue(10);
+		assertFalse(b.gate.isExhausted());
+	}
+
+	@Test
+	public void testAwaitCredits() throws Exception {
+		final stage b = new stage("b", 2);
+		b.enqueue(2);
+		Thread drainer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+					while (b.sorter.nextBatch(0) != null) ;
+				} catch (InterruptedException e) {
+					// the test fails below
+				}
+			}
+		};
+		drainer.start();
+		assertTrue(b.gate.awaitCredits(10000));
+		drainer.join();
+		assertFalse(b.gate.isExhausted());
+	}
+
+	@Test
+	public void testDownstreamHoldsBackUpstream() throws Exception {
+		stage a = new stage("a", -1);
+		stage b = new stage("b", 2);
+		a.enqueue(1);
+
+		// run a batch of a, which enqueues onto b
+		assertNotNull(a.sorter.nextBatch(0));
+		b.enqueue(2);
+		assertTrue(b.gate.isExhausted());
+		IStageWrapper[] down = a.gate.getDownstreamStages();
+		assertEquals(1, down.length);
+		assertSame(b.wrapper, down[0]);
+
+		// a keeps its events while b is exhausted
+		a.enqueue(1);
+		assertTrue(a.gate.isBlocked());
+		assertNull(a.sorter.nextBatch(0));
+		assertNull(a.sorter.nextBatch(10));
+		assertEquals(1, a.queue.size());
+
+		assertNotNull(b.sorter.nextBatch(0));
+		assertFalse(b.gate.isExhausted());
+		assertFalse(a.gate.isBlocked());
+		assertNotNull(a.sorter.nextBatch(0));
+		assertEquals(0, a.queue.size());
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.rtc.DeadlinePolicy;
+import org.jcyclone.core.rtc.IClassEvent;
+import org.jcyclone.core.rtc.IDeadlineEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeadlineBlockingQueueTest {
+
+	static class event implements IDeadlineEvent, IClassEvent {
+		final String name;
+		final long deadline;
+		int theclass;
+
+		event(String name, long deadline) {
+			this.name = name;
+			this.deadline = deadline;
+		}
+
+		static event ofClass(String name, int theclass) {
+			event ev = new event(name, 0);
+			ev.theclass = theclass;
+			return ev;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public int getRequestClass() {
+			return theclass;
+		}
+
+		public void setRequestClass(int theclass) {
+			this.theclass = theclass;
+		}
+	}
+
+	private static String names(List list) {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < list.size(); i++) sb.append(((event) list.get(i)).name);
+		return sb.toString();
+	}
+
+	@Test
+	public void testEarliestDeadlineFirst() throws SinkException {
+		DeadlineBlockingQueue q = new DeadlineBlockingQueue();
+		long now = System.currentTimeMillis();
+		q.enqueue(new event("c", now + 300));
+		q.enqueue(new event("a", now + 100));
+		q.enqueue(new event("e", 0));
+		q.enqueue(new event("b", now + 200));
+		q.enqueue(new event("d", now + 400));
+		assertEquals(now + 100, q.headDeadline());
+		List list = new ArrayList();
+		assertEquals(5, q.dequeueAll(list));
+		assertEquals("abcde", names(list));
+		assertEquals(DeadlinePolicy.NONE, q.headDeadline());
+	}
+
+	@Test
+	public void testTiesAreFifo() throws SinkException {
+		DeadlineBlockingQueue q = new DeadlineBlockingQueue();
+		long d = System.currentTimeMillis() + 1000;
+		String order = "abcdefghij";
+		for (int i = 0; i < order.length(); i++) {
+			// alternate between elements without a deadline and with the same one
+			q.enqueue(new event(order.substring(i, i + 1), (i % 2 == 0) ? d : 0));
+		}
+		List list = new ArrayList();
+		q.dequeueAll(list);
+		assertEquals("acegibdfhj", names(list));
+	}
+
+	@Test
+	public void testClassTargets() throws SinkException {
+		DeadlineBlockingQueue q = new DeadlineBlockingQueue();
+		q.setDeadlinePolicy(new DeadlinePolicy(new long[]{10000, 10}));
+		long before = System.currentTimeMillis();
+		q.enqueue(event.ofClass("bulk", 0));
+		q.enqueue(event.ofClass("fast", 1));
+		long after = System.currentTimeMillis();
+
+		List list = new ArrayList();
+		long[] deadlines = new long[4];
+		assertEquals(2, q.dequeue(list, 4, deadlines));
+		assertEquals("fastbulk", names(list));
+		assertTrue(deadlines[0] >= before + 10 && deadlines[0] <= after + 10);
+		assertTrue(deadlines[1] >= before + 10000 && deadlines[1] <= after + 10000);
+	}
+
+	@Test
+	public void testDequeueLimits() throws SinkException {
+		DeadlineBlockingQueue q = new DeadlineBlockingQueue();
+		for (int i = 0; i < 100; i++) q.enqueue(new event("x", 1000 - i));
+		List list = new ArrayList();
+		long[] deadlines = new long[8];
+		assertEquals(8, q.dequeue(list, 20, deadlines));
+		for (int i = 0; i < 8; i++) assertEquals(901 + i, deadlines[i]);
+		assertEquals(92, q.size());
+	}
+
+	@Test
+	public void testCapacityAndTransactions() throws SinkException {
+		DeadlineBlockingQueue q = new DeadlineBlockingQueue(3);
+		List elements = new ArrayList();
+		elements.add(new event("b", 2));
+		elements.add(new event("c", 3));
+		ITransaction txn = q.enqueuePrepare(elements);
+		q.enqueue(new event("a", 1));
+		assertFalse(q.enqueueLossy(new event("d", 4)));
+		assertEquals(1, q.size());
+
+		txn.commit();
+		assertEquals(3, q.size());
+		List list = new ArrayList();
+		q.dequeueAll(list);
+		assertEquals("abc", names(list));
+
+		txn = q.enqueuePrepare(elements);
+		txn.abort();
+		assertEquals(0, q.size());
+		q.enqueueMany(elements);
+		assertEquals(2, q.size());
+	}
+
+	@Test
+	public void testBlockingDequeue() throws Exception {
+		final DeadlineBlockingQueue q = new DeadlineBlockingQueue(1);
+		assertNull(q.blockingDequeue(20));
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					q.blockingEnqueue(new event("a", 0));
+					q.blockingEnqueue(new event("b", 0));
+				} catch (InterruptedException e) {
+					// the test fails below
+				}
+			}
+		};
+		producer.start();
+		assertEquals("a", ((event) q.blockingDequeue(1000)).name);
+		assertEquals("b", ((event) q.blockingDequeue(1000)).name);
+		producer.join(1000);
+		assertFalse(producer.isAlive());
+	}
+
+}
@@ -0,0 +1,223 @@
+package org.jcyclone.core.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class LockFreeArrayBlockingQueueTest {
+
+	static class item implements IElement {
+		final int value;
+
+		item(int value) {
+			this.value = value;
+		}
+	}
+
+	private static List items(int from, int num) {
+		List list = new ArrayList();
+		for (int i = 0; i < num; i++) list.add(new item(from + i));
+		return list;
+	}
+
+	@Test
+	public void testFifo() throws SinkException {
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(8);
+		q.enqueue(new item(0));
+		q.enqueueMany(items(1, 3));
+		assertEquals(4, q.size());
+		assertEquals(0, ((item) q.dequeue()).value);
+		List list = new ArrayList();
+		assertEquals(3, q.dequeueAll(list));
+		for (int i = 0; i < 3; i++) assertEquals(i + 1, ((item) list.get(i)).value);
+		assertNull(q.dequeue());
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void testWrapAround() throws SinkException {
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(4, true);
+		assertTrue(q.isSingleConsumer());
+		for (int i = 0; i < 100; i++) {
+			q.enqueue(new item(i));
+			q.enqueue(new item(-i));
+			assertEquals(i, ((item) q.dequeue()).value);
+			assertEquals(-i, ((item) q.dequeue()).value);
+		}
+		assertEquals(0, q.size());
+	}
+
+	@Test
+	public void testFull() throws SinkException {
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(3);
+		q.enqueueMany(items(0, 3));
+		assertFalse(q.enqueueLossy(new item(3)));
+		try {
+			q.enqueue(new item(3));
+			fail("enqueue on a full queue");
+		} catch (SinkFullException e) {
+			// expected
+		}
+		try {
+			q.enqueueMany(items(3, 1));
+			fail("enqueueMany on a full queue");
+		} catch (SinkFullException e) {
+			// expected
+		}
+		assertEquals(3, q.size());
+		q.dequeue();
+		assertTrue(q.enqueueLossy(new item(3)));
+	}
+
+	@Test
+	public void testSetCapacity() throws SinkException {
+		// the ring is rounded up to 8 slots
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(5);
+		assertEquals(5, q.capacity());
+		q.setCapacity(Integer.MAX_VALUE);
+		assertEquals(8, q.capacity());
+		q.enqueueMany(items(0, 8));
+		assertFalse(q.enqueueLossy(new item(8)));
+
+		q.setCapacity(2);
+		List list = new ArrayList();
+		q.dequeue(list, 7);
+		assertEquals(1, q.size());
+		assertTrue(q.enqueueLossy(new item(8)));
+		assertFalse(q.enqueueLossy(new item(9)));
+	}
+
+	@Test
+	public void testTransactionReservesSlots() throws SinkException {
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(4);
+		ITransaction txn = q.enqueuePrepare(items(0, 3));
+		assertEquals(0, q.size());
+		assertTrue(q.enqueueLossy(new item(3)));
+		assertFalse(q.enqueueLossy(new item(4)));
+		try {
+			q.enqueuePrepare(items(5, 1));
+			fail("prepare beyond the capacity");
+		} catch (SinkFullException e) {
+			// expected
+		}
+
+		txn.commit();
+		assertEquals(4, q.size());
+		assertEquals(3, ((item) q.dequeue()).value);
+		for (int i = 0; i < 3; i++) assertEquals(i, ((item) q.dequeue()).value);
+	}
+
+	@Test
+	public void testTransactionAbort() throws SinkException {
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(4);
+		ITransaction txn = q.enqueuePrepare(items(0, 4));
+		assertFalse(q.enqueueLossy(new item(4)));
+		txn.abort();
+		assertEquals(0, q.size());
+		q.enqueueMany(items(4, 4));
+		assertEquals(4, ((item) q.dequeue()).value);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEnqueueNull() throws SinkException {
+		new LockFreeArrayBlockingQueue(4).enqueue(null);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testTransactionCompletedOnce() throws SinkException {
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(4);
+		ITransaction txn = q.enqueuePrepare(items(0, 2));
+		txn.commit();
+		txn.abort();
+	}
+
+	@Test
+	public void testJoinedTransactions() throws SinkException {
+		LockFreeArrayBlockingQueue q1 = new LockFreeArrayBlockingQueue(4);
+		LockFreeArrayBlockingQueue q2 = new LockFreeArrayBlockingQueue(4);
+		ITransaction txn = q1.enqueuePrepare(items(0, 2));
+		q2.enqueuePrepare(items(2, 2), txn);
+		txn.commit();
+		assertEquals(2, q1.size());
+		assertEquals(2, q2.size());
+	}
+
+	@Test
+	public void testBlockingDequeueTimeout() throws InterruptedException {
+		LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(4);
+		long start = System.currentTimeMillis();
+		assertNull(q.blockingDequeue(50));
+		assertTrue(System.currentTimeMillis() - start >= 40);
+		assertEquals(0, q.blockingDequeue(new ArrayList(), 0, 4));
+	}
+
+	@Test
+	public void testBlockingHandOff() throws Exception {
+		final LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(1);
+		q.enqueue(new item(0));
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					q.blockingEnqueue(new item(1));
+				} catch (InterruptedException e) {
+					// the test fails below
+				}
+			}
+		};
+		producer.start();
+		assertEquals(0, ((item) q.blockingDequeue(1000)).value);
+		assertEquals(1, ((item) q.blockingDequeue(1000)).value);
+		producer.join(1000);
+		assertFalse(producer.isAlive());
+	}
+
+	@Test
+	public void testConcurrentProducersAndConsumers() throws Exception {
+		final int producers = 4, consumers = 4, perProducer = 20000;
+		final int total = producers * perProducer;
+		final LockFreeArrayBlockingQueue q = new LockFreeArrayBlockingQueue(64);
+		final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+		Thread[] threads = new Thread[producers + consumers];
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			threads[p] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < perProducer; i++) q.blockingEnqueue(new item(base + i));
+					} catch (InterruptedException e) {
+						// the test fails below
+					}
+				}
+			};
+		}
+		for (int c = 0; c < consumers; c++) {
+			threads[producers + c] = new Thread() {
+				public void run() {
+					List list = new ArrayList();
+					try {
+						while (true) {
+							list.clear();
+							if (q.blockingDequeue(list, 200, 16) == 0) return;
+							for (int i = 0; i < list.size(); i++) {
+								seen.incrementAndGet(((item) list.get(i)).value);
+							}
+						}
+					} catch (InterruptedException e) {
+						// the test fails below
+					}
+				}
+			};
+		}
+		for (int i = 0; i < threads.length; i++) threads[i].start();
+		for (int i = 0; i < threads.length; i++) threads[i].join(30000);
+		for (int i = 0; i < total; i++) {
+			assertEquals("element " + i, 1, seen.get(i));
+		}
+		assertEquals(0, q.size());
+	}
+
+}
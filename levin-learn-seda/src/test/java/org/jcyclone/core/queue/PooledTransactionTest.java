@@ -0,0 +1,153 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.event.RecyclingPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PooledTransactionTest {
+
+	static class item implements IElement {
+	}
+
+	// counts what the transactions ask of their queue
+	static class owner implements PooledTransaction.IOwner {
+		int committed, aborted;
+
+		public void enqueueCommit(List elements, int reservedSize) {
+			committed += reservedSize;
+		}
+
+		public void enqueueAbort(int reservedSize) {
+			aborted += reservedSize;
+		}
+	}
+
+	private owner owner;
+
+	@Before
+	public void setUp() {
+		RecyclingPool.setEnabled(true);
+		owner = new owner();
+	}
+
+	@After
+	public void tearDown() {
+		RecyclingPool.setDebug(false);
+		RecyclingPool.setEnabled(false);
+	}
+
+	private static List items(int num) {
+		List list = new ArrayList();
+		for (int i = 0; i < num; i++) list.add(new item());
+		return list;
+	}
+
+	private void assertFails(ITransaction txn, long stamp, boolean commit, String message) {
+		try {
+			if (commit) PooledTransaction.commit(txn, stamp);
+			else PooledTransaction.abort(txn, stamp);
+			fail("completed a transaction twice");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith(message));
+		}
+	}
+
+	@Test
+	public void testDoubleCommit() {
+		PooledTransaction txn = PooledTransaction.get(owner, items(2), 2);
+		long s = PooledTransaction.stampOf(txn);
+		txn.commit();
+		assertEquals(2, owner.committed);
+		assertFails(txn, s, true, "already committed or aborted");
+		assertFails(txn, s, false, "already committed or aborted");
+		assertEquals(2, owner.committed);
+		assertEquals(0, owner.aborted);
+	}
+
+	@Test
+	public void testCompleteAfterReuse() {
+		PooledTransaction txn = PooledTransaction.get(owner, items(1), 1);
+		long s = PooledTransaction.stampOf(txn);
+		txn.abort();
+		PooledTransaction again = PooledTransaction.get(owner, items(3), 3);
+		assertSame(txn, again);
+		assertTrue(PooledTransaction.stampOf(again) != s);
+
+		// the stamp of the first use does not reach the second one
+		assertFails(txn, s, true, "and reused");
+		assertFails(txn, s, false, "and reused");
+		assertEquals(0, owner.committed);
+
+		PooledTransaction.commit(again, PooledTransaction.stampOf(again));
+		assertEquals(3, owner.committed);
+		assertEquals(1, owner.aborted);
+	}
+
+	@Test
+	public void testCompletedStampIsNotPending() {
+		PooledTransaction txn = PooledTransaction.get(owner, items(1), 1);
+		txn.commit();
+		// a stamp taken after completion can never complete the transaction
+		assertFails(txn, PooledTransaction.stampOf(txn), false, "already committed or aborted");
+		assertEquals(0, PooledTransaction.stampOf(new ITransaction() {
+			public void commit() {
+			}
+
+			public void abort() {
+			}
+
+			public void join(ITransaction other) {
+			}
+		}));
+	}
+
+	@Test
+	public void testModifiedListAborts() {
+		List list = items(2);
+		PooledTransaction txn = PooledTransaction.get(owner, list, 2);
+		list.add(new item());
+		try {
+			txn.commit();
+			fail("committed a modified list");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, owner.committed);
+		assertEquals(2, owner.aborted);
+		try {
+			txn.abort();
+			fail("aborted a completed transaction");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(2, owner.aborted);
+	}
+
+	@Test
+	public void testJoined() {
+		PooledTransaction txn = PooledTransaction.get(owner, items(1), 1);
+		PooledTransaction joined = PooledTransaction.get(owner, items(2), 2);
+		long js = PooledTransaction.stampOf(joined);
+		txn.join(joined);
+		txn.commit();
+		assertEquals(3, owner.committed);
+		assertFails(joined, js, true, "already committed or aborted");
+	}
+
+	@Test
+	public void testDebugNotPooled() {
+		RecyclingPool.setDebug(true);
+		PooledTransaction txn = PooledTransaction.get(owner, items(1), 1);
+		long s = PooledTransaction.stampOf(txn);
+		txn.commit();
+		assertNotSame(txn, PooledTransaction.get(owner, items(1), 1));
+		assertFails(txn, s, true, "already committed or aborted");
+	}
+
+}
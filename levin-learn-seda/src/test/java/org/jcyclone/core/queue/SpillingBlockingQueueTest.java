@@ -0,0 +1,221 @@
+package org.jcyclone.core.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpillingBlockingQueueTest {
+
+	static class item implements IElement, Serializable {
+		final int value;
+		final byte[] payload;
+
+		item(int value) {
+			this(value, 0);
+		}
+
+		item(int value, int payloadSize) {
+			this.value = value;
+			this.payload = new byte[payloadSize];
+		}
+	}
+
+	// cannot be serialized
+	static class local implements IElement {
+	}
+
+	private SpillingBlockingQueue q;
+
+	@Before
+	public void setUp() {
+		q = new SpillingBlockingQueue();
+		q.setMemoryCapacity(4);
+		q.setSegmentSize(1024);
+	}
+
+	private void assertDequeued(int from, int num) {
+		for (int i = 0; i < num; i++) {
+			IElement x = q.dequeue();
+			assertNotNull("element " + (from + i), x);
+			assertEquals(from + i, ((item) x).value);
+		}
+	}
+
+	@Test
+	public void testSpillsInOrder() throws SinkException {
+		for (int i = 0; i < 50; i++) q.enqueue(new item(i));
+		assertEquals(50, q.size());
+		assertEquals(46, q.spilledSize());
+		assertEquals(46, q.getSpillCount());
+		assertTrue(q.getSegmentCount() > 1);
+
+		assertDequeued(0, 50);
+		assertNull(q.dequeue());
+		assertEquals(0, q.spilledSize());
+		assertEquals(0, q.getSegmentCount());
+	}
+
+	@Test
+	public void testNewElementsQueueBehindSpilled() throws SinkException {
+		for (int i = 0; i < 10; i++) q.enqueue(new item(i));
+		assertDequeued(0, 3);
+		// the ring has room again, but elements are still spilled
+		q.enqueue(new item(10));
+		List list = new ArrayList();
+		list.add(new item(11));
+		list.add(new item(12));
+		q.enqueueMany(list);
+		assertDequeued(3, 10);
+		assertEquals(0, q.size());
+	}
+
+	@Test
+	public void testDequeueAllTakesTheRing() throws SinkException {
+		for (int i = 0; i < 20; i++) q.enqueue(new item(i));
+		List list = new ArrayList();
+		int n = q.dequeueAll(list);
+		assertTrue(n > 0 && n <= 4);
+		assertEquals(n, list.size());
+		for (int i = 0; i < n; i++) assertEquals(i, ((item) list.get(i)).value);
+
+		list.clear();
+		assertEquals(20 - n, q.dequeue(list, 100));
+		for (int i = 0; i < list.size(); i++) assertEquals(n + i, ((item) list.get(i)).value);
+	}
+
+	@Test
+	public void testCapacityCountsSpilled() throws SinkException {
+		q.setCapacity(6);
+		for (int i = 0; i < 6; i++) q.enqueue(new item(i));
+		assertFalse(q.enqueueLossy(new item(6)));
+		try {
+			q.enqueue(new item(6));
+			fail("enqueue beyond the capacity");
+		} catch (SinkFullException e) {
+			// expected
+		}
+		assertDequeued(0, 1);
+		assertTrue(q.enqueueLossy(new item(6)));
+		assertDequeued(1, 6);
+	}
+
+	@Test
+	public void testSegmentLimit() throws SinkException {
+		q.setMaxSegments(1);
+		for (int i = 0; i < 4; i++) q.enqueue(new item(i));
+		// a few records of a few hundred bytes fill the only segment
+		int spilled = 0;
+		while (q.enqueueLossy(new item(4 + spilled, 300))) spilled++;
+		assertTrue(spilled > 0 && spilled < 4);
+		assertEquals(1, q.getSegmentCount());
+		try {
+			q.enqueue(new item(100, 300));
+			fail("enqueue on a full log");
+		} catch (SinkFullException e) {
+			// expected
+		}
+		assertDequeued(0, 4 + spilled);
+		assertTrue(q.enqueueLossy(new item(100, 300)));
+	}
+
+	@Test
+	public void testUnencodableElement() throws SinkException {
+		for (int i = 0; i < 4; i++) q.enqueue(new local());
+		try {
+			q.enqueue(new local());
+			fail("spilled an element which cannot be serialized");
+		} catch (BadElementException e) {
+			// expected
+		}
+		assertFalse(q.enqueueLossy(new local()));
+		assertEquals(4, q.size());
+	}
+
+	@Test
+	public void testUndecodableElement() throws SinkException {
+		final IElementCodec codec = q.getCodec();
+		q.setCodec(new IElementCodec() {
+			public byte[] encode(IElement element) throws IOException {
+				return codec.encode(element);
+			}
+
+			public IElement decode(byte[] data) throws IOException {
+				IElement x = codec.decode(data);
+				if (((item) x).value == 5) throw new IOException("corrupt");
+				return x;
+			}
+		});
+		for (int i = 0; i < 7; i++) q.enqueue(new item(i));
+		assertDequeued(0, 5);
+		IElement x = q.dequeue();
+		assertTrue(x instanceof SpillingBlockingQueue.UndecodableElement);
+		assertEquals(1, q.getLostCount());
+		assertDequeued(6, 1);
+	}
+
+	@Test
+	public void testTransactionSpills() throws SinkException {
+		q.setCapacity(8);
+		List list = new ArrayList();
+		for (int i = 0; i < 6; i++) list.add(new item(i));
+		ITransaction txn = q.enqueuePrepare(list);
+		assertEquals(0, q.size());
+		q.enqueue(new item(-1));
+		q.enqueue(new item(-2));
+		assertFalse(q.enqueueLossy(new item(-3)));
+
+		txn.commit();
+		assertEquals(8, q.size());
+		assertEquals(4, q.spilledSize());
+		assertEquals(-1, ((item) q.dequeue()).value);
+		assertEquals(-2, ((item) q.dequeue()).value);
+		assertDequeued(0, 6);
+
+		txn = q.enqueuePrepare(list);
+		txn.abort();
+		assertEquals(0, q.size());
+		q.enqueueMany(list);
+		assertEquals(6, q.size());
+	}
+
+	@Test
+	public void testLowerMemoryCapacity() throws SinkException {
+		for (int i = 0; i < 4; i++) q.enqueue(new item(i));
+		q.setMemoryCapacity(2);
+		List list = new ArrayList();
+		for (int i = 4; i < 7; i++) list.add(new item(i));
+		q.enqueueMany(list);
+		assertEquals(3, q.spilledSize());
+		assertDequeued(0, 7);
+		assertEquals(0, q.size());
+	}
+
+	@Test
+	public void testCommitInterruptedOnFullLog() throws SinkException {
+		q.setMaxSegments(1);
+		for (int i = 0; i < 4; i++) q.enqueue(new item(i));
+		List list = new ArrayList();
+		for (int i = 0; i < 8; i++) list.add(new item(4 + i, 300));
+		ITransaction txn = q.enqueuePrepare(list);
+		Thread.currentThread().interrupt();
+		try {
+			txn.commit();
+			fail("committed more than the log holds");
+		} catch (IllegalStateException e) {
+			// expected
+			assertTrue(Thread.interrupted());
+		}
+		// the transaction was aborted: nothing enqueued, no slot kept
+		assertEquals(4, q.size());
+		q.setCapacity(5);
+		assertTrue(q.enqueueLossy(new item(4)));
+		assertDequeued(0, 5);
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.jcyclone.core.rtc;
+
+import org.jcyclone.core.queue.DynamicArrayBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlledSinkTest {
+
+	static class item implements IElement {
+	}
+
+	private DynamicArrayBlockingQueue q;
+	private TokenBucketPredicate pred;
+	private AdmissionControlledSink sink;
+
+	@Before
+	public void setUp() {
+		q = new DynamicArrayBlockingQueue(1, 1);
+		// no measurable refill while the test runs
+		pred = new TokenBucketPredicate(q, 0.001, 2);
+		sink = new AdmissionControlledSink(q);
+		sink.setEnqueuePredicate(pred);
+	}
+
+	@Test
+	public void testRejectedElementGivesTokenBack() {
+		assertTrue(sink.enqueueLossy(new item()));
+		assertEquals(1, pred.getBucketSize());
+		assertFalse(sink.enqueueLossy(new item()));
+		assertEquals(1, pred.getBucketSize());
+	}
+
+	@Test
+	public void testInterruptedEnqueueGivesTokenBack() {
+		assertTrue(sink.enqueueLossy(new item()));
+		// a token is available, but the full queue fails on the interrupt
+		Thread.currentThread().interrupt();
+		try {
+			sink.blockingEnqueue(new item());
+			fail("enqueued while interrupted");
+		} catch (InterruptedException e) {
+			// expected
+		} finally {
+			Thread.interrupted();
+		}
+		assertEquals(1, pred.getBucketSize());
+		assertEquals(1, q.size());
+	}
+
+	@Test
+	public void testInterruptedWhileWaitingForToken() {
+		assertTrue(pred.blockingAcquire(new item()));
+		assertTrue(pred.blockingAcquire(new item()));
+		Thread.currentThread().interrupt();
+		try {
+			sink.blockingEnqueue(new item());
+			fail("enqueued without a token");
+		} catch (InterruptedException e) {
+			// expected
+			assertFalse(Thread.currentThread().isInterrupted());
+		}
+		assertEquals(0, pred.getBucketSize());
+		assertEquals(0, q.size());
+	}
+
+}
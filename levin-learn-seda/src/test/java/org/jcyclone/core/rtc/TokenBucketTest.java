@@ -0,0 +1,130 @@
+package org.jcyclone.core.rtc;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+	@Test
+	public void testStartsFull() {
+		TokenBucket bucket = new TokenBucket(1.0, 5);
+		assertEquals(5, bucket.available());
+		assertTrue(bucket.tryAcquire(5));
+		assertFalse(bucket.tryAcquire());
+		assertEquals(0, bucket.available());
+	}
+
+	@Test
+	public void testAllOrNone() {
+		TokenBucket bucket = new TokenBucket(1.0, 5);
+		assertFalse(bucket.tryAcquire(6));
+		assertTrue(bucket.tryAcquire(3));
+		assertFalse(bucket.tryAcquire(3));
+		assertEquals(2, bucket.available());
+		assertTrue(bucket.tryAcquire(2));
+	}
+
+	@Test
+	public void testAcquireUpTo() {
+		TokenBucket bucket = new TokenBucket(1.0, 5);
+		assertEquals(2, bucket.acquireUpTo(2));
+		assertEquals(3, bucket.acquireUpTo(8));
+		assertEquals(0, bucket.acquireUpTo(8));
+	}
+
+	@Test
+	public void testRelease() {
+		TokenBucket bucket = new TokenBucket(1.0, 5);
+		assertTrue(bucket.tryAcquire(5));
+		bucket.release(2);
+		assertEquals(2, bucket.available());
+		assertTrue(bucket.tryAcquire(2));
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void testRefillUpToDepth() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(100.0, 5);
+		bucket.drain();
+		assertEquals(0, bucket.available());
+		Thread.sleep(25);
+		int n = bucket.available();
+		assertTrue("refilled " + n, n >= 1 && n <= 5);
+		// a long idle period does not fill the bucket beyond its depth
+		Thread.sleep(100);
+		assertEquals(5, bucket.available());
+		assertEquals(5, bucket.acquireUpTo(10));
+	}
+
+	@Test
+	public void testNoRateLimit() {
+		TokenBucket bucket = new TokenBucket(-1.0, 5);
+		assertTrue(bucket.tryAcquire(1000));
+		assertEquals(7, bucket.acquireUpTo(7));
+		assertTrue(bucket.acquire());
+	}
+
+	@Test
+	public void testAcquireWaits() {
+		TokenBucket bucket = new TokenBucket(20.0, 1);
+		assertTrue(bucket.tryAcquire());
+		long start = System.nanoTime();
+		assertTrue(bucket.acquire());
+		long waited = (System.nanoTime() - start) / 1000000;
+		assertTrue("waited " + waited + " ms", waited >= 30);
+	}
+
+	@Test
+	public void testAcquireInterrupted() {
+		TokenBucket bucket = new TokenBucket(0.5, 1);
+		assertTrue(bucket.tryAcquire());
+		Thread.currentThread().interrupt();
+		try {
+			assertFalse(bucket.acquire());
+			assertTrue(Thread.currentThread().isInterrupted());
+		} finally {
+			Thread.interrupted();
+		}
+		// the reserved token was given back, not granted
+		assertFalse(bucket.tryAcquire());
+		bucket.release(1);
+		assertTrue(bucket.tryAcquire());
+	}
+
+	@Test
+	public void testConcurrentAcquire() throws InterruptedException {
+		// no measurable refill while the test runs
+		final TokenBucket bucket = new TokenBucket(0.001, 1000);
+		final AtomicInteger granted = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final boolean upTo = (t % 2 == 0);
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 500; i++) {
+						if (upTo) granted.addAndGet(bucket.acquireUpTo(3));
+						else if (bucket.tryAcquire()) granted.incrementAndGet();
+					}
+				}
+			};
+		}
+		for (int t = 0; t < threads.length; t++) threads[t].start();
+		for (int t = 0; t < threads.length; t++) threads[t].join();
+		assertEquals(1000, granted.get());
+		assertEquals(0, bucket.available());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadRate() {
+		new TokenBucket(0.0, 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadDepth() {
+		new TokenBucket(1.0, 0);
+	}
+
+}
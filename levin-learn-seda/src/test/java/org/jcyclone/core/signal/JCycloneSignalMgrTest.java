@@ -0,0 +1,159 @@
+package org.jcyclone.core.signal;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JCycloneSignalMgrTest {
+
+	static class signal implements ISignal {
+		final int seq;
+
+		signal(int seq) {
+			this.seq = seq;
+		}
+	}
+
+	static class subSignal extends signal {
+		subSignal(int seq) {
+			super(seq);
+		}
+	}
+
+	// records the signals it gets, and whether it ever ran on two threads
+	static class recorder implements ISignalHandler {
+		final List received = new ArrayList();
+		final AtomicInteger running = new AtomicInteger();
+		volatile boolean overlapped;
+
+		public void handleSignal(ISignal s) {
+			if (running.incrementAndGet() > 1) overlapped = true;
+			Thread.yield();
+			synchronized (this) {
+				received.add(s);
+				notifyAll();
+			}
+			running.decrementAndGet();
+		}
+
+		synchronized boolean await(int num, long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+			long wait;
+			while (received.size() < num && (wait = deadline - System.currentTimeMillis()) > 0) wait(wait);
+			return received.size() >= num;
+		}
+
+		synchronized int seq(int i) {
+			return ((signal) received.get(i)).seq;
+		}
+	}
+
+	private JCycloneSignalMgr mgr;
+
+	@Before
+	public void setUp() {
+		JCycloneConfig config = new JCycloneConfig();
+		config.putString("global.signal.numThreads", "4");
+		mgr = new JCycloneSignalMgr(config);
+	}
+
+	@After
+	public void tearDown() {
+		mgr.stop();
+	}
+
+	@Test
+	public void testPerHandlerOrder() throws InterruptedException {
+		final recorder[] handlers = new recorder[6];
+		for (int i = 0; i < handlers.length; i++) {
+			handlers[i] = new recorder();
+			mgr.register(new signal(0), handlers[i]);
+		}
+		final int num = 500;
+		for (int i = 0; i < num; i++) mgr.fire(new signal(i));
+
+		for (int h = 0; h < handlers.length; h++) {
+			recorder r = handlers[h];
+			assertTrue("handler " + h + " got " + r.received.size(), r.await(num, 10000));
+			assertEquals(num, r.received.size());
+			for (int i = 0; i < num; i++) assertEquals("handler " + h, i, r.seq(i));
+			assertFalse("handler " + h + " ran concurrently", r.overlapped);
+		}
+	}
+
+	@Test
+	public void testConcurrentFireKeepsOrderPerThread() throws InterruptedException {
+		final recorder r = new recorder();
+		mgr.register(new signal(0), r);
+		final int num = 200;
+		Thread[] threads = new Thread[3];
+		for (int t = 0; t < threads.length; t++) {
+			final int base = t * num;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < num; i++) mgr.fire(new signal(base + i));
+				}
+			};
+		}
+		for (int t = 0; t < threads.length; t++) threads[t].start();
+		for (int t = 0; t < threads.length; t++) threads[t].join();
+
+		assertTrue(r.await(num * threads.length, 10000));
+		assertFalse(r.overlapped);
+		int[] last = new int[threads.length];
+		for (int t = 0; t < threads.length; t++) last[t] = -1;
+		for (int i = 0; i < num * threads.length; i++) {
+			int seq = r.seq(i);
+			int t = seq / num;
+			assertTrue("signal " + seq + " after " + last[t], seq > last[t]);
+			last[t] = seq;
+		}
+	}
+
+	@Test
+	public void testSuperclassReachesSubclassHandlers() {
+		recorder base = new recorder();
+		recorder sub = new recorder();
+		mgr.register(new signal(0), base);
+		mgr.register(new subSignal(0), sub);
+
+		mgr.fireNow(new signal(1));
+		assertEquals(1, base.received.size());
+		assertEquals(1, sub.received.size());
+
+		mgr.fireNow(new subSignal(2));
+		assertEquals(1, base.received.size());
+		assertEquals(2, sub.received.size());
+	}
+
+	@Test
+	public void testDeregister() {
+		recorder r = new recorder();
+		mgr.register(new signal(0), r);
+		mgr.fireNow(new signal(1));
+		mgr.deregister(new signal(0), r);
+		mgr.fireNow(new signal(2));
+		assertEquals(1, r.received.size());
+		try {
+			mgr.deregister(new signal(0), r);
+			fail("deregistered twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRegisterTwice() {
+		recorder r = new recorder();
+		mgr.register(new signal(0), r);
+		mgr.register(new signal(0), r);
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.jcyclone.core.timer;
+
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.SimpleSink;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTimerTest {
+
+	static class item implements IElement {
+		final int delay;
+		long registered;
+		long fired;
+
+		item(int delay) {
+			this.delay = delay;
+		}
+	}
+
+	// records the events in the order they fire
+	static class recorder extends SimpleSink {
+		final List fired = new ArrayList();
+
+		public synchronized void enqueue(IElement element) {
+			((item) element).fired = System.nanoTime();
+			fired.add(element);
+			notifyAll();
+		}
+
+		synchronized boolean await(int num, long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+			long wait;
+			while (fired.size() < num && (wait = deadline - System.currentTimeMillis()) > 0) wait(wait);
+			return fired.size() >= num;
+		}
+	}
+
+	private TimingWheelTimer timer;
+
+	@After
+	public void tearDown() {
+		if (timer != null) timer.doneWithTimer();
+	}
+
+	@Test
+	public void testCascadeBoundaries() throws InterruptedException {
+		// 1 ms ticks, two wheels of 4 slots: the first wheel holds the
+		// next 4 ticks, the second the next 16, and later events are
+		// parked in the second wheel and cascaded again
+		timer = new TimingWheelTimer(1, 2, 2, true);
+		int[] delays = {0, 1, 3, 4, 5, 7, 8, 15, 16, 17, 31, 33, 64, 100};
+		recorder sink = new recorder();
+		for (int i = 0; i < delays.length; i++) {
+			item it = new item(delays[i]);
+			it.registered = System.nanoTime();
+			timer.registerEvent(delays[i], it, sink);
+		}
+		assertTrue("fired " + sink.fired.size(), sink.await(delays.length, 10000));
+		assertEquals(0, timer.size());
+
+		List fired = sink.fired;
+		for (int i = 0; i < fired.size(); i++) {
+			item a = (item) fired.get(i);
+			// timestamps are taken in whole milliseconds
+			long waited = (a.fired - a.registered) / 1000000;
+			assertTrue(a.delay + " ms event fired after " + waited + " ms", waited >= a.delay - 1);
+			for (int j = i + 1; j < fired.size(); j++) {
+				item b = (item) fired.get(j);
+				// deadlines two ticks apart fire in order
+				long da = a.registered / 1000000 + a.delay;
+				long db = b.registered / 1000000 + b.delay;
+				assertFalse(b.delay + " ms event fired before " + a.delay + " ms event", db + 2 <= da);
+			}
+		}
+	}
+
+	@Test
+	public void testCancelCascadedEvent() throws InterruptedException {
+		timer = new TimingWheelTimer(1, 2, 2, true);
+		recorder sink = new recorder();
+		ITimerEvent far = timer.registerEvent(200, new item(200), sink);
+		timer.registerEvent(20, new item(20), sink);
+		// the far event has been cascaded down from the last wheel by now
+		assertTrue(sink.await(1, 10000));
+		timer.cancelEvent(far);
+		assertEquals(0, timer.size());
+		Thread.sleep(250);
+		assertEquals(1, sink.fired.size());
+		// cancelling again has no effect
+		timer.cancelEvent(far);
+		assertEquals(0, timer.size());
+	}
+
+	@Test
+	public void testCancelAll() throws InterruptedException {
+		timer = new TimingWheelTimer(1, 2, 2, true);
+		recorder sink = new recorder();
+		for (int i = 0; i < 10; i++) timer.registerEvent(100 + 5 * i, new item(100 + 5 * i), sink);
+		assertEquals(10, timer.size());
+		timer.cancelAll();
+		assertEquals(0, timer.size());
+		Thread.sleep(200);
+		assertEquals(0, sink.fired.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadWheels() {
+		new TimingWheelTimer(1, 32, 2, true);
+	}
+
+}
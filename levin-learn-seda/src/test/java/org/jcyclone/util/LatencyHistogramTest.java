@@ -0,0 +1,117 @@
+package org.jcyclone.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testSmallValuesExact() {
+		LatencyHistogram h = new LatencyHistogram(1000, 5);
+		for (int i = 0; i < 32; i++) h.record(i);
+		long[] counts = h.getCounts();
+		for (int i = 0; i < 32; i++) {
+			assertEquals(1, counts[i]);
+			assertEquals(i, h.bucketLowValue(i));
+			assertEquals(i, h.bucketHighValue(i));
+		}
+	}
+
+	@Test
+	public void testBucketBoundaries() {
+		LatencyHistogram h = new LatencyHistogram(1L << 40, 3, 1);
+		int n = h.numBuckets();
+		for (int i = 0; i < n - 1; i++) {
+			long low = h.bucketLowValue(i);
+			long high = h.bucketHighValue(i);
+			assertEquals("bucket " + i, low, (i == 0) ? 0 : h.bucketHighValue(i - 1) + 1);
+			// 3 sub-bucket bits: buckets are at most 1/8 of their values wide
+			if (low >= 8) assertTrue("bucket " + i, (high - low + 1) * 8 <= low);
+			h.record(low);
+			h.record(high);
+		}
+		long[] counts = h.getCounts();
+		for (int i = 0; i < n - 1; i++) {
+			assertEquals("bucket " + i + " [" + h.bucketLowValue(i) + ", " + h.bucketHighValue(i) + "]",
+			    2, counts[i]);
+		}
+		// the highest trackable value opens the last bucket
+		assertEquals(1L << 40, h.bucketLowValue(n - 1));
+	}
+
+	@Test
+	public void testOverflow() {
+		LatencyHistogram h = new LatencyHistogram(1000, 5);
+		h.record(5000);
+		h.record(Long.MAX_VALUE / 2);
+		long[] counts = h.getCounts();
+		assertEquals(2, counts[h.numBuckets() - 1]);
+		assertEquals(Long.MAX_VALUE, h.bucketHighValue(h.numBuckets() - 1));
+		assertEquals(5000, h.getMin());
+		assertEquals(Long.MAX_VALUE / 2, h.getMax());
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) h.record(i);
+		long[] p = h.getPercentiles(new double[]{0.0, 0.5, 0.9, 0.99, 1.0});
+		assertEquals(1, p[0]);
+		// the highest value of the bucket, within 1/32 of the exact rank
+		assertTrue("p50 " + p[1], p[1] >= 501 && p[1] <= 501 * 33 / 32);
+		assertTrue("p90 " + p[2], p[2] >= 901 && p[2] <= 901 * 33 / 32);
+		assertTrue("p99 " + p[3], p[3] >= 991 && p[3] <= 1000);
+		assertEquals(1000, p[4]);
+		assertEquals(p[1], h.getPercentile(0.5));
+	}
+
+	@Test
+	public void testSummary() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getPercentile(0.5));
+		assertEquals(0, h.getMin());
+		assertEquals(0.0, h.getMean(), 0.0);
+		h.record(-5);
+		h.record(10, 3);
+		h.record(7, 0);
+		assertEquals(4, h.getCount());
+		assertEquals(30, h.getSum());
+		assertEquals(7.5, h.getMean(), 1e-9);
+		assertEquals(0, h.getMin());
+		assertEquals(10, h.getMax());
+
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getSum());
+		assertEquals(0, h.getMax());
+		h.record(3);
+		assertEquals(3, h.getMin());
+	}
+
+	@Test
+	public void testConcurrentRecord() throws InterruptedException {
+		final LatencyHistogram h = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int base = t * 1000;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 1000; i++) h.record(base + i);
+				}
+			};
+		}
+		for (int t = 0; t < threads.length; t++) threads[t].start();
+		for (int t = 0; t < threads.length; t++) threads[t].join();
+		assertEquals(4000, h.getCount());
+		assertEquals(3999L * 4000 / 2, h.getSum());
+		assertEquals(0, h.getMin());
+		assertEquals(3999, h.getMax());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadSubBuckets() {
+		new LatencyHistogram(1000, 17);
+	}
+
+}